@@ -15,33 +15,51 @@
 
 package org.totschnig.myexpenses.test.model;
 
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.database.Cursor;
 import android.net.Uri;
+import android.os.Bundle;
+import android.os.Parcelable;
 import android.support.v4.provider.DocumentFile;
+import android.test.mock.MockContentResolver;
 import android.util.Log;
+import android.util.SparseArray;
 
 import org.totschnig.myexpenses.R;
 import org.totschnig.myexpenses.export.Exporter;
+import org.totschnig.myexpenses.fragment.TransactionList;
 import org.totschnig.myexpenses.model.Account;
 import org.totschnig.myexpenses.model.AccountType;
 import org.totschnig.myexpenses.model.Category;
 import org.totschnig.myexpenses.model.ExportFormat;
+import org.totschnig.myexpenses.model.Model;
 import org.totschnig.myexpenses.model.Money;
 import org.totschnig.myexpenses.model.PaymentMethod;
 import org.totschnig.myexpenses.model.SplitPartCategory;
 import org.totschnig.myexpenses.model.SplitTransaction;
 import org.totschnig.myexpenses.model.Transaction;
 import org.totschnig.myexpenses.model.Transfer;
+import org.totschnig.myexpenses.provider.TransactionProvider;
+import org.totschnig.myexpenses.task.ExportTask;
+import org.totschnig.myexpenses.task.TaskExecutionFragment;
 import org.totschnig.myexpenses.util.Result;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.List;
 import java.util.Locale;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
 
 
 public class ExportTest extends ModelTest {
@@ -308,6 +326,246 @@ public class ExportTest extends ModelTest {
     }
   }
 
+  public void testNumberOfQueriesDoesNotDependOnNumberOfTransactions() throws IOException {
+    insertData1();
+    int queriesCSV = countQueriesForExport(ExportFormat.CSV);
+    int queriesQIF = countQueriesForExport(ExportFormat.QIF);
+    long now = System.currentTimeMillis();
+    Long chequeId = PaymentMethod.find("CHEQUE");
+    for (int i = 0; i < 50; i++) {
+      Transaction op = Transaction.getNewInstance(account1.getId());
+      if (op == null) {
+        fail();
+        return;
+      }
+      op.setAmount(new Money(account1.currency, -expense1 - i));
+      op.methodId = chequeId;
+      op.setCatId(i % 2 == 0 ? cat1Id : cat2Id);
+      op.setDate(new Date(now + i * 1000));
+      op.save();
+      SplitTransaction split = SplitTransaction.getNewInstance(account1.getId());
+      if (split == null) {
+        fail();
+        return;
+      }
+      split.setAmount(new Money(account1.currency, split1));
+      split.methodId = chequeId;
+      split.setDate(new Date(now + i * 1000 + 500));
+      Transaction part = SplitPartCategory.getNewInstance(account1.getId(), split.getId());
+      if (part == null) {
+        fail();
+        return;
+      }
+      part.setAmount(new Money(account1.currency, part1));
+      part.setCatId(cat1Id);
+      part.status = org.totschnig.myexpenses.provider.DatabaseConstants.STATUS_UNCOMMITTED;
+      part.save();
+      part.setAmount(new Money(account1.currency, part2));
+      part.setCatId(cat2Id);
+      part.saveAsNew();
+      split.save();
+    }
+    assertEquals(queriesCSV, countQueriesForExport(ExportFormat.CSV));
+    assertEquals(queriesQIF, countQueriesForExport(ExportFormat.QIF));
+  }
+
+  public void testParallelExportWritesSameFilesAsSequentialExport() throws IOException {
+    insertData1();
+    List<Account> accounts = Arrays.asList(account1, account2);
+    File sequentialDir = newDir("sequential");
+    File parallelDir = newDir("parallel");
+    try {
+      assertEquals(accounts, newExportTask().exportAccounts(accounts,
+          DocumentFile.fromFile(sequentialDir), null, 1));
+      assertEquals(accounts, newExportTask().exportAccounts(accounts,
+          DocumentFile.fromFile(parallelDir), null, accounts.size()));
+      List<String> expected = readFiles(sequentialDir);
+      assertEquals(2, expected.size());
+      assertEquals(expected, readFiles(parallelDir));
+    } finally {
+      deleteDir(sequentialDir);
+      deleteDir(parallelDir);
+    }
+  }
+
+  public void testZipExportHoldsFilesInAccountOrder() throws IOException {
+    insertData1();
+    List<Account> accounts = Arrays.asList(account1, account2);
+    File sequentialDir = newDir("sequential");
+    File workDir = newDir("zip");
+    File zipFile = new File(getContext().getCacheDir(), FILE_NAME + ".zip");
+    try {
+      newExportTask().exportAccounts(accounts, DocumentFile.fromFile(sequentialDir), null, 1);
+      assertEquals(accounts, newExportTask().exportAccounts(accounts,
+          DocumentFile.fromFile(workDir), DocumentFile.fromFile(zipFile), accounts.size()));
+      List<String> names = new ArrayList<>();
+      List<String> contents = new ArrayList<>();
+      ZipInputStream zip = new ZipInputStream(new FileInputStream(zipFile));
+      try {
+        ZipEntry entry;
+        while ((entry = zip.getNextEntry()) != null) {
+          names.add(entry.getName());
+          contents.add(read(zip));
+        }
+      } finally {
+        zip.close();
+      }
+      assertEquals(2, names.size());
+      assertTrue(names.get(0).startsWith(account1.label));
+      assertTrue(names.get(1).startsWith(account2.label));
+      assertEquals(readFiles(sequentialDir), contents);
+      //files are moved into the archive
+      String[] left = workDir.list();
+      assertNotNull(left);
+      assertEquals(0, left.length);
+    } finally {
+      deleteDir(sequentialDir);
+      deleteDir(workDir);
+      //noinspection ResultOfMethodCallIgnored
+      zipFile.delete();
+    }
+  }
+
+  public void testZipIsDeletedIfNoAccountIsExported() {
+    Account empty1 = new Account("Empty 1", openingBalance, "");
+    empty1.save();
+    Account empty2 = new Account("Empty 2", openingBalance, "");
+    empty2.save();
+    File workDir = newDir("zip");
+    File zipFile = new File(getContext().getCacheDir(), FILE_NAME + ".zip");
+    try {
+      List<Account> exported = newExportTask().exportAccounts(Arrays.asList(empty1, empty2),
+          DocumentFile.fromFile(workDir), DocumentFile.fromFile(zipFile), 2);
+      assertNotNull(exported);
+      assertTrue(exported.isEmpty());
+      assertFalse(zipFile.exists());
+    } finally {
+      deleteDir(workDir);
+    }
+  }
+
+  private ExportTask newExportTask() {
+    Bundle extras = new Bundle();
+    extras.putString(TaskExecutionFragment.KEY_FORMAT, ExportFormat.CSV.name());
+    extras.putString(TaskExecutionFragment.KEY_DATE_FORMAT, "dd/MM/yyyy");
+    extras.putChar(ExportTask.KEY_DECIMAL_SEPARATOR, '.');
+    extras.putString(TaskExecutionFragment.KEY_ENCODING, "UTF-8");
+    extras.putString(ExportTask.KEY_FILE_NAME, FILE_NAME);
+    extras.putSparseParcelableArray(TransactionList.KEY_FILTER, new SparseArray<Parcelable>());
+    return new ExportTask(new TaskExecutionFragment(), extras);
+  }
+
+  private File newDir(String name) {
+    File dir = new File(getContext().getCacheDir(), name);
+    deleteDir(dir);
+    assertTrue(dir.mkdir());
+    return dir;
+  }
+
+  private static void deleteDir(File dir) {
+    File[] files = dir.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+      }
+    }
+    //noinspection ResultOfMethodCallIgnored
+    dir.delete();
+  }
+
+  /**
+   * @return the contents of the files in dir, ordered by their name
+   */
+  private static List<String> readFiles(File dir) throws IOException {
+    File[] files = dir.listFiles();
+    assertNotNull(files);
+    Arrays.sort(files);
+    List<String> result = new ArrayList<>();
+    for (File file : files) {
+      InputStream in = new FileInputStream(file);
+      try {
+        result.add(read(in));
+      } finally {
+        in.close();
+      }
+    }
+    return result;
+  }
+
+  private static String read(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[4096];
+    int count;
+    while ((count = in.read(buffer)) != -1) {
+      out.write(buffer, 0, count);
+    }
+    return out.toString("UTF-8");
+  }
+
+  private int countQueriesForExport(ExportFormat format) throws IOException {
+    PaymentMethod.clear();
+    QueryCountingProvider provider = new QueryCountingProvider(getProvider());
+    provider.attachInfo(getMockContext(), null);
+    MockContentResolver resolver = new MockContentResolver();
+    resolver.addProvider(TransactionProvider.AUTHORITY, provider);
+    Model.setContentResolver(resolver);
+    try {
+      Result result = exportAll(account1, format, false);
+      assertTrue(result.success);
+      export = (Uri) result.extra[0];
+      //noinspection ResultOfMethodCallIgnored
+      new File(export.getPath()).delete();
+      return provider.queryCount;
+    } finally {
+      Model.setContentResolver(getMockContentResolver());
+    }
+  }
+
+  /**
+   * passes all calls on to the provider under test, counting the queries
+   */
+  private static class QueryCountingProvider extends ContentProvider {
+    private final ContentProvider delegate;
+    int queryCount = 0;
+
+    QueryCountingProvider(ContentProvider delegate) {
+      this.delegate = delegate;
+    }
+
+    @Override
+    public boolean onCreate() {
+      return true;
+    }
+
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
+                        String sortOrder) {
+      queryCount++;
+      return delegate.query(uri, projection, selection, selectionArgs, sortOrder);
+    }
+
+    @Override
+    public String getType(Uri uri) {
+      return delegate.getType(uri);
+    }
+
+    @Override
+    public Uri insert(Uri uri, ContentValues values) {
+      return delegate.insert(uri, values);
+    }
+
+    @Override
+    public int delete(Uri uri, String selection, String[] selectionArgs) {
+      return delegate.delete(uri, selection, selectionArgs);
+    }
+
+    @Override
+    public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+      return delegate.update(uri, values, selection, selectionArgs);
+    }
+  }
+
   private void compare(File file, String[] lines) {
     try {
       InputStream is = new FileInputStream(file);
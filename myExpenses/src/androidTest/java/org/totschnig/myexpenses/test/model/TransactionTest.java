@@ -180,6 +180,70 @@ public class TransactionTest extends ModelTest {
     assertNull("Transaction deleted, but can still be retrieved", Transaction.getInstanceFromDb(op1.getId()));
   }
 
+  public void testBulkVoidUndeleteAndDelete() {
+    Transaction op1 = Transaction.getNewInstance(mAccount1.getId());
+    assert op1 != null;
+    op1.setAmount(new Money(mAccount1.currency, 100L));
+    op1.save();
+    Transfer op2 = Transfer.getNewInstance(mAccount1.getId(), mAccount2.getId());
+    assert op2 != null;
+    op2.setAmount(new Money(mAccount1.currency, 100L));
+    op2.save();
+    SplitTransaction op3 = SplitTransaction.getNewInstance(mAccount1.getId(), false);
+    assert op3 != null;
+    op3.setAmount(new Money(mAccount1.currency, 100L));
+    op3.save();
+    Transaction split1 = new SplitPartTransfer(mAccount1, 100L, op3.getId(), mAccount2);
+    split1.save();
+    long[] ids = {op1.getId(), op2.getId(), op3.getId()};
+
+    Transaction.delete(ids, true);
+    assertEquals(CrStatus.VOID, Transaction.getInstanceFromDb(op1.getId()).crStatus);
+    assertEquals(CrStatus.VOID, Transaction.getInstanceFromDb(op2.getId()).crStatus);
+    assertEquals(CrStatus.VOID, Transaction.getInstanceFromDb(split1.getId()).crStatus);
+    Transaction.undelete(ids);
+    assertEquals(CrStatus.UNRECONCILED, Transaction.getInstanceFromDb(op1.getId()).crStatus);
+    assertEquals(CrStatus.UNRECONCILED, Transaction.getInstanceFromDb(split1.getId()).crStatus);
+
+    Transaction.delete(ids, false);
+    assertNull(Transaction.getInstanceFromDb(op1.getId()));
+    assertNull(Transaction.getInstanceFromDb(op2.getId()));
+    assertNull("Transfer delete should delete peer", Transaction.getInstanceFromDb(op2.transfer_peer));
+    assertNull(Transaction.getInstanceFromDb(op3.getId()));
+    assertNull(Transaction.getInstanceFromDb(split1.getId()));
+    assertNull("Split part delete should delete its peer", Transaction.getInstanceFromDb(split1.transfer_peer));
+  }
+
+  public void testBulkDeleteKeepsSplitPartOfPeer() {
+    SplitTransaction op1 = SplitTransaction.getNewInstance(mAccount2.getId(), false);
+    assert op1 != null;
+    op1.setAmount(new Money(mAccount2.currency, 100L));
+    op1.save();
+    Transaction split1 = new SplitPartTransfer(mAccount2, 100L, op1.getId(), mAccount1);
+    split1.save();
+    Transaction.delete(new long[]{split1.transfer_peer}, false);
+    assertNull(Transaction.getInstanceFromDb(split1.transfer_peer));
+    Transaction restored = Transaction.getInstanceFromDb(split1.getId());
+    assertNotNull("Split part of deleted peer should be kept", restored);
+    assertNull(restored.transfer_peer);
+  }
+
+  public void testBulkMove() {
+    Transaction op1 = Transaction.getNewInstance(mAccount1.getId());
+    assert op1 != null;
+    op1.setAmount(new Money(mAccount1.currency, 100L));
+    op1.save();
+    Transfer op2 = Transfer.getNewInstance(mAccount1.getId(), mAccount2.getId());
+    assert op2 != null;
+    op2.setAmount(new Money(mAccount1.currency, 100L));
+    op2.save();
+    long[] ids = {op1.getId(), op2.getId()};
+    //transfers are not moved to their own transfer account
+    assertEquals(1, Transaction.move(ids, mAccount2.getId()));
+    assertEquals(mAccount2.getId(), Transaction.getInstanceFromDb(op1.getId()).accountId);
+    assertEquals(mAccount1.getId(), Transaction.getInstanceFromDb(op2.getId()).accountId);
+  }
+
   public void testIncreaseCatUsage() {
     long catId1 = Category.write(0, "Test category 1", null);
     long catId2 = Category.write(0, "Test category 2", null);
@@ -0,0 +1,80 @@
+package org.totschnig.myexpenses.test.provider;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Bundle;
+import android.test.ProviderTestCase2;
+
+import org.totschnig.myexpenses.model.Account;
+import org.totschnig.myexpenses.model.AccountType;
+import org.totschnig.myexpenses.model.Transaction.CrStatus;
+import org.totschnig.myexpenses.provider.DatabaseConstants;
+import org.totschnig.myexpenses.provider.TransactionProvider;
+
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_CLEARED_TOTAL;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_CR_STATUS;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_CURRENT_BALANCE;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ROWID;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_SUM;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_SUM_EXPENSES;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_SUM_INCOME;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_TOTAL;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_ACCOUNT_BALANCES;
+
+public class AccountBalanceTest extends ProviderTestCase2<TransactionProvider> {
+  private SQLiteDatabase mDb;
+  private long testAccountId;
+
+  public AccountBalanceTest() {
+    super(TransactionProvider.class, TransactionProvider.AUTHORITY);
+  }
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    mDb = getProvider().getOpenHelperForTest().getWritableDatabase();
+    testAccountId = mDb.insertOrThrow(DatabaseConstants.TABLE_ACCOUNTS, null,
+        new AccountInfo("Test account", AccountType.CASH, 100).getContentValues());
+    long payeeId = mDb.insertOrThrow(DatabaseConstants.TABLE_PAYEES, null, new PayeeInfo("N.N").getContentValues());
+    //dated in the past, so that current balance equals total
+    String now = String.valueOf(System.currentTimeMillis() / 1000 - 60);
+    mDb.insertOrThrow(DatabaseConstants.TABLE_TRANSACTIONS, null,
+        new TransactionInfo("Income", now, 300, testAccountId, payeeId).getContentValues());
+    mDb.insertOrThrow(DatabaseConstants.TABLE_TRANSACTIONS, null,
+        new TransactionInfo("Expense", now, -50, testAccountId, payeeId).getContentValues());
+    long voidId = mDb.insertOrThrow(DatabaseConstants.TABLE_TRANSACTIONS, null,
+        new TransactionInfo("Void", now, -1000, testAccountId, payeeId).getContentValues());
+    ContentValues v = new ContentValues(1);
+    v.put(KEY_CR_STATUS, CrStatus.VOID.name());
+    mDb.update(DatabaseConstants.TABLE_TRANSACTIONS, v, KEY_ROWID + " = ?", new String[]{String.valueOf(voidId)});
+  }
+
+  public void testBalancesAreMaintainedByTriggers() {
+    Cursor cursor = getMockContentResolver().query(TransactionProvider.ACCOUNTS_URI,
+        Account.PROJECTION_FULL, KEY_ROWID + " = ?", new String[]{String.valueOf(testAccountId)}, null);
+    assertNotNull(cursor);
+    assertTrue(cursor.moveToFirst());
+    assertEquals(350, cursor.getLong(cursor.getColumnIndex(KEY_TOTAL)));
+    assertEquals(350, cursor.getLong(cursor.getColumnIndex(KEY_CURRENT_BALANCE)));
+    assertEquals(100, cursor.getLong(cursor.getColumnIndex(KEY_CLEARED_TOTAL)));
+    assertEquals(300, cursor.getLong(cursor.getColumnIndex(KEY_SUM_INCOME)));
+    assertEquals(-50, cursor.getLong(cursor.getColumnIndex(KEY_SUM_EXPENSES)));
+    cursor.close();
+    assertTrue(repair());
+  }
+
+  public void testRepairRebuildsCorruptedBalances() {
+    ContentValues v = new ContentValues(1);
+    v.put(KEY_SUM, 12345);
+    mDb.update(TABLE_ACCOUNT_BALANCES, v, null, null);
+    assertFalse(repair());
+    assertTrue(repair());
+  }
+
+  private boolean repair() {
+    Bundle result = getProvider().call(TransactionProvider.METHOD_REPAIR_ACCOUNT_BALANCES, null, null);
+    assertNotNull(result);
+    return result.getBoolean(TransactionProvider.KEY_RESULT);
+  }
+}
@@ -0,0 +1,96 @@
+package org.totschnig.myexpenses.test.provider;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Build;
+import android.test.ProviderTestCase2;
+
+import org.totschnig.myexpenses.model.AccountType;
+import org.totschnig.myexpenses.provider.DatabaseConstants;
+import org.totschnig.myexpenses.provider.TransactionProvider;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ACCOUNTID;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_STATUS;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_SYNC_STATE;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_TRANSACTIONS;
+
+/**
+ * with write-ahead logging, queries are served from a read connection while a sync batch
+ * holds the write transaction
+ */
+public class ConcurrentReadTest extends ProviderTestCase2<TransactionProvider> {
+  private SQLiteDatabase mDb;
+  private long testAccountId;
+  private long payeeId;
+
+  public ConcurrentReadTest() {
+    super(TransactionProvider.class, TransactionProvider.AUTHORITY);
+  }
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    mDb = getProvider().getOpenHelperForTest().getWritableDatabase();
+    testAccountId = mDb.insertOrThrow(DatabaseConstants.TABLE_ACCOUNTS, null,
+        new AccountInfo("Test account", AccountType.CASH, 0).getContentValues());
+    payeeId = mDb.insertOrThrow(DatabaseConstants.TABLE_PAYEES, null, new PayeeInfo("N.N").getContentValues());
+    mDb.insertOrThrow(TABLE_TRANSACTIONS, null, new TransactionInfo("Committed",
+        String.valueOf(System.currentTimeMillis() / 1000), 100, testAccountId, payeeId).getContentValues());
+  }
+
+  public void testReadCompletesWhileSyncTransactionIsOpen() throws Exception {
+    if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+      return;
+    }
+    assertTrue(mDb.isWriteAheadLoggingEnabled());
+    //first query might need to write date buckets
+    assertEquals(1, countTransactions());
+
+    final CountDownLatch inTransaction = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final CountDownLatch writerDone = new CountDownLatch(1);
+    Thread writer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        mDb.beginTransaction();
+        try {
+          ContentValues syncState = new ContentValues(1);
+          syncState.put(KEY_STATUS, "1");
+          mDb.insertOrThrow(TABLE_SYNC_STATE, null, syncState);
+          for (int i = 0; i < 100; i++) {
+            mDb.insertOrThrow(TABLE_TRANSACTIONS, null, new TransactionInfo("Remote " + i,
+                String.valueOf(System.currentTimeMillis() / 1000), 100, testAccountId, payeeId).getContentValues());
+          }
+          inTransaction.countDown();
+          release.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException ignored) {
+        } finally {
+          mDb.endTransaction();
+          writerDone.countDown();
+        }
+      }
+    });
+    writer.start();
+    assertTrue(inTransaction.await(10, TimeUnit.SECONDS));
+    //the uncommitted rows of the sync batch are not visible to the reader
+    assertEquals(1, countTransactions());
+    assertEquals("Reader waited for the writer", 1, writerDone.getCount());
+    release.countDown();
+    writer.join();
+  }
+
+  private int countTransactions() {
+    Cursor c = getMockContentResolver().query(TransactionProvider.TRANSACTIONS_URI, null,
+        KEY_ACCOUNTID + " = ?", new String[]{String.valueOf(testAccountId)}, null);
+    assertNotNull(c);
+    try {
+      return c.getCount();
+    } finally {
+      c.close();
+    }
+  }
+}
@@ -0,0 +1,168 @@
+package org.totschnig.myexpenses.test.provider;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.test.ProviderTestCase2;
+
+import org.totschnig.myexpenses.model.AccountType;
+import org.totschnig.myexpenses.preference.PrefKey;
+import org.totschnig.myexpenses.provider.DatabaseConstants;
+import org.totschnig.myexpenses.provider.TransactionProvider;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Locale;
+
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_DATE;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_DAY;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_MONTH;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ROWID;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_WEEK;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_WEEK_END;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_WEEK_START;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_YEAR;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_YEAR_OF_MONTH_START;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_YEAR_OF_WEEK_START;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_TRANSACTIONS;
+
+public class DateBucketTest extends ProviderTestCase2<TransactionProvider> {
+  private SQLiteDatabase mDb;
+  private long testAccountId;
+  private long payeeId;
+
+  public DateBucketTest() {
+    super(TransactionProvider.class, TransactionProvider.AUTHORITY);
+  }
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    mDb = getProvider().getOpenHelperForTest().getWritableDatabase();
+    testAccountId = mDb.insertOrThrow(DatabaseConstants.TABLE_ACCOUNTS, null,
+        new AccountInfo("Test account", AccountType.CASH, 0).getContentValues());
+    payeeId = mDb.insertOrThrow(DatabaseConstants.TABLE_PAYEES, null, new PayeeInfo("N.N").getContentValues());
+  }
+
+  public void testBucketsAreMaintainedOnInsertAndUpdate() {
+    Calendar calendar = Calendar.getInstance();
+    calendar.set(2016, Calendar.MARCH, 15, 12, 0, 0);
+    long id = mDb.insertOrThrow(TABLE_TRANSACTIONS, null, new TransactionInfo("Transaction",
+        String.valueOf(calendar.getTimeInMillis() / 1000), 100, testAccountId, payeeId).getContentValues());
+    assertBuckets(id, calendar);
+
+    calendar.set(2017, Calendar.NOVEMBER, 2, 12, 0, 0);
+    ContentValues v = new ContentValues(1);
+    v.put(KEY_DATE, calendar.getTimeInMillis() / 1000);
+    mDb.update(TABLE_TRANSACTIONS, v, KEY_ROWID + " = ?", new String[]{String.valueOf(id)});
+    assertBuckets(id, calendar);
+  }
+
+  public void testProviderInsertWritesBucketsWithoutUpdate() {
+    mDb.execSQL("CREATE TABLE _updated (id integer)");
+    mDb.execSQL("CREATE TRIGGER log_update AFTER UPDATE ON " + TABLE_TRANSACTIONS
+        + " BEGIN INSERT INTO _updated VALUES (new." + KEY_ROWID + "); END");
+    try {
+      Calendar calendar = Calendar.getInstance();
+      calendar.set(2016, Calendar.FEBRUARY, 29, 12, 0, 0);
+      Uri uri = getMockContentResolver().insert(TransactionProvider.TRANSACTIONS_URI,
+          new TransactionInfo("Transaction", String.valueOf(calendar.getTimeInMillis() / 1000), 100,
+              testAccountId, payeeId).getContentValues());
+      assertNotNull(uri);
+      assertBuckets(ContentUris.parseId(uri), calendar);
+      assertEquals(0, DatabaseUtils.queryNumEntries(mDb, "_updated"));
+    } finally {
+      mDb.execSQL("DROP TRIGGER log_update");
+      mDb.execSQL("DROP TABLE _updated");
+    }
+  }
+
+  /**
+   * the buckets computed on provider insert must be the ones the trigger computes for the same
+   * date, whatever day weeks and months start on
+   */
+  public void testProviderInsertMatchesTriggerForAllSettings() {
+    String weekStarts = PrefKey.GROUP_WEEK_STARTS.getString(null);
+    String monthStarts = PrefKey.GROUP_MONTH_STARTS.getString(null);
+    int[] weekStartsOn = {Calendar.SUNDAY, Calendar.MONDAY, Calendar.SATURDAY};
+    int[] monthStartsOn = {1, 5, 16, 28};
+    try {
+      for (int week : weekStartsOn) {
+        for (int month : monthStartsOn) {
+          PrefKey.GROUP_WEEK_STARTS.putString(String.valueOf(week));
+          PrefKey.GROUP_MONTH_STARTS.putString(String.valueOf(month));
+          DatabaseConstants.buildLocalized(Locale.getDefault());
+          //a query through the provider recreates the triggers for the new settings
+          getMockContentResolver().query(TransactionProvider.TRANSACTIONS_URI, null, null, null,
+              null).close();
+          Calendar calendar = Calendar.getInstance();
+          for (int[] date : new int[][]{{2016, Calendar.JANUARY, 1}, {2016, Calendar.FEBRUARY, 29},
+              {2016, Calendar.DECEMBER, 31}, {2017, Calendar.JANUARY, 2}, {2017, Calendar.MAY, 4},
+              {2017, Calendar.NOVEMBER, 27}}) {
+            calendar.set(date[0], date[1], date[2], 12, 0, 0);
+            String dateString = String.valueOf(calendar.getTimeInMillis() / 1000);
+            long fromTrigger = mDb.insertOrThrow(TABLE_TRANSACTIONS, null, new TransactionInfo(
+                "Trigger", dateString, 100, testAccountId, payeeId).getContentValues());
+            Uri uri = getMockContentResolver().insert(TransactionProvider.TRANSACTIONS_URI,
+                new TransactionInfo("Provider", dateString, 100, testAccountId, payeeId)
+                    .getContentValues());
+            assertNotNull(uri);
+            String message = String.format(Locale.ROOT, "week starts on %d, month starts on %d, %s",
+                week, month, calendar.getTime());
+            assertEquals(message, readBuckets(fromTrigger), readBuckets(ContentUris.parseId(uri)));
+            assertBuckets(ContentUris.parseId(uri), calendar);
+          }
+        }
+      }
+    } finally {
+      restore(PrefKey.GROUP_WEEK_STARTS, weekStarts);
+      restore(PrefKey.GROUP_MONTH_STARTS, monthStarts);
+      DatabaseConstants.buildLocalized(Locale.getDefault());
+    }
+  }
+
+  private static void restore(PrefKey key, String value) {
+    if (value == null) {
+      key.remove();
+    } else {
+      key.putString(value);
+    }
+  }
+
+  private List<Long> readBuckets(long id) {
+    String[] columns = {KEY_YEAR, KEY_MONTH, KEY_YEAR_OF_MONTH_START, KEY_WEEK,
+        KEY_YEAR_OF_WEEK_START, KEY_DAY, KEY_WEEK_START, KEY_WEEK_END};
+    Cursor c = mDb.query(TABLE_TRANSACTIONS, columns, KEY_ROWID + " = ?",
+        new String[]{String.valueOf(id)}, null, null, null);
+    assertNotNull(c);
+    assertTrue(c.moveToFirst());
+    List<Long> result = new ArrayList<>();
+    for (int i = 0; i < columns.length; i++) {
+      result.add(c.getLong(i));
+    }
+    c.close();
+    return result;
+  }
+
+  private void assertBuckets(long id, Calendar expected) {
+    Cursor c = mDb.query(TABLE_TRANSACTIONS,
+        new String[]{KEY_YEAR, KEY_DAY, KEY_MONTH, KEY_YEAR_OF_MONTH_START},
+        KEY_ROWID + " = ?", new String[]{String.valueOf(id)}, null, null, null);
+    assertNotNull(c);
+    assertTrue(c.moveToFirst());
+    assertEquals(expected.get(Calendar.YEAR), c.getInt(0));
+    assertEquals(expected.get(Calendar.DAY_OF_YEAR), c.getInt(1));
+    //with a month starting on a later day, days before it belong to the previous month
+    Calendar monthStart = (Calendar) expected.clone();
+    if (monthStart.get(Calendar.DAY_OF_MONTH) < DatabaseConstants.monthStartsOn) {
+      monthStart.add(Calendar.MONTH, -1);
+    }
+    assertEquals(monthStart.get(Calendar.MONTH) + 1, c.getInt(2));
+    assertEquals(monthStart.get(Calendar.YEAR), c.getInt(3));
+    c.close();
+  }
+}
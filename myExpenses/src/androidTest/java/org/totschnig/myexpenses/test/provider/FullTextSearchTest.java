@@ -0,0 +1,125 @@
+package org.totschnig.myexpenses.test.provider;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.ProviderTestCase2;
+
+import org.totschnig.myexpenses.model.AccountType;
+import org.totschnig.myexpenses.model.Payee;
+import org.totschnig.myexpenses.provider.DatabaseConstants;
+import org.totschnig.myexpenses.provider.DbUtils;
+import org.totschnig.myexpenses.provider.TransactionProvider;
+import org.totschnig.myexpenses.util.Utils;
+
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_COMMENT;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_PAYEE_NAME;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_PAYEE_NAME_NORMALIZED;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_REFERENCE_NUMBER;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ROWID;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_PAYEES;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_TRANSACTIONS;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_TRANSACTIONS_FTS;
+
+/**
+ * The full text indexes of payees and transactions are maintained by triggers
+ */
+public class FullTextSearchTest extends ProviderTestCase2<TransactionProvider> {
+  private SQLiteDatabase mDb;
+  private long testAccountId;
+
+  public FullTextSearchTest() {
+    super(TransactionProvider.class, TransactionProvider.AUTHORITY);
+  }
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    mDb = getProvider().getOpenHelperForTest().getWritableDatabase();
+    testAccountId = mDb.insertOrThrow(DatabaseConstants.TABLE_ACCOUNTS, null,
+        new AccountInfo("Test account", AccountType.CASH, 0).getContentValues());
+  }
+
+  public void testPayeeIndexTracksInsertUpdateAndDelete() {
+    long id = mDb.insertOrThrow(TABLE_PAYEES, null, new PayeeInfo("Café Müller").getContentValues());
+    assertPayeeMatches("caf", id);
+    assertPayeeMatches("mull", id);
+
+    ContentValues v = new PayeeInfo("Bäckerei Schmidt").getContentValues();
+    mDb.update(TABLE_PAYEES, v, KEY_ROWID + " = ?", new String[]{String.valueOf(id)});
+    assertPayeeMatches("caf");
+    assertPayeeMatches("backer", id);
+
+    mDb.delete(TABLE_PAYEES, KEY_ROWID + " = ?", new String[]{String.valueOf(id)});
+    assertPayeeMatches("backer");
+  }
+
+  public void testAutoCompleteProvidesLastTransaction() {
+    long payeeId = mDb.insertOrThrow(TABLE_PAYEES, null, new PayeeInfo("Café Müller").getContentValues());
+    assertLastTransaction("caf", null);
+    long first = insertTransaction("First", payeeId);
+    long second = insertTransaction("Second", payeeId);
+    assertTrue(second > first);
+    assertLastTransaction("caf", second);
+  }
+
+  public void testTransactionIndexTracksInsertUpdateAndDelete() {
+    long payeeId = mDb.insertOrThrow(TABLE_PAYEES, null, new PayeeInfo("N.N").getContentValues());
+    long id = insertTransaction("Groceries for the weekend", payeeId);
+    assertTransactionMatches("groc", id);
+
+    ContentValues v = new ContentValues(2);
+    v.put(KEY_COMMENT, "Birthday present");
+    v.put(KEY_REFERENCE_NUMBER, "4711");
+    mDb.update(TABLE_TRANSACTIONS, v, KEY_ROWID + " = ?", new String[]{String.valueOf(id)});
+    assertTransactionMatches("groc");
+    assertTransactionMatches("birth", id);
+    assertTransactionMatches("4711", id);
+
+    mDb.delete(TABLE_TRANSACTIONS, KEY_ROWID + " = ?", new String[]{String.valueOf(id)});
+    assertTransactionMatches("birth");
+  }
+
+  private long insertTransaction(String comment, long payeeId) {
+    return mDb.insertOrThrow(TABLE_TRANSACTIONS, null, new TransactionInfo(comment,
+        String.valueOf(System.currentTimeMillis() / 1000), 100, testAccountId, payeeId)
+        .getContentValues());
+  }
+
+  private void assertPayeeMatches(String search, long... expected) {
+    Cursor c = getMockContentResolver().query(TransactionProvider.PAYEES_URI,
+        new String[]{KEY_ROWID, KEY_PAYEE_NAME, KEY_PAYEE_NAME_NORMALIZED},
+        Payee.SELECTION_NAME_MATCHES, new String[]{DbUtils.ftsPrefixQuery(Utils.normalize(search))},
+        null);
+    assertIds(c, expected);
+  }
+
+  private void assertTransactionMatches(String search, long... expected) {
+    assertIds(mDb.rawQuery("SELECT docid FROM " + TABLE_TRANSACTIONS_FTS + " WHERE " +
+        TABLE_TRANSACTIONS_FTS + " MATCH ?", new String[]{DbUtils.ftsPrefixQuery(search)}), expected);
+  }
+
+  private void assertLastTransaction(String search, Long expected) {
+    Cursor c = getMockContentResolver().query(TransactionProvider.PAYEES_URI,
+        Payee.PROJECTION_AUTO_COMPLETE, Payee.SELECTION_NAME_MATCHES,
+        new String[]{DbUtils.ftsPrefixQuery(Utils.normalize(search))}, null);
+    assertNotNull(c);
+    assertTrue(c.moveToFirst());
+    if (expected == null) {
+      assertTrue(c.isNull(2));
+    } else {
+      assertEquals(expected.longValue(), c.getLong(2));
+    }
+    c.close();
+  }
+
+  private void assertIds(Cursor c, long... expected) {
+    assertNotNull(c);
+    assertEquals(expected.length, c.getCount());
+    for (long id : expected) {
+      assertTrue(c.moveToNext());
+      assertEquals(id, c.getLong(0));
+    }
+    c.close();
+  }
+}
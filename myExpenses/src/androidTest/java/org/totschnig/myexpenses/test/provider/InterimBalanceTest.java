@@ -0,0 +1,117 @@
+package org.totschnig.myexpenses.test.provider;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.test.ProviderTestCase2;
+
+import org.totschnig.myexpenses.model.AccountType;
+import org.totschnig.myexpenses.model.Grouping;
+import org.totschnig.myexpenses.model.Transaction.CrStatus;
+import org.totschnig.myexpenses.provider.DatabaseConstants;
+import org.totschnig.myexpenses.provider.TransactionProvider;
+
+import java.util.Calendar;
+
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ACCOUNTID;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_AMOUNT;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_CR_STATUS;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_DAY;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_INTERIM_BALANCE;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_MONTH;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_OPENING_BALANCE;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ROWID;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_SECOND_GROUP;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_WEEK;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_YEAR;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_YEAR_OF_MONTH_START;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_YEAR_OF_WEEK_START;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_ACCOUNTS;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_TRANSACTIONS;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.VIEW_EXTENDED;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.WHERE_NOT_SPLIT;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.WHERE_NOT_VOID;
+
+/**
+ * compares the interim balances computed by the provider with the per group sum over all
+ * transactions up to and including the group
+ */
+public class InterimBalanceTest extends ProviderTestCase2<TransactionProvider> {
+  private SQLiteDatabase mDb;
+  private long testAccountId;
+
+  public InterimBalanceTest() {
+    super(TransactionProvider.class, TransactionProvider.AUTHORITY);
+  }
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    mDb = getProvider().getOpenHelperForTest().getWritableDatabase();
+    testAccountId = mDb.insertOrThrow(TABLE_ACCOUNTS, null,
+        new AccountInfo("Test account", AccountType.CASH, 1000).getContentValues());
+    long payeeId = mDb.insertOrThrow(DatabaseConstants.TABLE_PAYEES, null, new PayeeInfo("N.N").getContentValues());
+    Calendar calendar = Calendar.getInstance();
+    calendar.set(2015, Calendar.DECEMBER, 20, 12, 0, 0);
+    long voidId = 0;
+    for (int i = 0; i < 60; i++) {
+      //spread over several weeks, months and two year boundaries
+      calendar.add(Calendar.DAY_OF_YEAR, 7 + i % 5);
+      long amount = (i % 3 == 0 ? 1 : -1) * (100 + i);
+      voidId = mDb.insertOrThrow(TABLE_TRANSACTIONS, null, new TransactionInfo("Transaction " + i,
+          String.valueOf(calendar.getTimeInMillis() / 1000), amount, testAccountId, payeeId).getContentValues());
+    }
+    ContentValues v = new ContentValues(1);
+    v.put(KEY_CR_STATUS, CrStatus.VOID.name());
+    mDb.update(TABLE_TRANSACTIONS, v, KEY_ROWID + " = ?", new String[]{String.valueOf(voidId)});
+  }
+
+  public void testDay() {
+    assertInterimBalances(Grouping.DAY, KEY_YEAR, KEY_DAY);
+  }
+
+  public void testWeek() {
+    assertInterimBalances(Grouping.WEEK, KEY_YEAR_OF_WEEK_START, KEY_WEEK);
+  }
+
+  public void testMonth() {
+    assertInterimBalances(Grouping.MONTH, KEY_YEAR_OF_MONTH_START, KEY_MONTH);
+  }
+
+  public void testYear() {
+    assertInterimBalances(Grouping.YEAR, KEY_YEAR, "1");
+  }
+
+  public void testNone() {
+    assertInterimBalances(Grouping.NONE, "1", "1");
+  }
+
+  private void assertInterimBalances(Grouping grouping, String yearExpression, String secondDef) {
+    Uri uri = TransactionProvider.TRANSACTIONS_URI.buildUpon()
+        .appendPath(TransactionProvider.URI_SEGMENT_GROUPS)
+        .appendPath(grouping.name())
+        .appendQueryParameter(KEY_ACCOUNTID, String.valueOf(testAccountId))
+        .build();
+    String expectedQuery = "SELECT (SELECT sum(" + KEY_OPENING_BALANCE + ") FROM " + TABLE_ACCOUNTS
+        + " WHERE " + KEY_ROWID + " = ?) + (SELECT sum(" + KEY_AMOUNT + ") FROM " + VIEW_EXTENDED
+        + " WHERE " + KEY_ACCOUNTID + " = ? AND " + WHERE_NOT_SPLIT + " AND " + WHERE_NOT_VOID
+        + " AND (" + yearExpression + " < ? OR (" + yearExpression + " = ? AND " + secondDef + " <= ?)))";
+    String accountId = String.valueOf(testAccountId);
+    Cursor groups = getMockContentResolver().query(uri, null, null, null, null);
+    assertNotNull(groups);
+    assertTrue(groups.getCount() > 0);
+    int columnIndexYear = groups.getColumnIndex(KEY_YEAR);
+    int columnIndexSecond = groups.getColumnIndex(KEY_SECOND_GROUP);
+    int columnIndexInterim = groups.getColumnIndex(KEY_INTERIM_BALANCE);
+    while (groups.moveToNext()) {
+      String year = groups.getString(columnIndexYear);
+      String second = groups.getString(columnIndexSecond);
+      Cursor expected = mDb.rawQuery(expectedQuery, new String[]{accountId, accountId, year, year, second});
+      assertTrue(expected.moveToFirst());
+      assertEquals("Group " + year + "/" + second, expected.getLong(0), groups.getLong(columnIndexInterim));
+      expected.close();
+    }
+    groups.close();
+  }
+}
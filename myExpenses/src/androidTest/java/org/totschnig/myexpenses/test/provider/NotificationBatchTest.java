@@ -0,0 +1,183 @@
+package org.totschnig.myexpenses.test.provider;
+
+import android.content.ContentProviderOperation;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Bundle;
+import android.test.ProviderTestCase2;
+
+import org.totschnig.myexpenses.model.AccountType;
+import org.totschnig.myexpenses.provider.DatabaseConstants;
+import org.totschnig.myexpenses.provider.TransactionProvider;
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class NotificationBatchTest extends ProviderTestCase2<TransactionProvider> {
+  private long testAccountId;
+  private long payeeId;
+
+  public NotificationBatchTest() {
+    super(TransactionProvider.class, TransactionProvider.AUTHORITY);
+  }
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    SQLiteDatabase db = getProvider().getOpenHelperForTest().getWritableDatabase();
+    testAccountId = db.insertOrThrow(DatabaseConstants.TABLE_ACCOUNTS, null,
+        new AccountInfo("Test account", AccountType.CASH, 0).getContentValues());
+    payeeId = db.insertOrThrow(DatabaseConstants.TABLE_PAYEES, null, new PayeeInfo("N.N").getContentValues());
+  }
+
+  public void testApplyBatchNotifiesEachUriOnce() throws Exception {
+    ArrayList<ContentProviderOperation> ops = new ArrayList<>();
+    ops.add(ContentProviderOperation.newInsert(TransactionProvider.DUAL_URI.buildUpon()
+        .appendQueryParameter(TransactionProvider.QUERY_PARAMETER_SYNC_BEGIN, "1").build()).build());
+    for (int i = 0; i < 50; i++) {
+      ops.add(ContentProviderOperation.newInsert(TransactionProvider.TRANSACTIONS_URI)
+          .withValues(new TransactionInfo("Transaction " + i, String.valueOf(System.currentTimeMillis() / 1000),
+              100 + i, testAccountId, payeeId).getContentValues())
+          .build());
+    }
+    ops.add(ContentProviderOperation.newDelete(TransactionProvider.DUAL_URI.buildUpon()
+        .appendQueryParameter(TransactionProvider.QUERY_PARAMETER_SYNC_END, "1").build()).build());
+    Bundle before = stats();
+    getMockContentResolver().applyBatch(TransactionProvider.AUTHORITY, ops);
+    Bundle after = stats();
+    //transactions, accounts, uncommitted and the uris of the two sync markers
+    assertEquals(5, delta(before, after, TransactionProvider.KEY_NOTIFICATIONS_EMITTED));
+    //one notification for each of the sync markers, three for each transaction
+    assertEquals(2 + 50 * 3, delta(before, after, TransactionProvider.KEY_NOTIFICATIONS_SUPPRESSED));
+  }
+
+  public void testBulkOperation() {
+    Bundle before = stats();
+    getProvider().call(TransactionProvider.METHOD_BULK_START, null, null);
+    for (int i = 0; i < 10; i++) {
+      getMockContentResolver().insert(TransactionProvider.TRANSACTIONS_URI,
+          new TransactionInfo("Transaction " + i, String.valueOf(System.currentTimeMillis() / 1000),
+              100 + i, testAccountId, payeeId).getContentValues());
+    }
+    assertEquals(0, delta(before, stats(), TransactionProvider.KEY_NOTIFICATIONS_EMITTED));
+    getProvider().call(TransactionProvider.METHOD_BULK_END, null, null);
+    Bundle after = stats();
+    assertEquals(3, delta(before, after, TransactionProvider.KEY_NOTIFICATIONS_EMITTED));
+    assertEquals(30, delta(before, after, TransactionProvider.KEY_NOTIFICATIONS_SUPPRESSED));
+  }
+
+  public void testFailedSyncBatchDoesNotLeaveBatchOpen() {
+    ArrayList<ContentProviderOperation> ops = new ArrayList<>();
+    ops.add(ContentProviderOperation.newInsert(TransactionProvider.DUAL_URI.buildUpon()
+        .appendQueryParameter(TransactionProvider.QUERY_PARAMETER_SYNC_BEGIN, "1").build()).build());
+    //unknown uri, lets the batch fail before the sync end marker
+    ops.add(ContentProviderOperation.newInsert(TransactionProvider.DUAL_URI).build());
+    try {
+      getMockContentResolver().applyBatch(TransactionProvider.AUTHORITY, ops);
+      fail("Batch should have failed");
+    } catch (Exception expected) {
+    }
+    Bundle before = stats();
+    insertTransactions(1);
+    Bundle after = stats();
+    assertEquals(3, delta(before, after, TransactionProvider.KEY_NOTIFICATIONS_EMITTED));
+    assertEquals(0, delta(before, after, TransactionProvider.KEY_NOTIFICATIONS_SUPPRESSED));
+  }
+
+  /**
+   * batches of two threads that overlap must neither hold back nor leak into each other
+   */
+  public void testInterleavedBatchesOnTwoThreads() throws Exception {
+    ExecutorService importThread = Executors.newSingleThreadExecutor();
+    ExecutorService syncThread = Executors.newSingleThreadExecutor();
+    try {
+      Bundle before = stats();
+      run(importThread, new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          getProvider().call(TransactionProvider.METHOD_BULK_START, null, null);
+          insertTransactions(5);
+          return null;
+        }
+      });
+      run(syncThread, new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          getProvider().call(TransactionProvider.METHOD_BULK_START, null, null);
+          ArrayList<ContentProviderOperation> ops = new ArrayList<>();
+          for (int i = 0; i < 5; i++) {
+            ops.add(ContentProviderOperation.newInsert(TransactionProvider.TRANSACTIONS_URI)
+                .withValues(transaction(i).getContentValues()).build());
+          }
+          getMockContentResolver().applyBatch(TransactionProvider.AUTHORITY, ops);
+          return null;
+        }
+      });
+      assertEquals(0, delta(before, stats(), TransactionProvider.KEY_NOTIFICATIONS_EMITTED));
+      //the import ends its bulk operation while the sync thread is still inside its own
+      run(importThread, new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          getProvider().call(TransactionProvider.METHOD_BULK_END, null, null);
+          return null;
+        }
+      });
+      assertEquals(3, delta(before, stats(), TransactionProvider.KEY_NOTIFICATIONS_EMITTED));
+      run(syncThread, new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          getProvider().call(TransactionProvider.METHOD_BULK_END, null, null);
+          return null;
+        }
+      });
+      Bundle after = stats();
+      assertEquals(6, delta(before, after, TransactionProvider.KEY_NOTIFICATIONS_EMITTED));
+      assertEquals(30, delta(before, after, TransactionProvider.KEY_NOTIFICATIONS_SUPPRESSED));
+
+      //no batch is left open on either thread
+      for (ExecutorService thread : new ExecutorService[]{importThread, syncThread}) {
+        before = stats();
+        run(thread, new Callable<Void>() {
+          @Override
+          public Void call() throws Exception {
+            insertTransactions(1);
+            return null;
+          }
+        });
+        after = stats();
+        assertEquals(3, delta(before, after, TransactionProvider.KEY_NOTIFICATIONS_EMITTED));
+        assertEquals(0, delta(before, after, TransactionProvider.KEY_NOTIFICATIONS_SUPPRESSED));
+      }
+    } finally {
+      importThread.shutdown();
+      syncThread.shutdown();
+    }
+  }
+
+  private void run(ExecutorService thread, Callable<Void> step) throws Exception {
+    thread.submit(step).get();
+  }
+
+  private void insertTransactions(int count) {
+    for (int i = 0; i < count; i++) {
+      getMockContentResolver().insert(TransactionProvider.TRANSACTIONS_URI,
+          transaction(i).getContentValues());
+    }
+  }
+
+  private TransactionInfo transaction(int i) {
+    return new TransactionInfo("Transaction " + i, String.valueOf(System.currentTimeMillis() / 1000),
+        100 + i, testAccountId, payeeId);
+  }
+
+  private Bundle stats() {
+    Bundle result = getProvider().call(TransactionProvider.METHOD_NOTIFICATION_STATS, null, null);
+    assertNotNull(result);
+    return result;
+  }
+
+  private long delta(Bundle before, Bundle after, String key) {
+    return after.getLong(key) - before.getLong(key);
+  }
+}
@@ -0,0 +1,160 @@
+package org.totschnig.myexpenses.test.provider;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Build;
+import android.test.ProviderTestCase2;
+
+import org.totschnig.myexpenses.model.AccountType;
+import org.totschnig.myexpenses.preference.PrefKey;
+import org.totschnig.myexpenses.provider.DatabaseConstants;
+import org.totschnig.myexpenses.provider.TransactionProvider;
+import org.totschnig.myexpenses.util.BackupUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ACCOUNTID;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_TRANSACTIONS;
+
+/**
+ * the database is written into the backup while the provider keeps serving queries, writers wait
+ * until the copy is complete. The dirty flag is only cleared once the backup is complete
+ */
+public class OnlineBackupTest extends ProviderTestCase2<TransactionProvider> {
+  private static final int NUMBER_OF_TRANSACTIONS = 50;
+  private SQLiteDatabase mDb;
+  private long testAccountId;
+  private long payeeId;
+  private IOException backupError;
+
+  public OnlineBackupTest() {
+    super(TransactionProvider.class, TransactionProvider.AUTHORITY);
+  }
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    mDb = getProvider().getOpenHelperForTest().getWritableDatabase();
+    testAccountId = mDb.insertOrThrow(DatabaseConstants.TABLE_ACCOUNTS, null,
+        new AccountInfo("Test account", AccountType.CASH, 0).getContentValues());
+    payeeId = mDb.insertOrThrow(DatabaseConstants.TABLE_PAYEES, null, new PayeeInfo("N.N").getContentValues());
+    //rows stay in the write-ahead log until the backup checkpoints it
+    for (int i = 0; i < NUMBER_OF_TRANSACTIONS; i++) {
+      insertTransaction("Committed " + i);
+    }
+  }
+
+  public void testQueriesAreServedDuringBackup() throws Exception {
+    if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+      return;
+    }
+    assertTrue(mDb.isWriteAheadLoggingEnabled());
+    //first query might need to write date buckets
+    assertEquals(NUMBER_OF_TRANSACTIONS, countTransactions());
+
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final CountDownLatch inBackup = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final CountDownLatch backupDone = new CountDownLatch(1);
+    final CountDownLatch writerDone = new CountDownLatch(1);
+    Thread backup = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          getProvider().backupDb(out, new BackupUtils.ProgressListener() {
+            @Override
+            public void onProgress(int percent) {
+              if (inBackup.getCount() > 0) {
+                inBackup.countDown();
+                try {
+                  release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException ignored) {
+                }
+              }
+            }
+          });
+        } catch (IOException e) {
+          backupError = e;
+        } finally {
+          backupDone.countDown();
+        }
+      }
+    });
+    Thread writer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        insertTransaction("Written during backup");
+        writerDone.countDown();
+      }
+    });
+    backup.start();
+    assertTrue(inBackup.await(10, TimeUnit.SECONDS));
+    writer.start();
+    for (int i = 0; i < 5; i++) {
+      assertEquals(NUMBER_OF_TRANSACTIONS, countTransactions());
+    }
+    assertEquals("Reader waited for the backup", 1, backupDone.getCount());
+    assertFalse("Writer did not wait for the backup", writerDone.await(500, TimeUnit.MILLISECONDS));
+    release.countDown();
+    backup.join();
+    writer.join();
+    assertNull(backupError);
+    assertEquals(NUMBER_OF_TRANSACTIONS + 1, countTransactions());
+
+    File backupFile = new File(getContext().getCacheDir(), "OnlineBackupTest");
+    FileOutputStream fileOut = new FileOutputStream(backupFile);
+    try {
+      out.writeTo(fileOut);
+    } finally {
+      fileOut.close();
+    }
+    SQLiteDatabase backupDb = SQLiteDatabase.openDatabase(backupFile.getPath(), null,
+        SQLiteDatabase.OPEN_READONLY);
+    try {
+      assertEquals("ok", DatabaseUtils.stringForQuery(backupDb, "PRAGMA integrity_check", null));
+      //the backup contains the rows from the write-ahead log, but not the one written during backup
+      assertEquals(NUMBER_OF_TRANSACTIONS, DatabaseUtils.longForQuery(backupDb,
+          "SELECT count(*) FROM " + TABLE_TRANSACTIONS + " WHERE " + KEY_ACCOUNTID + " = ?",
+          new String[]{String.valueOf(testAccountId)}));
+    } finally {
+      backupDb.close();
+      SQLiteDatabase.deleteDatabase(backupFile);
+    }
+  }
+
+  public void testDirtyFlagIsOnlyClearedIfNothingHasBeenWrittenSinceBackup() throws IOException {
+    PrefKey.AUTO_BACKUP_DIRTY.putBoolean(true);
+    getProvider().backupDb(new ByteArrayOutputStream(), null);
+    getMockContentResolver().insert(TransactionProvider.PAYEES_URI,
+        new PayeeInfo("Written after backup").getContentValues());
+    getProvider().onBackupComplete();
+    assertTrue(PrefKey.AUTO_BACKUP_DIRTY.getBoolean(false));
+
+    getProvider().backupDb(new ByteArrayOutputStream(), null);
+    assertTrue("Flag cleared before backup was complete", PrefKey.AUTO_BACKUP_DIRTY.getBoolean(false));
+    getProvider().onBackupComplete();
+    assertFalse(PrefKey.AUTO_BACKUP_DIRTY.getBoolean(true));
+  }
+
+  private void insertTransaction(String comment) {
+    mDb.insertOrThrow(TABLE_TRANSACTIONS, null, new TransactionInfo(comment,
+        String.valueOf(System.currentTimeMillis() / 1000), 100, testAccountId, payeeId).getContentValues());
+  }
+
+  private int countTransactions() {
+    Cursor c = getMockContentResolver().query(TransactionProvider.TRANSACTIONS_URI, null,
+        KEY_ACCOUNTID + " = ?", new String[]{String.valueOf(testAccountId)}, null);
+    assertNotNull(c);
+    try {
+      return c.getCount();
+    } finally {
+      c.close();
+    }
+  }
+}
@@ -0,0 +1,144 @@
+package org.totschnig.myexpenses.test.provider;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.ProviderTestCase2;
+
+import org.totschnig.myexpenses.model.AccountType;
+import org.totschnig.myexpenses.provider.DatabaseConstants;
+import org.totschnig.myexpenses.provider.TransactionProvider;
+
+import java.util.Locale;
+
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ACCOUNTID;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_AMOUNT;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_LOCALE;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_NEXT_INSTANCE;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_PLANID;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_PLAN_INFO;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ROWID;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_TITLE;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_VALID_UNTIL;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_PLAN_INFO_CACHE;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_TEMPLATES;
+
+/**
+ * Templates are read together with the cached info of their plans. Querying does not write to the
+ * cache, it is refreshed through {@link TransactionProvider#METHOD_REFRESH_PLAN_INFO}, and entries
+ * are removed by triggers when templates are deleted or change their plan.
+ */
+public class PlanInfoCacheTest extends ProviderTestCase2<TransactionProvider> {
+  private static final long HOUR = 60 * 60 * 1000L;
+  private SQLiteDatabase mDb;
+  private long testAccountId;
+
+  public PlanInfoCacheTest() {
+    super(TransactionProvider.class, TransactionProvider.AUTHORITY);
+  }
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    mDb = getProvider().getOpenHelperForTest().getWritableDatabase();
+    testAccountId = mDb.insertOrThrow(DatabaseConstants.TABLE_ACCOUNTS, null,
+        new AccountInfo("Test account", AccountType.CASH, 0).getContentValues());
+  }
+
+  public void testTemplatesAreReadWithCachedInfo() {
+    long templateId = insertTemplate("Rent", 1L);
+    long now = System.currentTimeMillis();
+    insertCacheEntry(1L, now + HOUR, "Monthly", now + HOUR);
+    assertPlanInfo(templateId, "Monthly", now + HOUR);
+  }
+
+  public void testQueryDoesNotWriteToCache() {
+    long templateId = insertTemplate("Rent", 1L);
+    long past = System.currentTimeMillis() - HOUR;
+    insertCacheEntry(1L, past, "Monthly", past);
+    assertPlanInfo(templateId, "Monthly", past);
+    assertEquals(1, DatabaseUtils.queryNumEntries(mDb, TABLE_PLAN_INFO_CACHE));
+  }
+
+  public void testRefreshReplacesStaleEntries() {
+    long stale = insertTemplate("Rent", 1L);
+    long valid = insertTemplate("Salary", 2L);
+    long now = System.currentTimeMillis();
+    insertCacheEntry(1L, now - HOUR, "Monthly", now - HOUR);
+    insertCacheEntry(2L, now + HOUR, "Weekly", now + HOUR);
+    refresh(null);
+    //the plans do not exist in the calendar, hence recomputed entries do not have a description
+    assertPlanInfo(stale, null, null);
+    assertPlanInfo(valid, "Weekly", now + HOUR);
+
+    refresh(TransactionProvider.ARG_INVALIDATE);
+    assertPlanInfo(valid, null, null);
+  }
+
+  public void testEntryIsRemovedWhenTemplateIsDeleted() {
+    long templateId = insertTemplate("Rent", 1L);
+    insertTemplate("Salary", 2L);
+    long future = System.currentTimeMillis() + HOUR;
+    insertCacheEntry(1L, future, "Monthly", future);
+    insertCacheEntry(2L, future, "Weekly", future);
+    mDb.delete(TABLE_TEMPLATES, KEY_ROWID + " = ?", new String[]{String.valueOf(templateId)});
+    assertFalse(hasCacheEntry(1L));
+    assertTrue(hasCacheEntry(2L));
+  }
+
+  public void testEntryIsRemovedWhenPlanOfTemplateChanges() {
+    long templateId = insertTemplate("Rent", 1L);
+    long future = System.currentTimeMillis() + HOUR;
+    insertCacheEntry(1L, future, "Monthly", future);
+    ContentValues v = new ContentValues(1);
+    v.put(KEY_TITLE, "Rent increased");
+    mDb.update(TABLE_TEMPLATES, v, KEY_ROWID + " = ?", new String[]{String.valueOf(templateId)});
+    assertTrue(hasCacheEntry(1L));
+    v = new ContentValues(1);
+    v.put(KEY_PLANID, 3L);
+    mDb.update(TABLE_TEMPLATES, v, KEY_ROWID + " = ?", new String[]{String.valueOf(templateId)});
+    assertFalse(hasCacheEntry(1L));
+  }
+
+  private void refresh(String arg) {
+    getProvider().call(TransactionProvider.METHOD_REFRESH_PLAN_INFO, arg, null);
+  }
+
+  private long insertTemplate(String title, long planId) {
+    ContentValues v = new ContentValues();
+    v.put(KEY_TITLE, title);
+    v.put(KEY_AMOUNT, -1000L);
+    v.put(KEY_ACCOUNTID, testAccountId);
+    v.put(KEY_PLANID, planId);
+    return mDb.insertOrThrow(TABLE_TEMPLATES, null, v);
+  }
+
+  private void insertCacheEntry(long planId, long nextInstance, String planInfo, long validUntil) {
+    ContentValues v = new ContentValues();
+    v.put(KEY_PLANID, planId);
+    v.put(KEY_NEXT_INSTANCE, nextInstance);
+    v.put(KEY_PLAN_INFO, planInfo);
+    v.put(KEY_LOCALE, Locale.getDefault().toString());
+    v.put(KEY_VALID_UNTIL, validUntil);
+    mDb.insertOrThrow(TABLE_PLAN_INFO_CACHE, null, v);
+  }
+
+  private boolean hasCacheEntry(long planId) {
+    return DatabaseUtils.queryNumEntries(mDb, TABLE_PLAN_INFO_CACHE, KEY_PLANID + " = ?",
+        new String[]{String.valueOf(planId)}) > 0;
+  }
+
+  private void assertPlanInfo(long templateId, String planInfo, Long nextInstance) {
+    Cursor c = getMockContentResolver().query(TransactionProvider.TEMPLATES_URI.buildUpon()
+            .appendQueryParameter(TransactionProvider.QUERY_PARAMETER_WITH_PLAN_INFO, "1").build(),
+        null, KEY_ROWID + " = ?", new String[]{String.valueOf(templateId)}, null);
+    assertNotNull(c);
+    assertTrue(c.moveToFirst());
+    assertEquals(planInfo, c.getString(c.getColumnIndex(KEY_PLAN_INFO)));
+    if (nextInstance != null) {
+      assertEquals(nextInstance.longValue(), c.getLong(c.getColumnIndex(KEY_NEXT_INSTANCE)));
+    }
+    c.close();
+  }
+}
@@ -0,0 +1,166 @@
+package org.totschnig.myexpenses.test.provider;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.test.ProviderTestCase2;
+
+import org.totschnig.myexpenses.model.Account;
+import org.totschnig.myexpenses.model.Grouping;
+import org.totschnig.myexpenses.model.Payee;
+import org.totschnig.myexpenses.model.Transaction;
+import org.totschnig.myexpenses.provider.TransactionProvider;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import static org.totschnig.myexpenses.provider.DatabaseConstants.HAS_TRANSFERS;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ACCOUNTID;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_CURRENCY;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_DATE;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_PARENTID;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ROWID;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_SYNC_SEQUENCE_LOCAL;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.MAPPED_CATEGORIES;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.MAPPED_METHODS;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.MAPPED_PAYEES;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_TRANSACTIONS;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.WHERE_SELF_OR_PEER;
+
+/**
+ * Queries the hot {@link TransactionProvider} URIs the way the app does, captures the statements
+ * the provider issues for them, and asserts that EXPLAIN QUERY PLAN does not report a full scan of
+ * transactions or changes for any of them
+ */
+public class QueryPlanTest extends ProviderTestCase2<TransactionProvider> {
+  /**
+   * a plan step that reads the whole table, i.e. "SCAN TABLE transactions" without "USING ... INDEX"
+   */
+  private static final Pattern FULL_SCAN = Pattern.compile(
+      "^SCAN (TABLE )?(" + TABLE_TRANSACTIONS + "|changes)\\b(?!.*USING).*$");
+
+  private SQLiteDatabase mDb;
+  private final List<String> statements = new ArrayList<>();
+  private final List<String[]> statementArgs = new ArrayList<>();
+
+  public QueryPlanTest() {
+    super(TransactionProvider.class, TransactionProvider.AUTHORITY);
+  }
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    mDb = getProvider().getOpenHelperForTest().getWritableDatabase();
+    getProvider().setQueryListener(new TransactionProvider.QueryListener() {
+      @Override
+      public void onQuery(String sql, String[] selectionArgs) {
+        statements.add(sql);
+        statementArgs.add(selectionArgs);
+      }
+    });
+  }
+
+  public void testTransactionListPages() {
+    Uri uri = Transaction.EXTENDED_URI.buildUpon()
+        .appendQueryParameter(TransactionProvider.QUERY_PARAMETER_LIMIT, "100").build();
+    String selection = KEY_ACCOUNTID + " = ? AND " + KEY_PARENTID + " is null";
+    String sortOrder = KEY_DATE + " DESC, " + KEY_ROWID + " DESC";
+    assertQueriesUseIndex(uri, Transaction.PROJECTION_EXTENDED, selection, new String[]{"1"},
+        sortOrder);
+    assertQueriesUseIndex(uri, Transaction.PROJECTION_EXTENDED, selection + " AND (" + KEY_DATE +
+            " < ? OR (" + KEY_DATE + " = ? AND " + KEY_ROWID + " < ?))",
+        new String[]{"1", "1000", "1000", "1"}, sortOrder);
+  }
+
+  public void testSplitParts() {
+    assertQueriesUseIndex(TransactionProvider.TRANSACTIONS_URI, null, KEY_PARENTID + " = ?",
+        new String[]{"1"}, null);
+  }
+
+  public void testTransactionId() {
+    assertQueriesUseIndex(TransactionProvider.TRANSACTIONS_URI.buildUpon().appendPath("1").build(),
+        null, null, null, null);
+  }
+
+  public void testMappedObjectsOfAccount() {
+    assertQueriesUseIndex(TransactionProvider.TRANSACTIONS_URI,
+        new String[]{MAPPED_CATEGORIES, MAPPED_METHODS, MAPPED_PAYEES, HAS_TRANSFERS},
+        KEY_ACCOUNTID + " = ?", new String[]{"1"}, null);
+  }
+
+  public void testTransactionSums() {
+    assertQueriesUseIndex(TransactionProvider.TRANSACTIONS_SUM_URI.buildUpon()
+        .appendQueryParameter(KEY_ACCOUNTID, "1").build(), null, null, null, null);
+    assertQueriesUseIndex(TransactionProvider.TRANSACTIONS_SUM_URI.buildUpon()
+        .appendQueryParameter(KEY_CURRENCY, "EUR").build(), null, null, null, null);
+  }
+
+  public void testGroups() {
+    for (Grouping grouping : Grouping.values()) {
+      Uri.Builder builder = TransactionProvider.TRANSACTIONS_URI.buildUpon()
+          .appendPath(TransactionProvider.URI_SEGMENT_GROUPS).appendPath(grouping.name())
+          .appendQueryParameter(KEY_ACCOUNTID, "1");
+      assertQueriesUseIndex(builder.build(), null, null, null, null);
+      //with a filter, the deltas for the interim balance are queried separately
+      assertQueriesUseIndex(builder.build(), null, KEY_PARENTID + " is null", null, null);
+    }
+  }
+
+  public void testAccounts() {
+    assertQueriesUseIndex(TransactionProvider.ACCOUNTS_URI, Account.PROJECTION_FULL, null, null,
+        null);
+    assertQueriesUseIndex(TransactionProvider.ACCOUNTS_URI.buildUpon().appendQueryParameter(
+        TransactionProvider.QUERY_PARAMETER_MERGE_CURRENCY_AGGREGATES, "1").build(),
+        null, null, null, null);
+  }
+
+  public void testPayees() {
+    assertQueriesUseIndex(TransactionProvider.PAYEES_URI, Payee.PROJECTION, null, null, null);
+    assertQueriesUseIndex(TransactionProvider.PAYEES_URI, Payee.PROJECTION_AUTO_COMPLETE,
+        Payee.SELECTION_NAME_MATCHES, new String[]{"caf*"}, null);
+    assertQueriesUseIndex(TransactionProvider.MAPPED_PAYEES_URI, null, null, null, null);
+    assertQueriesUseIndex(TransactionProvider.MAPPED_METHODS_URI, null, null, null, null);
+  }
+
+  public void testChanges() {
+    assertQueriesUseIndex(TransactionProvider.CHANGES_URI.buildUpon()
+        .appendQueryParameter(KEY_ACCOUNTID, "1")
+        .appendQueryParameter(KEY_SYNC_SEQUENCE_LOCAL, "1").build(), null, null, null, null);
+  }
+
+  /**
+   * the statement used by update and delete to find a transaction and its transfer peer, which do
+   * not go through {@link TransactionProvider#query}
+   */
+  public void testSelfOrPeer() {
+    assertUsesIndex("SELECT " + KEY_ROWID + " FROM " + TABLE_TRANSACTIONS + " WHERE " + WHERE_SELF_OR_PEER,
+        new String[]{"1", "1"});
+  }
+
+  private void assertQueriesUseIndex(Uri uri, String[] projection, String selection,
+                                     String[] selectionArgs, String sortOrder) {
+    statements.clear();
+    statementArgs.clear();
+    Cursor c = getMockContentResolver().query(uri, projection, selection, selectionArgs, sortOrder);
+    assertNotNull(c);
+    c.close();
+    assertFalse("No statement captured for " + uri, statements.isEmpty());
+    for (int i = 0; i < statements.size(); i++) {
+      assertUsesIndex(statements.get(i), statementArgs.get(i));
+    }
+  }
+
+  private void assertUsesIndex(String sql, String[] selectionArgs) {
+    Cursor c = mDb.rawQuery("EXPLAIN QUERY PLAN " + sql, selectionArgs);
+    try {
+      int detailColumn = c.getColumnIndexOrThrow("detail");
+      while (c.moveToNext()) {
+        String detail = c.getString(detailColumn);
+        assertFalse("Full scan in plan for " + sql + ": " + detail, FULL_SCAN.matcher(detail).matches());
+      }
+    } finally {
+      c.close();
+    }
+  }
+}
@@ -31,7 +31,9 @@ import org.totschnig.myexpenses.provider.DatabaseConstants;
 import org.totschnig.myexpenses.provider.TransactionDatabase;
 import org.totschnig.myexpenses.provider.TransactionProvider;
 
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 
 public class TransactionTest extends ProviderTestCase2<TransactionProvider> {
 
@@ -561,4 +563,50 @@ public class TransactionTest extends ProviderTestCase2<TransactionProvider> {
     assertEquals(CrStatus.UNRECONCILED, CrStatus.valueOf(cursor.getString(2)));
     cursor.close();
   }
+
+  /*
+   * Tests that fetching the list in pages with a limit and a keyset condition on (date, _id)
+   * returns the same rows in the same order as one unlimited query
+   */
+  public void testKeysetPaging() {
+    insertData();
+    final String[] PROJECTION = {DatabaseConstants.KEY_ROWID, DatabaseConstants.KEY_DATE};
+    final String SORT_ORDER = DatabaseConstants.KEY_DATE + " DESC, " + DatabaseConstants.KEY_ROWID + " DESC";
+    final String KEYSET_SELECTION = "(" + DatabaseConstants.KEY_DATE + " < ? OR (" + DatabaseConstants.KEY_DATE
+        + " = ? AND " + DatabaseConstants.KEY_ROWID + " < ?))";
+
+    List<Long> expected = new ArrayList<>();
+    Cursor cursor = mMockResolver.query(TransactionProvider.TRANSACTIONS_URI, PROJECTION, null, null, SORT_ORDER);
+    assertNotNull(cursor);
+    while (cursor.moveToNext()) {
+      expected.add(cursor.getLong(0));
+    }
+    cursor.close();
+
+    List<Long> paged = new ArrayList<>();
+    Uri pageUri = TransactionProvider.TRANSACTIONS_URI.buildUpon()
+        .appendQueryParameter(TransactionProvider.QUERY_PARAMETER_LIMIT, "2").build();
+    String selection = null;
+    String[] selectionArgs = null;
+    while (true) {
+      cursor = mMockResolver.query(pageUri, PROJECTION, selection, selectionArgs, SORT_ORDER);
+      assertNotNull(cursor);
+      assertTrue(cursor.getCount() <= 2);
+      if (!cursor.moveToLast()) {
+        cursor.close();
+        break;
+      }
+      String lastDate = cursor.getString(1);
+      String lastId = cursor.getString(0);
+      cursor.moveToPosition(-1);
+      while (cursor.moveToNext()) {
+        paged.add(cursor.getLong(0));
+      }
+      cursor.close();
+      selection = KEYSET_SELECTION;
+      selectionArgs = new String[]{lastDate, lastDate, lastId};
+    }
+    assertEquals(TEST_TRANSACTIONS.length, expected.size());
+    assertEquals(expected, paged);
+  }
 }
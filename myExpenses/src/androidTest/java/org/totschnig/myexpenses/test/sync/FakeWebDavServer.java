@@ -0,0 +1,243 @@
+package org.totschnig.myexpenses.test.sync;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+
+/**
+ * Serves an in-memory file tree with the subset of WebDAV that {@link
+ * org.totschnig.myexpenses.sync.WebDavBackendProvider} relies on. The entity tag of a collection
+ * changes whenever one of its members is written or deleted.
+ */
+class FakeWebDavServer extends Dispatcher {
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private static final String LOCK_TOKEN = "opaquelocktoken:fake";
+
+  private final Map<String, byte[]> files = new TreeMap<>();
+  /**
+   * collections, mapped to the version their entity tag is derived from
+   */
+  private final Map<String, Integer> collections = new HashMap<>();
+  private final List<RecordedRequest> requests = new ArrayList<>();
+  private final AtomicInteger changeFilesInFlight = new AtomicInteger();
+  private final AtomicInteger maxChangeFilesInFlight = new AtomicInteger();
+  /**
+   * if set, downloads of change files are held back until as many are being served as the latch
+   * counts
+   */
+  private volatile CountDownLatch allChangeFilesInFlight;
+
+  FakeWebDavServer(String rootPath) {
+    collections.put(rootPath, 0);
+  }
+
+  @Override
+  public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+    synchronized (this) {
+      requests.add(request);
+    }
+    String path = request.getPath();
+    switch (request.getMethod()) {
+      case "GET":
+        return get(path);
+      case "HEAD":
+        synchronized (this) {
+          return new MockResponse().setResponseCode(
+              files.containsKey(path) || collections.containsKey(path) ? 200 : 404);
+        }
+      case "PUT":
+        putFile(path, request.getBody().clone().readByteArray());
+        return new MockResponse().setResponseCode(201);
+      case "DELETE":
+        synchronized (this) {
+          if (files.remove(path) == null) {
+            return new MockResponse().setResponseCode(404);
+          }
+          touchParent(path);
+        }
+        return new MockResponse().setResponseCode(204);
+      case "MKCOL":
+        synchronized (this) {
+          if (collections.containsKey(path)) {
+            return new MockResponse().setResponseCode(405);
+          }
+          collections.put(path, 0);
+          touchParent(path);
+        }
+        return new MockResponse().setResponseCode(201);
+      case "PROPFIND":
+        return propfind(path, "0".equals(request.getHeader("Depth")));
+      case "LOCK":
+        return new MockResponse()
+            .setHeader("Lock-Token", "<" + LOCK_TOKEN + ">")
+            .setHeader("Content-Type", "application/xml; charset=utf-8")
+            .setBody("<?xml version=\"1.0\" encoding=\"utf-8\"?>" +
+                "<d:prop xmlns:d=\"DAV:\"><d:lockdiscovery><d:activelock>" +
+                "<d:locktoken><d:href>" + LOCK_TOKEN + "</d:href></d:locktoken>" +
+                "</d:activelock></d:lockdiscovery></d:prop>");
+      case "UNLOCK":
+        return new MockResponse().setResponseCode(204);
+      default:
+        return new MockResponse().setResponseCode(405);
+    }
+  }
+
+  private MockResponse get(String path) throws InterruptedException {
+    byte[] content;
+    synchronized (this) {
+      content = files.get(path);
+    }
+    if (content == null) {
+      return new MockResponse().setResponseCode(404);
+    }
+    if (path.endsWith(".json") && path.contains("/_")) {
+      int current = changeFilesInFlight.incrementAndGet();
+      try {
+        int max;
+        while (current > (max = maxChangeFilesInFlight.get()) &&
+            !maxChangeFilesInFlight.compareAndSet(max, current)) {
+          //retry
+        }
+        CountDownLatch latch = allChangeFilesInFlight;
+        if (latch != null) {
+          latch.countDown();
+          if (!latch.await(5, TimeUnit.SECONDS)) {
+            return new MockResponse().setResponseCode(503);
+          }
+        }
+      } finally {
+        changeFilesInFlight.decrementAndGet();
+      }
+    }
+    return new MockResponse().setBody(new Buffer().write(content));
+  }
+
+  private synchronized MockResponse propfind(String path, boolean depthZero) {
+    if (!collections.containsKey(path)) {
+      return new MockResponse().setResponseCode(404);
+    }
+    StringBuilder body = new StringBuilder("<?xml version=\"1.0\" encoding=\"utf-8\"?>")
+        .append("<d:multistatus xmlns:d=\"DAV:\">");
+    appendResponse(body, path, true, "\"" + collections.get(path) + "\"");
+    if (!depthZero) {
+      for (String collection : collections.keySet()) {
+        if (isMember(path, collection)) {
+          appendResponse(body, collection, true, "\"" + collections.get(collection) + "\"");
+        }
+      }
+      for (Map.Entry<String, byte[]> file : files.entrySet()) {
+        if (isMember(path, file.getKey())) {
+          appendResponse(body, file.getKey(), false,
+              "\"" + Arrays.hashCode(file.getValue()) + "\"");
+        }
+      }
+    }
+    body.append("</d:multistatus>");
+    return new MockResponse().setResponseCode(207)
+        .setHeader("Content-Type", "application/xml; charset=utf-8")
+        .setBody(body.toString());
+  }
+
+  private static void appendResponse(StringBuilder body, String href, boolean collection, String eTag) {
+    String name = href.substring(href.lastIndexOf('/', href.length() - 2) + 1).replace("/", "");
+    body.append("<d:response><d:href>").append(href).append("</d:href><d:propstat><d:prop>")
+        .append("<d:displayname>").append(name).append("</d:displayname>")
+        .append(collection ? "<d:resourcetype><d:collection/></d:resourcetype>" : "<d:resourcetype/>")
+        .append("<d:getetag>").append(eTag).append("</d:getetag>")
+        .append("</d:prop><d:status>HTTP/1.1 200 OK</d:status></d:propstat></d:response>");
+  }
+
+  private static boolean isMember(String collection, String path) {
+    if (!path.startsWith(collection) || path.equals(collection)) {
+      return false;
+    }
+    String rest = path.substring(collection.length());
+    int slash = rest.indexOf('/');
+    return slash == -1 || slash == rest.length() - 1;
+  }
+
+  private void touchParent(String path) {
+    String parent = path.substring(0, path.lastIndexOf('/', path.length() - 2) + 1);
+    Integer version = collections.get(parent);
+    if (version != null) {
+      collections.put(parent, version + 1);
+    }
+  }
+
+  synchronized void putFile(String path, byte[] content) {
+    files.put(path, content);
+    touchParent(path);
+  }
+
+  synchronized void putCollection(String path) {
+    collections.put(path, 0);
+    touchParent(path);
+  }
+
+  void putFile(String path, String content) {
+    putFile(path, content.getBytes(UTF_8));
+  }
+
+  synchronized String getFile(String path) {
+    byte[] content = files.get(path);
+    return content == null ? null : new String(content, UTF_8);
+  }
+
+  /**
+   * @return the names of the files in the collection
+   */
+  synchronized List<String> list(String collection) {
+    List<String> result = new ArrayList<>();
+    for (String path : files.keySet()) {
+      if (isMember(collection, path)) {
+        result.add(path.substring(collection.length()));
+      }
+    }
+    return result;
+  }
+
+  synchronized List<RecordedRequest> getRequests(String method) {
+    List<RecordedRequest> result = new ArrayList<>();
+    for (RecordedRequest request : requests) {
+      if (request.getMethod().equals(method)) {
+        result.add(request);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * @return method and path of each request, in the order they have been received
+   */
+  synchronized List<String> getRequestLog() {
+    List<String> result = new ArrayList<>();
+    for (RecordedRequest request : requests) {
+      result.add(request.getMethod() + " " + request.getPath());
+    }
+    return result;
+  }
+
+  synchronized void clearRequests() {
+    requests.clear();
+  }
+
+  void holdChangeFilesUntilInFlight(int count) {
+    allChangeFilesInFlight = new CountDownLatch(count);
+  }
+
+  int getMaxChangeFilesInFlight() {
+    return maxChangeFilesInFlight.get();
+  }
+}
@@ -0,0 +1,370 @@
+package org.totschnig.myexpenses.test.sync;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.SharedPreferences;
+import android.support.test.InstrumentationRegistry;
+import android.support.v4.provider.DocumentFile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.totschnig.myexpenses.model.Account;
+import org.totschnig.myexpenses.sync.WebDavBackendProvider;
+import org.totschnig.myexpenses.sync.json.ChangeSet;
+import org.totschnig.myexpenses.sync.json.TransactionChange;
+import org.totschnig.myexpenses.util.BackupPictureStore;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Okio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * runs {@link WebDavBackendProvider} against a {@link FakeWebDavServer}
+ */
+public class WebDavBackendProviderTest {
+  private static final String ROOT = "/webdav/";
+  private static final String ACCOUNT_UUID = "ab0c4e01-webdav-test";
+  private static final String ACCOUNT_FOLDER = ROOT + ACCOUNT_UUID + "/";
+  private static final int CHANGES_PER_FILE = 5;
+
+  private MockWebServer server;
+  private FakeWebDavServer webDav;
+  private Context context;
+
+  @Before
+  public void setup() throws IOException {
+    //keeps the provider's cursor apart from the one of the app under test
+    context = new ContextWrapper(InstrumentationRegistry.getTargetContext()) {
+      @Override
+      public SharedPreferences getSharedPreferences(String name, int mode) {
+        return super.getSharedPreferences("test_" + name, mode);
+      }
+    };
+    context.getSharedPreferences("webdav_backend", 0).edit().clear().commit();
+    webDav = new FakeWebDavServer(ROOT);
+    server = new MockWebServer();
+    server.setDispatcher(webDav);
+    server.start();
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    server.shutdown();
+  }
+
+  @Test
+  public void shouldFetchChangeFilesConcurrentlyAndHandThemOnInOrder() throws IOException {
+    WebDavBackendProvider provider = newProvider(false);
+    for (int i = 1; i <= 12; i++) {
+      webDav.putFile(ACCOUNT_FOLDER + "_" + i + ".json", buildChangeFile(i));
+    }
+    //fails with a 503 unless four downloads are outstanding at the same time
+    webDav.holdChangeFilesUntilInFlight(4);
+    ChangeSet changeSet = provider.getChangeSetSince(0, context);
+    assertFalse(changeSet.isFailed());
+    assertEquals(12, changeSet.sequenceNumber);
+    assertEquals(12 * CHANGES_PER_FILE, changeSet.changes.size());
+    for (int i = 0; i < changeSet.changes.size(); i++) {
+      assertEquals(uuid(i / CHANGES_PER_FILE + 1, i % CHANGES_PER_FILE),
+          changeSet.changes.get(i).uuid());
+    }
+    assertEquals(4, webDav.getMaxChangeFilesInFlight());
+  }
+
+  @Test
+  public void shouldOnlyFetchChangeFilesAfterSequence() throws IOException {
+    WebDavBackendProvider provider = newProvider(false);
+    for (int i = 1; i <= 3; i++) {
+      webDav.putFile(ACCOUNT_FOLDER + "_" + i + ".json", buildChangeFile(i));
+    }
+    webDav.clearRequests();
+    ChangeSet changeSet = provider.getChangeSetSince(2, context);
+    assertEquals(3, changeSet.sequenceNumber);
+    assertEquals(CHANGES_PER_FILE, changeSet.changes.size());
+    assertEquals(1, webDav.getRequests("GET").size());
+  }
+
+  @Test
+  public void shouldNotListUnchangedFolder() throws IOException {
+    shouldNotListUnchangedFolder(false);
+  }
+
+  @Test
+  public void shouldNotListUnchangedFolderWithLockFile() throws IOException {
+    shouldNotListUnchangedFolder(true);
+  }
+
+  private void shouldNotListUnchangedFolder(boolean fallbackToClass1) throws IOException {
+    for (int i = 1; i <= 3; i++) {
+      webDav.putFile(ACCOUNT_FOLDER + "_" + i + ".json", buildChangeFile(i));
+    }
+    WebDavBackendProvider provider = newProvider(fallbackToClass1);
+    //the first sync learns from its own write that the entity tag tracks the members of the folder
+    assertTrue(provider.lock());
+    assertEquals(3, provider.getChangeSetSince(0, context).sequenceNumber);
+    assertEquals(4, provider.writeChangeSet(buildLocalChanges(), context));
+    assertTrue(provider.unlock());
+
+    webDav.clearRequests();
+    assertTrue(provider.lock());
+    ChangeSet changeSet = provider.getChangeSetSince(4, context);
+    assertTrue(provider.unlock());
+    assertEquals(4, changeSet.sequenceNumber);
+    assertTrue(changeSet.changes.isEmpty());
+    assertEquals(0, countFolderListings());
+
+    //a change written by another device is not missed
+    webDav.putFile(ACCOUNT_FOLDER + "_5.json", buildChangeFile(5));
+    webDav.clearRequests();
+    assertTrue(provider.lock());
+    changeSet = provider.getChangeSetSince(4, context);
+    assertTrue(provider.unlock());
+    assertEquals(5, changeSet.sequenceNumber);
+    assertEquals(CHANGES_PER_FILE, changeSet.changes.size());
+    assertEquals(1, countFolderListings());
+  }
+
+  @Test
+  public void shouldCompactChangeFilesIntoSnapshot() throws IOException {
+    for (int i = 1; i <= 130; i++) {
+      webDav.putFile(ACCOUNT_FOLDER + "_" + i + ".json", buildCompactableChangeFile(i));
+    }
+    WebDavBackendProvider provider = newProvider(false);
+    webDav.clearRequests();
+    assertTrue(provider.lock());
+    assertTrue(provider.compactChangeSets());
+    assertTrue(provider.unlock());
+
+    List<String> files = webDav.list(ACCOUNT_FOLDER);
+    assertTrue(files.contains("snapshot_110.json"));
+    for (int i = 1; i <= 130; i++) {
+      assertEquals(i > 110, files.contains("_" + i + ".json"));
+    }
+    //the snapshot is in place before any of the files it replaces is deleted
+    List<String> log = webDav.getRequestLog();
+    int snapshotWritten = log.indexOf("PUT " + ACCOUNT_FOLDER + "snapshot_110.json");
+    assertTrue(snapshotWritten > -1);
+    for (int i = 0; i < log.size(); i++) {
+      if (log.get(i).startsWith("DELETE ")) {
+        assertTrue(i > snapshotWritten);
+      }
+    }
+
+    //a device that has not synced yet gets each transaction once, and its last state
+    ChangeSet changeSet = newProvider(false).getChangeSetSince(0, context);
+    assertEquals(130, changeSet.sequenceNumber);
+    assertEquals(110 + 1 + 20 * 2, changeSet.changes.size());
+    List<TransactionChange> first = changesOf(changeSet, "tx-1");
+    assertTrue(first.get(0).isCreate());
+    assertEquals(Long.valueOf(-1), first.get(0).amount());
+    assertTrue(first.get(1).isUpdate());
+    assertEquals(Long.valueOf(110), first.get(1).amount());
+    assertEquals(Long.valueOf(130), first.get(first.size() - 1).amount());
+    assertEquals(1 + 1 + 20, first.size());
+
+    //a device that has read some of the rolled files reads the snapshot instead of them
+    webDav.clearRequests();
+    changeSet = newProvider(false).getChangeSetSince(50, context);
+    assertEquals(130, changeSet.sequenceNumber);
+    assertEquals(1 + 20, webDav.getRequests("GET").size());
+    assertEquals(1, changesOf(changeSet, "tx-60").size());
+  }
+
+  @Test
+  public void shouldReadAndCleanUpInterruptedCompaction() throws IOException {
+    for (int i = 1; i <= 130; i++) {
+      webDav.putFile(ACCOUNT_FOLDER + "_" + i + ".json", buildCompactableChangeFile(i));
+    }
+    WebDavBackendProvider provider = newProvider(false);
+    assertTrue(provider.lock());
+    assertTrue(provider.compactChangeSets());
+    assertTrue(provider.unlock());
+    //as if the deletes had not happened
+    for (int i = 1; i <= 110; i++) {
+      webDav.putFile(ACCOUNT_FOLDER + "_" + i + ".json", buildCompactableChangeFile(i));
+    }
+
+    ChangeSet changeSet = newProvider(false).getChangeSetSince(0, context);
+    assertEquals(130, changeSet.sequenceNumber);
+    assertEquals(110 + 1 + 20 * 2, changeSet.changes.size());
+    assertEquals(1, changesOf(changeSet, "tx-60").size());
+
+    assertTrue(provider.lock());
+    assertFalse(provider.compactChangeSets());
+    assertTrue(provider.unlock());
+    List<String> files = webDav.list(ACCOUNT_FOLDER);
+    assertTrue(files.contains("snapshot_110.json"));
+    assertFalse(files.contains("_110.json"));
+    assertTrue(files.contains("_111.json"));
+  }
+
+  @Test
+  public void shouldUploadChangeFileWithContentLength() throws IOException {
+    WebDavBackendProvider provider = newProvider(false);
+    webDav.clearRequests();
+    assertEquals(1, provider.writeChangeSet(buildLocalChanges(), context));
+    List<RecordedRequest> puts = webDav.getRequests("PUT");
+    assertEquals(1, puts.size());
+    assertNull(puts.get(0).getHeader("Transfer-Encoding"));
+    assertEquals(String.valueOf(puts.get(0).getBodySize()), puts.get(0).getHeader("Content-Length"));
+    assertTrue(webDav.getFile(ACCOUNT_FOLDER + "_1.json").contains("\"local\""));
+  }
+
+  @Test
+  public void shouldFetchMissingBackupPicturesIntoStore() throws IOException {
+    String picturesFolder = ROOT + BackupPictureStore.FOLDER_NAME + "/";
+    String available = sha256("picture");
+    String corrupt = sha256("original");
+    String absent = sha256("absent");
+    webDav.putCollection(picturesFolder);
+    webDav.putFile(picturesFolder + available, "picture");
+    webDav.putFile(picturesFolder + corrupt, "tampered");
+    Map<String, String> manifest = new HashMap<>();
+    manifest.put("1.jpg", available);
+    manifest.put("2.jpg", corrupt);
+    manifest.put("3.jpg", absent);
+    ByteArrayOutputStream manifestOut = new ByteArrayOutputStream();
+    BackupPictureStore.writeManifest(manifest, manifestOut);
+    Collection<String> blobs = BackupPictureStore.readManifest(
+        new ByteArrayInputStream(manifestOut.toByteArray())).values();
+
+    File appDir = new File(context.getCacheDir(), "restore_test");
+    delete(appDir);
+    assertTrue(appDir.mkdirs());
+    try {
+      BackupPictureStore pictureStore = BackupPictureStore.open(DocumentFile.fromFile(appDir));
+      assertNotNull(pictureStore);
+      Set<String> missing = pictureStore.fetchMissingBlobs(blobs, newProvider(false));
+      assertEquals(new HashSet<>(Arrays.asList(corrupt, absent)), missing);
+      DocumentFile blob = pictureStore.getBlob(available);
+      assertNotNull(blob);
+      InputStream in = new FileInputStream(blob.getUri().getPath());
+      try {
+        assertEquals("picture", Okio.buffer(Okio.source(in)).readUtf8());
+      } finally {
+        in.close();
+      }
+      assertNull(pictureStore.getBlob(corrupt));
+      //a blob that does not match its name is not left behind
+      assertEquals(1, new File(appDir, BackupPictureStore.FOLDER_NAME).list().length);
+
+      //blobs are only fetched once
+      webDav.clearRequests();
+      assertEquals(missing, pictureStore.fetchMissingBlobs(blobs, newProvider(false)));
+      assertEquals(1, webDav.getRequests("GET").size());
+    } finally {
+      delete(appDir);
+    }
+  }
+
+  private static void delete(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        delete(child);
+      }
+    }
+    file.delete();
+  }
+
+  private static String sha256(String content) {
+    try {
+      StringBuilder result = new StringBuilder(64);
+      for (byte b : MessageDigest.getInstance("SHA-256").digest(content.getBytes("UTF-8"))) {
+        result.append(String.format(Locale.ROOT, "%02x", b));
+      }
+      return result.toString();
+    } catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private int countFolderListings() {
+    int count = 0;
+    for (RecordedRequest request : webDav.getRequests("PROPFIND")) {
+      if (!"0".equals(request.getHeader("Depth"))) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  private static List<TransactionChange> changesOf(ChangeSet changeSet, String uuid) {
+    List<TransactionChange> result = new ArrayList<>();
+    for (TransactionChange change : changeSet.changes) {
+      if (change.uuid().equals(uuid)) {
+        result.add(change);
+      }
+    }
+    return result;
+  }
+
+  private static List<TransactionChange> buildLocalChanges() {
+    List<TransactionChange> changes = new ArrayList<>();
+    changes.add(TransactionChange.builder().setType(TransactionChange.Type.created)
+        .setUuid("local").setCurrentTimeStamp().setAmount(-500L).build());
+    return changes;
+  }
+
+  private WebDavBackendProvider newProvider(boolean fallbackToClass1) throws IOException {
+    WebDavBackendProvider provider = new WebDavBackendProvider(context,
+        server.url(ROOT).toString(), fallbackToClass1);
+    Account account = new Account("WebDAV", 0L, "");
+    account.uuid = ACCOUNT_UUID;
+    assertTrue(provider.withAccount(account));
+    return provider;
+  }
+
+  static String uuid(long sequence, int index) {
+    return String.format(Locale.ROOT, "%d-%d", sequence, index);
+  }
+
+  static String buildChangeFile(long sequence) {
+    StringBuilder sb = new StringBuilder("[");
+    for (int i = 0; i < CHANGES_PER_FILE; i++) {
+      if (i > 0) {
+        sb.append(",");
+      }
+      sb.append(String.format(Locale.ROOT,
+          "{\"type\":\"created\",\"uuid\":\"%s\",\"timeStamp\":%d,\"date\":%d,\"amount\":%d,\"crStatus\":\"UNRECONCILED\"}",
+          uuid(sequence, i), 1475560175 + i, 1475559751, -100 * (i + 1)));
+    }
+    return sb.append("]").toString();
+  }
+
+  /**
+   * change file i creates tx-i and sets the amount of tx-1 to i
+   */
+  static String buildCompactableChangeFile(long sequence) {
+    return String.format(Locale.ROOT,
+        "[{\"type\":\"created\",\"uuid\":\"tx-%1$d\",\"timeStamp\":%2$d,\"date\":1475559751,\"amount\":%3$d,\"crStatus\":\"UNRECONCILED\"}," +
+            "{\"type\":\"updated\",\"uuid\":\"tx-1\",\"timeStamp\":%2$d,\"amount\":%1$d}]",
+        sequence, 1475560175 + sequence, -sequence);
+  }
+}
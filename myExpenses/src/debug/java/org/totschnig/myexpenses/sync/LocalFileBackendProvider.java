@@ -3,14 +3,18 @@ package org.totschnig.myexpenses.sync;
 import android.content.Context;
 import android.net.Uri;
 import android.support.annotation.NonNull;
+import android.support.v4.provider.DocumentFile;
 
 import com.annimon.stream.Collectors;
 import com.annimon.stream.Optional;
 import com.annimon.stream.Stream;
 
+import org.totschnig.myexpenses.MyApplication;
 import org.totschnig.myexpenses.model.Account;
 import org.totschnig.myexpenses.sync.json.AccountMetaData;
 import org.totschnig.myexpenses.sync.json.ChangeSet;
+import org.totschnig.myexpenses.util.AppDirHelper;
+import org.totschnig.myexpenses.util.BackupPictureStore;
 import org.totschnig.myexpenses.util.FileCopyUtils;
 
 import java.io.File;
@@ -21,7 +25,10 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStreamWriter;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import dagger.internal.Preconditions;
 
@@ -92,15 +99,73 @@ class LocalFileBackendProvider extends AbstractSyncBackendProvider {
     FileCopyUtils.copy(uri, Uri.fromFile(new File(folder, fileName)));
   }
 
+  /**
+   * Pictures referenced by the manifest of the backup are copied into a folder next to the
+   * backups, unless they are stored there already. The archive itself is copied last, so that
+   * it never references a missing picture.
+   */
   @Override
   public void storeBackup(Uri uri) throws IOException {
-    File backupDir = new File(baseDir, BACKUP_FOLDER_NAME);
+    Map<String, String> manifest;
+    InputStream in = MyApplication.getInstance().getContentResolver().openInputStream(uri);
+    if (in == null) {
+      throw new IOException("Could not read " + uri.toString());
+    }
+    try {
+      manifest = BackupPictureStore.readManifestFromArchive(in);
+    } finally {
+      in.close();
+    }
+    if (!manifest.isEmpty()) {
+      DocumentFile appDir = AppDirHelper.getAppDir(MyApplication.getInstance());
+      BackupPictureStore pictureStore = appDir == null ? null : BackupPictureStore.open(appDir);
+      if (pictureStore == null) {
+        throw new IOException("Could not open " + BackupPictureStore.FOLDER_NAME);
+      }
+      File pictureDir = requireDir(BackupPictureStore.FOLDER_NAME);
+      for (String blob : new HashSet<>(manifest.values())) {
+        if (!new File(pictureDir, blob).exists()) {
+          DocumentFile blobFile = pictureStore.getBlob(blob);
+          if (blobFile == null) {
+            throw new IOException("Could not find picture " + blob);
+          }
+          //an interrupted copy must not be taken for the picture
+          File partial = new File(pictureDir, blob + ".partial");
+          FileCopyUtils.copy(blobFile.getUri(), Uri.fromFile(partial));
+          if (!partial.renameTo(new File(pictureDir, blob))) {
+            //noinspection ResultOfMethodCallIgnored
+            partial.delete();
+            throw new IOException("Could not store picture " + blob);
+          }
+        }
+      }
+    }
+    saveUriToFolder(uri.getLastPathSegment(), uri, requireDir(BACKUP_FOLDER_NAME));
+  }
+
+  @NonNull
+  @Override
+  public Set<String> getBackupPictures() {
+    String[] blobs = new File(baseDir, BackupPictureStore.FOLDER_NAME).list();
+    return blobs == null ? new HashSet<>() : Stream.of(blobs)
+        .filter(blob -> !blob.endsWith(".partial"))
+        .collect(Collectors.toSet());
+  }
+
+  @NonNull
+  @Override
+  public InputStream getInputStreamForBackupPicture(String blob) throws IOException {
+    return new FileInputStream(new File(new File(baseDir, BackupPictureStore.FOLDER_NAME), blob));
+  }
+
+  private File requireDir(String name) throws IOException {
+    File dir = new File(baseDir, name);
     //noinspection ResultOfMethodCallIgnored
-    backupDir.mkdir();
-    if (!backupDir.isDirectory()) {
-      throw new IOException("Unable to create directory for backups");
+    dir.mkdir();
+    if (!dir.isDirectory()) {
+      throw new IOException("Unable to create directory " + dir.getPath());
     }
-    saveUriToFolder(uri.getLastPathSegment(), uri, backupDir);
+    return dir;
   }
 
   @Override
@@ -128,11 +193,12 @@ class LocalFileBackendProvider extends AbstractSyncBackendProvider {
     for (File file: filterFiles(sequenceNumber)) {
       changeSets.add(getChangeSetFromFile(file));
     }
-    return merge(Stream.of(changeSets)).orElse(ChangeSet.empty(sequenceNumber));
+    return merge(changeSets).orElse(ChangeSet.empty(sequenceNumber));
   }
 
   private ChangeSet getChangeSetFromFile(File file) throws IOException {
-    return getChangeSetFromInputStream(getSequenceFromFileName(file.getName()), new FileInputStream(file));
+    return mapPicturesDuringRead(
+        getChangeSetFromInputStream(getSequenceFromFileName(file.getName()), new FileInputStream(file)));
   }
 
   private Optional<AccountMetaData> getAccountMetaDataFromFile(File file) {
@@ -154,9 +220,14 @@ class LocalFileBackendProvider extends AbstractSyncBackendProvider {
   }
 
   @Override
-  void saveFileContents(String fileName, String fileContents, String mimeType) throws IOException {
+  void saveFileContents(String fileName, ContentWriter contentWriter, String mimeType) throws IOException {
     Preconditions.checkNotNull(accountDir);
-    saveFileContents(new File(accountDir, fileName), fileContents);
+    OutputStreamWriter out = new OutputStreamWriter(new FileOutputStream(new File(accountDir, fileName)));
+    try {
+      contentWriter.writeTo(out);
+    } finally {
+      out.close();
+    }
   }
 
   @Override
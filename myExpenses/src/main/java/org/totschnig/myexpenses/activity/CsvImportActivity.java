@@ -1,5 +1,6 @@
 package org.totschnig.myexpenses.activity;
 
+import android.net.Uri;
 import android.os.Bundle;
 import android.support.v7.app.ActionBar;
 import android.widget.Toast;
@@ -94,7 +95,8 @@ public class CsvImportActivity extends TabbedActivity implements
     switch (taskId) {
       case TaskExecutionFragment.TASK_CSV_PARSE:
         if (result != null) {
-          ArrayList<CSVRecord> data = (ArrayList<CSVRecord>) result;
+          Result parseResult = (Result) result;
+          ArrayList<CSVRecord> data = (ArrayList<CSVRecord>) parseResult.extra[0];
           if (!data.isEmpty()) {
             if (!mDataReady) {
               addTab(1);
@@ -103,7 +105,7 @@ public class CsvImportActivity extends TabbedActivity implements
             CsvImportDataFragment df = (CsvImportDataFragment) getSupportFragmentManager().findFragmentByTag(
                 mSectionsPagerAdapter.getFragmentName(1));
             if (df != null) {
-              df.setData(data);
+              df.setData(data, (Integer) parseResult.extra[1]);
               mViewPager.setCurrentItem(1);
             }
             break;
@@ -167,6 +169,21 @@ public class CsvImportActivity extends TabbedActivity implements
     return pf.getCurrency();
   }
 
+  public Uri getUri() {
+    CsvImportParseFragment pf = getParseFragment();
+    return pf.getUri();
+  }
+
+  public char getDelimiter() {
+    CsvImportParseFragment pf = getParseFragment();
+    return pf.getDelimiter();
+  }
+
+  public String getEncoding() {
+    CsvImportParseFragment pf = getParseFragment();
+    return pf.getEncoding();
+  }
+
   public QifDateFormat getDateFormat() {
     CsvImportParseFragment pf = getParseFragment();
     return pf.getDateFormat();
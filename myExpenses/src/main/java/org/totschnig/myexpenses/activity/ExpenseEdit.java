@@ -92,6 +92,7 @@ import org.totschnig.myexpenses.model.AccountType;
 import org.totschnig.myexpenses.model.ContribFeature;
 import org.totschnig.myexpenses.model.Model;
 import org.totschnig.myexpenses.model.Money;
+import org.totschnig.myexpenses.model.Payee;
 import org.totschnig.myexpenses.model.Plan;
 import org.totschnig.myexpenses.model.SplitPartCategory;
 import org.totschnig.myexpenses.model.SplitPartTransfer;
@@ -101,6 +102,7 @@ import org.totschnig.myexpenses.model.Transaction;
 import org.totschnig.myexpenses.model.Transaction.CrStatus;
 import org.totschnig.myexpenses.model.Transfer;
 import org.totschnig.myexpenses.preference.PrefKey;
+import org.totschnig.myexpenses.provider.DbUtils;
 import org.totschnig.myexpenses.provider.TransactionProvider;
 import org.totschnig.myexpenses.task.TaskExecutionFragment;
 import org.totschnig.myexpenses.ui.AmountEditText;
@@ -147,17 +149,12 @@ import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_IS_NUMBERE
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_LABEL;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_METHODID;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_PARENTID;
-import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_PAYEEID;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_PAYEE_NAME;
-import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_PAYEE_NAME_NORMALIZED;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ROWID;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_TEMPLATEID;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_TRANSFER_ACCOUNT;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.STATUS_NONE;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.STATUS_UNCOMMITTED;
-import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_PAYEES;
-import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_TRANSACTIONS;
-import static org.totschnig.myexpenses.provider.DatabaseConstants.WHERE_NOT_SPLIT;
 
 /**
  * Activity for editing a transaction
@@ -306,22 +303,16 @@ public class ExpenseEdit extends AmountActivity implements
         if (str == null) {
           return null;
         }
-        String search = Utils.esacapeSqlLikeExpression(Utils.normalize(str.toString()));
         //we accept the string at the beginning of a word
-        String selection = KEY_PAYEE_NAME_NORMALIZED + " LIKE ? OR " +
-            KEY_PAYEE_NAME_NORMALIZED + " LIKE ? OR " +
-            KEY_PAYEE_NAME_NORMALIZED + " LIKE ?";
-        String[] selectArgs = {search + "%", "% " + search + "%", "%." + search + "%"};
+        String search = DbUtils.ftsPrefixQuery(Utils.normalize(str.toString()));
+        if (search == null) {
+          return null;
+        }
+        //the last transaction for auto fill is looked up here, since this runs on a worker thread
         return getContentResolver().query(
             TransactionProvider.PAYEES_URI,
-            new String[]{
-                KEY_ROWID,
-                KEY_PAYEE_NAME,
-                "(SELECT max(" + KEY_ROWID
-                    + ") FROM " + TABLE_TRANSACTIONS
-                    + " WHERE " + WHERE_NOT_SPLIT + " AND "
-                    + KEY_PAYEEID + " = " + TABLE_PAYEES + "." + KEY_ROWID + ")"},
-            selection, selectArgs, null);
+            Payee.PROJECTION_AUTO_COMPLETE,
+            Payee.SELECTION_NAME_MATCHES, new String[]{search}, null);
       }
     });
 
@@ -342,13 +333,14 @@ public class ExpenseEdit extends AmountActivity implements
             //moveToPosition should not be necessary,
             //but has been reported to not be positioned correctly on samsung GT-I8190N
             if (!c.isNull(2)) {
+              long lastTransaction = c.getLong(2);
               if (PrefKey.AUTO_FILL_HINT_SHOWN.getBoolean(false)) {
                 if (PrefKey.AUTO_FILL.getBoolean(true)) {
-                  startAutoFill(c.getLong(2));
+                  startAutoFill(lastTransaction);
                 }
               } else {
                 Bundle b = new Bundle();
-                b.putLong(KEY_ROWID, c.getLong(2));
+                b.putLong(KEY_ROWID, lastTransaction);
                 b.putInt(ConfirmationDialogFragment.KEY_TITLE, R.string.dialog_title_information);
                 b.putString(ConfirmationDialogFragment.KEY_MESSAGE, getString(R.string
                     .hint_auto_fill));
@@ -1005,7 +1005,8 @@ public class MyExpenses extends LaunchActivity implements
         if (files != null && !files.isEmpty())
           ShareUtils.share(this, files,
               PrefKey.SHARE_TARGET.getString("").trim(),
-              "text/" + mExportFormat.toLowerCase(Locale.US));
+              files.get(0).getPath().endsWith(".zip") ? "application/zip" :
+                  "text/" + mExportFormat.toLowerCase(Locale.US));
         break;
       case TaskExecutionFragment.TASK_PRINT:
         Result result = (Result) o;
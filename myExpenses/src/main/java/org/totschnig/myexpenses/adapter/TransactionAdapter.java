@@ -3,6 +3,7 @@ package org.totschnig.myexpenses.adapter;
 import android.content.Context;
 import android.content.res.ColorStateList;
 import android.database.Cursor;
+import android.support.v4.util.LruCache;
 import android.text.SpannableStringBuilder;
 import android.text.TextUtils;
 import android.text.style.StyleSpan;
@@ -25,7 +26,6 @@ import org.totschnig.myexpenses.model.Grouping;
 import org.totschnig.myexpenses.model.Transaction.CrStatus;
 import org.totschnig.myexpenses.model.Transfer;
 import org.totschnig.myexpenses.preference.PrefKey;
-import org.totschnig.myexpenses.provider.DbUtils;
 import org.totschnig.myexpenses.ui.SimpleCursorAdapter;
 import org.totschnig.myexpenses.util.CurrencyFormatter;
 import org.totschnig.myexpenses.util.Utils;
@@ -39,10 +39,13 @@ import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_CATID;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_COLOR;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_COMMENT;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_CR_STATUS;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_DATE;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_IS_SAME_CURRENCY;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_LABEL_MAIN;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_LABEL_SUB;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_PAYEE_NAME;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_REFERENCE_NUMBER;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ROWID;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_STATUS;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_TRANSFER_PEER;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.SPLIT_CATID;
@@ -59,6 +62,15 @@ public class TransactionAdapter extends SimpleCursorAdapter {
   protected int monthStart =
       Integer.parseInt(PrefKey.GROUP_MONTH_STARTS.getString("1"));
   private CurrencyFormatter currencyFormatter;
+  /**
+   * rendered texts per row id, valid as long as the cursor is not swapped
+   */
+  private final LruCache<Long, RenderedRow> renderedRows = new LruCache<>(RENDERED_ROWS_CACHE_SIZE);
+  private static final int RENDERED_ROWS_CACHE_SIZE = 128;
+  private int columnIndexRowId, columnIndexDate, columnIndexAmount, columnIndexLabelMain,
+      columnIndexLabelSub, columnIndexCatId, columnIndexTransferPeer, columnIndexAccountLabel,
+      columnIndexIsSameCurrency, columnIndexColor, columnIndexStatus, columnIndexReferenceNumber,
+      columnIndexComment, columnIndexPayeeName, columnIndexCrStatus;
 
   protected TransactionAdapter(Account account, Grouping grouping, Context context, int layout,
                                Cursor c, String[] from, int[] to, int flags,
@@ -75,6 +87,7 @@ public class TransactionAdapter extends SimpleCursorAdapter {
     dateEms = android.text.format.DateFormat.is24HourFormat(context) ? 3 : 4;
     localizedTimeFormat = android.text.format.DateFormat.getTimeFormat(context);
     this.currencyFormatter = currencyFormatter;
+    resolveColumnIndexes(c);
     refreshDateFormat();
   }
   public TransactionAdapter(Account account, Context context, int layout, Cursor c, String[] from,
@@ -103,21 +116,34 @@ public class TransactionAdapter extends SimpleCursorAdapter {
     v.setTag(holder);
     return v;
 }
-  /* (non-Javadoc)
-   * calls {@link #convText for formatting the values retrieved from the cursor}
-   * @see android.widget.SimpleCursorAdapter#setViewText(android.widget.TextView, java.lang.String)
-   */
   @Override
-  public void setViewText(TextView v, String text) {
-    switch (v.getId()) {
-    case R.id.date:
-      text = Utils.convDateTime(text,itemDateFormat);
-      break;
-    case R.id.amount:
-      text = currencyFormatter.convAmount(text,mAccount.currency);
+  public Cursor swapCursor(Cursor c) {
+    resolveColumnIndexes(c);
+    renderedRows.evictAll();
+    return super.swapCursor(c);
+  }
+
+  private void resolveColumnIndexes(Cursor c) {
+    if (c == null) {
+      return;
     }
-    super.setViewText(v, text);
+    columnIndexRowId = c.getColumnIndex(KEY_ROWID);
+    columnIndexDate = c.getColumnIndex(KEY_DATE);
+    columnIndexAmount = c.getColumnIndex(KEY_AMOUNT);
+    columnIndexLabelMain = c.getColumnIndex(KEY_LABEL_MAIN);
+    columnIndexLabelSub = c.getColumnIndex(KEY_LABEL_SUB);
+    columnIndexCatId = c.getColumnIndex(KEY_CATID);
+    columnIndexTransferPeer = c.getColumnIndex(KEY_TRANSFER_PEER);
+    columnIndexAccountLabel = c.getColumnIndex(KEY_ACCOUNT_LABEL);
+    columnIndexIsSameCurrency = c.getColumnIndex(KEY_IS_SAME_CURRENCY);
+    columnIndexColor = c.getColumnIndex(KEY_COLOR);
+    columnIndexStatus = c.getColumnIndex(KEY_STATUS);
+    columnIndexReferenceNumber = c.getColumnIndex(KEY_REFERENCE_NUMBER);
+    columnIndexComment = c.getColumnIndex(KEY_COMMENT);
+    columnIndexPayeeName = c.getColumnIndex(KEY_PAYEE_NAME);
+    columnIndexCrStatus = c.getColumnIndex(KEY_CR_STATUS);
   }
+
   /**
    * @param catText
    * @param label_sub
@@ -131,54 +157,83 @@ public class TransactionAdapter extends SimpleCursorAdapter {
     }
     return catText;
   }
-  /* (non-Javadoc)
-   * manipulates the view for amount (setting expenses to red) and
-   * category (indicate transfer direction with => or <=
-   * @see android.widget.CursorAdapter#getView(int, android.view.View, android.view.ViewGroup)
+
+  /**
+   * binds all views of the row from the column indexes resolved in {@link #swapCursor(Cursor)}.
+   * Texts are rendered once per row id and then served from {@link #renderedRows}, so that
+   * scrolling back and forth does not allocate new strings and spans
    */
   @Override
-  public View getView(int position, View convertView, ViewGroup parent) {
-    convertView=super.getView(position, convertView, parent);
-    ViewHolder viewHolder = (ViewHolder) convertView.getTag();
+  public void bindView(View view, Context context, Cursor c) {
+    ViewHolder viewHolder = (ViewHolder) view.getTag();
+    long id = c.getLong(columnIndexRowId);
+    RenderedRow row = renderedRows.get(id);
+    if (row == null) {
+      row = renderRow(c);
+      renderedRows.put(id, row);
+    }
     TextView tv1 = viewHolder.amount;
-    Cursor c = getCursor();
-    c.moveToPosition(position);
-    long amount = c.getLong(c.getColumnIndex(KEY_AMOUNT));
-    tv1.setTextColor(amount < 0 ? colorExpense : colorIncome);
+    tv1.setText(row.amount);
+    tv1.setTextColor(row.isExpense ? colorExpense : colorIncome);
     if (mAccount.getId() < 0) {
-      int columnIndex = c.getColumnIndex(KEY_IS_SAME_CURRENCY);
-      if (columnIndex == -1 || c.getInt(columnIndex) != 1) {
-        int color = c.getInt(c.getColumnIndex(KEY_COLOR));
-        viewHolder.colorAccount.setBackgroundColor(color);
+      if (columnIndexIsSameCurrency == -1 || c.getInt(columnIndexIsSameCurrency) != 1) {
+        viewHolder.colorAccount.setBackgroundColor(c.getInt(columnIndexColor));
       } else {
         viewHolder.colorAccount.setBackgroundColor(0);
         tv1.setTextColor(textColorSecondary);
       }
     }
+    viewHolder.date.setText(row.date);
     TextView tv2 = viewHolder.category;
-    CharSequence catText = tv2.getText();
-    if (DbUtils.getLongOrNull(c,c.getColumnIndex(KEY_TRANSFER_PEER)) != null) {
+    if (insideFragment) {
+      tv2.setGravity(row.category.length() == 0 ? Gravity.CENTER : Gravity.START);
+    }
+    tv2.setText(insideFragment && row.category.length() == 0 ? "―――" : row.category);
+
+    CrStatus status = row.crStatus;
+    if (!mAccount.type.equals(AccountType.CASH) && !status.equals(CrStatus.VOID)) {
+      viewHolder.color1.setBackgroundColor(status.color);
+      viewHolder.colorContainer.setTag(status == CrStatus.RECONCILED ? -1 : id);
+      viewHolder.colorContainer.setVisibility(View.VISIBLE);
+    } else {
+      viewHolder.colorContainer.setVisibility(View.GONE);
+    }
+    viewHolder.voidMarker.setVisibility(status.equals(CrStatus.VOID) ? View.VISIBLE : View.GONE);
+  }
+
+  /*
+   * formats the amount and the date, and builds the category text, indicating transfer direction
+   * with => or <=, followed by comment and payee
+   */
+  private RenderedRow renderRow(Cursor c) {
+    RenderedRow row = new RenderedRow();
+    long amount = c.getLong(columnIndexAmount);
+    row.isExpense = amount < 0;
+    row.amount = currencyFormatter.convAmount(amount, mAccount.currency);
+    row.date = Utils.convDateTime(c.getString(columnIndexDate), itemDateFormat);
+    String labelMain = c.getString(columnIndexLabelMain);
+    CharSequence catText = labelMain == null ? "" : labelMain;
+    if (!c.isNull(columnIndexTransferPeer)) {
       catText = Transfer.getIndicatorPrefixForLabel(amount) + catText;
       if (mAccount.getId() < 0) {
-        catText = c.getString(c.getColumnIndex(KEY_ACCOUNT_LABEL)) + " " + catText;
+        catText = c.getString(columnIndexAccountLabel) + " " + catText;
       }
     } else {
-      Long catId = DbUtils.getLongOrNull(c,KEY_CATID);
-      if (SPLIT_CATID.equals(catId))
-        catText = MyApplication.getInstance().getString(R.string.split_transaction);
-      else if (catId == null) {
-        if (c.getInt(c.getColumnIndex(KEY_STATUS)) != STATUS_HELPER) {
+      if (c.isNull(columnIndexCatId)) {
+        if (c.getInt(columnIndexStatus) != STATUS_HELPER) {
           catText = Category.NO_CATEGORY_ASSIGNED_LABEL;
         }
+      } else if (c.getLong(columnIndexCatId) == SPLIT_CATID) {
+        catText = MyApplication.getInstance().getString(R.string.split_transaction);
       } else {
-        catText = getCatText(catText,c.getString(c.getColumnIndex(KEY_LABEL_SUB)));
+        catText = getCatText(catText, c.getString(columnIndexLabelSub));
       }
     }
-    String referenceNumber= c.getString(c.getColumnIndex(KEY_REFERENCE_NUMBER));
+    String referenceNumber= c.getString(columnIndexReferenceNumber);
     if (referenceNumber != null && referenceNumber.length() > 0)
       catText = "(" + referenceNumber + ") " + catText;
     SpannableStringBuilder ssb;
-    String comment = c.getString(c.getColumnIndex(KEY_COMMENT));
+    String comment = c.getString(columnIndexComment);
     if (comment != null && comment.length() > 0) {
       ssb = new SpannableStringBuilder(comment);
       ssb.setSpan(new StyleSpan(android.graphics.Typeface.ITALIC), 0, comment.length(), 0);
@@ -186,7 +241,7 @@ public class TransactionAdapter extends SimpleCursorAdapter {
           TextUtils.concat(catText,TransactionList.COMMENT_SEPARATOR,ssb):
           ssb;
     }
-    String payee = c.getString(c.getColumnIndex(KEY_PAYEE_NAME));
+    String payee = c.getString(columnIndexPayeeName);
     if (payee != null && payee.length() > 0) {
       ssb = new SpannableStringBuilder(payee);
       ssb.setSpan(new UnderlineSpan(), 0, payee.length(), 0);
@@ -194,34 +249,17 @@ public class TransactionAdapter extends SimpleCursorAdapter {
           TextUtils.concat(catText,TransactionList.COMMENT_SEPARATOR,ssb):
           ssb;
     }
-    if (insideFragment) {
-      if (catText.length()==0) {
-        catText = "―――";
-        tv2.setGravity(Gravity.CENTER);
-      } else {
-        tv2.setGravity(Gravity.START);
-      }
-    }
-    tv2.setText(catText);
-
-    CrStatus status;
+    row.category = catText;
     try {
-      status = CrStatus.valueOf(c.getString(c.getColumnIndex(KEY_CR_STATUS)));
-    } catch (IllegalArgumentException ex) {
-      status = CrStatus.UNRECONCILED;
+      row.crStatus = CrStatus.valueOf(c.getString(columnIndexCrStatus));
+    } catch (IllegalArgumentException | NullPointerException ex) {
+      row.crStatus = CrStatus.UNRECONCILED;
     }
-    
-    if (!mAccount.type.equals(AccountType.CASH) && !status.equals(CrStatus.VOID)) {
-      viewHolder.color1.setBackgroundColor(status.color);
-      viewHolder.colorContainer.setTag(status == CrStatus.RECONCILED ? -1 : getItemId(position));
-      viewHolder.colorContainer.setVisibility(View.VISIBLE);
-    } else {
-      viewHolder.colorContainer.setVisibility(View.GONE);
-    }
-    viewHolder.voidMarker.setVisibility(status.equals(CrStatus.VOID) ? View.VISIBLE : View.GONE);
-    return convertView;
+    return row;
   }
+
   public void refreshDateFormat() {
+    renderedRows.evictAll();
     switch (mGroupingOverride!=null ? mGroupingOverride : mAccount.grouping) {
     case DAY:
       itemDateFormat = localizedTimeFormat;
@@ -240,6 +278,14 @@ public class TransactionAdapter extends SimpleCursorAdapter {
       itemDateFormat = Utils.localizedYearlessDateFormat();
     }
   }
+  private static class RenderedRow {
+    CharSequence amount;
+    boolean isExpense;
+    CharSequence date;
+    CharSequence category;
+    CrStatus crStatus;
+  }
+
   class ViewHolder {
     TextView amount;
     View colorAccount;
@@ -70,7 +70,7 @@ import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ROWID;
 public class ExportDialogFragment extends CommitSafeDialogFragment implements android.content.DialogInterface.OnClickListener, OnCheckedChangeListener {
   private static final String KEY_IS_FILTERED = "is_filtered";
   RadioGroup handleDeletedGroup;
-  CheckBox notYetExportedCB, deleteCB;
+  CheckBox notYetExportedCB, deleteCB, zipCB;
   RadioButton formatRBCSV, separatorRBComma;
   TextView warningTV;
   EditText dateFormatET, fileNameET;
@@ -78,6 +78,7 @@ public class ExportDialogFragment extends CommitSafeDialogFragment implements an
   String currency;
   static final String PREFKEY_EXPORT_DATE_FORMAT = "export_date_format";
   static final String PREFKEY_EXPORT_ENCODING = "export_encoding";
+  static final String PREFKEY_EXPORT_ZIP = "export_zip";
   private int handleDeletedAction = Account.EXPORT_HANDLE_DELETED_DO_NOTHING;
 
   public static ExportDialogFragment newInstance(Long accountId, boolean isFiltered) {
@@ -266,8 +267,18 @@ public class ExportDialogFragment extends CommitSafeDialogFragment implements an
     }
 
     warningTV.setText(warningText);
+    zipCB = (CheckBox) view.findViewById(R.id.export_zip);
     if (allP) {
-      ((TextView) view.findViewById(R.id.file_name_label)).setText(R.string.folder_name);
+      final TextView fileNameLabel = (TextView) view.findViewById(R.id.file_name_label);
+      zipCB.setVisibility(View.VISIBLE);
+      zipCB.setOnCheckedChangeListener(new OnCheckedChangeListener() {
+        @Override
+        public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+          fileNameLabel.setText(isChecked ? R.string.file_name : R.string.folder_name);
+        }
+      });
+      zipCB.setChecked(MyApplication.getInstance().getSettings().getBoolean(PREFKEY_EXPORT_ZIP, false));
+      fileNameLabel.setText(zipCB.isChecked() ? R.string.file_name : R.string.folder_name);
     }
 
     final View helpIcon = view.findViewById(R.id.date_format_help);
@@ -371,6 +382,12 @@ public class ExportDialogFragment extends CommitSafeDialogFragment implements an
         .apply();
     boolean deleteP = deleteCB.isChecked();
     boolean notYetExportedP = notYetExportedCB.isChecked();
+    boolean zipP = zipCB.getVisibility() == View.VISIBLE && zipCB.isChecked();
+    if (zipCB.getVisibility() == View.VISIBLE) {
+      MyApplication.getInstance().getSettings().edit()
+          .putBoolean(PREFKEY_EXPORT_ZIP, zipP)
+          .apply();
+    }
     String fileName = fileNameET.getText().toString();
     Result appDirStatus = AppDirHelper.checkAppDir(getActivity());
     if (appDirStatus.success) {
@@ -391,6 +408,7 @@ public class ExportDialogFragment extends CommitSafeDialogFragment implements an
       b.putString(TaskExecutionFragment.KEY_ENCODING, encoding);
       b.putInt(ExportTask.KEY_EXPORT_HANDLE_DELETED, handleDeleted);
       b.putString(ExportTask.KEY_FILE_NAME, fileName);
+      b.putBoolean(ExportTask.KEY_EXPORT_ZIP, zipP);
       if (AppDirHelper.checkAppFolderWarning(getActivity())) {
         ((ConfirmationDialogListener) getActivity())
             .onPositive(b);
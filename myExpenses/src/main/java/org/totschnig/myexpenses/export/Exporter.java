@@ -13,7 +13,6 @@ import org.totschnig.myexpenses.model.Money;
 import org.totschnig.myexpenses.model.PaymentMethod;
 import org.totschnig.myexpenses.model.SplitTransaction;
 import org.totschnig.myexpenses.model.Transaction;
-import org.totschnig.myexpenses.provider.DatabaseConstants;
 import org.totschnig.myexpenses.provider.DbUtils;
 import org.totschnig.myexpenses.provider.filter.WhereFilter;
 import org.totschnig.myexpenses.util.AppDirHelper;
@@ -21,13 +20,18 @@ import org.totschnig.myexpenses.util.FileUtils;
 import org.totschnig.myexpenses.util.Result;
 import org.totschnig.myexpenses.util.Utils;
 
+import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.math.BigDecimal;
 import java.text.DecimalFormat;
 import java.text.SimpleDateFormat;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.Locale;
+import java.util.Map;
 
 import timber.log.Timber;
 
@@ -37,6 +41,7 @@ import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_CATID;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_COMMENT;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_CR_STATUS;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_DATE;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_LABEL;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_LABEL_MAIN;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_LABEL_SUB;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_METHODID;
@@ -46,8 +51,12 @@ import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_REFERENCE_
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ROWID;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_STATUS;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_TRANSFER_PEER;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.LABEL_MAIN;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.LABEL_SUB;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.SPLIT_CATID;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.STATUS_NONE;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_TRANSACTIONS;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.VIEW_EXTENDED;
 
 public class Exporter {
   private Account account;
@@ -60,6 +69,29 @@ public class Exporter {
   char decimalSeparator;
   String encoding;
 
+  private static final String[] PROJECTION = new String[]{
+      KEY_ROWID,
+      KEY_PARENTID,
+      KEY_DATE,
+      KEY_AMOUNT,
+      KEY_COMMENT,
+      KEY_CATID,
+      LABEL_MAIN,
+      LABEL_SUB,
+      KEY_PAYEE_NAME,
+      KEY_TRANSFER_PEER,
+      KEY_METHODID,
+      KEY_CR_STATUS,
+      KEY_REFERENCE_NUMBER
+  };
+
+  /**
+   * parents are sorted by date, each one followed by its split parts
+   */
+  private static final String SORT_ORDER = "coalesce((SELECT " + KEY_DATE + " FROM " + TABLE_TRANSACTIONS
+      + " parents WHERE parents." + KEY_ROWID + " = " + VIEW_EXTENDED + "." + KEY_PARENTID + "), " + KEY_DATE
+      + "), coalesce(" + KEY_PARENTID + ", " + KEY_ROWID + "), " + KEY_PARENTID + " IS NOT NULL, " + KEY_ROWID;
+
   /**
    *
    * @param account Account to print
@@ -96,12 +128,17 @@ public class Exporter {
     if (notYetExportedP)
       selection += " AND " + KEY_STATUS + " = " + STATUS_NONE;
     if (filter != null && !filter.isEmpty()) {
-      selection += " AND " + filter.getSelectionForParents(DatabaseConstants.VIEW_EXTENDED);
+      selection += " AND " + filter.getSelectionForParents(VIEW_EXTENDED);
       selectionArgs = Utils.joinArrays(selectionArgs, filter.getSelectionArgs(false));
     }
+    //split parts are retrieved by the same query, sorted directly after their parent
     Cursor c = Model.cr().query(
         Transaction.EXTENDED_URI,
-        null, selection, selectionArgs, KEY_DATE);
+        PROJECTION,
+        "(" + selection + ") OR " + KEY_PARENTID + " IN (SELECT " + KEY_ROWID + " FROM "
+            + VIEW_EXTENDED + " WHERE " + selection + ")",
+        Utils.joinArrays(selectionArgs, selectionArgs),
+        SORT_ORDER);
     if (c.getCount() == 0) {
       c.close();
       return new Result(false, R.string.no_exportable_expenses);
@@ -119,12 +156,18 @@ public class Exporter {
           fileName,
           FileUtils.getPath(MyApplication.getInstance(), destDir.getUri()));
     }
-    c.moveToFirst();
+    Map<Long, String> methodLabels = format == ExportFormat.CSV ?
+        loadMethodLabels() : Collections.<Long, String>emptyMap();
+    int columnIndexRowId = c.getColumnIndexOrThrow(KEY_ROWID);
+    int columnIndexParentId = c.getColumnIndexOrThrow(KEY_PARENTID);
+    int columnIndexDate = c.getColumnIndexOrThrow(KEY_DATE);
+    int columnIndexAmount = c.getColumnIndexOrThrow(KEY_AMOUNT);
+    int columnIndexCrStatus = c.getColumnIndexOrThrow(KEY_CR_STATUS);
     Utils.StringBuilderWrapper sb = new Utils.StringBuilderWrapper();
     SimpleDateFormat formatter = new SimpleDateFormat(dateFormat, Locale.US);
-    OutputStreamWriter out = new OutputStreamWriter(
+    Writer out = new BufferedWriter(new OutputStreamWriter(
         Model.cr().openOutputStream(outputFile.getUri()),
-        encoding);
+        encoding));
     switch (format) {
       case CSV:
         int[] columns = {R.string.split_transaction, R.string.date, R.string.payee, R.string.income, R.string.expense,
@@ -146,183 +189,190 @@ public class Exporter {
     }
     //Write header
     out.write(sb.toString());
-    while (c.getPosition() < c.getCount()) {
+    //split parts are written with date, payee and method of their parent
+    long parentId = 0;
+    String dateStr = "", payee = "", methodLabel = "";
+    while (c.moveToNext()) {
       String comment = DbUtils.getString(c, KEY_COMMENT);
       String full_label = "", label_sub = "", label_main;
-      Transaction.CrStatus status;
-      Long catId = DbUtils.getLongOrNull(c, KEY_CATID);
-      Cursor splits = null, readCat;
-      if (SPLIT_CATID.equals(catId)) {
-        //split transactions take their full_label from the first split part
-        splits = Model.cr().query(Transaction.CONTENT_URI, null,
-            KEY_PARENTID + " = " + c.getLong(c.getColumnIndex(KEY_ROWID)), null, null);
-        if (splits != null && splits.moveToFirst()) {
-          readCat = splits;
-        } else {
-          readCat = c;
-        }
-      } else {
-        readCat = c;
-      }
-      Long transfer_peer = DbUtils.getLongOrNull(readCat, KEY_TRANSFER_PEER);
-      label_main = DbUtils.getString(readCat, KEY_LABEL_MAIN);
-      if (label_main.length() > 0) {
-        if (transfer_peer != null) {
-          full_label = "[" + label_main + "]";
-          label_main = ctx.getString(R.string.transfer);
-          label_sub = full_label;
-        } else {
-          full_label = label_main;
-          label_sub = DbUtils.getString(readCat, KEY_LABEL_SUB);
-          if (label_sub.length() > 0)
-            full_label += ":" + label_sub;
-        }
-      }
-      String payee = DbUtils.getString(c, KEY_PAYEE_NAME);
-      String dateStr = formatter.format(new Date(c.getLong(
-          c.getColumnIndexOrThrow(KEY_DATE)) * 1000));
-      long amount = c.getLong(
-          c.getColumnIndexOrThrow(KEY_AMOUNT));
+      long amount = c.getLong(columnIndexAmount);
       BigDecimal bdAmount = new Money(account.currency, amount).getAmountMajor();
       String amountQIF = nfFormat.format(bdAmount);
       String amountAbsCSV = nfFormat.format(bdAmount.abs());
-      try {
-        status = Transaction.CrStatus.valueOf(c.getString(c.getColumnIndexOrThrow(KEY_CR_STATUS)));
-      } catch (IllegalArgumentException ex) {
-        status = Transaction.CrStatus.UNRECONCILED;
-      }
-      String referenceNumber = DbUtils.getString(c, KEY_REFERENCE_NUMBER);
-      String splitIndicator = SPLIT_CATID.equals(catId) ? SplitTransaction.CSV_INDICATOR : "";
       sb.clear();
-      switch (format) {
-        case CSV:
-          //{R.string.split_transaction,R.string.date,R.string.payee,R.string.income,R.string.expense,R.string.category,R.string.subcategory,R.string.comment,R.string.method,R.string.status,R.string.reference_number};
-          Long methodId = DbUtils.getLongOrNull(c, KEY_METHODID);
-          PaymentMethod method = methodId == null ? null : PaymentMethod.getInstanceFromDb(methodId);
-          sb.append("\n\"")
-              .append(splitIndicator)
-              .append("\";\"")
-              .append(dateStr)
-              .append("\";\"")
-              .appendQ(payee)
-              .append("\";")
-              .append(amount > 0 ? amountAbsCSV : "0")
-              .append(";")
-              .append(amount < 0 ? amountAbsCSV : "0")
-              .append(";\"")
-              .appendQ(label_main)
-              .append("\";\"")
-              .appendQ(label_sub)
-              .append("\";\"")
-              .appendQ(comment)
-              .append("\";\"")
-              .appendQ(method == null ? "" : method.getLabel())
-              .append("\";\"")
-              .append(status.symbol)
-              .append("\";\"")
-              .append(referenceNumber)
-              .append("\"");
-          break;
-        default:
-          sb.append("\nD")
-              .append(dateStr)
-              .append("\nT")
-              .append(amountQIF);
-          if (comment.length() > 0) {
-            sb.append("\nM")
-                .append(comment);
-          }
-          if (full_label.length() > 0) {
-            sb.append("\nL")
-                .append(full_label);
-          }
-          if (payee.length() > 0) {
-            sb.append("\nP")
-                .append(payee);
-          }
-          if (!status.equals(Transaction.CrStatus.UNRECONCILED))
-            sb.append("\nC")
-                .append(status.symbol);
-          if (referenceNumber.length() > 0) {
-            sb.append("\nN")
-                .append(referenceNumber);
-          }
-      }
-      out.write(sb.toString());
-      if (SPLIT_CATID.equals(catId) && splits != null) {
-        while (splits.getPosition() < splits.getCount()) {
-          transfer_peer = DbUtils.getLongOrNull(splits, KEY_TRANSFER_PEER);
-          comment = DbUtils.getString(splits, KEY_COMMENT);
-          label_main = DbUtils.getString(splits, KEY_LABEL_MAIN);
-          if (label_main.length() > 0) {
-            if (transfer_peer != null) {
-              full_label = "[" + label_main + "]";
-              label_main = ctx.getString(R.string.transfer);
-              label_sub = full_label;
-            } else {
-              full_label = label_main;
-              label_sub = DbUtils.getString(splits, KEY_LABEL_SUB);
-              if (label_sub.length() > 0)
-                full_label += ":" + label_sub;
-            }
+      if (c.isNull(columnIndexParentId)) {
+        if (parentId != 0 && format.equals(ExportFormat.QIF)) {
+          //terminate the previous transaction
+          sb.append("\n^");
+        }
+        parentId = c.getLong(columnIndexRowId);
+        Transaction.CrStatus status;
+        Long catId = DbUtils.getLongOrNull(c, KEY_CATID);
+        int position = c.getPosition();
+        //split transactions take their full_label from the first split part, which is the next row
+        if (SPLIT_CATID.equals(catId) &&
+            !(c.moveToNext() && c.getLong(columnIndexParentId) == parentId)) {
+          c.moveToPosition(position);
+        }
+        Long transfer_peer = DbUtils.getLongOrNull(c, KEY_TRANSFER_PEER);
+        label_main = DbUtils.getString(c, KEY_LABEL_MAIN);
+        if (label_main.length() > 0) {
+          if (transfer_peer != null) {
+            full_label = "[" + label_main + "]";
+            label_main = ctx.getString(R.string.transfer);
+            label_sub = full_label;
           } else {
-            label_main = full_label = Category.NO_CATEGORY_ASSIGNED_LABEL;
-            label_sub = "";
+            full_label = label_main;
+            label_sub = DbUtils.getString(c, KEY_LABEL_SUB);
+            if (label_sub.length() > 0)
+              full_label += ":" + label_sub;
           }
-          amount = splits.getLong(
-              splits.getColumnIndexOrThrow(KEY_AMOUNT));
-          bdAmount = new Money(account.currency, amount).getAmountMajor();
-          amountQIF = nfFormat.format(bdAmount);
-          amountAbsCSV = nfFormat.format(bdAmount.abs());
-          sb.clear();
-          switch (format) {
-            case CSV:
-              //{R.string.split_transaction,R.string.date,R.string.payee,R.string.income,R.string.expense,R.string.category,R.string.subcategory,R.string.comment,R.string.method};
-              Long methodId = DbUtils.getLongOrNull(c, KEY_METHODID);
-              PaymentMethod method = methodId == null ? null : PaymentMethod.getInstanceFromDb(methodId);
-              sb.append("\n\"")
-                  .append(SplitTransaction.CSV_PART_INDICATOR)
-                  .append("\";\"")
-                  .append(dateStr)
-                  .append("\";\"")
-                  .appendQ(payee)
-                  .append("\";")
-                  .append(amount > 0 ? amountAbsCSV : "0")
-                  .append(";")
-                  .append(amount < 0 ? amountAbsCSV : "0")
-                  .append(";\"")
-                  .appendQ(label_main)
-                  .append("\";\"")
-                  .appendQ(label_sub)
-                  .append("\";\"")
-                  .appendQ(comment)
-                  .append("\";\"")
-                  .appendQ(method == null ? "" : method.getLabel())
-                  .append("\";\"\";\"\"");
-              break;
-            //QIF
-            default:
-              sb.append("\nS")
+        }
+        c.moveToPosition(position);
+        payee = DbUtils.getString(c, KEY_PAYEE_NAME);
+        dateStr = formatter.format(new Date(c.getLong(columnIndexDate) * 1000));
+        Long methodId = DbUtils.getLongOrNull(c, KEY_METHODID);
+        methodLabel = methodId == null ? null : methodLabels.get(methodId);
+        if (methodLabel == null) {
+          methodLabel = "";
+        }
+        try {
+          status = Transaction.CrStatus.valueOf(c.getString(columnIndexCrStatus));
+        } catch (IllegalArgumentException ex) {
+          status = Transaction.CrStatus.UNRECONCILED;
+        }
+        String referenceNumber = DbUtils.getString(c, KEY_REFERENCE_NUMBER);
+        String splitIndicator = SPLIT_CATID.equals(catId) ? SplitTransaction.CSV_INDICATOR : "";
+        switch (format) {
+          case CSV:
+            //{R.string.split_transaction,R.string.date,R.string.payee,R.string.income,R.string.expense,R.string.category,R.string.subcategory,R.string.comment,R.string.method,R.string.status,R.string.reference_number};
+            sb.append("\n\"")
+                .append(splitIndicator)
+                .append("\";\"")
+                .append(dateStr)
+                .append("\";\"")
+                .appendQ(payee)
+                .append("\";")
+                .append(amount > 0 ? amountAbsCSV : "0")
+                .append(";")
+                .append(amount < 0 ? amountAbsCSV : "0")
+                .append(";\"")
+                .appendQ(label_main)
+                .append("\";\"")
+                .appendQ(label_sub)
+                .append("\";\"")
+                .appendQ(comment)
+                .append("\";\"")
+                .appendQ(methodLabel)
+                .append("\";\"")
+                .append(status.symbol)
+                .append("\";\"")
+                .append(referenceNumber)
+                .append("\"");
+            break;
+          default:
+            sb.append("\nD")
+                .append(dateStr)
+                .append("\nT")
+                .append(amountQIF);
+            if (comment.length() > 0) {
+              sb.append("\nM")
+                  .append(comment);
+            }
+            if (full_label.length() > 0) {
+              sb.append("\nL")
                   .append(full_label);
-              if ((comment.length() > 0)) {
-                sb.append("\nE")
-                    .append(comment);
-              }
-              sb.append("\n$")
-                  .append(amountQIF);
+            }
+            if (payee.length() > 0) {
+              sb.append("\nP")
+                  .append(payee);
+            }
+            if (!status.equals(Transaction.CrStatus.UNRECONCILED))
+              sb.append("\nC")
+                  .append(status.symbol);
+            if (referenceNumber.length() > 0) {
+              sb.append("\nN")
+                  .append(referenceNumber);
+            }
+        }
+      } else {
+        Long transfer_peer = DbUtils.getLongOrNull(c, KEY_TRANSFER_PEER);
+        label_main = DbUtils.getString(c, KEY_LABEL_MAIN);
+        if (label_main.length() > 0) {
+          if (transfer_peer != null) {
+            full_label = "[" + label_main + "]";
+            label_main = ctx.getString(R.string.transfer);
+            label_sub = full_label;
+          } else {
+            full_label = label_main;
+            label_sub = DbUtils.getString(c, KEY_LABEL_SUB);
+            if (label_sub.length() > 0)
+              full_label += ":" + label_sub;
           }
-          out.write(sb.toString());
-          splits.moveToNext();
+        } else {
+          label_main = full_label = Category.NO_CATEGORY_ASSIGNED_LABEL;
+          label_sub = "";
+        }
+        switch (format) {
+          case CSV:
+            //{R.string.split_transaction,R.string.date,R.string.payee,R.string.income,R.string.expense,R.string.category,R.string.subcategory,R.string.comment,R.string.method};
+            sb.append("\n\"")
+                .append(SplitTransaction.CSV_PART_INDICATOR)
+                .append("\";\"")
+                .append(dateStr)
+                .append("\";\"")
+                .appendQ(payee)
+                .append("\";")
+                .append(amount > 0 ? amountAbsCSV : "0")
+                .append(";")
+                .append(amount < 0 ? amountAbsCSV : "0")
+                .append(";\"")
+                .appendQ(label_main)
+                .append("\";\"")
+                .appendQ(label_sub)
+                .append("\";\"")
+                .appendQ(comment)
+                .append("\";\"")
+                .appendQ(methodLabel)
+                .append("\";\"\";\"\"");
+            break;
+          //QIF
+          default:
+            sb.append("\nS")
+                .append(full_label);
+            if ((comment.length() > 0)) {
+              sb.append("\nE")
+                  .append(comment);
+            }
+            sb.append("\n$")
+                .append(amountQIF);
         }
-        splits.close();
-      }
-      if (format.equals(ExportFormat.QIF)) {
-        out.write("\n^");
       }
-      c.moveToNext();
+      out.write(sb.toString());
+    }
+    if (format.equals(ExportFormat.QIF)) {
+      out.write("\n^");
     }
     out.close();
     c.close();
     return new Result(true, R.string.export_sdcard_success, outputFile.getUri());
   }
+
+  /**
+   * @return the localized labels of all payment methods, retrieved with one query instead of
+   * looking up each method of the exported transactions
+   */
+  private Map<Long, String> loadMethodLabels() {
+    Map<Long, String> result = new HashMap<>();
+    Cursor c = Model.cr().query(PaymentMethod.CONTENT_URI,
+        new String[]{KEY_ROWID, PaymentMethod.localizedLabelSqlColumn(MyApplication.getInstance())
+            + " AS " + KEY_LABEL}, null, null, null);
+    if (c != null) {
+      while (c.moveToNext()) {
+        result.put(c.getLong(0), c.getString(1));
+      }
+      c.close();
+    }
+    return result;
+  }
 }
@@ -144,6 +144,7 @@ public class PdfPrinter {
     Timber.d("List %d", (System.currentTimeMillis() - start));
     transactionCursor.close();
     document.close();
+    helper.finish();
     return new Result(true, R.string.export_sdcard_success, outputFile.getUri());
   }
   private void addMetaData(Document document) {
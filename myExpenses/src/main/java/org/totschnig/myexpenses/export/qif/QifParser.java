@@ -16,6 +16,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 
+import android.support.annotation.Nullable;
 import android.text.TextUtils;
 
 /**
@@ -25,6 +26,26 @@ import android.text.TextUtils;
  */
 public class QifParser {
 
+  /**
+   * receives categories, accounts and transactions as soon as they are parsed
+   */
+  public interface Listener {
+    void onCategory(QifCategory category);
+
+    /**
+     * called for accounts from an account list, which are not followed by their transactions
+     */
+    void onAccount(QifAccount account);
+
+    void onTransaction(QifAccount account, QifTransaction transaction);
+
+    /**
+     * called once all transactions of the account block have been passed to
+     * {@link #onTransaction(QifAccount, QifTransaction)}
+     */
+    void onAccountEnd(QifAccount account);
+  }
+
   private final QifBufferedReader r;
   private final QifDateFormat dateFormat;
 
@@ -34,11 +55,23 @@ public class QifParser {
   public final Set<String> payees = new HashSet<>();
   public final Set<String> classes = new HashSet<>();
   private final Currency currency;
+  @Nullable
+  private final Listener listener;
 
   public QifParser(QifBufferedReader r, QifDateFormat dateFormat, Currency currency) {
+    this(r, dateFormat, currency, null);
+  }
+
+  /**
+   * @param listener if not null, categories and transactions are passed to it instead of being
+   *                 collected, accounts are collected without their transactions
+   */
+  public QifParser(QifBufferedReader r, QifDateFormat dateFormat, Currency currency,
+                   @Nullable Listener listener) {
     this.r = r;
     this.dateFormat = dateFormat;
     this.currency = currency;
+    this.listener = listener;
   }
 
   public void parse() throws IOException {
@@ -65,6 +98,9 @@ public class QifParser {
               }
               QifAccount a = parseAccount();
               accounts.add(a);
+              if (listener != null) {
+                listener.onAccount(a);
+              }
             }
           }
         }
@@ -88,7 +124,11 @@ public class QifParser {
       QifCategory category = new QifCategory();
       category.readFrom(r);
       if (category.getName() != null) {
-        categories.add(category);
+        if (listener != null) {
+          listener.onCategory(category);
+        } else {
+          categories.add(category);
+        }
       }
       if (shouldBreakCurrentBlock()) {
         break;
@@ -109,6 +149,8 @@ public class QifParser {
           account.openinBalance = t.amount;
           if (!TextUtils.isEmpty(t.toAccount))
             account.memo = t.toAccount;
+        } else if (listener != null) {
+          listener.onTransaction(account, t);
         } else {
           addPayeeFromTransaction(t);
           addCategoryFromTransaction(t);
@@ -119,6 +161,9 @@ public class QifParser {
         }
       }
     }
+    if (listener != null) {
+      listener.onAccountEnd(account);
+    }
   }
 
   private QifAccount parseAccount() throws IOException {
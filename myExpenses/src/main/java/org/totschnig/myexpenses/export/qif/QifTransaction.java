@@ -37,6 +37,11 @@ public class QifTransaction {
   public String number;
 
   public List<QifTransaction> splits;
+  /**
+   * set on the receiving side of a transfer, once it has been paired with the sending side, which
+   * is imported as transfer for both
+   */
+  public boolean isCounterpart;
 
   public boolean isSplit() {
     return splits != null;
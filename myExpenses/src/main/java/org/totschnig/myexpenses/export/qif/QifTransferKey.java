@@ -0,0 +1,40 @@
+package org.totschnig.myexpenses.export.qif;
+
+import java.math.BigDecimal;
+import java.util.Date;
+
+/**
+ * identifies a transfer by the account it is booked on, the account it refers to, its date and
+ * the amount as seen from the outgoing side
+ */
+final class QifTransferKey {
+  private final String fromAccount;
+  private final String toAccount;
+  private final Date date;
+  private final BigDecimal amount;
+
+  QifTransferKey(String fromAccount, String toAccount, Date date, BigDecimal amount) {
+    this.fromAccount = fromAccount;
+    this.toAccount = toAccount;
+    this.date = date;
+    this.amount = amount;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) return true;
+    if (o == null || getClass() != o.getClass()) return false;
+    QifTransferKey that = (QifTransferKey) o;
+    return fromAccount.equals(that.fromAccount) && toAccount.equals(that.toAccount)
+        && date.equals(that.date) && amount.equals(that.amount);
+  }
+
+  @Override
+  public int hashCode() {
+    int result = fromAccount.hashCode();
+    result = 31 * result + toAccount.hashCode();
+    result = 31 * result + date.hashCode();
+    result = 31 * result + amount.hashCode();
+    return result;
+  }
+}
@@ -0,0 +1,114 @@
+package org.totschnig.myexpenses.export.qif;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A transfer between two accounts is exported by Quicken into both accounts. On import, the
+ * outgoing side is kept and imported as transfer, while its counterpart in the receiving account,
+ * as defined by {@link QifUtils#twoSidesOfTheSameTransfer}, is marked with
+ * {@link QifTransaction#isCounterpart} and must not be imported. Counterparts are looked up in an
+ * index built once before pairing, instead of scanning the receiving account for each transfer.
+ */
+public final class QifTransferReducer {
+
+  private QifTransferReducer() {
+  }
+
+  /**
+   * pairs the outgoing transfers of all accounts, including transfers in splits, with the first
+   * matching incoming transfer that is not paired yet. Outgoing transfers without counterpart are
+   * converted into regular transactions.
+   *
+   * @param accountTitleToAccount the accounts transfers are resolved against, mapped by their memo.
+   *                              Transfers from and to accounts that are not part of it, e.g.
+   *                              since they were not imported, are not paired
+   */
+  public static void reduceTransfers(List<QifAccount> accounts,
+                                     Map<String, QifAccount> accountTitleToAccount) {
+    Map<QifTransferKey, Deque<QifTransaction>> counterparts = new HashMap<>();
+    for (QifAccount toAccount : accountTitleToAccount.values()) {
+      for (QifTransaction toTransaction : toAccount.transactions) {
+        if (toTransaction.isTransfer() && toTransaction.amount.signum() == 1
+            && toTransaction.date != null) {
+          QifTransferKey key = new QifTransferKey(toTransaction.toAccount, toAccount.memo,
+              toTransaction.date, toTransaction.amount.negate());
+          Deque<QifTransaction> candidates = counterparts.get(key);
+          if (candidates == null) {
+            candidates = new ArrayDeque<>();
+            counterparts.put(key, candidates);
+          }
+          candidates.add(toTransaction);
+        }
+      }
+    }
+    Map<QifTransferKey, Deque<QifTransaction>> none = Collections.emptyMap();
+    for (QifAccount fromAccount : accounts) {
+      reduceTransfers(fromAccount, fromAccount.transactions,
+          accountTitleToAccount.get(fromAccount.memo) == fromAccount ? counterparts : none);
+    }
+  }
+
+  private static void reduceTransfers(QifAccount fromAccount, List<QifTransaction> transactions,
+                                      Map<QifTransferKey, Deque<QifTransaction>> counterparts) {
+    for (QifTransaction fromTransaction : transactions) {
+      if (fromTransaction.isCounterpart) {
+        continue;
+      }
+      if (fromTransaction.isTransfer() && fromTransaction.amount.signum() == -1) {
+        QifTransaction toTransaction = null;
+        if (!fromTransaction.toAccount.equals(fromAccount.memo) && fromTransaction.date != null) {
+          Deque<QifTransaction> candidates = counterparts.get(new QifTransferKey(fromAccount.memo,
+              fromTransaction.toAccount, fromTransaction.date, fromTransaction.amount));
+          if (candidates != null) {
+            toTransaction = candidates.poll();
+          }
+        }
+        if (toTransaction != null) {
+          toTransaction.isCounterpart = true;
+        } else {
+          convertIntoRegularTransaction(fromTransaction);
+        }
+      }
+      if (fromTransaction.splits != null) {
+        reduceTransfers(fromAccount, fromTransaction.splits, counterparts);
+      }
+    }
+  }
+
+  /**
+   * converts incoming transfers that have not been paired with an outgoing transfer into regular
+   * transactions
+   */
+  public static void convertUnknownTransfers(List<QifAccount> accounts) {
+    for (QifAccount fromAccount : accounts) {
+      convertUnknownTransfers(fromAccount, fromAccount.transactions);
+    }
+  }
+
+  private static void convertUnknownTransfers(QifAccount fromAccount,
+                                              List<QifTransaction> transactions) {
+    for (QifTransaction transaction : transactions) {
+      if (transaction.isCounterpart) {
+        continue;
+      }
+      if (transaction.isTransfer() && transaction.amount.signum() >= 0) {
+        convertIntoRegularTransaction(transaction);
+      }
+      if (transaction.splits != null) {
+        convertUnknownTransfers(fromAccount, transaction.splits);
+      }
+    }
+  }
+
+  static void convertIntoRegularTransaction(QifTransaction fromTransaction) {
+    String prefix = "Transfer: " + fromTransaction.toAccount;
+    fromTransaction.memo = fromTransaction.memo == null || fromTransaction.memo.isEmpty() ?
+        prefix : prefix + " | " + fromTransaction.memo;
+    fromTransaction.toAccount = null;
+  }
+}
@@ -0,0 +1,230 @@
+package org.totschnig.myexpenses.export.qif;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Pairs transfers like {@link QifTransferReducer}, while the file is parsed account block by
+ * account block. A transaction is handed on to the {@link Sink} as soon as it is known whether its
+ * transfers are paired, so that only transactions waiting for the block of another account are
+ * kept in memory. Counterparts are taken in file order on both sides, which yields the same pairs
+ * as {@link QifTransferReducer}, as long as each account appears in only one block.
+ */
+public class QifTransferResolver {
+
+  public interface Sink {
+    /**
+     * @param transaction a transaction that is not the counterpart of a transfer. Its transfers
+     *                    that have not been paired are converted into regular transactions
+     */
+    void onResolved(QifAccount account, QifTransaction transaction);
+
+    /**
+     * @return false if the transactions of account are not imported, e.g. since the limit of
+     * accounts has been reached. Transfers from and to such an account are not paired, but
+     * converted into regular transactions, as if the account was not part of the file
+     */
+    boolean accepts(QifAccount account);
+  }
+
+  private final Sink sink;
+  private final Set<String> completedAccounts = new HashSet<>();
+  /**
+   * outgoing transfers waiting for the block of the account they refer to, mapped by that account
+   */
+  private final Map<String, Map<QifTransferKey, Deque<PendingTransfer>>> outgoingByTarget =
+      new LinkedHashMap<>();
+  /**
+   * incoming transfers waiting for the block of the account they come from, mapped by that account
+   */
+  private final Map<String, Map<QifTransferKey, Deque<PendingTransaction>>> incomingBySource =
+      new LinkedHashMap<>();
+
+  public QifTransferResolver(Sink sink) {
+    this.sink = sink;
+  }
+
+  /**
+   * @param transaction the next transaction of the block of account
+   */
+  public void offer(QifAccount account, QifTransaction transaction) {
+    if (!sink.accepts(account)) {
+      return;
+    }
+    PendingTransaction pending = new PendingTransaction(account, transaction);
+    if (transaction.isTransfer() && transaction.amount.signum() == 1 && transaction.date != null) {
+      String source = transaction.toAccount;
+      QifTransferKey key = new QifTransferKey(source, account.memo, transaction.date,
+          transaction.amount.negate());
+      if (completedAccounts.contains(source)) {
+        PendingTransfer outgoing = poll(outgoingByTarget, account.memo, key);
+        if (outgoing != null) {
+          //counterpart of a transfer that is already known, neither it nor its splits are imported
+          resolve(outgoing.owner);
+          return;
+        }
+        QifTransferReducer.convertIntoRegularTransaction(transaction);
+      } else {
+        add(incomingBySource, source, key, pending);
+        pending.unresolved++;
+      }
+    } else {
+      reduceTransfer(pending, transaction, true);
+    }
+    if (transaction.splits != null) {
+      for (QifTransaction split : transaction.splits) {
+        reduceTransfer(pending, split, false);
+      }
+    }
+    if (pending.unresolved == 0) {
+      sink.onResolved(account, transaction);
+    }
+  }
+
+  private void reduceTransfer(PendingTransaction pending, QifTransaction transaction,
+                              boolean isTopLevel) {
+    if (!transaction.isTransfer()) {
+      return;
+    }
+    String fromAccount = pending.account.memo;
+    if (transaction.amount.signum() == -1) {
+      String target = transaction.toAccount;
+      if (target.equals(fromAccount) || transaction.date == null) {
+        QifTransferReducer.convertIntoRegularTransaction(transaction);
+      } else {
+        QifTransferKey key = new QifTransferKey(fromAccount, target, transaction.date,
+            transaction.amount);
+        if (completedAccounts.contains(target)) {
+          PendingTransaction incoming = poll(incomingBySource, fromAccount, key);
+          if (incoming != null) {
+            incoming.isCounterpart = true;
+            resolve(incoming);
+          } else {
+            QifTransferReducer.convertIntoRegularTransaction(transaction);
+          }
+        } else {
+          add(outgoingByTarget, target, key, new PendingTransfer(transaction, pending));
+          pending.unresolved++;
+        }
+      }
+    } else if (!isTopLevel || transaction.amount.signum() == 0 || transaction.date == null) {
+      //incoming transfers are only paired at top level
+      QifTransferReducer.convertIntoRegularTransaction(transaction);
+    }
+  }
+
+  /**
+   * once the block of an account is complete, transfers that wait for it will not find a
+   * counterpart anymore
+   */
+  public void endAccount(QifAccount account) {
+    completedAccounts.add(account.memo);
+    convertUnpaired(outgoingByTarget.remove(account.memo), incomingBySource.remove(account.memo));
+  }
+
+  /**
+   * converts all transfers that still wait for a counterpart, since the accounts they refer to are
+   * not part of the file
+   */
+  public void finish() {
+    for (Map<QifTransferKey, Deque<PendingTransfer>> outgoing : outgoingByTarget.values()) {
+      convertUnpaired(outgoing, null);
+    }
+    outgoingByTarget.clear();
+    for (Map<QifTransferKey, Deque<PendingTransaction>> incoming : incomingBySource.values()) {
+      convertUnpaired(null, incoming);
+    }
+    incomingBySource.clear();
+  }
+
+  private void convertUnpaired(Map<QifTransferKey, Deque<PendingTransfer>> outgoing,
+                               Map<QifTransferKey, Deque<PendingTransaction>> incoming) {
+    if (outgoing != null) {
+      for (Deque<PendingTransfer> transfers : outgoing.values()) {
+        for (PendingTransfer transfer : transfers) {
+          QifTransferReducer.convertIntoRegularTransaction(transfer.transaction);
+          resolve(transfer.owner);
+        }
+      }
+    }
+    if (incoming != null) {
+      for (Deque<PendingTransaction> transactions : incoming.values()) {
+        for (PendingTransaction transaction : transactions) {
+          QifTransferReducer.convertIntoRegularTransaction(transaction.transaction);
+          resolve(transaction);
+        }
+      }
+    }
+  }
+
+  private void resolve(PendingTransaction pending) {
+    pending.unresolved--;
+    if (pending.unresolved == 0 && !pending.isCounterpart) {
+      sink.onResolved(pending.account, pending.transaction);
+    }
+  }
+
+  private static <T> void add(Map<String, Map<QifTransferKey, Deque<T>>> pending, String account,
+                              QifTransferKey key, T value) {
+    Map<QifTransferKey, Deque<T>> byKey = pending.get(account);
+    if (byKey == null) {
+      byKey = new LinkedHashMap<>();
+      pending.put(account, byKey);
+    }
+    Deque<T> candidates = byKey.get(key);
+    if (candidates == null) {
+      candidates = new ArrayDeque<>();
+      byKey.put(key, candidates);
+    }
+    candidates.add(value);
+  }
+
+  private static <T> T poll(Map<String, Map<QifTransferKey, Deque<T>>> pending, String account,
+                            QifTransferKey key) {
+    Map<QifTransferKey, Deque<T>> byKey = pending.get(account);
+    if (byKey == null) {
+      return null;
+    }
+    Deque<T> candidates = byKey.get(key);
+    if (candidates == null) {
+      return null;
+    }
+    T result = candidates.poll();
+    if (candidates.isEmpty()) {
+      byKey.remove(key);
+    }
+    return result;
+  }
+
+  /**
+   * a top level transaction, which is handed on once none of its transfers waits for a counterpart
+   */
+  private static final class PendingTransaction {
+    private final QifAccount account;
+    private final QifTransaction transaction;
+    private int unresolved;
+    private boolean isCounterpart;
+
+    PendingTransaction(QifAccount account, QifTransaction transaction) {
+      this.account = account;
+      this.transaction = transaction;
+    }
+  }
+
+  /**
+   * an outgoing transfer, which is either the top level transaction or one of its splits
+   */
+  private static final class PendingTransfer {
+    private final QifTransaction transaction;
+    private final PendingTransaction owner;
+
+    PendingTransfer(QifTransaction transaction, PendingTransaction owner) {
+      this.transaction = transaction;
+      this.owner = owner;
+    }
+  }
+}
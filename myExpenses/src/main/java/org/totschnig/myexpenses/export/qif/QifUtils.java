@@ -20,6 +20,7 @@ import java.text.ParseException;
 import java.util.Calendar;
 import java.util.Currency;
 import java.util.Date;
+import java.util.TimeZone;
 import java.util.regex.Pattern;
 
 import timber.log.Timber;
@@ -35,7 +36,15 @@ import static org.totschnig.myexpenses.export.qif.QifDateFormat.YMD;
  */
 public class QifUtils {
 
-    private static final Pattern DATE_DELIMITER_PATTERN = Pattern.compile("/|'|\\.|-");
+    /**
+     * reused for all dates parsed on a thread, instead of creating a calendar for each line
+     */
+    private static final ThreadLocal<Calendar> DATE_CALENDAR = new ThreadLocal<Calendar>() {
+        @Override
+        protected Calendar initialValue() {
+            return Calendar.getInstance();
+        }
+    };
     private static final Pattern MONEY_PREFIX_PATTERN = Pattern.compile("\\D");
     private static final BigDecimal HUNDRED = new BigDecimal(100);
 
@@ -63,42 +72,37 @@ public class QifUtils {
      * @return Returns parsed date and current date if an error occurs
      */
     public static Date parseDate(String sDate, QifDateFormat format) {
-        Calendar cal = Calendar.getInstance();
-        int month = cal.get(Calendar.MONTH) + 1;
-        int day = cal.get(Calendar.DAY_OF_MONTH);
-        int year = cal.get(Calendar.YEAR);
-
-        String[] chunks = DATE_DELIMITER_PATTERN.split(sDate);
-
-        if (format == US) {
-            try {
-                month = Integer.parseInt(chunks[0].trim());
-                day = Integer.parseInt(chunks[1].trim());
-                year = Integer.parseInt(chunks[2].trim());
-            } catch (Exception e) {
-                //eat it
-                Timber.e(e, "Unable to parse US date");
-            }
-        } else if (format == EU) {
-            try {
-                day = Integer.parseInt(chunks[0].trim());
-                month = Integer.parseInt(chunks[1].trim());
-                year = Integer.parseInt(chunks[2].trim());
-            } catch (Exception e) {
-                Timber.e(e, "Unable to parse EU date");
-            }
-        } else if (format == YMD) {
-          try {
-            year = Integer.parseInt(chunks[0].trim());
-            month = Integer.parseInt(chunks[1].trim());
-            day = Integer.parseInt(chunks[2].trim());
-          } catch (Exception e) {
-              Timber.e(e, "Unable to parse YMD date");
-          }
-        }  else {
+        if (format != US && format != EU && format != YMD) {
             Timber.e("Invalid date format specified");
             return new Date();
         }
+        //fields are read in the order of the format, the fields that can not be read are taken from today
+        int[] fields = new int[3];
+        int parsed = parseDateFields(sDate, fields);
+        if (parsed < fields.length) {
+            Timber.e("Unable to parse %s date %s", format.name(), sDate);
+            Calendar today = Calendar.getInstance();
+            int[] defaults = format == US ?
+                new int[]{today.get(Calendar.MONTH) + 1, today.get(Calendar.DAY_OF_MONTH), today.get(Calendar.YEAR)} :
+                format == EU ?
+                    new int[]{today.get(Calendar.DAY_OF_MONTH), today.get(Calendar.MONTH) + 1, today.get(Calendar.YEAR)} :
+                    new int[]{today.get(Calendar.YEAR), today.get(Calendar.MONTH) + 1, today.get(Calendar.DAY_OF_MONTH)};
+            System.arraycopy(defaults, parsed, fields, parsed, fields.length - parsed);
+        }
+        int year, month, day;
+        if (format == US) {
+            month = fields[0];
+            day = fields[1];
+            year = fields[2];
+        } else if (format == EU) {
+            day = fields[0];
+            month = fields[1];
+            year = fields[2];
+        } else {
+            year = fields[0];
+            month = fields[1];
+            day = fields[2];
+        }
 
         if (year < 100) {
             if (year < 29) {
@@ -107,11 +111,47 @@ public class QifUtils {
                 year += 1900;
             }
         }
+        Calendar cal = DATE_CALENDAR.get();
+        if (!cal.getTimeZone().getID().equals(TimeZone.getDefault().getID())) {
+            cal = Calendar.getInstance();
+            DATE_CALENDAR.set(cal);
+        }
+        cal.clear();
         cal.set(year, month - 1, day, 0, 0, 0);
-        cal.set(Calendar.MILLISECOND, 0);
         return cal.getTime();
     }
 
+    /**
+     * splits sDate at the delimiters /, ', . and -, and parses the chunks into fields, until a chunk
+     * can not be parsed
+     *
+     * @return the number of fields that have been parsed
+     */
+    private static int parseDateFields(String sDate, int[] fields) {
+        int start = 0;
+        int length = sDate.length();
+        for (int i = 0; i < fields.length; i++) {
+            if (start > length) {
+                return i;
+            }
+            int end = start;
+            while (end < length && !isDateDelimiter(sDate.charAt(end))) {
+                end++;
+            }
+            try {
+                fields[i] = Integer.parseInt(sDate.substring(start, end).trim());
+            } catch (NumberFormatException e) {
+                return i;
+            }
+            start = end + 1;
+        }
+        return fields.length;
+    }
+
+    private static boolean isDateDelimiter(char c) {
+        return c == '/' || c == '\'' || c == '.' || c == '-';
+    }
+
     public static BigDecimal parseMoney(@NonNull String money) {
         return parseMoney(money, Integer.MAX_VALUE);
     }
@@ -53,6 +53,7 @@ import timber.log.Timber;
  */
 public class CsvImportDataFragment extends Fragment {
   public static final String KEY_DATASET = "DATASET";
+  public static final String KEY_RECORD_COUNT = "RECORD_COUNT";
   public static final String KEY_DISCARDED_ROWS = "DISCARDED_ROWS";
   public static final String KEY_COLUMN_TO_FIELD = "COLUMN_TO_FIELD";
   public static final String KEY_FIELD_TO_COLUMN = "FIELD_TO_COLUMN";
@@ -65,7 +66,11 @@ public class CsvImportDataFragment extends Fragment {
   private LinearLayout mHeaderLine;
   private RecyclerView.Adapter mAdapter;
   private RecyclerView.LayoutManager mLayoutManager;
+  /**
+   * the first records of the file, see {@link org.totschnig.myexpenses.task.CsvParseTask#PREVIEW_SIZE}
+   */
   private ArrayList<CSVRecord> mDataset;
+  private int mRecordCount;
   private SparseBooleanArrayParcelable discardedRows;
 
   private ArrayAdapter<Integer> mFieldAdapter;
@@ -177,7 +182,8 @@ public class CsvImportDataFragment extends Fragment {
     mLayoutManager = new LinearLayoutManager(getActivity());
     mRecyclerView.setLayoutManager(mLayoutManager);
     if (savedInstanceState != null) {
-      setData((ArrayList<CSVRecord>) savedInstanceState.getSerializable(KEY_DATASET));
+      setData((ArrayList<CSVRecord>) savedInstanceState.getSerializable(KEY_DATASET),
+          savedInstanceState.getInt(KEY_RECORD_COUNT));
       discardedRows = savedInstanceState.getParcelable(KEY_DISCARDED_ROWS);
       firstLineIsHeader = savedInstanceState.getBoolean(KEY_FIRST_LINE_IS_HEADER);
     }
@@ -185,9 +191,10 @@ public class CsvImportDataFragment extends Fragment {
     return view;
   }
 
-  public void setData(ArrayList<CSVRecord> data) {
+  public void setData(ArrayList<CSVRecord> data, int recordCount) {
     if (data == null || data.isEmpty()) return;
     mDataset = data;
+    mRecordCount = recordCount;
     int nrOfColumns = mDataset.get(0).size();
     discardedRows = new SparseBooleanArrayParcelable();
 
@@ -379,6 +386,7 @@ public class CsvImportDataFragment extends Fragment {
   public void onSaveInstanceState(Bundle outState) {
     super.onSaveInstanceState(outState);
     outState.putSerializable(KEY_DATASET, mDataset);
+    outState.putInt(KEY_RECORD_COUNT, mRecordCount);
     outState.putParcelable(KEY_DISCARDED_ROWS, discardedRows);
     outState.putBoolean(KEY_FIRST_LINE_IS_HEADER, firstLineIsHeader);
   }
@@ -409,17 +417,19 @@ public class CsvImportDataFragment extends Fragment {
         }
         if (validateMapping(columnToFieldMap)) {
           PrefKey.CSV_IMPORT_HEADER_TO_FIELD_MAP.putString(header2FieldMap.toString());
-          long accountId = ((CsvImportActivity) getActivity()).getAccountId();
-          String currency = ((CsvImportActivity) getActivity()).getCurrency();
-          QifDateFormat format = ((CsvImportActivity) getActivity()).getDateFormat();
-          AccountType type = ((CsvImportActivity) getActivity()).getAccountType();
+          CsvImportActivity activity = (CsvImportActivity) getActivity();
+          long accountId = activity.getAccountId();
+          String currency = activity.getCurrency();
+          QifDateFormat format = activity.getDateFormat();
+          AccountType type = activity.getAccountType();
           TaskExecutionFragment taskExecutionFragment =
               TaskExecutionFragment.newInstanceCSVImport(
-                  mDataset, columnToFieldMap, discardedRows, format, accountId, currency, type);
+                  activity.getUri(), activity.getDelimiter(), activity.getEncoding(),
+                  columnToFieldMap, discardedRows, format, accountId, currency, type);
           ProgressDialogFragment progressDialogFragment = ProgressDialogFragment.newInstance(
               getString(R.string.pref_import_title, "CSV"),
               null, ProgressDialog.STYLE_HORIZONTAL, false);
-          progressDialogFragment.setMax(mDataset.size() - discardedRows.size());
+          progressDialogFragment.setMax(mRecordCount - discardedRows.size());
           getFragmentManager()
               .beginTransaction()
               .add(taskExecutionFragment,
@@ -310,6 +310,15 @@ public class CsvImportParseFragment extends Fragment implements View.OnClickList
     return ((CurrencyEnum) mCurrencySpinner.getSelectedItem()).name();
   }
 
+  public char getDelimiter() {
+    return getResources().getStringArray(R.array.pref_csv_import_delimiter_values)
+        [mDelimiterSpinner.getSelectedItemPosition()].charAt(0);
+  }
+
+  public String getEncoding() {
+    return (String) mEncodingSpinner.getSelectedItem();
+  }
+
   public QifDateFormat getDateFormat() {
     return (QifDateFormat) mDateFormatSpinner.getSelectedItem();
   }
@@ -19,6 +19,7 @@ import android.Manifest;
 import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageManager;
+import android.database.ContentObserver;
 import android.database.Cursor;
 import android.os.Bundle;
 import android.os.Handler;
@@ -49,6 +50,8 @@ import android.widget.ListView;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import com.android.calendar.CalendarContractCompat.Events;
+
 import org.totschnig.myexpenses.MyApplication;
 import org.totschnig.myexpenses.R;
 import org.totschnig.myexpenses.activity.ExpenseEdit;
@@ -287,13 +290,7 @@ public class TemplatesList extends SortableListFragment {
   public Loader<Cursor> onCreateLoader(int id, Bundle bundle) {
     switch (id) {
       case SORTABLE_CURSOR:
-        return new CursorLoader(getActivity(),
-            TransactionProvider.TEMPLATES_URI.buildUpon()
-                .appendQueryParameter(TransactionProvider.QUERY_PARAMETER_WITH_PLAN_INFO, "1").build(),
-            null,
-            null,
-            null,
-            null);
+        return new TemplatesLoader(getActivity());
     }
     return null;
   }
@@ -576,4 +573,59 @@ public class TemplatesList extends SortableListFragment {
   public void refresh() {
     Utils.requireLoader(mManager, SORTABLE_CURSOR, null, this);
   }
+
+  /**
+   * refreshes the plan info cache before the templates are queried, and recomputes it when plans
+   * are changed in the calendar
+   */
+  private static class TemplatesLoader extends CursorLoader {
+    private final ContentObserver calendarObserver = new ContentObserver(new Handler()) {
+      @Override
+      public boolean deliverSelfNotifications() {
+        return true;
+      }
+
+      @Override
+      public void onChange(boolean selfChange) {
+        calendarChanged = true;
+        onContentChanged();
+      }
+    };
+    private volatile boolean calendarChanged = false;
+    private boolean observing = false;
+
+    TemplatesLoader(Context context) {
+      super(context, TransactionProvider.TEMPLATES_URI.buildUpon()
+              .appendQueryParameter(TransactionProvider.QUERY_PARAMETER_WITH_PLAN_INFO, "1").build(),
+          null, null, null, null);
+    }
+
+    @Override
+    public Cursor loadInBackground() {
+      boolean invalidate = calendarChanged;
+      calendarChanged = false;
+      DbUtils.refreshPlanInfo(invalidate);
+      return super.loadInBackground();
+    }
+
+    @Override
+    protected void onStartLoading() {
+      if (!observing && ContextCompat.checkSelfPermission(getContext(),
+          Manifest.permission.WRITE_CALENDAR) == PackageManager.PERMISSION_GRANTED) {
+        getContext().getContentResolver().registerContentObserver(Events.CONTENT_URI, true,
+            calendarObserver);
+        observing = true;
+      }
+      super.onStartLoading();
+    }
+
+    @Override
+    protected void onReset() {
+      super.onReset();
+      if (observing) {
+        getContext().getContentResolver().unregisterContentObserver(calendarObserver);
+        observing = false;
+      }
+    }
+  }
 }
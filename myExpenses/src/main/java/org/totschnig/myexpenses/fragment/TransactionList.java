@@ -24,9 +24,11 @@ import android.content.Intent;
 import android.content.SharedPreferences;
 import android.database.ContentObserver;
 import android.database.Cursor;
+import android.database.MergeCursor;
 import android.graphics.Color;
 import android.graphics.PorterDuff;
 import android.graphics.drawable.Drawable;
+import android.net.Uri;
 import android.net.Uri.Builder;
 import android.os.Build;
 import android.os.Bundle;
@@ -36,6 +38,7 @@ import android.support.v4.app.Fragment;
 import android.support.v4.app.FragmentManager;
 import android.support.v4.app.FragmentTransaction;
 import android.support.v4.app.LoaderManager;
+import android.support.v4.content.AsyncTaskLoader;
 import android.support.v4.content.CursorLoader;
 import android.support.v4.content.Loader;
 import android.text.TextUtils;
@@ -102,6 +105,8 @@ import org.totschnig.myexpenses.util.CurrencyFormatter;
 import org.totschnig.myexpenses.util.Result;
 import org.totschnig.myexpenses.util.Utils;
 
+import java.util.Arrays;
+
 import javax.inject.Inject;
 
 import se.emilsjolander.stickylistheaders.ExpandableStickyListHeadersListView;
@@ -161,6 +166,14 @@ public class TransactionList extends ContextualActionBarFragment implements
   private static final int TRANSACTION_CURSOR = 0;
   private static final int SUM_CURSOR = 1;
   private static final int GROUPING_CURSOR = 2;
+  /**
+   * number of transactions fetched per page
+   */
+  private static final int PAGE_SIZE = 100;
+  /**
+   * the next page is requested when the last visible row comes this close to the end of what has been loaded
+   */
+  private static final int PREFETCH_DISTANCE = 30;
 
   public static final String KEY_FILTER = "filter";
   public static final String CATEGORY_SEPARATOR = " : ",
@@ -295,6 +308,21 @@ public class TransactionList extends ContextualActionBarFragment implements
     setAdapter();
     mListView.setOnHeaderClickListener(this);
     mListView.setDrawingListUnderStickyHeader(false);
+    mListView.setOnScrollListener(new AbsListView.OnScrollListener() {
+      @Override
+      public void onScrollStateChanged(AbsListView view, int scrollState) {
+      }
+
+      @Override
+      public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+        if (totalItemCount > 0 && firstVisibleItem + visibleItemCount >= totalItemCount - PREFETCH_DISTANCE) {
+          Loader<Cursor> loader = mManager.getLoader(TRANSACTION_CURSOR);
+          if (loader instanceof TransactionPagingLoader) {
+            ((TransactionPagingLoader) loader).loadNextPage();
+          }
+        }
+      }
+    });
     if (scheduledRestart) {
       mManager.restartLoader(TRANSACTION_CURSOR, null, this);
       mManager.restartLoader(GROUPING_CURSOR, null, this);
@@ -463,12 +491,11 @@ public class TransactionList extends ContextualActionBarFragment implements
             selectionArgs = Utils.joinArrays(selectionArgs, mFilter.getSelectionArgs(false));
           }
         }
-        cursorLoader = new CursorLoader(getActivity(),
+        return new TransactionPagingLoader(getActivity(),
             mAccount.getExtendedUriForTransactionList(),
             mAccount.getExtendedProjectionForTransactionList(),
             selection + " AND " + KEY_PARENTID + " is null",
-            selectionArgs, null);
-        break;
+            selectionArgs, PAGE_SIZE);
       //TODO: probably we can get rid of SUM_CURSOR, if we also aggregate unmapped transactions
       case SUM_CURSOR:
         cursorLoader = new CursorLoader(getActivity(),
@@ -1108,4 +1135,175 @@ public class TransactionList extends ContextualActionBarFragment implements
       }
     }
   }
+
+  /**
+   * Loads the transaction list page by page, newest first. Each page is fetched with a keyset
+   * condition on (date, _id) of the last row already loaded, so that its cost does not depend on
+   * how far the user has scrolled. The pages loaded so far are delivered as one {@link MergeCursor},
+   * header ids and group sums continue to be taken from the grouping cursor. When the data changes,
+   * as many rows as had been loaded are reloaded from the top.
+   */
+  private static class TransactionPagingLoader extends AsyncTaskLoader<Cursor> {
+    private final ForceLoadContentObserver observer = new ForceLoadContentObserver();
+    private final Uri uri;
+    private final String[] projection;
+    private final String selection;
+    private final String[] selectionArgs;
+    private final int pageSize;
+    private volatile PagedCursor delivered;
+    private volatile boolean nextPageRequested = false;
+
+    TransactionPagingLoader(Context context, Uri uri, String[] projection, String selection,
+                            String[] selectionArgs, int pageSize) {
+      super(context);
+      this.uri = uri;
+      this.projection = projection;
+      this.selection = selection;
+      this.selectionArgs = selectionArgs;
+      this.pageSize = pageSize;
+    }
+
+    /**
+     * requests the page following the rows delivered so far, if there is one
+     */
+    void loadNextPage() {
+      PagedCursor current = delivered;
+      if (current != null && current.hasMore && !nextPageRequested) {
+        nextPageRequested = true;
+        forceLoad();
+      }
+    }
+
+    @Override
+    public Cursor loadInBackground() {
+      PagedCursor current = delivered;
+      boolean nextPage = nextPageRequested && current != null;
+      nextPageRequested = false;
+      if (nextPage) {
+        Cursor page = queryPage(pageSize, selection + " AND (" + KEY_DATE + " < ? OR (" + KEY_DATE +
+            " = ? AND " + KEY_ROWID + " < ?))", Utils.joinArrays(selectionArgs, new String[]{
+            String.valueOf(current.lastDate), String.valueOf(current.lastDate), String.valueOf(current.lastId)}));
+        if (page == null) {
+          return null;
+        }
+        Cursor[] pages = Arrays.copyOf(current.pages, current.pages.length + 1);
+        pages[pages.length - 1] = page;
+        return new PagedCursor(pages, current, pageSize);
+      }
+      int limit = current == null ? pageSize : Math.max(pageSize, current.getCount());
+      Cursor page = queryPage(limit, selection, selectionArgs);
+      if (page == null) {
+        return null;
+      }
+      page.registerContentObserver(observer);
+      return new PagedCursor(new Cursor[]{page}, null, limit);
+    }
+
+    private Cursor queryPage(int limit, String selection, String[] selectionArgs) {
+      Cursor cursor = getContext().getContentResolver().query(
+          uri.buildUpon().appendQueryParameter(TransactionProvider.QUERY_PARAMETER_LIMIT,
+              String.valueOf(limit)).build(),
+          projection, selection, selectionArgs, KEY_DATE + " DESC, " + KEY_ROWID + " DESC");
+      if (cursor != null) {
+        //fill the window in the background, as CursorLoader does
+        cursor.getCount();
+      }
+      return cursor;
+    }
+
+    @Override
+    public void deliverResult(Cursor cursor) {
+      PagedCursor result = (PagedCursor) cursor;
+      if (isReset()) {
+        if (result != null) {
+          result.closeExcept(null);
+        }
+        return;
+      }
+      PagedCursor old = delivered;
+      delivered = result;
+      if (isStarted()) {
+        super.deliverResult(cursor);
+      }
+      if (old != null && old != result) {
+        old.closeExcept(result);
+      }
+    }
+
+    @Override
+    protected void onStartLoading() {
+      if (delivered != null) {
+        deliverResult(delivered);
+      }
+      if (takeContentChanged() || delivered == null) {
+        forceLoad();
+      }
+    }
+
+    @Override
+    protected void onStopLoading() {
+      cancelLoad();
+    }
+
+    @Override
+    public void onCanceled(Cursor cursor) {
+      if (cursor != null) {
+        ((PagedCursor) cursor).closeExcept(delivered);
+      }
+    }
+
+    @Override
+    protected void onReset() {
+      super.onReset();
+      onStopLoading();
+      if (delivered != null) {
+        delivered.closeExcept(null);
+        delivered = null;
+      }
+    }
+  }
+
+  /**
+   * the pages loaded by {@link TransactionPagingLoader}, together with the key of the last row,
+   * which is read when the page is loaded, since the pages must not be moved from the
+   * background thread once they have been delivered
+   */
+  private static class PagedCursor extends MergeCursor {
+    private final Cursor[] pages;
+    private final boolean hasMore;
+    private final long lastDate, lastId;
+
+    /**
+     * @param previous the result the last page is appended to, or null
+     * @param limit    the limit the last page has been queried with
+     */
+    PagedCursor(Cursor[] pages, PagedCursor previous, int limit) {
+      super(pages);
+      this.pages = pages;
+      Cursor last = pages[pages.length - 1];
+      hasMore = last.getCount() == limit;
+      if (last.moveToLast()) {
+        lastDate = last.getLong(last.getColumnIndex(KEY_DATE));
+        lastId = last.getLong(last.getColumnIndex(KEY_ROWID));
+      } else if (previous != null) {
+        lastDate = previous.lastDate;
+        lastId = previous.lastId;
+      } else {
+        lastDate = 0;
+        lastId = 0;
+      }
+      moveToPosition(-1);
+    }
+
+    /**
+     * closes the pages that are not part of keep
+     */
+    void closeExcept(PagedCursor keep) {
+      for (Cursor page : pages) {
+        if (keep == null || !Arrays.asList(keep.pages).contains(page)) {
+          page.close();
+        }
+      }
+    }
+  }
 }
@@ -52,6 +52,13 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import static org.totschnig.myexpenses.provider.DatabaseConstants.BALANCE_CLEARED;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.BALANCE_CURRENT;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.BALANCE_EXPENSES;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.BALANCE_INCOME;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.BALANCE_RECONCILED;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.BALANCE_TOTAL;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.BALANCE_TRANSFERS;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.HAS_CLEARED;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.HAS_EXPORTED;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.HAS_FUTURE;
@@ -85,16 +92,11 @@ import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_TRANSFER_P
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_TYPE;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_USAGES;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_UUID;
-import static org.totschnig.myexpenses.provider.DatabaseConstants.SELECT_AMOUNT_SUM;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.STATUS_EXPORTED;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.STATUS_HELPER;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_ACCOUNTS;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_TRANSACTIONS;
-import static org.totschnig.myexpenses.provider.DatabaseConstants.WHERE_EXPENSE;
-import static org.totschnig.myexpenses.provider.DatabaseConstants.WHERE_INCOME;
-import static org.totschnig.myexpenses.provider.DatabaseConstants.WHERE_IN_PAST;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.WHERE_NOT_SPLIT_PART;
-import static org.totschnig.myexpenses.provider.DatabaseConstants.WHERE_TRANSFER;
 
 /**
  * Account represents an account stored in the database.
@@ -132,8 +134,11 @@ public class Account extends Model {
 
 
   public static final String[] PROJECTION_BASE, PROJECTION_EXTENDED, PROJECTION_FULL;
-  public static final String CURRENT_BALANCE_EXPR = KEY_OPENING_BALANCE + " + (" + SELECT_AMOUNT_SUM + " AND " + WHERE_NOT_SPLIT_PART
-      + " AND " + WHERE_IN_PAST + " )";
+  /**
+   * the balance aggregates are read from {@link DatabaseConstants#TABLE_ACCOUNT_BALANCES}, which
+   * is kept up to date by triggers, only transactions dated in the future need to be looked up
+   */
+  public static final String CURRENT_BALANCE_EXPR = KEY_OPENING_BALANCE + " + " + BALANCE_CURRENT;
 
   static {
     PROJECTION_BASE = new String[]{
@@ -157,23 +162,12 @@ public class Account extends Model {
     PROJECTION_EXTENDED[baseLength] = CURRENT_BALANCE_EXPR + " AS " + KEY_CURRENT_BALANCE;
     PROJECTION_FULL = new String[baseLength + 13];
     System.arraycopy(PROJECTION_EXTENDED, 0, PROJECTION_FULL, 0, baseLength + 1);
-    PROJECTION_FULL[baseLength + 1] = "(" + SELECT_AMOUNT_SUM +
-        " AND " + WHERE_INCOME + ") AS " + KEY_SUM_INCOME;
-    PROJECTION_FULL[baseLength + 2] = "(" + SELECT_AMOUNT_SUM +
-        " AND " + WHERE_EXPENSE + ") AS " + KEY_SUM_EXPENSES;
-    PROJECTION_FULL[baseLength + 3] = "(" + SELECT_AMOUNT_SUM +
-        " AND " + WHERE_TRANSFER + ") AS " + KEY_SUM_TRANSFERS;
-    PROJECTION_FULL[baseLength + 4] =
-        KEY_OPENING_BALANCE + " + (" + SELECT_AMOUNT_SUM + " AND " + WHERE_NOT_SPLIT_PART +
-            " ) AS " + KEY_TOTAL;
-    PROJECTION_FULL[baseLength + 5] =
-        KEY_OPENING_BALANCE + " + (" + SELECT_AMOUNT_SUM + " AND " + WHERE_NOT_SPLIT_PART +
-            " AND " + KEY_CR_STATUS + " IN " +
-            "('" + CrStatus.RECONCILED.name() + "','" + CrStatus.CLEARED.name() + "')" +
-            " ) AS " + KEY_CLEARED_TOTAL;
-    PROJECTION_FULL[baseLength + 6] =
-        KEY_OPENING_BALANCE + " + (" + SELECT_AMOUNT_SUM + " AND " + WHERE_NOT_SPLIT_PART +
-            " AND " + KEY_CR_STATUS + " = '" + CrStatus.RECONCILED.name() + "'  ) AS " + KEY_RECONCILED_TOTAL;
+    PROJECTION_FULL[baseLength + 1] = BALANCE_INCOME + " AS " + KEY_SUM_INCOME;
+    PROJECTION_FULL[baseLength + 2] = BALANCE_EXPENSES + " AS " + KEY_SUM_EXPENSES;
+    PROJECTION_FULL[baseLength + 3] = BALANCE_TRANSFERS + " AS " + KEY_SUM_TRANSFERS;
+    PROJECTION_FULL[baseLength + 4] = KEY_OPENING_BALANCE + " + " + BALANCE_TOTAL + " AS " + KEY_TOTAL;
+    PROJECTION_FULL[baseLength + 5] = KEY_OPENING_BALANCE + " + " + BALANCE_CLEARED + " AS " + KEY_CLEARED_TOTAL;
+    PROJECTION_FULL[baseLength + 6] = KEY_OPENING_BALANCE + " + " + BALANCE_RECONCILED + " AS " + KEY_RECONCILED_TOTAL;
     PROJECTION_FULL[baseLength + 7] = KEY_USAGES;
     PROJECTION_FULL[baseLength + 8] = "0 AS " + KEY_IS_AGGREGATE;//this is needed in the union with the aggregates to sort real accounts first
     PROJECTION_FULL[baseLength + 9] = HAS_FUTURE;
@@ -103,6 +103,17 @@ public class Category extends Model {
         new String[]{String.valueOf(id),String.valueOf(id)}
         ) > 0;
   }
+
+  /**
+   * deletes the categories together with their subcategories
+   *
+   * @return number of deleted categories
+   */
+  public static int delete(long[] ids) {
+    return cr().delete(CONTENT_URI,
+        buildIdSelection(KEY_PARENTID, ids) + " OR " + buildIdSelection(KEY_ROWID, ids),
+        null);
+  }
   @Override
   public Uri save() {
     ContentValues initialValues = new ContentValues();
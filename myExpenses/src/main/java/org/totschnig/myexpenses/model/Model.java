@@ -19,6 +19,7 @@ import android.content.ContentResolver;
 import android.net.Uri;
 import android.support.annotation.VisibleForTesting;
 
+import org.apache.commons.lang3.StringUtils;
 import org.totschnig.myexpenses.MyApplication;
 
 import java.io.Serializable;
@@ -50,6 +51,13 @@ public abstract class Model implements Serializable {
     return UUID.randomUUID().toString();
   }
 
+  /**
+   * the ids are inlined instead of bound, since bulk operations may exceed the limit of bound arguments
+   */
+  static String buildIdSelection(String column, long[] ids) {
+    return column + " IN (" + StringUtils.join(ids, ',') + ")";
+  }
+
   String requireUuid() {
     if (android.text.TextUtils.isEmpty(uuid)) {
       uuid = generateUuid();
@@ -22,7 +22,6 @@ import org.totschnig.myexpenses.MyApplication;
 
 import java.io.Serializable;
 import java.math.BigDecimal;
-import java.math.RoundingMode;
 import java.util.Currency;
 
 public class Money implements Serializable {
@@ -35,6 +34,21 @@ public class Money implements Serializable {
    * used with currencies where Currency.getDefaultFractionDigits returns -1
    */
   public static final int DEFAULTFRACTIONDIGITS = 8;
+  /**
+   * indexed by fraction digits, covers all powers of ten that fit into a long
+   */
+  private static final BigDecimal[] POWERS_OF_TEN = new BigDecimal[19];
+
+  static {
+    for (int i = 0; i < POWERS_OF_TEN.length; i++) {
+      POWERS_OF_TEN[i] = BigDecimal.ONE.scaleByPowerOfTen(i).setScale(0);
+    }
+  }
+
+  public static BigDecimal powerOfTen(int fractionDigits) {
+    return fractionDigits < POWERS_OF_TEN.length ? POWERS_OF_TEN[fractionDigits] :
+        BigDecimal.TEN.pow(fractionDigits);
+  }
 
   public Money(Currency currency, Long amountMinor) {
     this.currency = currency;
@@ -65,14 +79,12 @@ public class Money implements Serializable {
   }
 
   public void setAmountMajor(BigDecimal amountMajor) {
-    this.amountMinor = amountMajor.multiply(new BigDecimal(Math.pow(10, fractionDigits))).longValue();
+    this.amountMinor = amountMajor.multiply(powerOfTen(fractionDigits)).longValue();
   }
 
   public BigDecimal getAmountMajor() {
-    return new BigDecimal(amountMinor).divide(
-        new BigDecimal(Math.pow(10, fractionDigits)),
-        fractionDigits,
-        RoundingMode.DOWN);
+    //the same as dividing by 10^fractionDigits with scale fractionDigits
+    return BigDecimal.valueOf(amountMinor, fractionDigits);
   }
 
   @Override
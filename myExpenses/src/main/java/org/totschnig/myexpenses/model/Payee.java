@@ -27,6 +27,7 @@ import java.util.Map;
 
 import timber.log.Timber;
 
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_LAST_TRANSACTION;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_MAPPED_TEMPLATES;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_MAPPED_TRANSACTIONS;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_PAYEEID;
@@ -34,8 +35,11 @@ import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_PAYEE_NAME
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_PAYEE_NAME_NORMALIZED;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ROWID;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_PAYEES;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_PAYEES_FTS;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_TEMPLATES;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_TRANSACTIONS;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.VIEW_COMMITTED;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.WHERE_NOT_SPLIT;
 
 public class Payee extends Model {
   public String name;
@@ -50,6 +54,23 @@ public class Payee extends Model {
     "(select count(*) from " + TABLE_TEMPLATES    + " WHERE " + KEY_PAYEEID + "=" + TABLE_PAYEES + "." + KEY_ROWID + ") AS " + KEY_MAPPED_TEMPLATES
   };
   public static final Uri CONTENT_URI = TransactionProvider.PAYEES_URI;
+  /**
+   * selects payees through the full text index, the argument is built with
+   * {@link org.totschnig.myexpenses.provider.DbUtils#ftsPrefixQuery(String)} from the normalized
+   * search string
+   */
+  public static final String SELECTION_NAME_MATCHES = KEY_ROWID + " IN (SELECT docid FROM "
+      + TABLE_PAYEES_FTS + " WHERE " + TABLE_PAYEES_FTS + " MATCH ?)";
+  /**
+   * payees as offered for autocompletion, together with the most recent transaction with this party,
+   * that is not a split transaction, or null if there is none, which is used for auto fill
+   */
+  public static final String[] PROJECTION_AUTO_COMPLETE = new String[] {
+    KEY_ROWID,
+    KEY_PAYEE_NAME,
+    "(select max(" + KEY_ROWID + ") from " + VIEW_COMMITTED + " WHERE " + WHERE_NOT_SPLIT + " AND " +
+        KEY_PAYEEID + "=" + TABLE_PAYEES + "." + KEY_ROWID + ") AS " + KEY_LAST_TRANSACTION
+  };
 
 
   /**
@@ -106,6 +127,13 @@ public class Payee extends Model {
         null, null);
   }
 
+  /**
+   * @return number of deleted payees
+   */
+  public static int delete(long[] ids) {
+    return cr().delete(CONTENT_URI, buildIdSelection(KEY_ROWID, ids), null);
+  }
+
   public static long extractPayeeId(String payeeName, Map<String, Long> payeeToId) {
     Long id = payeeToId.get(payeeName);
     if (id == null) {
@@ -15,11 +15,14 @@
 
 package org.totschnig.myexpenses.model;
 
+import android.content.ContentProviderOperation;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.content.OperationApplicationException;
 import android.database.DatabaseUtils;
 import android.net.Uri;
+import android.os.RemoteException;
 import android.support.annotation.VisibleForTesting;
 
 import org.totschnig.myexpenses.MyApplication;
@@ -240,6 +243,18 @@ public class PaymentMethod extends Model {
         null, null);
   }
 
+  /**
+   * @return number of deleted methods
+   */
+  public static int delete(long[] ids) throws RemoteException, OperationApplicationException {
+    ArrayList<ContentProviderOperation> ops = new ArrayList<>();
+    ops.add(ContentProviderOperation.newDelete(TransactionProvider.ACCOUNTTYPES_METHODS_URI)
+        .withSelection(buildIdSelection(KEY_METHODID, ids), null).build());
+    ops.add(ContentProviderOperation.newDelete(CONTENT_URI)
+        .withSelection(buildIdSelection(KEY_ROWID, ids), null).build());
+    return cr().applyBatch(TransactionProvider.AUTHORITY, ops)[1].count;
+  }
+
   public static int count(String selection,String[] selectionArgs) {
     Cursor mCursor = cr().query(TransactionProvider.ACCOUNTTYPES_METHODS_URI,new String[] {"count(*)"},
         selection, selectionArgs, null);
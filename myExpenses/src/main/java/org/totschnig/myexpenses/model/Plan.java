@@ -19,6 +19,8 @@ import com.android.calendarcommon2.EventRecurrence;
 import org.totschnig.myexpenses.MyApplication;
 import org.totschnig.myexpenses.R;
 import org.totschnig.myexpenses.preference.PrefKey;
+import org.totschnig.myexpenses.provider.DatabaseConstants;
+import org.totschnig.myexpenses.provider.TransactionProvider;
 import org.totschnig.myexpenses.util.AcraHelper;
 import org.totschnig.myexpenses.util.Utils;
 
@@ -173,10 +175,39 @@ public class Plan extends Model implements Serializable {
     } else {
       uri = ContentUris.withAppendedId(Events.CONTENT_URI, getId());
       cr().update(uri, values, null, null);
+      invalidateCachedInfo(getId());
     }
     return uri;
   }
 
+  /**
+   * next instance and description of the plan are recomputed when templates are queried next time
+   */
+  private static void invalidateCachedInfo(long id) {
+    cr().delete(TransactionProvider.PLAN_INFO_CACHE_URI, DatabaseConstants.KEY_PLANID + " = ?",
+        new String[]{String.valueOf(id)});
+  }
+
+
+  /**
+   * deletes the events of the plans with one call to the calendar provider, events that are not
+   * in our calendar are left alone
+   */
+  public static void delete(long[] ids) {
+    if (ids.length == 0) {
+      return;
+    }
+    String calendarId = PrefKey.PLANNER_CALENDAR_ID.getString("-1");
+    int count = cr().delete(Events.CONTENT_URI,
+        buildIdSelection(Events._ID, ids) + " AND " + Events.CALENDAR_ID + " = ?",
+        new String[]{calendarId});
+    if (count < ids.length) {
+      Timber.w("Deleted %d of %d events, the others do not exist in calendar %s",
+          count, ids.length, calendarId);
+    }
+    cr().delete(TransactionProvider.PLAN_INFO_CACHE_URI,
+        buildIdSelection(DatabaseConstants.KEY_PLANID, ids), null);
+  }
 
   public static void delete(Long id) {
     String calendarId = PrefKey.PLANNER_CALENDAR_ID.getString("-1");
@@ -192,6 +223,7 @@ public class Plan extends Model implements Serializable {
           eventUri,
           null,
           null);
+      invalidateCachedInfo(id);
     } else {
       Timber.w("Attempt to delete event %d, which does not exist in calendar %s, has been blocked",
               id, calendarId);
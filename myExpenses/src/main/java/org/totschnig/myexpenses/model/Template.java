@@ -15,12 +15,15 @@
 
 package org.totschnig.myexpenses.model;
 
+import android.content.ContentProviderOperation;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteConstraintException;
 import android.net.Uri;
+import android.os.RemoteException;
 
 import org.totschnig.myexpenses.R;
 import org.totschnig.myexpenses.activity.MyExpenses;
@@ -30,6 +33,7 @@ import org.totschnig.myexpenses.provider.TransactionProvider;
 import org.totschnig.myexpenses.util.CurrencyFormatter;
 import org.totschnig.myexpenses.util.Utils;
 
+import java.util.ArrayList;
 import java.util.Currency;
 import java.util.Date;
 
@@ -309,6 +313,34 @@ public class Template extends Transaction {
     updateNewPlanEnabled();
   }
 
+  /**
+   * deletes the plans of the templates from the calendar in one call, then the templates together
+   * with their plan instance states in one database transaction
+   *
+   * @return number of deleted templates
+   */
+  public static int delete(long[] ids) throws RemoteException, OperationApplicationException {
+    String selection = buildIdSelection(KEY_ROWID, ids);
+    Cursor c = cr().query(CONTENT_URI, new String[]{KEY_PLANID},
+        selection + " AND " + KEY_PLANID + " IS NOT null", null, null);
+    if (c != null) {
+      long[] planIds = new long[c.getCount()];
+      for (int i = 0; c.moveToNext(); i++) {
+        planIds[i] = c.getLong(0);
+      }
+      c.close();
+      Plan.delete(planIds);
+    }
+    ArrayList<ContentProviderOperation> ops = new ArrayList<>();
+    ops.add(ContentProviderOperation.newDelete(TransactionProvider.PLAN_INSTANCE_STATUS_URI)
+        .withSelection(buildIdSelection(KEY_TEMPLATEID, ids), null).build());
+    ops.add(ContentProviderOperation.newDelete(CONTENT_URI)
+        .withSelection(selection, null).build());
+    int count = cr().applyBatch(TransactionProvider.AUTHORITY, ops)[1].count;
+    updateNewPlanEnabled();
+    return count;
+  }
+
   public static int countPerMethod(long methodId) {
     return countPerMethod(CONTENT_URI, methodId);
   }
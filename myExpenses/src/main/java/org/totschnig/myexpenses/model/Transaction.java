@@ -50,7 +50,6 @@ import java.util.TimeZone;
 import hirondelle.date4j.DateTime;
 import timber.log.Timber;
 
-import static org.totschnig.myexpenses.provider.DatabaseConstants.DAY;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.FULL_LABEL;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.IS_SAME_CURRENCY;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ACCOUNTID;
@@ -97,15 +96,8 @@ import static org.totschnig.myexpenses.provider.DatabaseConstants.THIS_DAY;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.THIS_YEAR;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.TRANSFER_AMOUNT;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.TRANSFER_PEER_PARENT;
-import static org.totschnig.myexpenses.provider.DatabaseConstants.YEAR;
-import static org.totschnig.myexpenses.provider.DatabaseConstants.getMonth;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.getThisWeek;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.getThisYearOfWeekStart;
-import static org.totschnig.myexpenses.provider.DatabaseConstants.getWeek;
-import static org.totschnig.myexpenses.provider.DatabaseConstants.getWeekEnd;
-import static org.totschnig.myexpenses.provider.DatabaseConstants.getWeekStart;
-import static org.totschnig.myexpenses.provider.DatabaseConstants.getYearOfMonthStart;
-import static org.totschnig.myexpenses.provider.DatabaseConstants.getYearOfWeekStart;
 import static org.totschnig.myexpenses.provider.DbUtils.getLongOrNull;
 
 /**
@@ -166,18 +158,19 @@ public class Transaction extends Model {
         KEY_CR_STATUS,
         KEY_REFERENCE_NUMBER,
         KEY_PICTURE_URI,
-        getYearOfWeekStart() + " AS " + KEY_YEAR_OF_WEEK_START,
-        getYearOfMonthStart() + " AS " + KEY_YEAR_OF_MONTH_START,
-        YEAR + " AS " + KEY_YEAR,
-        getMonth() + " AS " + KEY_MONTH,
-        getWeek() + " AS " + KEY_WEEK,
-        DAY + " AS " + KEY_DAY,
+        //date buckets are stored on the transactions table and maintained by triggers
+        KEY_YEAR_OF_WEEK_START,
+        KEY_YEAR_OF_MONTH_START,
+        KEY_YEAR,
+        KEY_MONTH,
+        KEY_WEEK,
+        KEY_DAY,
         getThisYearOfWeekStart() + " AS " + KEY_THIS_YEAR_OF_WEEK_START,
         THIS_YEAR + " AS " + KEY_THIS_YEAR,
         getThisWeek() + " AS " + KEY_THIS_WEEK,
         THIS_DAY + " AS " + KEY_THIS_DAY,
-        getWeekStart() + " AS " + KEY_WEEK_START,
-        getWeekEnd() + " AS " + KEY_WEEK_END
+        KEY_WEEK_START,
+        KEY_WEEK_END
     };
 
     //extended
@@ -403,6 +396,29 @@ public class Transaction extends Model {
     cr().update(uri, null, null, null);
   }
 
+  /**
+   * deletes or voids the transactions together with their split parts and transfer peers in one
+   * database transaction
+   *
+   * @return number of affected rows
+   */
+  public static int delete(long[] ids, boolean markAsVoid) {
+    Uri.Builder builder = TransactionProvider.TRANSACTIONS_BULK_URI.buildUpon();
+    if (markAsVoid) {
+      builder.appendQueryParameter(TransactionProvider.QUERY_PARAMETER_MARK_VOID, "1");
+    }
+    return cr().delete(builder.build(), buildIdSelection(KEY_ROWID, ids), null);
+  }
+
+  /**
+   * @return number of affected rows
+   */
+  public static int undelete(long[] ids) {
+    Uri uri = TransactionProvider.TRANSACTIONS_BULK_URI.buildUpon()
+        .appendPath(TransactionProvider.URI_SEGMENT_UNDELETE).build();
+    return cr().update(uri, null, buildIdSelection(KEY_ROWID, ids), null);
+  }
+
   protected Transaction() {
     setDate(new Date());
     this.crStatus = CrStatus.UNRECONCILED;
@@ -674,6 +690,18 @@ public class Transaction extends Model {
         null, null, null);
   }
 
+  /**
+   * transfers to the target account are not moved
+   *
+   * @return number of moved transactions
+   */
+  public static int move(long[] ids, long whereAccountId) {
+    Uri uri = TransactionProvider.TRANSACTIONS_BULK_URI.buildUpon()
+        .appendPath(TransactionProvider.URI_SEGMENT_MOVE)
+        .appendPath(String.valueOf(whereAccountId)).build();
+    return cr().update(uri, null, buildIdSelection(KEY_ROWID, ids), null);
+  }
+
   public static int count(Uri uri, String selection, String[] selectionArgs) {
     Cursor cursor = cr().query(uri, new String[]{"count(*)"},
         selection, selectionArgs, null);
@@ -77,12 +77,14 @@ public enum PrefKey {
   NEW_PLAN_ENABLED("new_plan_enabled"),
   NEW_ACCOUNT_ENABLED("new_account_enabled"),
   SYNC_FREQUCENCY(R.string.pref_sync_frequency_key),
+  SYNC_COMPACT_CHANGE_SETS(R.string.pref_sync_compact_change_sets_key),
   SYNC_UPSELL_NOTIFICATION_SHOWN("sync_upsell_notification_shown"),
   MANAGE_SYNC_BACKENDS(R.string.pref_manage_sync_backends_key),
   TRACKING(R.string.pref_tracking_key),
   WEBDAV_TIMEOUT(R.string.pref_webdav_timeout_key),
   DEBUG_SCREEN(R.string.pref_debug_key),
-  DEBUG_LOGGING(R.string.pref_debug_logging_key);
+  DEBUG_LOGGING(R.string.pref_debug_logging_key),
+  DB_WRITE_AHEAD_LOGGING(R.string.pref_db_write_ahead_logging_key);
 
   private int resId = 0;
   private String key = null;
@@ -7,10 +7,8 @@ import android.database.Cursor;
 import android.database.MatrixCursor;
 import android.net.Uri;
 import android.support.annotation.NonNull;
-import android.text.TextUtils;
 
 import com.android.calendar.CalendarContractCompat;
-import com.android.calendarcommon2.EventRecurrence;
 
 import org.totschnig.myexpenses.BuildConfig;
 import org.totschnig.myexpenses.util.DistribHelper;
@@ -85,51 +83,19 @@ public class CalendarProviderProxy extends ContentProvider {
             CalendarContractCompat.Events.RRULE};
         Cursor eventcursor = getContext().getContentResolver().query(CalendarContractCompat.Events.CONTENT_URI,
             eventProjection, eventSelection, selectionArgs, sortOrder);
-        DateTime end = DateTime.forInstant(endMilliseconds, TimeZone.getDefault());
+        TimeZone timeZone = TimeZone.getDefault();
         if (eventcursor != null) {
-          if (eventcursor.moveToFirst()) {
-            while (!eventcursor.isAfterLast()) {
-              String eventId = eventcursor.getString(0);
-              long dtstart = eventcursor.getLong(1);
-              if (dtstart <= endMilliseconds) {
-                EventRecurrence recurrence = null;
-                String rrule = eventcursor.getString(2);
-                if (!TextUtils.isEmpty(rrule)) {
-                  recurrence = new EventRecurrence();
-                  recurrence.parse(rrule);
-                }
-                for (DateTime dayToCheck = DateTime.forInstant(Math.max(startMilliseconds, dtstart),
-                    TimeZone.getDefault());
-                     dayToCheck.lteq(end); ) {
-                  if (isInstanceOfPlan(dayToCheck, dtstart, recurrence)) {
-                    result.addRow(new String[]{
-                        eventId,
-                        String.valueOf(dayToCheck.getYear() * 1000 + dayToCheck.getDayOfYear()),
-                        String.valueOf(dayToCheck.getMilliseconds(TimeZone.getDefault())),
-                    });
-                    if (recurrence == null) {
-                      break;
-                    } else {
-                      switch (recurrence.freq) {
-                        case EventRecurrence.DAILY:
-                          dayToCheck = dayToCheck.plusDays(1);
-                          break;
-                        case EventRecurrence.WEEKLY:
-                          dayToCheck = dayToCheck.plusDays(7);
-                          break;
-                        case EventRecurrence.MONTHLY:
-                          dayToCheck = dayToCheck.plus(0, 1, 0, 0, 0, 0, 0, DateTime.DayOverflow.LastDay);
-                          break;
-                        case EventRecurrence.YEARLY:
-                          dayToCheck = dayToCheck.plus(1, 0, 0, 0, 0, 0, 0, DateTime.DayOverflow.LastDay);
-                      }
-                    }
-                  } else {
-                    dayToCheck = dayToCheck.plusDays(1);
-                  }
-                }
-              }
-              eventcursor.moveToNext();
+          while (eventcursor.moveToNext()) {
+            String eventId = eventcursor.getString(0);
+            long dtstart = eventcursor.getLong(1);
+            int freq = RecurrenceExpander.getFrequency(eventcursor.getString(2));
+            for (DateTime instance : RecurrenceExpander.expand(dtstart, freq, startMilliseconds,
+                endMilliseconds, timeZone)) {
+              result.addRow(new String[]{
+                  eventId,
+                  String.valueOf(instance.getYear() * 1000 + instance.getDayOfYear()),
+                  String.valueOf(instance.getMilliseconds(timeZone)),
+              });
             }
           }
           eventcursor.close();
@@ -143,25 +109,6 @@ public class CalendarProviderProxy extends ContentProvider {
     }
   }
 
-  private boolean isInstanceOfPlan(DateTime dayToCheck, long dtstart, EventRecurrence recurrence) {
-    DateTime startDate = DateTime.forInstant(dtstart, TimeZone.getDefault());
-    if (recurrence == null) {
-      return dayToCheck.isSameDayAs(startDate);
-    }
-    switch (recurrence.freq) {
-      case EventRecurrence.DAILY:
-        return true;
-      case EventRecurrence.WEEKLY:
-        return dayToCheck.getWeekDay().equals(startDate.getWeekDay());
-      case EventRecurrence.MONTHLY:
-        return dayToCheck.getDay().equals(startDate.getDay());
-      case EventRecurrence.YEARLY:
-        return dayToCheck.getDay().equals(startDate.getDay()) &&
-            dayToCheck.getMonth().equals(startDate.getMonth());
-    }
-    throw new IllegalStateException("Unhandled event recurrence" + recurrence.toString());
-  }
-
   @Override
   public String getType(Uri uri) {
     return null;
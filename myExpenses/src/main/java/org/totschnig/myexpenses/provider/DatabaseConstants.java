@@ -24,6 +24,7 @@ import org.totschnig.myexpenses.util.Utils;
 
 import java.util.Calendar;
 import java.util.Locale;
+import java.util.TimeZone;
 
 /**
  * @author Michael Totschnig
@@ -132,6 +133,7 @@ public class DatabaseConstants {
   public static final String KEY_THIS_MONTH = "this_month";
   public static final String KEY_THIS_YEAR = "this_year";
   public static final String KEY_THIS_YEAR_OF_WEEK_START = "this_year_of_week_start";
+  public static final String KEY_SIGNATURE = "signature";
   public static final String KEY_MAX_VALUE = "max_value";
   public static final String KEY_CURRENT_BALANCE = "current_balance";
   public static final String KEY_TOTAL = "total";
@@ -146,6 +148,7 @@ public class DatabaseConstants {
   public static final String KEY_MAPPED_METHODS = "mapped_methods";
   public static final String KEY_MAPPED_TEMPLATES = "mapped_templates";
   public static final String KEY_MAPPED_TRANSACTIONS = "mapped_transactions";
+  public static final String KEY_LAST_TRANSACTION = "last_transaction";
   public static final String KEY_HAS_CLEARED = "has_cleared";
   public static final String KEY_HAS_EXPORTED = "has_exported";
   public static final String KEY_IS_AGGREGATE = "is_aggregate";
@@ -163,11 +166,17 @@ public class DatabaseConstants {
   public static final String KEY_LAST_USED = "last_used";
   public static final String KEY_HAS_TRANSFERS = "has_transfers";
   public static final String KEY_PLAN_INFO = "plan_info";
+  public static final String KEY_NEXT_INSTANCE = "next_instance";
+  public static final String KEY_VALID_UNTIL = "valid_until";
+  public static final String KEY_LOCALE = "locale";
   public static final String KEY_PARENT_UUID = "parent_uuid";
   public static final String KEY_SYNC_SEQUENCE_LOCAL = "sync_sequence_local";
   public static final String KEY_ACCOUNT_LABEL = "account_label";
   public static final String KEY_IS_SAME_CURRENCY = "is_same_currency";
   public static final String KEY_TIMESTAMP = "timestamp";
+  public static final String KEY_IS_PART = "is_part";
+  public static final String KEY_ROW_COUNT = "row_count";
+  public static final String KEY_EXPORTED_COUNT = "exported_count";
 
   /**
    * column alias for the second group (month or week)
@@ -197,11 +206,24 @@ public class DatabaseConstants {
   public static final String TABLE_TRANSACTIONS = "transactions";
   public static final String TABLE_ACCOUNTS = "accounts";
   public static final String TABLE_SYNC_STATE = "_sync_state";
+  /**
+   * records the settings the date bucket columns of {@link #TABLE_TRANSACTIONS} have been computed with
+   */
+  public static final String TABLE_DATE_BUCKET_STATE = "_date_bucket_state";
   public static final String TABLE_CATEGORIES = "categories";
   public static final String TABLE_METHODS = "paymentmethods";
   public static final String TABLE_ACCOUNTTYES_METHODS = "accounttype_paymentmethod";
   public static final String TABLE_TEMPLATES = "templates";
   public static final String TABLE_PAYEES = "payee";
+  /**
+   * full text index of {@link #KEY_PAYEE_NAME_NORMALIZED}, docid is the payee's row id
+   */
+  public static final String TABLE_PAYEES_FTS = "payee_fts";
+  /**
+   * full text index of {@link #KEY_COMMENT} and {@link #KEY_REFERENCE_NUMBER}, docid is the
+   * transaction's row id
+   */
+  public static final String TABLE_TRANSACTIONS_FTS = "transactions_fts";
   public static final String TABLE_CURRENCIES = "currency";
   public static final String VIEW_COMMITTED = "transactions_committed";
   public static final String VIEW_UNCOMMITTED = "transactions_uncommitted";
@@ -213,10 +235,18 @@ public class DatabaseConstants {
   public static final String TABLE_PLAN_INSTANCE_STATUS = "planinstance_transaction";
   public static final String TABLE_STALE_URIS = "stale_uris";
   public static final String TABLE_CHANGES = "changes";
+  /**
+   * per account aggregates of transactions, maintained by triggers
+   */
+  public static final String TABLE_ACCOUNT_BALANCES = "account_balances";
   /**
    * used on backup and restore
    */
   public static final String TABLE_EVENT_CACHE = "event_cache";
+  /**
+   * next instance and {@link #KEY_PLAN_INFO} of plans, computed from the calendar
+   */
+  public static final String TABLE_PLAN_INFO_CACHE = "plan_info_cache";
 
   /**
    * an SQL CASE expression for transactions
@@ -327,12 +357,6 @@ public class DatabaseConstants {
       "abs(sum(CASE WHEN " + WHERE_EXPENSE + " THEN " + KEY_AMOUNT + " ELSE 0 END)) AS " + KEY_SUM_EXPENSES;
   public static final String TRANSFER_SUM =
       "sum(CASE WHEN " + WHERE_TRANSFER + " THEN " + KEY_AMOUNT + " ELSE 0 END) AS " + KEY_SUM_TRANSFERS;
-  public static final String HAS_CLEARED =
-      "(SELECT EXISTS(SELECT 1 FROM " + TABLE_TRANSACTIONS + " WHERE "
-          + KEY_ACCOUNTID + " = " + TABLE_ACCOUNTS + "." + KEY_ROWID + " AND " + KEY_CR_STATUS + " = '" + CrStatus.CLEARED.name() + "' LIMIT 1)) AS " + KEY_HAS_CLEARED;
-  public static final String HAS_EXPORTED =
-      "(SELECT EXISTS(SELECT 1 FROM " + TABLE_TRANSACTIONS + " WHERE "
-          + KEY_ACCOUNTID + " = " + TABLE_ACCOUNTS + "." + KEY_ROWID + " AND " + KEY_STATUS + " = " + STATUS_EXPORTED + " LIMIT 1)) AS " + KEY_HAS_EXPORTED;
   public static final String HAS_FUTURE =
       "(SELECT EXISTS(SELECT 1 FROM " + TABLE_TRANSACTIONS + " WHERE "
           + KEY_ACCOUNTID + " = " + TABLE_ACCOUNTS + "." + KEY_ROWID + " AND " + KEY_DATE + " > strftime('%s','now')  LIMIT 1)) AS " + KEY_HAS_FUTURE;
@@ -340,6 +364,62 @@ public class DatabaseConstants {
       + VIEW_COMMITTED
       + " WHERE " + KEY_ACCOUNTID + " = " + TABLE_ACCOUNTS + "." + KEY_ROWID
       + " AND " + WHERE_NOT_VOID;
+
+  /**
+   * values of {@link #KEY_TYPE} in {@link #TABLE_ACCOUNT_BALANCES}
+   */
+  public static final String BALANCE_TYPE_INCOME = "income";
+  public static final String BALANCE_TYPE_EXPENSE = "expense";
+  public static final String BALANCE_TYPE_TRANSFER = "transfer";
+  public static final String BALANCE_TYPE_SPLIT = "split";
+
+  /**
+   * classifies a transaction row into one of the BALANCE_TYPE_* values,
+   * %1$s is replaced with the table alias (new, old, or a table name)
+   */
+  public static final String BALANCE_TYPE_TEMPLATE = "CASE WHEN %1$s." + KEY_CATID + " = " + SPLIT_CATID
+      + " THEN '" + BALANCE_TYPE_SPLIT + "' WHEN %1$s." + KEY_TRANSFER_PEER + " IS NOT NULL THEN '"
+      + BALANCE_TYPE_TRANSFER + "' WHEN %1$s." + KEY_AMOUNT + " > 0 THEN '" + BALANCE_TYPE_INCOME
+      + "' ELSE '" + BALANCE_TYPE_EXPENSE + "' END";
+
+  /**
+   * sums up the aggregates stored in {@link #TABLE_ACCOUNT_BALANCES} for the account of the outer
+   * query, needs to be completed with further restrictions on is_part, type or cr_status
+   */
+  public static final String SELECT_BALANCE_SUM = "SELECT coalesce(sum(" + KEY_SUM + "),0) FROM "
+      + TABLE_ACCOUNT_BALANCES
+      + " WHERE " + KEY_ACCOUNTID + " = " + TABLE_ACCOUNTS + "." + KEY_ROWID
+      + " AND " + WHERE_NOT_VOID;
+
+  public static final String WHERE_BALANCE_NOT_PART = KEY_IS_PART + " = 0";
+
+  /**
+   * the only part of the current balance that can not be materialized, since it depends on the
+   * current date, future transactions are expected to be few
+   */
+  public static final String SELECT_FUTURE_SUM = "SELECT coalesce(sum(" + KEY_AMOUNT + "),0) FROM "
+      + TABLE_TRANSACTIONS
+      + " WHERE " + KEY_ACCOUNTID + " = " + TABLE_ACCOUNTS + "." + KEY_ROWID
+      + " AND " + WHERE_NOT_SPLIT_PART
+      + " AND " + KEY_DATE + " > strftime('%s','now')"
+      + " AND " + KEY_STATUS + " != " + STATUS_UNCOMMITTED
+      + " AND " + WHERE_NOT_VOID;
+
+  public static final String BALANCE_TOTAL = "(" + SELECT_BALANCE_SUM + " AND " + WHERE_BALANCE_NOT_PART + ")";
+  public static final String BALANCE_CURRENT = "(" + BALANCE_TOTAL + " - (" + SELECT_FUTURE_SUM + "))";
+  public static final String BALANCE_INCOME = "(" + SELECT_BALANCE_SUM + " AND " + KEY_TYPE + " = '" + BALANCE_TYPE_INCOME + "')";
+  public static final String BALANCE_EXPENSES = "(" + SELECT_BALANCE_SUM + " AND " + KEY_TYPE + " = '" + BALANCE_TYPE_EXPENSE + "')";
+  public static final String BALANCE_TRANSFERS = "(" + SELECT_BALANCE_SUM + " AND " + KEY_TYPE + " = '" + BALANCE_TYPE_TRANSFER + "')";
+  public static final String BALANCE_CLEARED = "(" + SELECT_BALANCE_SUM + " AND " + WHERE_BALANCE_NOT_PART
+      + " AND " + KEY_CR_STATUS + " IN ('" + CrStatus.RECONCILED.name() + "','" + CrStatus.CLEARED.name() + "'))";
+  public static final String BALANCE_RECONCILED = "(" + SELECT_BALANCE_SUM + " AND " + WHERE_BALANCE_NOT_PART
+      + " AND " + KEY_CR_STATUS + " = '" + CrStatus.RECONCILED.name() + "')";
+  public static final String HAS_CLEARED =
+      "(SELECT EXISTS(SELECT 1 FROM " + TABLE_ACCOUNT_BALANCES + " WHERE "
+          + KEY_ACCOUNTID + " = " + TABLE_ACCOUNTS + "." + KEY_ROWID + " AND " + KEY_CR_STATUS + " = '" + CrStatus.CLEARED.name() + "' AND " + KEY_ROW_COUNT + " > 0 LIMIT 1)) AS " + KEY_HAS_CLEARED;
+  public static final String HAS_EXPORTED =
+      "(SELECT EXISTS(SELECT 1 FROM " + TABLE_ACCOUNT_BALANCES + " WHERE "
+          + KEY_ACCOUNTID + " = " + TABLE_ACCOUNTS + "." + KEY_ROWID + " AND " + KEY_EXPORTED_COUNT + " > 0 LIMIT 1)) AS " + KEY_HAS_EXPORTED;
   //exclude split_catid
   public static final String MAPPED_CATEGORIES =
       "count(CASE WHEN  " + KEY_CATID + ">0 AND " + WHERE_NOT_VOID + " THEN 1 ELSE null END) as " + KEY_MAPPED_CATEGORIES;
@@ -397,6 +477,16 @@ public class DatabaseConstants {
     return THIS_MONTH;
   }
 
+  public static int getWeekStartsOn() {
+    ensureLocalized();
+    return weekStartsOn;
+  }
+
+  public static int getMonthStartsOn() {
+    ensureLocalized();
+    return monthStartsOn;
+  }
+
   public static String getWeekStart() {
     ensureLocalized();
     return WEEK_START;
@@ -407,6 +497,16 @@ public class DatabaseConstants {
     return WEEK_END;
   }
 
+  /**
+   * the date bucket columns stored on transactions depend on the first day of week and month, and on
+   * the time zone, since they are computed with 'localtime'
+   * @return a string that changes whenever one of these settings changes
+   */
+  public static String getDateBucketSignature() {
+    ensureLocalized();
+    return weekStartsOn + ";" + monthStartsOn + ";" + TimeZone.getDefault().getID();
+  }
+
   /**
    * we want to find out the week range when we are given a week number
    * we find out the first day in the year, that is the firstdayofweek of the locale and is
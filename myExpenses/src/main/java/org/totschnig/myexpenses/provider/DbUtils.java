@@ -40,9 +40,13 @@ import org.totschnig.myexpenses.service.PlanExecutor;
 import org.totschnig.myexpenses.sync.GenericAccountService;
 import org.totschnig.myexpenses.sync.SyncAdapter;
 import org.totschnig.myexpenses.util.AcraHelper;
+import org.totschnig.myexpenses.util.BackupUtils;
 import org.totschnig.myexpenses.util.Result;
 
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.HashMap;
 import java.util.Locale;
 import java.util.Map;
@@ -58,15 +62,44 @@ public class DbUtils {
   private DbUtils() {
   }
 
+  /**
+   * prepares the data that is stored outside of the database and copies the preferences and the
+   * database into backupDir, from where they are compressed into the backup without holding up
+   * writers. {@link #onBackupComplete()} must be called once the backup has been written
+   */
   public static Result backup(File backupDir) {
     cacheEventData();
     cacheSyncState();
     ContentResolver resolver = MyApplication.getInstance().getContentResolver();
     ContentProviderClient client = resolver.acquireContentProviderClient(TransactionProvider.AUTHORITY);
     TransactionProvider provider = (TransactionProvider) client.getLocalContentProvider();
-    Result result = provider.backup(backupDir);
-    client.release();
-    return result;
+    try {
+      Result result = provider.backupPrefs(backupDir);
+      if (result.success) {
+        OutputStream out = new FileOutputStream(BackupUtils.getBackupDbFile(backupDir));
+        try {
+          provider.backupDb(out, null);
+        } finally {
+          out.close();
+        }
+      }
+      return result;
+    } catch (IOException e) {
+      AcraHelper.report(e);
+      return new Result(false, e.getMessage());
+    } finally {
+      client.release();
+    }
+  }
+
+  public static void onBackupComplete() {
+    ContentResolver resolver = MyApplication.getInstance().getContentResolver();
+    ContentProviderClient client = resolver.acquireContentProviderClient(TransactionProvider.AUTHORITY);
+    try {
+      ((TransactionProvider) client.getLocalContentProvider()).onBackupComplete();
+    } finally {
+      client.release();
+    }
   }
 
   public static boolean restore(File backupFile) {
@@ -83,6 +116,9 @@ public class DbUtils {
         ContentProviderClient client = resolver.acquireContentProviderClient(TransactionProvider.AUTHORITY);
         TransactionProvider provider = (TransactionProvider) client.getLocalContentProvider();
         result = provider.restore(backupFile);
+        if (result) {
+          provider.call(TransactionProvider.METHOD_REPAIR_ACCOUNT_BALANCES, null, null);
+        }
         client.release();
       }
     } catch (Exception e) {
@@ -93,6 +129,45 @@ public class DbUtils {
     return result;
   }
 
+  /**
+   * lets the provider collect change notifications until {@link #endBulkOperation()} is called,
+   * so that loaders are not restarted for each row written by an import
+   */
+  public static void beginBulkOperation() {
+    callProvider(TransactionProvider.METHOD_BULK_START);
+  }
+
+  public static void endBulkOperation() {
+    callProvider(TransactionProvider.METHOD_BULK_END);
+  }
+
+  /**
+   * @param invalidate if true, the info of all plans is recomputed
+   * @see TransactionProvider#METHOD_REFRESH_PLAN_INFO
+   */
+  public static void refreshPlanInfo(boolean invalidate) {
+    callProvider(TransactionProvider.METHOD_REFRESH_PLAN_INFO,
+        invalidate ? TransactionProvider.ARG_INVALIDATE : null);
+  }
+
+  private static void callProvider(String method) {
+    callProvider(method, null);
+  }
+
+  private static void callProvider(String method, String arg) {
+    ContentResolver resolver = MyApplication.getInstance().getContentResolver();
+    ContentProviderClient client = resolver.acquireContentProviderClient(TransactionProvider.AUTHORITY);
+    if (client == null) {
+      return;
+    }
+    try {
+      //call through the client requires API 11, but the provider lives in our process
+      client.getLocalContentProvider().call(method, arg, null);
+    } finally {
+      client.release();
+    }
+  }
+
   //TODO: create generic function
   public static String[] getStringArrayFromCursor(Cursor c, String field) {
     String[] result = new String[c.getCount()];
@@ -153,6 +228,36 @@ public class DbUtils {
       return "";
     return c.getString(columnIndex);
   }
+  /**
+   * Builds a query for the full text indexes, matching rows that contain, for each word of input, a
+   * word starting with it. Words are delimited like by the simple tokenizer of FTS3, which also
+   * folds ASCII letters to lower case. We do the same, so that words like OR or NEAR are not taken
+   * for operators.
+   *
+   * @return null if input does not contain any word
+   */
+  public static String ftsPrefixQuery(String input) {
+    StringBuilder query = new StringBuilder();
+    boolean inWord = false;
+    for (int i = 0; i < input.length(); i++) {
+      char c = input.charAt(i);
+      if (c >= 128 || Character.isLetterOrDigit(c)) {
+        if (!inWord && query.length() > 0) {
+          query.append(' ');
+        }
+        query.append(c < 128 ? Character.toLowerCase(c) : c);
+        inWord = true;
+      } else if (inWord) {
+        query.append('*');
+        inWord = false;
+      }
+    }
+    if (inWord) {
+      query.append('*');
+    }
+    return query.length() > 0 ? query.toString() : null;
+  }
+
   public static boolean hasParent(Long id) {
     return Transaction.getInstanceFromDb(id).parentId != null;
   }
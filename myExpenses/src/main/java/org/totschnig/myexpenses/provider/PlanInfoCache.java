@@ -0,0 +1,189 @@
+package org.totschnig.myexpenses.provider;
+
+import android.Manifest;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.support.v4.content.ContextCompat;
+import android.text.TextUtils;
+
+import com.android.calendar.CalendarContractCompat.Events;
+import com.android.calendar.CalendarContractCompat.Instances;
+
+import org.totschnig.myexpenses.model.Plan;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_LOCALE;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_NEXT_INSTANCE;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_PLANID;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_PLAN_INFO;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_VALID_UNTIL;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_PLAN_INFO_CACHE;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_TEMPLATES;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.VIEW_TEMPLATES_EXTENDED;
+
+/**
+ * maintains {@link DatabaseConstants#TABLE_PLAN_INFO_CACHE}, so that templates can be queried
+ * together with the next instance and the description of their plan, without querying the calendar
+ * for each template. An entry is valid until the next instance is due, at the latest until the end
+ * of the day, and only for the locale it has been formatted in.
+ */
+class PlanInfoCache {
+  /**
+   * plans without upcoming instance are sorted after plans with one, templates without plan last
+   */
+  static final String ORDER_BY_NEXT_INSTANCE = KEY_NEXT_INSTANCE + " IS NULL, " + KEY_NEXT_INSTANCE;
+
+  private PlanInfoCache() {
+  }
+
+  static String[] extendProjection(String[] projection) {
+    String[] result = new String[projection.length + 2];
+    System.arraycopy(projection, 0, result, 0, projection.length);
+    result[projection.length] = cachedColumn(KEY_NEXT_INSTANCE);
+    result[projection.length + 1] = cachedColumn(KEY_PLAN_INFO);
+    return result;
+  }
+
+  private static String cachedColumn(String column) {
+    return "(SELECT " + column + " FROM " + TABLE_PLAN_INFO_CACHE + " WHERE " + TABLE_PLAN_INFO_CACHE
+        + "." + KEY_PLANID + " = " + VIEW_TEMPLATES_EXTENDED + "." + KEY_PLANID + ") AS " + column;
+  }
+
+  /**
+   * removes stale entries and computes the missing ones, which is only possible if we have access
+   * to the calendar
+   *
+   * @param invalidate if true, all entries are removed, since the plans may have been changed in
+   *                   the calendar
+   */
+  static void refresh(Context context, SQLiteDatabase db, boolean invalidate) {
+    long now = System.currentTimeMillis();
+    String locale = Locale.getDefault().toString();
+    if (invalidate) {
+      db.delete(TABLE_PLAN_INFO_CACHE, null, null);
+    } else {
+      db.delete(TABLE_PLAN_INFO_CACHE, KEY_VALID_UNTIL + " <= ? OR " + KEY_LOCALE + " IS NOT ?",
+          new String[]{String.valueOf(now), locale});
+    }
+    if (ContextCompat.checkSelfPermission(context,
+        Manifest.permission.WRITE_CALENDAR) != PackageManager.PERMISSION_GRANTED) {
+      return;
+    }
+    List<Long> plans = new ArrayList<>();
+    Cursor c = db.rawQuery("SELECT DISTINCT " + KEY_PLANID + " FROM " + TABLE_TEMPLATES + " WHERE "
+        + KEY_PLANID + " IS NOT NULL AND " + KEY_PLANID + " NOT IN (SELECT " + KEY_PLANID + " FROM "
+        + TABLE_PLAN_INFO_CACHE + ")", null);
+    while (c.moveToNext()) {
+      plans.add(c.getLong(0));
+    }
+    c.close();
+    if (plans.isEmpty()) {
+      return;
+    }
+    Map<Long, String> planInfo = queryPlanInfo(context, plans);
+    Map<Long, Long> nextInstance = queryNextInstances(context, plans, now);
+    long endOfDay = endOfDay(now);
+    db.beginTransaction();
+    try {
+      ContentValues values = new ContentValues();
+      for (Long planId : plans) {
+        Long next = nextInstance.get(planId);
+        values.put(KEY_PLANID, planId);
+        values.put(KEY_NEXT_INSTANCE, next != null ? next : Long.MAX_VALUE);
+        values.put(KEY_PLAN_INFO, planInfo.get(planId));
+        values.put(KEY_LOCALE, locale);
+        values.put(KEY_VALID_UNTIL, next != null ? Math.min(next, endOfDay) : endOfDay);
+        db.insertWithOnConflict(TABLE_PLAN_INFO_CACHE, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+      }
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+  }
+
+  private static Map<Long, String> queryPlanInfo(Context context, List<Long> plans) {
+    Map<Long, String> result = new HashMap<>();
+    Cursor c = context.getContentResolver().query(Events.CONTENT_URI,
+        new String[]{
+            Events._ID,
+            Events.DTSTART,
+            Events.RRULE,
+        },
+        Events._ID + " IN (" + TextUtils.join(",", plans) + ")",
+        null,
+        null);
+    if (c != null) {
+      while (c.moveToNext()) {
+        result.put(c.getLong(0), Plan.prettyTimeInfo(context, c.getString(2), c.getLong(1)));
+      }
+      c.close();
+    }
+    return result;
+  }
+
+  /**
+   * we go in three passes in order to prevent calendar provider from having to expand too much instances
+   * 1) one week 2) one month 3) one year, each pass only for the plans not yet resolved
+   */
+  private static Map<Long, Long> queryNextInstances(Context context, List<Long> plans, long now) {
+    Map<Long, Long> result = new HashMap<>();
+    long inOneWeek = now + (7 * 24 * 60 * 60 * 1000L);
+    long inOneMonth = now + (31 * 24 * 60 * 60 * 1000L);
+    long inOneYear = now + (366 * 24 * 60 * 60 * 1000L);
+    long[][] intervals = new long[][]{
+        {now, inOneWeek},
+        {inOneWeek, inOneMonth},
+        {inOneMonth, inOneYear}
+    };
+    List<Long> pending = new ArrayList<>(plans);
+    for (long[] interval : intervals) {
+      Uri.Builder eventsUriBuilder = CalendarProviderProxy.INSTANCES_URI.buildUpon();
+      ContentUris.appendId(eventsUriBuilder, interval[0]);
+      ContentUris.appendId(eventsUriBuilder, interval[1]);
+      Cursor c = context.getContentResolver().query(eventsUriBuilder.build(), null,
+          Instances.EVENT_ID + " IN (" + TextUtils.join(",", pending) + ")",
+          null,
+          null);
+      if (c != null) {
+        int columnIndexEventId = c.getColumnIndex(Instances.EVENT_ID);
+        int columnIndexBegin = c.getColumnIndex(Instances.BEGIN);
+        while (c.moveToNext()) {
+          long planId = c.getLong(columnIndexEventId);
+          long begin = c.getLong(columnIndexBegin);
+          Long known = result.get(planId);
+          if (known == null || begin < known) {
+            result.put(planId, begin);
+          }
+        }
+        c.close();
+      }
+      pending.removeAll(result.keySet());
+      if (pending.isEmpty()) {
+        break;
+      }
+    }
+    return result;
+  }
+
+  private static long endOfDay(long now) {
+    Calendar calendar = Calendar.getInstance();
+    calendar.setTimeInMillis(now);
+    calendar.set(Calendar.HOUR_OF_DAY, 0);
+    calendar.set(Calendar.MINUTE, 0);
+    calendar.set(Calendar.SECOND, 0);
+    calendar.set(Calendar.MILLISECOND, 0);
+    calendar.add(Calendar.DAY_OF_MONTH, 1);
+    return calendar.getTimeInMillis();
+  }
+}
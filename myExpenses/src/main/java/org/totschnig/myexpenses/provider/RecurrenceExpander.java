@@ -0,0 +1,126 @@
+package org.totschnig.myexpenses.provider;
+
+import android.support.v4.util.LruCache;
+import android.text.TextUtils;
+
+import com.android.calendarcommon2.EventRecurrence;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TimeZone;
+
+import hirondelle.date4j.DateTime;
+
+/**
+ * computes the instances of a plan inside a window, in the alternate implementation of
+ * {@link CalendarProviderProxy} that does not rely on the Instances table of the platform calendar.
+ * Only the frequency of the recurrence rule is interpreted: plans are created with an interval of 1,
+ * and weekly plans repeat on the weekday of their start, which is what we check for.
+ * Instances are computed directly instead of checking each day of the window.
+ */
+final class RecurrenceExpander {
+  /**
+   * frequency of a plan without recurrence rule, i.e. with one instance at dtstart
+   */
+  static final int NO_RECURRENCE = 0;
+  private static final int RECURRENCE_CACHE_SIZE = 64;
+  /**
+   * parsed rules are shared between queries, and must not be mutated
+   */
+  private static final LruCache<String, EventRecurrence> recurrenceCache =
+      new LruCache<>(RECURRENCE_CACHE_SIZE);
+
+  private RecurrenceExpander() {
+  }
+
+  /**
+   * @return the frequency of rrule as defined by {@link EventRecurrence}, or
+   * {@link #NO_RECURRENCE} if rrule is empty
+   */
+  static int getFrequency(String rrule) {
+    if (TextUtils.isEmpty(rrule)) {
+      return NO_RECURRENCE;
+    }
+    EventRecurrence recurrence = recurrenceCache.get(rrule);
+    if (recurrence == null) {
+      recurrence = new EventRecurrence();
+      recurrence.parse(rrule);
+      recurrenceCache.put(rrule, recurrence);
+    }
+    return recurrence.freq;
+  }
+
+  /**
+   * @param dtstart start of the plan
+   * @param freq    {@link #NO_RECURRENCE} or one of the frequencies defined by {@link EventRecurrence}
+   * @param start   begin of window
+   * @param end     end of window
+   * @return the instances of the plan that begin inside the window, each carrying the time of day
+   * of the window start or dtstart, whatever is later
+   */
+  static List<DateTime> expand(long dtstart, int freq, long start, long end, TimeZone timeZone) {
+    List<DateTime> result = new ArrayList<>();
+    if (dtstart > end) {
+      return result;
+    }
+    DateTime first = DateTime.forInstant(Math.max(start, dtstart), timeZone);
+    DateTime last = DateTime.forInstant(end, timeZone);
+    if (first.gt(last)) {
+      return result;
+    }
+    DateTime startDate = DateTime.forInstant(dtstart, timeZone);
+    switch (freq) {
+      case NO_RECURRENCE:
+        if (first.isSameDayAs(startDate)) {
+          result.add(first);
+        }
+        break;
+      case EventRecurrence.DAILY:
+        addEvery(result, first, last, 1);
+        break;
+      case EventRecurrence.WEEKLY:
+        int offset = (startDate.getWeekDay() - first.getWeekDay() + 7) % 7;
+        addEvery(result, first.plusDays(offset), last, 7);
+        break;
+      case EventRecurrence.MONTHLY:
+        for (int year = first.getYear(), month = first.getMonth();
+             year < last.getYear() || (year == last.getYear() && month <= last.getMonth()); ) {
+          addIfInside(result, first, last, year, month, startDate.getDay());
+          if (++month > 12) {
+            month = 1;
+            year++;
+          }
+        }
+        break;
+      case EventRecurrence.YEARLY:
+        for (int year = first.getYear(); year <= last.getYear(); year++) {
+          addIfInside(result, first, last, year, startDate.getMonth(), startDate.getDay());
+        }
+        break;
+      default:
+        throw new IllegalStateException("Unhandled event recurrence frequency " + freq);
+    }
+    return result;
+  }
+
+  private static void addEvery(List<DateTime> result, DateTime from, DateTime last, int days) {
+    for (DateTime instance = from; instance.lteq(last); instance = instance.plusDays(days)) {
+      result.add(instance);
+    }
+  }
+
+  /**
+   * adds the given day with the time of first, if the day exists and lies between first and last
+   */
+  private static void addIfInside(List<DateTime> result, DateTime first, DateTime last,
+                                  int year, int month, int day) {
+    if (day > DateTime.forDateOnly(year, month, 1).getNumDaysInMonth()) {
+      return;
+    }
+    DateTime instance = new DateTime(year, month, day, first.getHour(), first.getMinute(),
+        first.getSecond(), first.getNanoseconds());
+    if (instance.gteq(first) && instance.lteq(last)) {
+      result.add(instance);
+    }
+  }
+}
@@ -21,6 +21,7 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.content.pm.PackageManager;
 import android.database.Cursor;
+import android.database.DatabaseErrorHandler;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteConstraintException;
 import android.database.sqlite.SQLiteDatabase;
@@ -55,11 +56,15 @@ import org.totschnig.myexpenses.util.Utils;
 
 import java.io.File;
 import java.text.SimpleDateFormat;
+import java.util.Calendar;
 import java.util.Currency;
+import java.util.GregorianCalendar;
 import java.util.Locale;
 
 import timber.log.Timber;
 
+import static org.totschnig.myexpenses.provider.DatabaseConstants.BALANCE_TYPE_TEMPLATE;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.DAY;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ACCOUNTID;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ACCOUNT_LABEL;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_AMOUNT;
@@ -70,16 +75,22 @@ import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_COMMENT;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_CR_STATUS;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_CURRENCY;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_DATE;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_DAY;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_DESCRIPTION;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_EXCLUDE_FROM_TOTALS;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_EXPORTED_COUNT;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_GROUPING;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_INSTANCEID;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_IS_NUMBERED;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_IS_PART;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_LABEL;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_LABEL_NORMALIZED;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_LAST_USED;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_LOCALE;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_METHODID;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_METHOD_LABEL;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_MONTH;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_NEXT_INSTANCE;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_OPENING_BALANCE;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_PARENTID;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_PARENT_UUID;
@@ -89,10 +100,14 @@ import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_PAYEE_NAME
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_PICTURE_URI;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_PLANID;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_PLAN_EXECUTION;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_PLAN_INFO;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_REFERENCE_NUMBER;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ROWID;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ROW_COUNT;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_SIGNATURE;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_SORT_KEY;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_STATUS;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_SUM;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_SYNC_ACCOUNT_NAME;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_SYNC_SEQUENCE_LOCAL;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_TEMPLATEID;
@@ -104,21 +119,34 @@ import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_TRANSFER_P
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_TYPE;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_USAGES;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_UUID;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_VALID_UNTIL;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_WEEK;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_WEEK_END;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_WEEK_START;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_YEAR;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_YEAR_OF_MONTH_START;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_YEAR_OF_WEEK_START;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.SPLIT_CATID;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.STATUS_EXPORTED;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.STATUS_UNCOMMITTED;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_ACCOUNTS;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_ACCOUNTTYES_METHODS;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_ACCOUNT_BALANCES;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_CATEGORIES;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_CHANGES;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_CURRENCIES;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_DATE_BUCKET_STATE;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_EVENT_CACHE;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_METHODS;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_PAYEES;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_PAYEES_FTS;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_PLAN_INFO_CACHE;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_PLAN_INSTANCE_STATUS;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_STALE_URIS;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_SYNC_STATE;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_TEMPLATES;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_TRANSACTIONS;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_TRANSACTIONS_FTS;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.VIEW_ALL;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.VIEW_CHANGES_EXTENDED;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.VIEW_COMMITTED;
@@ -126,10 +154,20 @@ import static org.totschnig.myexpenses.provider.DatabaseConstants.VIEW_EXTENDED;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.VIEW_TEMPLATES;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.VIEW_TEMPLATES_EXTENDED;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.VIEW_UNCOMMITTED;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.YEAR;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.getDateBucketSignature;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.getMonth;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.getWeek;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.getWeekEnd;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.getWeekStart;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.getYearOfMonthStart;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.getYearOfWeekStart;
 
 public class TransactionDatabase extends SQLiteOpenHelper {
-  public static final int DATABASE_VERSION = 64;
+  public static final int DATABASE_VERSION = 70;
   private static final String DATABASE_NAME = "data";
+  private static final int CHECKPOINT_ATTEMPTS = 20;
+  private static final long CHECKPOINT_RETRY_DELAY = 50;
   private Context mCtx;
 
   /**
@@ -160,11 +198,85 @@ public class TransactionDatabase extends SQLiteOpenHelper {
           + KEY_CR_STATUS + " text not null check (" + KEY_CR_STATUS + " in (" + Transaction.CrStatus.JOIN + ")) default '" + Transaction.CrStatus.RECONCILED.name() + "',"
           + KEY_REFERENCE_NUMBER + " text, "
           + KEY_PICTURE_URI + " text, "
-          + KEY_UUID + " text);";
+          + KEY_UUID + " text, "
+          + KEY_YEAR + " integer, "
+          + KEY_MONTH + " integer, "
+          + KEY_YEAR_OF_MONTH_START + " integer, "
+          + KEY_WEEK + " integer, "
+          + KEY_YEAR_OF_WEEK_START + " integer, "
+          + KEY_DAY + " integer, "
+          + KEY_WEEK_START + " integer, "
+          + KEY_WEEK_END + " integer);";
+
+  /**
+   * the columns of the transactions table that carry data, as opposed to the date buckets derived from
+   * {@link DatabaseConstants#KEY_DATE}, which are maintained by triggers
+   */
+  private static final String TRANSACTIONS_DATA_COLUMNS = KEY_COMMENT + ", " + KEY_DATE + ", " + KEY_AMOUNT + ", "
+      + KEY_CATID + ", " + KEY_ACCOUNTID + ", " + KEY_PAYEEID + ", " + KEY_TRANSFER_PEER + ", " + KEY_TRANSFER_ACCOUNT + ", "
+      + KEY_METHODID + ", " + KEY_PARENTID + ", " + KEY_STATUS + ", " + KEY_CR_STATUS + ", " + KEY_REFERENCE_NUMBER + ", "
+      + KEY_PICTURE_URI + ", " + KEY_UUID;
 
   private static final String TRANSACTIONS_UUID_INDEX_CREATE = "CREATE UNIQUE INDEX transactions_account_uuid ON "
       + TABLE_TRANSACTIONS + "(" + KEY_ACCOUNTID + "," + KEY_UUID + "," + KEY_STATUS + ")";
 
+  /**
+   * supports the access pattern shared by transaction lists, sums and groups: filter by account,
+   * restrict to parents (parent_id is null) and range or order by date
+   */
+  private static final String TRANSACTIONS_ACCOUNT_PARENT_DATE_INDEX_CREATE = "CREATE INDEX transactions_account_parent_date_index ON "
+      + TABLE_TRANSACTIONS + "(" + KEY_ACCOUNTID + "," + KEY_PARENTID + "," + KEY_DATE + ")";
+
+  private static final String TRANSACTIONS_DATE_BUCKET_STATE_CREATE =
+      "CREATE TABLE " + TABLE_DATE_BUCKET_STATE + " (" + KEY_SIGNATURE + " text);";
+
+  /**
+   * FTS3 is available on all supported API levels, FTS4 only from Honeycomb
+   */
+  private static final String PAYEES_FTS_CREATE = "CREATE VIRTUAL TABLE " + TABLE_PAYEES_FTS
+      + " USING fts3(" + KEY_PAYEE_NAME_NORMALIZED + ")";
+
+  private static final String PAYEES_FTS_INSERT_TRIGGER_CREATE = "CREATE TRIGGER payee_fts_insert "
+      + "AFTER INSERT ON " + TABLE_PAYEES
+      + " BEGIN INSERT INTO " + TABLE_PAYEES_FTS + " (docid, " + KEY_PAYEE_NAME_NORMALIZED + ") "
+      + "VALUES (new." + KEY_ROWID + ", new." + KEY_PAYEE_NAME_NORMALIZED + "); END";
+
+  private static final String PAYEES_FTS_UPDATE_TRIGGER_CREATE = "CREATE TRIGGER payee_fts_update "
+      + "AFTER UPDATE OF " + KEY_PAYEE_NAME_NORMALIZED + " ON " + TABLE_PAYEES
+      + " BEGIN UPDATE " + TABLE_PAYEES_FTS + " SET " + KEY_PAYEE_NAME_NORMALIZED + " = new." + KEY_PAYEE_NAME_NORMALIZED
+      + " WHERE docid = new." + KEY_ROWID + "; END";
+
+  private static final String PAYEES_FTS_DELETE_TRIGGER_CREATE = "CREATE TRIGGER payee_fts_delete "
+      + "AFTER DELETE ON " + TABLE_PAYEES
+      + " BEGIN DELETE FROM " + TABLE_PAYEES_FTS + " WHERE docid = old." + KEY_ROWID + "; END";
+
+  private static final String TRANSACTIONS_FTS_CREATE = "CREATE VIRTUAL TABLE " + TABLE_TRANSACTIONS_FTS
+      + " USING fts3(" + KEY_COMMENT + ", " + KEY_REFERENCE_NUMBER + ")";
+
+  private static final String TRANSACTIONS_FTS_INSERT_ACTION = " INSERT INTO " + TABLE_TRANSACTIONS_FTS
+      + " (docid, " + KEY_COMMENT + ", " + KEY_REFERENCE_NUMBER + ") SELECT new." + KEY_ROWID + ", new."
+      + KEY_COMMENT + ", new." + KEY_REFERENCE_NUMBER + " WHERE new." + KEY_COMMENT
+      + " IS NOT NULL OR new." + KEY_REFERENCE_NUMBER + " IS NOT NULL;";
+
+  private static final String TRANSACTIONS_FTS_INSERT_TRIGGER_CREATE = "CREATE TRIGGER transactions_fts_insert "
+      + "AFTER INSERT ON " + TABLE_TRANSACTIONS
+      + " BEGIN" + TRANSACTIONS_FTS_INSERT_ACTION + " END";
+
+  //Transaction.save writes all columns, we only reindex if the text has changed
+  private static final String TRANSACTIONS_FTS_UPDATE_TRIGGER_CREATE = "CREATE TRIGGER transactions_fts_update "
+      + "AFTER UPDATE OF " + KEY_COMMENT + ", " + KEY_REFERENCE_NUMBER + " ON " + TABLE_TRANSACTIONS
+      + " WHEN new." + KEY_COMMENT + " IS NOT old." + KEY_COMMENT
+      + " OR new." + KEY_REFERENCE_NUMBER + " IS NOT old." + KEY_REFERENCE_NUMBER
+      + " BEGIN DELETE FROM " + TABLE_TRANSACTIONS_FTS + " WHERE docid = old." + KEY_ROWID + ";"
+      + TRANSACTIONS_FTS_INSERT_ACTION + " END";
+
+  private static final String TRANSACTIONS_FTS_DELETE_TRIGGER_CREATE = "CREATE TRIGGER transactions_fts_delete "
+      + "AFTER DELETE ON " + TABLE_TRANSACTIONS
+      + " BEGIN DELETE FROM " + TABLE_TRANSACTIONS_FTS + " WHERE docid = old." + KEY_ROWID + "; END";
+
+  private static final String CHANGES_ACCOUNT_SEQUENCE_INDEX_CREATE = "CREATE INDEX changes_account_sequence_index ON "
+      + TABLE_CHANGES + "(" + KEY_ACCOUNTID + "," + KEY_SYNC_SEQUENCE_LOCAL + ")";
+
   private static String buildViewDefinition(String tableName) {
     StringBuilder stringBuilder = new StringBuilder();
     stringBuilder.append(" AS SELECT ").append(tableName).append(".*, ").append(TABLE_PAYEES)
@@ -324,6 +436,24 @@ public class TransactionDatabase extends SQLiteOpenHelper {
           Events.CUSTOM_APP_PACKAGE + " TEXT," +
           Events.CUSTOM_APP_URI + " TEXT);";
 
+  private static final String PLAN_INFO_CACHE_CREATE =
+      "CREATE TABLE " + TABLE_PLAN_INFO_CACHE + " ( "
+          + KEY_PLANID + " integer primary key, "
+          + KEY_NEXT_INSTANCE + " integer, "
+          + KEY_PLAN_INFO + " text, "
+          + KEY_LOCALE + " text, "
+          + KEY_VALID_UNTIL + " integer);";
+
+  private static final String PLAN_INFO_CACHE_TEMPLATE_DELETE_TRIGGER_CREATE =
+      "CREATE TRIGGER plan_info_cache_template_delete AFTER DELETE ON " + TABLE_TEMPLATES
+          + " WHEN old." + KEY_PLANID + " IS NOT NULL"
+          + " BEGIN DELETE FROM " + TABLE_PLAN_INFO_CACHE + " WHERE " + KEY_PLANID + " = old." + KEY_PLANID + "; END";
+
+  private static final String PLAN_INFO_CACHE_TEMPLATE_UPDATE_TRIGGER_CREATE =
+      "CREATE TRIGGER plan_info_cache_template_update AFTER UPDATE OF " + KEY_PLANID + " ON " + TABLE_TEMPLATES
+          + " WHEN old." + KEY_PLANID + " IS NOT new." + KEY_PLANID
+          + " BEGIN DELETE FROM " + TABLE_PLAN_INFO_CACHE + " WHERE " + KEY_PLANID + " = old." + KEY_PLANID + "; END";
+
 
   /**
    * stores payees and payers
@@ -475,7 +605,7 @@ public class TransactionDatabase extends SQLiteOpenHelper {
 
   private static final String TRANSACTIONS_UPDATE_TRIGGER_CREATE =
       "CREATE TRIGGER update_change_log "
-          + "AFTER UPDATE ON " + TABLE_TRANSACTIONS
+          + "AFTER UPDATE OF " + TRANSACTIONS_DATA_COLUMNS + " ON " + TABLE_TRANSACTIONS
           + " WHEN " + String.format(Locale.US, SHOULD_WRITE_CHANGE_TEMPLATE, "old")
           + " AND old." + KEY_STATUS + " != " + STATUS_UNCOMMITTED
           + " AND new." + KEY_STATUS + " != " + STATUS_UNCOMMITTED
@@ -551,15 +681,194 @@ public class TransactionDatabase extends SQLiteOpenHelper {
       + "DELETE FROM " + TABLE_CHANGES + " WHERE " + KEY_ACCOUNTID + " = old." + KEY_ROWID + "; "
       + "END;";
 
+  /**
+   * aggregates of committed transactions per account, broken down by cr_status, by whether the
+   * transaction is a split part, and by {@link DatabaseConstants#BALANCE_TYPE_TEMPLATE}
+   * Maintained by the balance triggers below, so that the accounts cursor does not need to sum up
+   * all transactions of each account
+   */
+  private static final String ACCOUNT_BALANCES_CREATE =
+      "CREATE TABLE " + TABLE_ACCOUNT_BALANCES + " ( "
+          + KEY_ACCOUNTID + " integer not null references " + TABLE_ACCOUNTS + "(" + KEY_ROWID + ") ON DELETE CASCADE, "
+          + KEY_CR_STATUS + " text not null, "
+          + KEY_IS_PART + " boolean not null, "
+          + KEY_TYPE + " text not null, "
+          + KEY_SUM + " integer not null default 0, "
+          + KEY_ROW_COUNT + " integer not null default 0, "
+          + KEY_EXPORTED_COUNT + " integer not null default 0, "
+          + "primary key (" + KEY_ACCOUNTID + "," + KEY_CR_STATUS + "," + KEY_IS_PART + "," + KEY_TYPE + "));";
+
+  private static final String BALANCE_KEY_COLUMNS = KEY_ACCOUNTID + ", " + KEY_CR_STATUS + ", " + KEY_IS_PART + ", " + KEY_TYPE;
+
+  private static String buildBalanceKeyValues(String reference) {
+    return reference + "." + KEY_ACCOUNTID + ", "
+        + reference + "." + KEY_CR_STATUS + ", "
+        + reference + "." + KEY_PARENTID + " IS NOT NULL, "
+        + String.format(Locale.US, BALANCE_TYPE_TEMPLATE, reference);
+  }
+
+  private static String buildBalanceInsertAction(String reference) {
+    return "INSERT OR IGNORE INTO " + TABLE_ACCOUNT_BALANCES + " (" + BALANCE_KEY_COLUMNS + ") VALUES ("
+        + buildBalanceKeyValues(reference) + "); ";
+  }
+
+  /**
+   * @param reference new or old
+   * @param operator + or -
+   */
+  private static String buildBalanceUpdateAction(String reference, String operator) {
+    return "UPDATE " + TABLE_ACCOUNT_BALANCES + " SET "
+        + KEY_SUM + " = " + KEY_SUM + " " + operator + " " + reference + "." + KEY_AMOUNT + ", "
+        + KEY_ROW_COUNT + " = " + KEY_ROW_COUNT + " " + operator + " 1, "
+        + KEY_EXPORTED_COUNT + " = " + KEY_EXPORTED_COUNT + " " + operator + " (" + reference + "." + KEY_STATUS + " = " + STATUS_EXPORTED + ")"
+        + " WHERE " + KEY_ACCOUNTID + " = " + reference + "." + KEY_ACCOUNTID
+        + " AND " + KEY_CR_STATUS + " = " + reference + "." + KEY_CR_STATUS
+        + " AND " + KEY_IS_PART + " = (" + reference + "." + KEY_PARENTID + " IS NOT NULL)"
+        + " AND " + KEY_TYPE + " = " + String.format(Locale.US, BALANCE_TYPE_TEMPLATE, reference) + "; ";
+  }
+
+  /**
+   * columns that determine the contribution of a transaction to {@link DatabaseConstants#TABLE_ACCOUNT_BALANCES}
+   */
+  private static final String BALANCE_RELEVANT_COLUMNS = KEY_ACCOUNTID + ", " + KEY_AMOUNT + ", " + KEY_CATID + ", "
+      + KEY_PARENTID + ", " + KEY_TRANSFER_PEER + ", " + KEY_CR_STATUS + ", " + KEY_STATUS;
+
+  private static final String BALANCE_INSERT_TRIGGER_CREATE =
+      "CREATE TRIGGER insert_account_balance "
+          + "AFTER INSERT ON " + TABLE_TRANSACTIONS
+          + " WHEN new." + KEY_STATUS + " != " + STATUS_UNCOMMITTED
+          + " BEGIN " + buildBalanceInsertAction("new") + buildBalanceUpdateAction("new", "+") + "END;";
+
+  private static final String BALANCE_DELETE_TRIGGER_CREATE =
+      "CREATE TRIGGER delete_account_balance "
+          + "AFTER DELETE ON " + TABLE_TRANSACTIONS
+          + " WHEN old." + KEY_STATUS + " != " + STATUS_UNCOMMITTED
+          + " BEGIN " + buildBalanceUpdateAction("old", "-") + "END;";
+
+  private static final String BALANCE_UPDATE_REMOVE_TRIGGER_CREATE =
+      "CREATE TRIGGER update_remove_account_balance "
+          + "AFTER UPDATE OF " + BALANCE_RELEVANT_COLUMNS + " ON " + TABLE_TRANSACTIONS
+          + " WHEN old." + KEY_STATUS + " != " + STATUS_UNCOMMITTED
+          + " BEGIN " + buildBalanceUpdateAction("old", "-") + "END;";
+
+  private static final String BALANCE_UPDATE_ADD_TRIGGER_CREATE =
+      "CREATE TRIGGER update_add_account_balance "
+          + "AFTER UPDATE OF " + BALANCE_RELEVANT_COLUMNS + " ON " + TABLE_TRANSACTIONS
+          + " WHEN new." + KEY_STATUS + " != " + STATUS_UNCOMMITTED
+          + " BEGIN " + buildBalanceInsertAction("new") + buildBalanceUpdateAction("new", "+") + "END;";
+
+  /**
+   * recomputes from scratch what the balance triggers maintain incrementally
+   */
+  private static final String SELECT_ACCOUNT_BALANCES = "SELECT "
+      + buildBalanceKeyValues(TABLE_TRANSACTIONS) + ", "
+      + "sum(" + KEY_AMOUNT + "), count(*), sum(" + KEY_STATUS + " = " + STATUS_EXPORTED + ") FROM " + TABLE_TRANSACTIONS
+      + " WHERE " + KEY_STATUS + " != " + STATUS_UNCOMMITTED
+      + " GROUP BY 1, 2, 3, 4";
+
+  private static final String SELECT_STORED_ACCOUNT_BALANCES = "SELECT " + BALANCE_KEY_COLUMNS + ", "
+      + KEY_SUM + ", " + KEY_ROW_COUNT + ", " + KEY_EXPORTED_COUNT + " FROM " + TABLE_ACCOUNT_BALANCES
+      + " WHERE " + KEY_ROW_COUNT + " != 0";
+
   public static final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd", Locale.US);
   public static final SimpleDateFormat dateTimeFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US);
 
   TransactionDatabase(Context context) {
     super(context, getDbName(), null, DATABASE_VERSION);
     mCtx = context;
-    /*if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
-      setWriteAheadLoggingEnabled(true);
-    }*/
+  }
+
+  /**
+   * With write-ahead logging, the framework keeps a pool of read connections next to the
+   * connection used for writing, so that loaders are not blocked while sync, imports or plan
+   * execution hold a write transaction. The preference is read here and not in the constructor,
+   * since the provider is created before the application
+   */
+  @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+  @Override
+  public void onConfigure(SQLiteDatabase db) {
+    super.onConfigure(db);
+    if (isWriteAheadLoggingConfigured()) {
+      db.enableWriteAheadLogging();
+    } else {
+      db.disableWriteAheadLogging();
+    }
+  }
+
+  /**
+   * @return true if the database is opened with write-ahead logging, which requires Jelly Bean
+   */
+  public static boolean isWriteAheadLoggingConfigured() {
+    return Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN &&
+        PrefKey.DB_WRITE_AHEAD_LOGGING.getBoolean(true);
+  }
+
+  /**
+   * copies the pages collected in the write-ahead log back into the database file. Without WAL
+   * this is a no-op
+   *
+   * @param mode one of PASSIVE, which does not wait for readers or writers, or FULL, which blocks
+   *             until the log has been completely copied, so that the database file on its own is
+   *             consistent
+   * @return true if all pages of the log have been copied
+   */
+  static boolean checkpoint(SQLiteDatabase db, String mode) {
+    if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN || !db.isWriteAheadLoggingEnabled()) {
+      return true;
+    }
+    Cursor c = db.rawQuery("PRAGMA wal_checkpoint(" + mode + ")", null);
+    try {
+      if (c.moveToFirst()) {
+        Timber.d("Checkpoint %s: busy %d, log pages %d, checkpointed pages %d",
+            mode, c.getInt(0), c.getInt(1), c.getInt(2));
+        return c.getInt(0) == 0 && c.getInt(1) == c.getInt(2);
+      }
+      return false;
+    } finally {
+      c.close();
+    }
+  }
+
+  /**
+   * A checkpoint can not be run by a connection inside a transaction. While the provider holds a
+   * transaction in order to keep writers out, we checkpoint through a connection of our own, which
+   * has to wait neither for the writer nor for readers that already see all pages of the log.
+   *
+   * @param db     the database of the provider, which must be inside a transaction
+   * @param dbFile the file of db
+   * @return true if the database file on its own is complete, which it remains as long as the
+   * transaction is not ended
+   */
+  @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+  static boolean checkpointInTransaction(SQLiteDatabase db, File dbFile) {
+    if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN || !db.isWriteAheadLoggingEnabled()) {
+      return true;
+    }
+    //without localized collators, opening does not need to write android_metadata
+    SQLiteDatabase checkpointDb = SQLiteDatabase.openDatabase(dbFile.getPath(), null,
+        SQLiteDatabase.OPEN_READWRITE | SQLiteDatabase.NO_LOCALIZED_COLLATORS |
+            SQLiteDatabase.ENABLE_WRITE_AHEAD_LOGGING, new DatabaseErrorHandler() {
+          @Override
+          public void onCorruption(SQLiteDatabase dbObj) {
+            //the provider's own connection handles corruption
+          }
+        });
+    try {
+      //readers that started before the last commit hold back the checkpoint, but only briefly
+      for (int i = 0; i < CHECKPOINT_ATTEMPTS; i++) {
+        if (checkpoint(checkpointDb, "PASSIVE")) {
+          return true;
+        }
+        try {
+          Thread.sleep(CHECKPOINT_RETRY_DELAY);
+        } catch (InterruptedException e) {
+          return false;
+        }
+      }
+      return false;
+    } finally {
+      checkpointDb.close();
+    }
   }
 
   public static String getDbName() {
@@ -626,7 +935,15 @@ public class TransactionDatabase extends SQLiteOpenHelper {
     db.execSQL(STALE_URI_TRIGGER_CREATE);
     db.execSQL("CREATE INDEX transactions_cat_id_index on " + TABLE_TRANSACTIONS + "(" + KEY_CATID + ")");
     db.execSQL("CREATE INDEX templates_cat_id_index on " + TABLE_TEMPLATES + "(" + KEY_CATID + ")");
+    db.execSQL(TRANSACTIONS_ACCOUNT_PARENT_DATE_INDEX_CREATE);
+    db.execSQL("CREATE INDEX transactions_transfer_peer_index on " + TABLE_TRANSACTIONS + "(" + KEY_TRANSFER_PEER + ")");
+    db.execSQL("CREATE INDEX transactions_parent_id_index on " + TABLE_TRANSACTIONS + "(" + KEY_PARENTID + ")");
+    db.execSQL("CREATE INDEX transactions_payee_id_index on " + TABLE_TRANSACTIONS + "(" + KEY_PAYEEID + ")");
+    db.execSQL("CREATE INDEX transactions_method_id_index on " + TABLE_TRANSACTIONS + "(" + KEY_METHODID + ")");
     db.execSQL(CHANGES_CREATE);
+    db.execSQL(CHANGES_ACCOUNT_SEQUENCE_INDEX_CREATE);
+    createDateBucketIndexes(db);
+    db.execSQL(TRANSACTIONS_DATE_BUCKET_STATE_CREATE);
     db.execSQL("CREATE VIEW " + VIEW_CHANGES_EXTENDED + buildViewDefinitionExtended(TABLE_CHANGES));
     db.execSQL(TRANSACTIONS_INSERT_TRIGGER_CREATE);
     db.execSQL(TRANSACTIONS_INSERT_AFTER_UPDATE_TRIGGER_CREATE);
@@ -638,6 +955,11 @@ public class TransactionDatabase extends SQLiteOpenHelper {
     db.execSQL(INCREASE_ACCOUNT_USAGE_INSERT_TRIGGER);
     db.execSQL(INCREASE_ACCOUNT_USAGE_UPDATE_TRIGGER);
     db.execSQL(UPDATE_ACCOUNT_SYNC_NULL_TRIGGER);
+    db.execSQL(ACCOUNT_BALANCES_CREATE);
+    createOrRefreshAccountBalanceTriggers(db);
+    refreshDateBuckets(db, getDateBucketSignature());
+    createFullTextIndexes(db);
+    createPlanInfoCache(db);
   }
 
   private void insertCurrencies(SQLiteDatabase db) {
@@ -1502,6 +1824,254 @@ public class TransactionDatabase extends SQLiteOpenHelper {
       initialValues.put("code", CurrencyEnum.BYN.name());
       db.insert("currency", null, initialValues);
     }
+
+    if (oldVersion < 65) {
+      db.execSQL("CREATE TABLE account_balances ( account_id integer not null references accounts(_id) ON DELETE CASCADE, cr_status text not null, is_part boolean not null, type text not null, sum integer not null default 0, row_count integer not null default 0, exported_count integer not null default 0, primary key (account_id,cr_status,is_part,type));");
+      createOrRefreshAccountBalanceTriggers(db);
+      rebuildAccountBalances(db);
+    }
+
+    if (oldVersion < 66) {
+      db.execSQL("CREATE INDEX transactions_account_parent_date_index ON transactions(account_id,parent_id,date)");
+      db.execSQL("CREATE INDEX transactions_transfer_peer_index on transactions(transfer_peer)");
+      db.execSQL("CREATE INDEX transactions_parent_id_index on transactions(parent_id)");
+      db.execSQL("CREATE INDEX transactions_payee_id_index on transactions(payee_id)");
+      db.execSQL("CREATE INDEX transactions_method_id_index on transactions(method_id)");
+      db.execSQL("CREATE INDEX changes_account_sequence_index ON changes(account_id,sync_sequence_local)");
+    }
+
+    if (oldVersion < 67) {
+      db.execSQL("ALTER TABLE transactions add column year integer");
+      db.execSQL("ALTER TABLE transactions add column month integer");
+      db.execSQL("ALTER TABLE transactions add column year_of_month_start integer");
+      db.execSQL("ALTER TABLE transactions add column week integer");
+      db.execSQL("ALTER TABLE transactions add column year_of_week_start integer");
+      db.execSQL("ALTER TABLE transactions add column day integer");
+      db.execSQL("ALTER TABLE transactions add column week_start integer");
+      db.execSQL("ALTER TABLE transactions add column week_end integer");
+      db.execSQL("CREATE TABLE _date_bucket_state (signature text)");
+      //update_change_log must not fire when only date buckets are written
+      createOrRefreshChangelogTriggers(db);
+      createDateBucketIndexes(db);
+      refreshDateBuckets(db, getDateBucketSignature());
+    }
+
+    if (oldVersion < 68) {
+      createFullTextIndexes(db);
+    }
+
+    if (oldVersion < 69) {
+      createPlanInfoCache(db);
+    }
+
+    if (oldVersion < 70) {
+      createDateBucketTriggers(db, buildDateBucketAssignments());
+    }
+  }
+
+  private void createOrRefreshAccountBalanceTriggers(SQLiteDatabase db) {
+    db.execSQL("DROP TRIGGER IF EXISTS insert_account_balance");
+    db.execSQL("DROP TRIGGER IF EXISTS delete_account_balance");
+    db.execSQL("DROP TRIGGER IF EXISTS update_remove_account_balance");
+    db.execSQL("DROP TRIGGER IF EXISTS update_add_account_balance");
+    db.execSQL(BALANCE_INSERT_TRIGGER_CREATE);
+    db.execSQL(BALANCE_DELETE_TRIGGER_CREATE);
+    db.execSQL(BALANCE_UPDATE_REMOVE_TRIGGER_CREATE);
+    db.execSQL(BALANCE_UPDATE_ADD_TRIGGER_CREATE);
+  }
+
+  /**
+   * discards the content of {@link DatabaseConstants#TABLE_ACCOUNT_BALANCES} and recomputes it from
+   * the transactions table
+   */
+  static void rebuildAccountBalances(SQLiteDatabase db) {
+    db.beginTransaction();
+    try {
+      db.delete(TABLE_ACCOUNT_BALANCES, null, null);
+      db.execSQL("INSERT INTO " + TABLE_ACCOUNT_BALANCES + " (" + BALANCE_KEY_COLUMNS + ", "
+          + KEY_SUM + ", " + KEY_ROW_COUNT + ", " + KEY_EXPORTED_COUNT + ") " + SELECT_ACCOUNT_BALANCES);
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+  }
+
+  /**
+   * @return true if {@link DatabaseConstants#TABLE_ACCOUNT_BALANCES} matches the aggregates
+   * computed from the transactions table
+   */
+  static boolean verifyAccountBalances(SQLiteDatabase db) {
+    Cursor c = db.rawQuery("SELECT (SELECT count(*) FROM (" + SELECT_STORED_ACCOUNT_BALANCES + " EXCEPT "
+        + SELECT_ACCOUNT_BALANCES + ")) + (SELECT count(*) FROM (" + SELECT_ACCOUNT_BALANCES + " EXCEPT "
+        + SELECT_STORED_ACCOUNT_BALANCES + "))", null);
+    try {
+      return c.moveToFirst() && c.getInt(0) == 0;
+    } finally {
+      c.close();
+    }
+  }
+
+  /**
+   * creates the plan info cache with the triggers that remove entries when templates are deleted or
+   * change their plan
+   */
+  private void createPlanInfoCache(SQLiteDatabase db) {
+    db.execSQL(PLAN_INFO_CACHE_CREATE);
+    db.execSQL(PLAN_INFO_CACHE_TEMPLATE_DELETE_TRIGGER_CREATE);
+    db.execSQL(PLAN_INFO_CACHE_TEMPLATE_UPDATE_TRIGGER_CREATE);
+  }
+
+  /**
+   * creates the full text indexes for payees and for comments and reference numbers of
+   * transactions, fills them from the existing rows and installs the triggers that keep them in
+   * sync
+   */
+  private void createFullTextIndexes(SQLiteDatabase db) {
+    db.execSQL(PAYEES_FTS_CREATE);
+    db.execSQL("INSERT INTO " + TABLE_PAYEES_FTS + " (docid, " + KEY_PAYEE_NAME_NORMALIZED + ") SELECT "
+        + KEY_ROWID + ", " + KEY_PAYEE_NAME_NORMALIZED + " FROM " + TABLE_PAYEES);
+    db.execSQL(PAYEES_FTS_INSERT_TRIGGER_CREATE);
+    db.execSQL(PAYEES_FTS_UPDATE_TRIGGER_CREATE);
+    db.execSQL(PAYEES_FTS_DELETE_TRIGGER_CREATE);
+    db.execSQL(TRANSACTIONS_FTS_CREATE);
+    db.execSQL("INSERT INTO " + TABLE_TRANSACTIONS_FTS + " (docid, " + KEY_COMMENT + ", " + KEY_REFERENCE_NUMBER
+        + ") SELECT " + KEY_ROWID + ", " + KEY_COMMENT + ", " + KEY_REFERENCE_NUMBER + " FROM " + TABLE_TRANSACTIONS
+        + " WHERE " + KEY_COMMENT + " IS NOT NULL OR " + KEY_REFERENCE_NUMBER + " IS NOT NULL");
+    db.execSQL(TRANSACTIONS_FTS_INSERT_TRIGGER_CREATE);
+    db.execSQL(TRANSACTIONS_FTS_UPDATE_TRIGGER_CREATE);
+    db.execSQL(TRANSACTIONS_FTS_DELETE_TRIGGER_CREATE);
+  }
+
+  private void createDateBucketIndexes(SQLiteDatabase db) {
+    db.execSQL("CREATE INDEX transactions_account_year_day_index on " + TABLE_TRANSACTIONS
+        + "(" + KEY_ACCOUNTID + "," + KEY_YEAR + "," + KEY_DAY + ")");
+    db.execSQL("CREATE INDEX transactions_account_week_index on " + TABLE_TRANSACTIONS
+        + "(" + KEY_ACCOUNTID + "," + KEY_YEAR_OF_WEEK_START + "," + KEY_WEEK + ")");
+    db.execSQL("CREATE INDEX transactions_account_month_index on " + TABLE_TRANSACTIONS
+        + "(" + KEY_ACCOUNTID + "," + KEY_YEAR_OF_MONTH_START + "," + KEY_MONTH + ")");
+  }
+
+  /**
+   * the expressions depend on the week and month start preferences, and on the time zone,
+   * hence they can not be constants
+   */
+  private static String[][] buildDateBucketExpressions() {
+    return new String[][]{
+        {KEY_YEAR, YEAR},
+        {KEY_MONTH, getMonth()},
+        {KEY_YEAR_OF_MONTH_START, getYearOfMonthStart()},
+        {KEY_WEEK, getWeek()},
+        {KEY_YEAR_OF_WEEK_START, getYearOfWeekStart()},
+        {KEY_DAY, DAY},
+        {KEY_WEEK_START, getWeekStart()},
+        {KEY_WEEK_END, getWeekEnd()}
+    };
+  }
+
+  private static String buildDateBucketAssignments() {
+    StringBuilder assignments = new StringBuilder();
+    for (String[] column : buildDateBucketExpressions()) {
+      if (assignments.length() > 0) {
+        assignments.append(", ");
+      }
+      assignments.append(column[0]).append(" = ").append(column[1]);
+    }
+    return assignments.toString();
+  }
+
+  /**
+   * computes the date bucket columns for the date in values, so that they are written with the
+   * insert itself, instead of by a second update from the insert trigger. The computation mirrors
+   * the expressions in {@link DatabaseConstants}: days are shifted on the local calendar, keeping
+   * the time of day, and the week is numbered like strftime('%W') for the day the week starts on
+   */
+  static void putDateBuckets(ContentValues values) {
+    Long date = values.getAsLong(KEY_DATE);
+    if (date == null) {
+      return;
+    }
+    Calendar calendar = new GregorianCalendar();
+    calendar.setTimeInMillis(date * 1000);
+    values.put(KEY_YEAR, calendar.get(Calendar.YEAR));
+    values.put(KEY_DAY, calendar.get(Calendar.DAY_OF_YEAR));
+
+    Calendar monthStart = (Calendar) calendar.clone();
+    monthStart.add(Calendar.DAY_OF_MONTH, 1 - DatabaseConstants.getMonthStartsOn());
+    values.put(KEY_MONTH, monthStart.get(Calendar.MONTH) + 1);
+    values.put(KEY_YEAR_OF_MONTH_START, monthStart.get(Calendar.YEAR));
+
+    int daysSinceWeekStart =
+        (calendar.get(Calendar.DAY_OF_WEEK) - DatabaseConstants.getWeekStartsOn() + 7) % 7;
+    Calendar weekStart = (Calendar) calendar.clone();
+    weekStart.add(Calendar.DAY_OF_MONTH, -daysSinceWeekStart);
+    //strftime('%W') counts weeks starting on Monday, days before the first Monday are in week 0
+    int daysSinceMonday = (weekStart.get(Calendar.DAY_OF_WEEK) + 5) % 7;
+    values.put(KEY_WEEK, (weekStart.get(Calendar.DAY_OF_YEAR) - 1 + 7 - daysSinceMonday) / 7);
+    values.put(KEY_YEAR_OF_WEEK_START, weekStart.get(Calendar.YEAR));
+    values.put(KEY_WEEK_START, weekStart.getTimeInMillis() / 1000);
+    //shifted from the date itself, since the time of day might have moved on the week start, if it
+    //does not exist there due to a daylight saving transition
+    Calendar weekEnd = (Calendar) calendar.clone();
+    weekEnd.add(Calendar.DAY_OF_MONTH, 6 - daysSinceWeekStart);
+    values.put(KEY_WEEK_END, weekEnd.getTimeInMillis() / 1000);
+  }
+
+  /**
+   * rows inserted with their date buckets are left alone by the insert trigger, it only fills them
+   * in for rows written without going through {@link TransactionProvider#insert}
+   */
+  private static void createDateBucketTriggers(SQLiteDatabase db, String assignments) {
+    db.execSQL("DROP TRIGGER IF EXISTS insert_date_buckets");
+    db.execSQL("DROP TRIGGER IF EXISTS update_date_buckets");
+    db.execSQL("CREATE TRIGGER insert_date_buckets AFTER INSERT ON " + TABLE_TRANSACTIONS
+        + " WHEN new." + KEY_YEAR + " IS NULL"
+        + " BEGIN UPDATE " + TABLE_TRANSACTIONS + " SET " + assignments
+        + " WHERE " + KEY_ROWID + " = new." + KEY_ROWID + "; END;");
+    db.execSQL("CREATE TRIGGER update_date_buckets AFTER UPDATE OF " + KEY_DATE + " ON " + TABLE_TRANSACTIONS
+        + " BEGIN UPDATE " + TABLE_TRANSACTIONS + " SET " + assignments
+        + " WHERE " + KEY_ROWID + " = new." + KEY_ROWID + "; END;");
+  }
+
+  /**
+   * recreates the triggers that maintain the date bucket columns with the current settings,
+   * recomputes the buckets for all transactions and stores the signature of these settings
+   */
+  private static void refreshDateBuckets(SQLiteDatabase db, String signature) {
+    String assignments = buildDateBucketAssignments();
+    db.beginTransaction();
+    try {
+      createDateBucketTriggers(db, assignments);
+      db.execSQL("UPDATE " + TABLE_TRANSACTIONS + " SET " + assignments);
+      db.delete(TABLE_DATE_BUCKET_STATE, null, null);
+      ContentValues v = new ContentValues(1);
+      v.put(KEY_SIGNATURE, signature);
+      db.insert(TABLE_DATE_BUCKET_STATE, null, v);
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+  }
+
+  /**
+   * refreshes the date buckets if they have been computed with other settings than the ones
+   * identified by signature
+   * @return true if a refresh was needed
+   */
+  static boolean ensureDateBuckets(SQLiteDatabase db, String signature) {
+    Cursor c = db.query(TABLE_DATE_BUCKET_STATE, new String[]{KEY_SIGNATURE}, null, null, null, null, null);
+    String stored = null;
+    try {
+      if (c.moveToFirst()) {
+        stored = c.getString(0);
+      }
+    } finally {
+      c.close();
+    }
+    if (signature.equals(stored)) {
+      return false;
+    }
+    refreshDateBuckets(db, signature);
+    return true;
   }
 
   private void createOrRefreshChangelogTriggers(SQLiteDatabase db) {
@@ -22,6 +22,8 @@ import android.content.ContentValues;
 import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
 import android.database.sqlite.SQLiteConstraintException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteQueryBuilder;
@@ -52,21 +54,30 @@ import org.totschnig.myexpenses.sync.json.TransactionChange;
 import org.totschnig.myexpenses.util.AcraHelper;
 import org.totschnig.myexpenses.util.BackupUtils;
 import org.totschnig.myexpenses.util.FileCopyUtils;
-import org.totschnig.myexpenses.util.PlanInfoCursorWrapper;
 import org.totschnig.myexpenses.util.Result;
 import org.totschnig.myexpenses.util.Utils;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Currency;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import timber.log.Timber;
 
-import static org.totschnig.myexpenses.provider.DatabaseConstants.DAY;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.BALANCE_EXPENSES;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.BALANCE_INCOME;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.BALANCE_TOTAL;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.EXPENSE_SUM;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.HAS_EXPORTED;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.HAS_FUTURE;
@@ -83,6 +94,7 @@ import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_CR_STATUS;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_CURRENCY;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_CURRENT_BALANCE;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_DATE;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_DAY;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_DESCRIPTION;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_EXCLUDE_FROM_TOTALS;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_GROUPING;
@@ -96,6 +108,7 @@ import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_LABEL;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_LAST_USED;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_MAPPED_CATEGORIES;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_METHODID;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_MONTH;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_OPENING_BALANCE;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_PARENTID;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_PARENT_UUID;
@@ -122,9 +135,11 @@ import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_TRANSFER_P
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_TYPE;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_USAGES;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_UUID;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_WEEK;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_YEAR;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_YEAR_OF_MONTH_START;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_YEAR_OF_WEEK_START;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.MAPPED_CATEGORIES;
-import static org.totschnig.myexpenses.provider.DatabaseConstants.SELECT_AMOUNT_SUM;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.SPLIT_CATID;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_ACCOUNTS;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_ACCOUNTTYES_METHODS;
@@ -134,6 +149,7 @@ import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_CURRENCI
 import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_EVENT_CACHE;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_METHODS;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_PAYEES;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_PLAN_INFO_CACHE;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_PLAN_INSTANCE_STATUS;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_STALE_URIS;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_SYNC_STATE;
@@ -146,20 +162,10 @@ import static org.totschnig.myexpenses.provider.DatabaseConstants.VIEW_COMMITTED
 import static org.totschnig.myexpenses.provider.DatabaseConstants.VIEW_EXTENDED;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.VIEW_TEMPLATES_EXTENDED;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.VIEW_UNCOMMITTED;
-import static org.totschnig.myexpenses.provider.DatabaseConstants.WHERE_DEPENDENT;
-import static org.totschnig.myexpenses.provider.DatabaseConstants.WHERE_EXPENSE;
-import static org.totschnig.myexpenses.provider.DatabaseConstants.WHERE_INCOME;
-import static org.totschnig.myexpenses.provider.DatabaseConstants.WHERE_IN_PAST;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.WHERE_NOT_SPLIT;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.WHERE_NOT_VOID;
-import static org.totschnig.myexpenses.provider.DatabaseConstants.WHERE_SELF_OR_DEPENDENT;
-import static org.totschnig.myexpenses.provider.DatabaseConstants.WHERE_SELF_OR_PEER;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.WHERE_TRANSACTION;
-import static org.totschnig.myexpenses.provider.DatabaseConstants.YEAR;
-import static org.totschnig.myexpenses.provider.DatabaseConstants.getMonth;
-import static org.totschnig.myexpenses.provider.DatabaseConstants.getWeek;
-import static org.totschnig.myexpenses.provider.DatabaseConstants.getYearOfMonthStart;
-import static org.totschnig.myexpenses.provider.DatabaseConstants.getYearOfWeekStart;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.getDateBucketSignature;
 
 public class TransactionProvider extends ContentProvider {
 
@@ -204,6 +210,11 @@ public class TransactionProvider extends ContentProvider {
       Uri.parse("content://" + AUTHORITY + "/transactions/sumsForAccountsGroupedByType");
   public static final Uri EVENT_CACHE_URI =
       Uri.parse("content://" + AUTHORITY + "/eventcache");
+  /**
+   * supports only delete, for invalidating the cached info of edited plans
+   */
+  public static final Uri PLAN_INFO_CACHE_URI =
+      Uri.parse("content://" + AUTHORITY + "/planinfocache");
   public static final Uri DEBUG_SCHEMA_URI =
       Uri.parse("content://" + AUTHORITY + "/debug_schema");
   public static final Uri STALE_IMAGES_URI =
@@ -211,6 +222,12 @@ public class TransactionProvider extends ContentProvider {
   public static final Uri MAPPED_TRANSFER_ACCOUNTS_URI =
       Uri.parse("content://" + AUTHORITY + "/transfer_account_transactions");
   public static final Uri CHANGES_URI = Uri.parse("content://" + AUTHORITY + "/changes");
+  /**
+   * operations on all transactions matching the selection passed in, with the same handling of
+   * transfer peers and split parts as the corresponding operations on a single transaction
+   */
+  public static final Uri TRANSACTIONS_BULK_URI =
+      Uri.parse("content://" + AUTHORITY + "/transactions/bulk");
   /**
    * select info from DB without table, e.g. CategoryList#DATEINFO_CURSOR
    * or set control flags like sync_state
@@ -237,10 +254,50 @@ public class TransactionProvider extends ContentProvider {
   public static final String QUERY_PARAMETER_MERGE_TRANSFERS = "mergeTransfers";
   public static final String QUERY_PARAMETER_SYNC_BEGIN = "syncBegin";
   public static final String QUERY_PARAMETER_SYNC_END = "syncEnd";
+  /**
+   * maximum number of rows returned for {@link #TRANSACTIONS_URI}, used for paging
+   */
+  public static final String QUERY_PARAMETER_LIMIT = "limit";
   public static final String METHOD_INIT = "init";
+  /**
+   * verifies the account balance aggregates and rebuilds them if they are out of sync,
+   * the returned bundle holds under {@link #KEY_RESULT} false if a rebuild was needed
+   */
+  public static final String METHOD_REPAIR_ACCOUNT_BALANCES = "repairAccountBalances";
+  public static final String KEY_RESULT = "result";
+  /**
+   * while a bulk operation is in progress, change notifications are collected and each distinct uri
+   * is notified once when it is ended with {@link #METHOD_BULK_END}. Only changes made by the calling
+   * thread are collected, hence both methods must be called on the thread that does the writes
+   */
+  public static final String METHOD_BULK_START = "bulkStart";
+  public static final String METHOD_BULK_END = "bulkEnd";
+  /**
+   * the returned bundle holds the number of notifications that have been suppressed by batching
+   * under {@link #KEY_NOTIFICATIONS_SUPPRESSED} and the number of notifications actually sent
+   * under {@link #KEY_NOTIFICATIONS_EMITTED}
+   */
+  public static final String METHOD_NOTIFICATION_STATS = "notificationStats";
+  public static final String KEY_NOTIFICATIONS_SUPPRESSED = "notificationsSuppressed";
+  public static final String KEY_NOTIFICATIONS_EMITTED = "notificationsEmitted";
+  /**
+   * computes the next instance and the description of plans missing from the plan info cache, which
+   * {@link #TEMPLATES_URI} queried with {@link #QUERY_PARAMETER_WITH_PLAN_INFO} only reads. With
+   * {@link #ARG_INVALIDATE} as argument, all entries are recomputed, which is needed after the
+   * calendar has changed. Since it queries the calendar, it must not be called on the UI thread
+   */
+  public static final String METHOD_REFRESH_PLAN_INFO = "refreshPlanInfo";
+  public static final String ARG_INVALIDATE = "invalidate";
 
   static final String TAG = "TransactionProvider";
 
+  /**
+   * batches with at least this number of operations are followed by a checkpoint, so that the
+   * write-ahead log does not grow without bounds during sync and import
+   */
+  private static final int CHECKPOINT_BATCH_SIZE = 500;
+  private static final int BACKUP_BUFFER_SIZE = 64 * 1024;
+
   private static final UriMatcher URI_MATCHER;
   //Basic tables
   private static final int TRANSACTIONS = 1;
@@ -282,9 +339,43 @@ public class TransactionProvider extends ContentProvider {
   private static final int ACCOUNTS_SWAP_SORT_KEY = 40;
   private static final int MAPPED_TRANSFER_ACCOUNTS = 41;
   private static final int CHANGES = 42;
+  private static final int TRANSACTIONS_BULK = 43;
+  private static final int TRANSACTIONS_BULK_UNDELETE = 44;
+  private static final int TRANSACTIONS_BULK_MOVE = 45;
+  private static final int PLAN_INFO_CACHE = 47;
 
 
   private boolean mDirty = false;
+  /**
+   * counts the writes, so that a backup only clears the dirty flag if nothing has been written
+   * since it started
+   */
+  private long dataVersion = 0;
+  private long backedUpDataVersion = -1;
+  private QueryListener queryListener;
+  private volatile String dateBucketSignature;
+
+  /**
+   * batches are tracked per thread, since the provider is called concurrently from the UI, the
+   * sync adapter and import tasks, and only the changes a thread makes itself are held back
+   */
+  private final ThreadLocal<NotificationBatch> notificationBatch = new ThreadLocal<NotificationBatch>() {
+    @Override
+    protected NotificationBatch initialValue() {
+      return new NotificationBatch();
+    }
+  };
+  private final AtomicLong suppressedNotifications = new AtomicLong();
+  private final AtomicLong emittedNotifications = new AtomicLong();
+
+  private static class NotificationBatch {
+    private int depth = 0;
+    /**
+     * uris that have changed while notifications are batched, mapped to whether the change should
+     * be synced to network
+     */
+    private final Map<Uri, Boolean> pending = new LinkedHashMap<>();
+  }
 
   @Override
   public boolean onCreate() {
@@ -294,9 +385,26 @@ public class TransactionProvider extends ContentProvider {
 
   private void initOpenHelper() {
     mOpenHelper = new TransactionDatabase(getContext());
+    dateBucketSignature = null;
+  }
+
+  /**
+   * the date bucket columns on transactions are computed with the week and month start preferences
+   * and the time zone in effect when the row was written. If any of them has changed since, they
+   * are recomputed before we serve the next query
+   */
+  private void ensureDateBuckets() {
+    String signature = getDateBucketSignature();
+    if (!signature.equals(dateBucketSignature)) {
+      if (TransactionDatabase.ensureDateBuckets(mOpenHelper.getWritableDatabase(), signature)) {
+        Timber.i("Date buckets recomputed for %s", signature);
+      }
+      dateBucketSignature = signature;
+    }
   }
 
-  private void setDirty() {
+  private synchronized void setDirty() {
+    dataVersion++;
     if (!mDirty) {
       mDirty = true;
       MyApplication.markDataDirty();
@@ -308,6 +416,7 @@ public class TransactionProvider extends ContentProvider {
                       String[] selectionArgs, String sortOrder) {
     SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
     SQLiteDatabase db;
+    ensureDateBuckets();
     db = mOpenHelper.getReadableDatabase();
 
     Cursor c;
@@ -320,6 +429,7 @@ public class TransactionProvider extends ContentProvider {
 
     String accountSelectionQuery;
     String accountSelector;
+    String interimBalanceOpeningQuery = null, interimBalanceDeltaQuery = null, interimBalanceAccountSelector = null;
     int uriMatch = URI_MATCHER.match(uri);
     switch (uriMatch) {
       case TRANSACTIONS:
@@ -338,6 +448,7 @@ public class TransactionProvider extends ContentProvider {
           selection = selection == null ? mergeTransferSelection :
               selection + " AND (" + mergeTransferSelection + ")";
         }
+        limit = uri.getQueryParameter(QUERY_PARAMETER_LIMIT);
         break;
       case UNCOMMITTED:
         qb.setTables(VIEW_UNCOMMITTED);
@@ -385,16 +496,17 @@ public class TransactionProvider extends ContentProvider {
         } catch (IllegalArgumentException e) {
           group = Grouping.NONE;
         }
+        //date buckets are read from the columns maintained by triggers on the transactions table
         String yearExpression;
         switch (group) {
           case WEEK:
-            yearExpression = getYearOfWeekStart();
+            yearExpression = KEY_YEAR_OF_WEEK_START;
             break;
           case MONTH:
-            yearExpression = getYearOfMonthStart();
+            yearExpression = KEY_YEAR_OF_MONTH_START;
             break;
           default:
-            yearExpression = YEAR;
+            yearExpression = KEY_YEAR;
         }
 //      String secondColumnAlias = " AS " + KEY_SECOND_GROUP;
 //      if (group.equals(Grouping.NONE)) {
@@ -413,7 +525,6 @@ public class TransactionProvider extends ContentProvider {
 //                + " + coalesce(sum(CASE WHEN " + WHERE_NOT_SPLIT + " THEN " + KEY_AMOUNT + " ELSE 0 END),0) AS " + KEY_INTERIM_BALANCE
 //        };
 //      } else {
-        String subGroupBy = KEY_YEAR + "," + KEY_SECOND_GROUP;
         String secondDef = "";
 
         switch (group) {
@@ -422,19 +533,20 @@ public class TransactionProvider extends ContentProvider {
             secondDef = "1";
             break;
           case DAY:
-            secondDef = DAY;
+            secondDef = KEY_DAY;
             break;
           case WEEK:
-            secondDef = getWeek();
+            secondDef = KEY_WEEK;
             break;
           case MONTH:
-            secondDef = getMonth();
+            secondDef = KEY_MONTH;
             break;
           case YEAR:
             secondDef = "1";
-            subGroupBy = KEY_YEAR;
             break;
         }
+        //group by the source columns, since the alias year could be resolved to the column of the same name
+        String subGroupBy = secondDef.equals("1") ? yearExpression : yearExpression + "," + secondDef;
         qb.setTables("(SELECT "
             + yearExpression + " AS " + KEY_YEAR + ","
             + secondDef + " AS " + KEY_SECOND_GROUP + ","
@@ -453,29 +565,25 @@ public class TransactionProvider extends ContentProvider {
         projection[3] = KEY_SUM_EXPENSES;
         projection[4] = KEY_SUM_TRANSFERS;
         projection[5] = KEY_MAPPED_CATEGORIES;
-        String[] accountArgs;
+        //the interim balance is filled in after the query by computeInterimBalance
+        projection[6] = "0 AS " + KEY_INTERIM_BALANCE;
         if (!isFiltered) {
-          String openingBalanceSubQuery =
-              "(SELECT sum(" + KEY_OPENING_BALANCE + ") FROM " + TABLE_ACCOUNTS + " WHERE " + accountSelectionQueryOpeningBalance + ")";
-          String deltaExpr = "(SELECT sum(amount) FROM "
-              + VIEW_EXTENDED
+          interimBalanceOpeningQuery = "SELECT sum(" + KEY_OPENING_BALANCE + ") FROM " + TABLE_ACCOUNTS
+              + " WHERE " + accountSelectionQueryOpeningBalance;
+          //if the groups are restricted by a selection, they do not reflect all transactions that
+          //make up the balance, so we need the deltas from a separate query
+          interimBalanceDeltaQuery = selection == null ? null : "SELECT "
+              + yearExpression + ", " + secondDef + ", sum(" + KEY_AMOUNT + ") FROM " + VIEW_EXTENDED
               + " WHERE " + accountSelectionQuery + " AND " + WHERE_NOT_SPLIT + " AND " + WHERE_NOT_VOID
-              + " AND (" + yearExpression + " < " + KEY_YEAR + " OR "
-              + "(" + yearExpression + " = " + KEY_YEAR + " AND "
-              + secondDef + " <= " + KEY_SECOND_GROUP + ")))";
-          projection[6] = openingBalanceSubQuery + " + " + deltaExpr + " AS " + KEY_INTERIM_BALANCE;
-          accountArgs = new String[]{accountSelector, accountSelector, accountSelector};
-        } else {
-          projection[6] = "0 AS " + KEY_INTERIM_BALANCE;//ignored
-          accountArgs = new String[]{accountSelector};
+              + " GROUP BY " + subGroupBy;
+          interimBalanceAccountSelector = accountSelector;
         }
         defaultOrderBy = KEY_YEAR + " DESC," + KEY_SECOND_GROUP + " DESC";
         //CAST(strftime('%Y',date) AS integer)
-        //the accountId is used three times , once in the table subquery, twice in the KEY_INTERIM_BALANCE subquery
-        //(first in the where clause, second in the subselect for the opening balance),
+        //the accountId is used in the table subquery
         Timber.d("SelectionArgs before join : %s", Arrays.toString(selectionArgs));
         selectionArgs = Utils.joinArrays(
-            accountArgs,
+            new String[]{accountSelector},
             selectionArgs);
         //selection is used in the inner table, needs to be set to null for outer query
         selection = null;
@@ -509,13 +617,10 @@ public class TransactionProvider extends ContentProvider {
               KEY_ROWID + "," +
               KEY_CURRENCY + "," +
               KEY_OPENING_BALANCE + "," +
-              KEY_OPENING_BALANCE + " + (" + SELECT_AMOUNT_SUM +
-              " AND " + WHERE_NOT_SPLIT +
-              " AND " + WHERE_IN_PAST + " ) AS " + KEY_CURRENT_BALANCE + ", " +
-              KEY_OPENING_BALANCE + " + (" + SELECT_AMOUNT_SUM +
-              " AND " + WHERE_NOT_SPLIT + " ) AS " + KEY_TOTAL + ", " +
-              "(" + SELECT_AMOUNT_SUM + " AND " + WHERE_EXPENSE + ") AS " + KEY_SUM_EXPENSES + "," +
-              "(" + SELECT_AMOUNT_SUM + " AND " + WHERE_INCOME + ") AS " + KEY_SUM_INCOME + ", " +
+              Account.CURRENT_BALANCE_EXPR + " AS " + KEY_CURRENT_BALANCE + ", " +
+              KEY_OPENING_BALANCE + " + " + BALANCE_TOTAL + " AS " + KEY_TOTAL + ", " +
+              BALANCE_EXPENSES + " AS " + KEY_SUM_EXPENSES + "," +
+              BALANCE_INCOME + " AS " + KEY_SUM_INCOME + ", " +
               HAS_EXPORTED + ", " +
               HAS_FUTURE +
               " FROM " + TABLE_ACCOUNTS + " WHERE " + KEY_EXCLUDE_FROM_TOTALS + " = 0) as t");
@@ -575,7 +680,7 @@ public class TransactionProvider extends ContentProvider {
               new String[]{accountSubquery, currencySubquery},
               sortOrder,
               null);
-          c = db.rawQuery(sql, null);
+          c = rawQuery(db, sql, null);
           Timber.d("Query : %s", sql);
 
           c.setNotificationUri(getContext().getContentResolver(), uri);
@@ -701,6 +806,12 @@ public class TransactionProvider extends ContentProvider {
         defaultOrderBy = Utils.defaultOrderBy(KEY_TITLE, PrefKey.SORT_ORDER_TEMPLATES);
         if (projection == null)
           projection = Template.PROJECTION_EXTENDED;
+        if (uri.getQueryParameter(QUERY_PARAMETER_WITH_PLAN_INFO) != null) {
+          projection = PlanInfoCache.extendProjection(projection);
+          if (defaultOrderBy == null) {
+            defaultOrderBy = PlanInfoCache.ORDER_BY_NEXT_INSTANCE;
+          }
+        }
         break;
       case TEMPLATE_ID:
         qb.setTables(VIEW_TEMPLATES_EXTENDED);
@@ -767,8 +878,15 @@ public class TransactionProvider extends ContentProvider {
         break;
       case CHANGES:
         String sequence = uri.getQueryParameter(KEY_SYNC_SEQUENCE_LOCAL);
-        selection = KEY_ACCOUNTID + " = ? AND " + KEY_SYNC_SEQUENCE_LOCAL + " = ?";
-        selectionArgs = new String[]{uri.getQueryParameter(KEY_ACCOUNTID), sequence};
+        String[] accountSelectionArgs = new String[]{uri.getQueryParameter(KEY_ACCOUNTID)};
+        if (sequence != null) {
+          selection = KEY_ACCOUNTID + " = ? AND " + KEY_SYNC_SEQUENCE_LOCAL + " = ?";
+          selectionArgs = Utils.joinArrays(accountSelectionArgs, new String[]{sequence});
+        } else {
+          //caller restricts the range of sequences itself
+          selection = KEY_ACCOUNTID + " = ?" + (TextUtils.isEmpty(selection) ? "" : " AND (" + selection + ")");
+          selectionArgs = Utils.joinArrays(accountSelectionArgs, selectionArgs);
+        }
         qb.setTables(VIEW_CHANGES_EXTENDED);
         if (projection == null) {
           projection = TransactionChange.PROJECTION;
@@ -792,17 +910,95 @@ public class TransactionProvider extends ContentProvider {
       Timber.d("SelectionArgs : %s", Arrays.toString(selectionArgs));
     }
     //long startTime = System.nanoTime();
+    if (queryListener != null) {
+      @SuppressWarnings("deprecation")
+      String qs = qb.buildQuery(projection, selection, null, groupBy, having, orderBy, limit);
+      queryListener.onQuery(qs, selectionArgs);
+    }
     c = qb.query(db, projection, selection, selectionArgs, groupBy, having, orderBy, limit);
     //long endTime = System.nanoTime();
     //Log.d("TIMER",uri.toString() + Arrays.toString(selectionArgs) + " : "+(endTime-startTime));
 
-    if (uriMatch == TEMPLATES && uri.getQueryParameter(QUERY_PARAMETER_WITH_PLAN_INFO) != null) {
-      c = new PlanInfoCursorWrapper(getContext(), c, defaultOrderBy == null);
+    if (interimBalanceOpeningQuery != null) {
+      c = computeInterimBalance(db, c, interimBalanceOpeningQuery, interimBalanceDeltaQuery,
+          interimBalanceAccountSelector);
     }
     c.setNotificationUri(getContext().getContentResolver(), uri);
     return c;
   }
 
+  /**
+   * packs year and second group into a key that sorts chronologically, second group is at most 366
+   */
+  private static long groupKey(long year, long second) {
+    return year * 1000 + second;
+  }
+
+  /**
+   * The interim balance of a group is the opening balance plus the sum of all transactions up to
+   * and including the group. Instead of computing this sum for each group with a subquery, we
+   * accumulate the group deltas in one pass in chronological order.
+   *
+   * @param groups     result of the {@link #TRANSACTIONS_GROUPS} query, will be closed
+   * @param deltaQuery if null, the deltas are derived from the sums of the groups themselves,
+   *                   otherwise it must return year, second group and delta for all groups
+   * @return a cursor with the same columns and rows as groups, with the interim balance filled in
+   */
+  private Cursor computeInterimBalance(SQLiteDatabase db, Cursor groups, String openingBalanceQuery,
+                                       String deltaQuery, String accountSelector) {
+    String[] selectionArgs = new String[]{accountSelector};
+    long openingBalance = 0;
+    Cursor c = rawQuery(db, openingBalanceQuery, selectionArgs);
+    if (c.moveToFirst()) {
+      openingBalance = c.getLong(0);
+    }
+    c.close();
+    int columnIndexYear = groups.getColumnIndex(KEY_YEAR);
+    int columnIndexSecond = groups.getColumnIndex(KEY_SECOND_GROUP);
+    int columnIndexInterim = groups.getColumnIndex(KEY_INTERIM_BALANCE);
+    TreeMap<Long, Long> balances = new TreeMap<>();
+    if (deltaQuery == null) {
+      int columnIndexIncome = groups.getColumnIndex(KEY_SUM_INCOME);
+      int columnIndexExpenses = groups.getColumnIndex(KEY_SUM_EXPENSES);
+      int columnIndexTransfers = groups.getColumnIndex(KEY_SUM_TRANSFERS);
+      //income, expenses and transfers together cover all transactions that are not split or void,
+      //expenses are reported as absolute value
+      while (groups.moveToNext()) {
+        balances.put(groupKey(groups.getLong(columnIndexYear), groups.getLong(columnIndexSecond)),
+            groups.getLong(columnIndexIncome) - groups.getLong(columnIndexExpenses) +
+                groups.getLong(columnIndexTransfers));
+      }
+    } else {
+      c = rawQuery(db, deltaQuery, selectionArgs);
+      while (c.moveToNext()) {
+        balances.put(groupKey(c.getLong(0), c.getLong(1)), c.getLong(2));
+      }
+      c.close();
+    }
+    long running = openingBalance;
+    for (Map.Entry<Long, Long> entry : balances.entrySet()) {
+      running += entry.getValue();
+      entry.setValue(running);
+    }
+    String[] columnNames = groups.getColumnNames();
+    MatrixCursor result = new MatrixCursor(columnNames, groups.getCount());
+    Object[] row = new Object[columnNames.length];
+    groups.moveToPosition(-1);
+    while (groups.moveToNext()) {
+      for (int i = 0; i < columnNames.length; i++) {
+        if (i == columnIndexInterim) {
+          Long balance = balances.get(groupKey(groups.getLong(columnIndexYear), groups.getLong(columnIndexSecond)));
+          row[i] = balance == null ? openingBalance : balance;
+        } else {
+          row[i] = groups.isNull(i) ? null : groups.getLong(i);
+        }
+      }
+      result.addRow(row);
+    }
+    groups.close();
+    return result;
+  }
+
   @Override
   public String getType(@NonNull Uri uri) {
     return null;
@@ -824,6 +1020,9 @@ public class TransactionProvider extends ContentProvider {
     int uriMatch = URI_MATCHER.match(uri);
     switch (uriMatch) {
       case TRANSACTIONS:
+        if (values != null) {
+          TransactionDatabase.putDateBuckets(values);
+        }
         id = db.insertOrThrow(TABLE_TRANSACTIONS, null, values);
         newUri = TRANSACTIONS_URI + "/" + id;
         break;
@@ -924,44 +1123,12 @@ public class TransactionProvider extends ContentProvider {
         break;
       case TRANSACTION_ID:
         //maybe TODO ?: where and whereArgs are ignored
-        segment = uri.getPathSegments().get(1);
-        //when we are deleting a transfer whose peer is part of a split, we cannot the delete the peer,
-        //because the split would be left in an invalid state, hence we transform the peer to a normal split part
-        //first we find out the account label
-        db.beginTransaction();
-        try {
-          Cursor c = db.query(
-              TABLE_ACCOUNTS,
-              new String[]{KEY_LABEL},
-              KEY_ROWID + " = (SELECT " + KEY_ACCOUNTID + " FROM " + TABLE_TRANSACTIONS + " WHERE " + KEY_ROWID + " = ?)",
-              new String[]{segment},
-              null, null, null);
-          c.moveToFirst();
-          //cursor should not be empty, but has been observed to be (bug report 67a7942fe8b6c9c96859b226767a9000)
-          String accountLabel = c.moveToFirst() ? c.getString(0) : "UNKNOWN";
-          c.close();
-          ContentValues args = new ContentValues();
-          args.put(KEY_COMMENT, getContext().getString(R.string.peer_transaction_deleted, accountLabel));
-          args.putNull(KEY_TRANSFER_ACCOUNT);
-          args.putNull(KEY_TRANSFER_PEER);
-          db.update(TABLE_TRANSACTIONS,
-              args,
-              KEY_TRANSFER_PEER + " = ? AND " + KEY_PARENTID + " IS NOT null",
-              new String[]{segment});
-          //we delete the transaction, its children and its transfer peer, and transfer peers of its children
-          if (uri.getQueryParameter(QUERY_PARAMETER_MARK_VOID) == null) {
-            //we delete the parent separately, so that the changes trigger can correctly record the parent uuid
-            count = db.delete(TABLE_TRANSACTIONS, WHERE_DEPENDENT, new String[]{segment, segment});
-            count += db.delete(TABLE_TRANSACTIONS, WHERE_SELF_OR_PEER, new String[]{segment, segment});
-          } else {
-            ContentValues v = new ContentValues();
-            v.put(KEY_CR_STATUS, Transaction.CrStatus.VOID.name());
-            count = db.update(TABLE_TRANSACTIONS, v, WHERE_SELF_OR_DEPENDENT, new String[]{segment, segment, segment});
-          }
-          db.setTransactionSuccessful();
-        } finally {
-          db.endTransaction();
-        }
+        count = deleteTransactions(db, uri.getPathSegments().get(1),
+            uri.getQueryParameter(QUERY_PARAMETER_MARK_VOID) != null);
+        break;
+      case TRANSACTIONS_BULK:
+        count = deleteTransactions(db, resolveTransactionIds(db, where, whereArgs),
+            uri.getQueryParameter(QUERY_PARAMETER_MARK_VOID) != null);
         break;
       case TEMPLATES:
         count = db.delete(TABLE_TEMPLATES, where, whereArgs);
@@ -1007,6 +1174,9 @@ public class TransactionProvider extends ContentProvider {
         count = db.delete(TABLE_CATEGORIES, "_id=" + segment + whereString,
             whereArgs);
         break;
+      case PAYEES:
+        count = db.delete(TABLE_PAYEES, where, whereArgs);
+        break;
       case PAYEE_ID:
         segment = uri.getPathSegments().get(1);
         if (!TextUtils.isEmpty(where)) {
@@ -1017,6 +1187,9 @@ public class TransactionProvider extends ContentProvider {
         count = db.delete(TABLE_PAYEES, "_id=" + segment + whereString,
             whereArgs);
         break;
+      case METHODS:
+        count = db.delete(TABLE_METHODS, where, whereArgs);
+        break;
       case METHOD_ID:
         segment = uri.getPathSegments().get(1);
         if (!TextUtils.isEmpty(where)) {
@@ -1033,6 +1206,9 @@ public class TransactionProvider extends ContentProvider {
       case EVENT_CACHE:
         count = db.delete(TABLE_EVENT_CACHE, where, whereArgs);
         break;
+      case PLAN_INFO_CACHE:
+        count = db.delete(TABLE_PLAN_INFO_CACHE, where, whereArgs);
+        break;
       case STALE_IMAGES_ID:
         segment = uri.getPathSegments().get(1);
         count = db.delete(TABLE_STALE_URIS, "rowid=" + segment, null);
@@ -1054,10 +1230,12 @@ public class TransactionProvider extends ContentProvider {
       default:
         throw unknownUri(uri);
     }
-    if (uriMatch == TRANSACTIONS || uriMatch == TRANSACTION_ID) {
+    if (uriMatch == TRANSACTIONS || uriMatch == TRANSACTION_ID || uriMatch == TRANSACTIONS_BULK) {
       notifyChange(TRANSACTIONS_URI, callerIsNotSyncAdatper(uri));
       notifyChange(ACCOUNTS_URI, false);
       notifyChange(UNCOMMITTED_URI, false);
+    } else if (uriMatch == PLAN_INFO_CACHE) {
+      notifyChange(TEMPLATES_URI, false);
     } else {
       if (uriMatch == ACCOUNTS) {
         notifyChange(ACCOUNTS_BASE_URI, false);
@@ -1092,11 +1270,10 @@ public class TransactionProvider extends ContentProvider {
             whereArgs);
         break;
       case TRANSACTION_UNDELETE:
-        segment = uri.getPathSegments().get(1);
-        whereArgs = new String[]{segment, segment, segment};
-        ContentValues v = new ContentValues();
-        v.put(KEY_CR_STATUS, Transaction.CrStatus.UNRECONCILED.name());
-        count = db.update(TABLE_TRANSACTIONS, v, WHERE_SELF_OR_DEPENDENT, whereArgs);
+        count = undelete(db, uri.getPathSegments().get(1));
+        break;
+      case TRANSACTIONS_BULK_UNDELETE:
+        count = undelete(db, resolveTransactionIds(db, where, whereArgs));
         break;
       case ACCOUNTS:
         count = db.update(TABLE_ACCOUNTS, values, where, whereArgs);
@@ -1215,31 +1392,13 @@ public class TransactionProvider extends ContentProvider {
             KEY_LAST_USED + " = strftime('%s', 'now') WHERE " + KEY_ROWID + " = " + segment);
         count = 1;
         break;
-      //   when we move a transaction to a new target we apply two checks
-      //1) we do not move a transfer to its own transfer_account
-      //2) we check if the transactions method_id is also available in the target account, if not we set it to null
       case TRANSACTION_MOVE:
-        segment = uri.getPathSegments().get(1);
-        String target = uri.getPathSegments().get(3);
-        db.execSQL("UPDATE " + TABLE_TRANSACTIONS +
-                " SET " +
-                KEY_ACCOUNTID + " = ?, " +
-                KEY_METHODID + " = " +
-                " CASE " +
-                " WHEN exists " +
-                " (SELECT 1 FROM " + TABLE_ACCOUNTTYES_METHODS +
-                " WHERE " + KEY_TYPE + " = " +
-                " (SELECT " + KEY_TYPE + " FROM " + TABLE_ACCOUNTS +
-                " WHERE " + DatabaseConstants.KEY_ROWID + " = ?) " +
-                " AND " + KEY_METHODID + " = " + TABLE_TRANSACTIONS + "." + KEY_METHODID + ")" +
-                " THEN " + KEY_METHODID +
-                " ELSE null " +
-                " END " +
-                " WHERE " + DatabaseConstants.KEY_ROWID + " = ? " +
-                " AND ( " + KEY_TRANSFER_ACCOUNT + " IS NULL OR " + KEY_TRANSFER_ACCOUNT + "  != ? )",
-            new String[]{target, target, segment, target});
+        moveTransactions(db, uri.getPathSegments().get(1), uri.getPathSegments().get(3));
         count = 1;
         break;
+      case TRANSACTIONS_BULK_MOVE:
+        count = moveTransactions(db, resolveTransactionIds(db, where, whereArgs), uri.getPathSegments().get(3));
+        break;
       case PLANINSTANCE_TRANSACTION_STATUS:
         count = db.update(TABLE_PLAN_INSTANCE_STATUS, values, where, whereArgs);
         break;
@@ -1385,7 +1544,8 @@ public class TransactionProvider extends ContentProvider {
     }
     if (uriMatch == TRANSACTIONS || uriMatch == TRANSACTION_ID ||
         uriMatch == CURRENCIES_CHANGE_FRACTION_DIGITS || uriMatch == TRANSACTION_UNDELETE ||
-        uriMatch == TRANSACTION_MOVE || uriMatch == TRANSACTION_TOGGLE_CRSTATUS) {
+        uriMatch == TRANSACTION_MOVE || uriMatch == TRANSACTION_TOGGLE_CRSTATUS ||
+        uriMatch == TRANSACTIONS_BULK_UNDELETE || uriMatch == TRANSACTIONS_BULK_MOVE) {
       notifyChange(TRANSACTIONS_URI, callerIsNotSyncAdatper(uri));
       notifyChange(ACCOUNTS_URI, false);
       notifyChange(UNCOMMITTED_URI, false);
@@ -1402,10 +1562,173 @@ public class TransactionProvider extends ContentProvider {
   }
 
   private void notifyChange(Uri uri, boolean syncToNetwork) {
+    NotificationBatch batch = notificationBatch.get();
+    if (batch.depth > 0) {
+      Boolean pending = batch.pending.get(uri);
+      batch.pending.put(uri, syncToNetwork || (pending != null && pending));
+      suppressedNotifications.incrementAndGet();
+      return;
+    }
+    emittedNotifications.incrementAndGet();
     Timber.i("Notifying %s  syncToNetwork %s", uri.toString(), syncToNetwork ? "true" : "false");
     getContext().getContentResolver().notifyChange(uri, null, syncToNetwork);
   }
 
+  private void beginNotificationBatch() {
+    notificationBatch.get().depth++;
+  }
+
+  /**
+   * once the outermost batch of the calling thread has ended, each uri collected by it is notified
+   * once
+   */
+  private void endNotificationBatch() {
+    NotificationBatch batch = notificationBatch.get();
+    if (batch.depth == 0) {
+      Timber.w("Notification batch ended without having been begun");
+      return;
+    }
+    batch.depth--;
+    if (batch.depth > 0 || batch.pending.isEmpty()) {
+      return;
+    }
+    Map<Uri, Boolean> toNotify = new LinkedHashMap<>(batch.pending);
+    batch.pending.clear();
+    emittedNotifications.addAndGet(toNotify.size());
+    Timber.i("Notifications batched: %d suppressed, %d emitted in total",
+        suppressedNotifications.get(), emittedNotifications.get());
+    for (Map.Entry<Uri, Boolean> entry : toNotify.entrySet()) {
+      Timber.i("Notifying %s  syncToNetwork %s", entry.getKey().toString(), entry.getValue() ? "true" : "false");
+      getContext().getContentResolver().notifyChange(entry.getKey(), null, entry.getValue());
+    }
+  }
+
+  /**
+   * @return the ids of the transactions matching the selection as comma separated list, that is
+   * inlined into the statements of bulk operations, since it may exceed the limit of bound arguments
+   */
+  private String resolveTransactionIds(SQLiteDatabase db, String where, String[] whereArgs) {
+    StringBuilder ids = new StringBuilder();
+    Cursor c = db.query(TABLE_TRANSACTIONS, new String[]{KEY_ROWID}, where, whereArgs, null, null, null);
+    while (c.moveToNext()) {
+      if (ids.length() > 0) {
+        ids.append(',');
+      }
+      ids.append(c.getLong(0));
+    }
+    c.close();
+    return ids.toString();
+  }
+
+  /**
+   * split parts of the transactions and transfer peers of split parts
+   */
+  private static String whereDependent(String inIds) {
+    return KEY_PARENTID + inIds + " OR " + KEY_ROWID + " IN (SELECT " + KEY_TRANSFER_PEER + " FROM "
+        + TABLE_TRANSACTIONS + " WHERE " + KEY_PARENTID + inIds + ")";
+  }
+
+  /**
+   * @param ids comma separated list of transaction ids
+   * @return number of affected rows
+   */
+  private int deleteTransactions(SQLiteDatabase db, String ids, boolean markVoid) {
+    if (TextUtils.isEmpty(ids)) {
+      return 0;
+    }
+    String inIds = " IN (" + ids + ")";
+    int count;
+    db.beginTransaction();
+    try {
+      //when we are deleting a transfer whose peer is part of a split, we cannot the delete the peer,
+      //because the split would be left in an invalid state, hence we transform the peer to a normal split part
+      //first we find out the account labels, for each label we need one update
+      Cursor c = db.rawQuery("SELECT coalesce(" + TABLE_ACCOUNTS + "." + KEY_LABEL + ", 'UNKNOWN'), "
+          + "group_concat(peer." + KEY_ROWID + ") FROM " + TABLE_TRANSACTIONS + " peer JOIN "
+          + TABLE_TRANSACTIONS + " self ON peer." + KEY_TRANSFER_PEER + " = self." + KEY_ROWID
+          + " LEFT JOIN " + TABLE_ACCOUNTS + " ON " + TABLE_ACCOUNTS + "." + KEY_ROWID + " = self." + KEY_ACCOUNTID
+          + " WHERE peer." + KEY_PARENTID + " IS NOT null AND self." + KEY_ROWID + inIds + " GROUP BY 1", null);
+      while (c.moveToNext()) {
+        ContentValues args = new ContentValues();
+        args.put(KEY_COMMENT, getContext().getString(R.string.peer_transaction_deleted, c.getString(0)));
+        args.putNull(KEY_TRANSFER_ACCOUNT);
+        args.putNull(KEY_TRANSFER_PEER);
+        db.update(TABLE_TRANSACTIONS, args, KEY_ROWID + " IN (" + c.getString(1) + ")", null);
+      }
+      c.close();
+      //we delete the transactions, their children and their transfer peers, and transfer peers of their children
+      if (markVoid) {
+        ContentValues v = new ContentValues();
+        v.put(KEY_CR_STATUS, Transaction.CrStatus.VOID.name());
+        count = db.update(TABLE_TRANSACTIONS, v, KEY_ROWID + inIds + " OR " + whereDependent(inIds), null);
+      } else {
+        //we delete the parents separately, so that the changes trigger can correctly record the parent uuid
+        count = db.delete(TABLE_TRANSACTIONS, whereDependent(inIds), null);
+        count += db.delete(TABLE_TRANSACTIONS, KEY_TRANSFER_PEER + inIds + " OR " + KEY_ROWID + inIds, null);
+      }
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+    return count;
+  }
+
+  /**
+   * restores voided transactions together with their split parts and transfer peers
+   *
+   * @param ids comma separated list of transaction ids
+   */
+  private int undelete(SQLiteDatabase db, String ids) {
+    if (TextUtils.isEmpty(ids)) {
+      return 0;
+    }
+    String inIds = " IN (" + ids + ")";
+    ContentValues v = new ContentValues();
+    v.put(KEY_CR_STATUS, Transaction.CrStatus.UNRECONCILED.name());
+    return db.update(TABLE_TRANSACTIONS, v, KEY_ROWID + inIds + " OR " + whereDependent(inIds), null);
+  }
+
+  /**
+   * when we move transactions to a new target we apply two checks
+   * 1) we do not move a transfer to its own transfer_account
+   * 2) we check if the transactions method_id is also available in the target account, if not we set it to null
+   *
+   * @param ids comma separated list of transaction ids
+   * @return number of moved transactions
+   */
+  private int moveTransactions(SQLiteDatabase db, String ids, String target) {
+    if (TextUtils.isEmpty(ids)) {
+      return 0;
+    }
+    int count;
+    db.beginTransaction();
+    try {
+      db.execSQL("UPDATE " + TABLE_TRANSACTIONS +
+              " SET " +
+              KEY_ACCOUNTID + " = ?, " +
+              KEY_METHODID + " = " +
+              " CASE " +
+              " WHEN exists " +
+              " (SELECT 1 FROM " + TABLE_ACCOUNTTYES_METHODS +
+              " WHERE " + KEY_TYPE + " = " +
+              " (SELECT " + KEY_TYPE + " FROM " + TABLE_ACCOUNTS +
+              " WHERE " + DatabaseConstants.KEY_ROWID + " = ?) " +
+              " AND " + KEY_METHODID + " = " + TABLE_TRANSACTIONS + "." + KEY_METHODID + ")" +
+              " THEN " + KEY_METHODID +
+              " ELSE null " +
+              " END " +
+              " WHERE " + DatabaseConstants.KEY_ROWID + " IN (" + ids + ") " +
+              " AND ( " + KEY_TRANSFER_ACCOUNT + " IS NULL OR " + KEY_TRANSFER_ACCOUNT + "  != ? )",
+          new String[]{target, target, target});
+      //inside the transaction changes() is evaluated on the connection that executed the update
+      count = (int) DatabaseUtils.longForQuery(db, "SELECT changes()", null);
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+    return count;
+  }
+
   private boolean callerIsNotSyncAdatper(Uri uri) {
     return uri.getQueryParameter(QUERY_PARAMETER_CALLER_IS_SYNCADAPTER) == null;
   }
@@ -1413,13 +1736,15 @@ public class TransactionProvider extends ContentProvider {
   /**
    * Apply the given set of {@link ContentProviderOperation}, executing inside
    * a {@link SQLiteDatabase} transaction. All changes will be rolled back if
-   * any single one fails.
+   * any single one fails. Change notifications are sent once per uri after the
+   * transaction has ended.
    */
   @NonNull
   @Override
   public ContentProviderResult[] applyBatch(@NonNull ArrayList<ContentProviderOperation> operations)
       throws OperationApplicationException {
     final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+    beginNotificationBatch();
     db.beginTransaction();
     try {
       final int numOperations = operations.size();
@@ -1441,6 +1766,10 @@ public class TransactionProvider extends ContentProvider {
       return results;
     } finally {
       db.endTransaction();
+      endNotificationBatch();
+      if (operations.size() >= CHECKPOINT_BATCH_SIZE) {
+        TransactionDatabase.checkpoint(db, "PASSIVE");
+      }
     }
   }
 
@@ -1449,6 +1778,29 @@ public class TransactionProvider extends ContentProvider {
   public Bundle call(@NonNull String method, @Nullable String arg, @Nullable Bundle extras) {
     if (method.equals(METHOD_INIT)) {
       mOpenHelper.getReadableDatabase();
+    } else if (method.equals(METHOD_REPAIR_ACCOUNT_BALANCES)) {
+      SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+      boolean consistent = TransactionDatabase.verifyAccountBalances(db);
+      if (!consistent) {
+        Timber.w("Account balances out of sync, rebuilding");
+        TransactionDatabase.rebuildAccountBalances(db);
+        notifyChange(ACCOUNTS_URI, false);
+      }
+      Bundle result = new Bundle(1);
+      result.putBoolean(KEY_RESULT, consistent);
+      return result;
+    } else if (method.equals(METHOD_BULK_START)) {
+      beginNotificationBatch();
+    } else if (method.equals(METHOD_BULK_END)) {
+      endNotificationBatch();
+      TransactionDatabase.checkpoint(mOpenHelper.getWritableDatabase(), "PASSIVE");
+    } else if (method.equals(METHOD_REFRESH_PLAN_INFO)) {
+      PlanInfoCache.refresh(getContext(), mOpenHelper.getWritableDatabase(), ARG_INVALIDATE.equals(arg));
+    } else if (method.equals(METHOD_NOTIFICATION_STATS)) {
+      Bundle result = new Bundle(2);
+      result.putLong(KEY_NOTIFICATIONS_SUPPRESSED, suppressedNotifications.get());
+      result.putLong(KEY_NOTIFICATIONS_EMITTED, emittedNotifications.get());
+      return result;
     }
     return null;
   }
@@ -1464,6 +1816,9 @@ public class TransactionProvider extends ContentProvider {
     URI_MATCHER.addURI(AUTHORITY, "transactions/#/" + URI_SEGMENT_MOVE + "/#", TRANSACTION_MOVE);
     URI_MATCHER.addURI(AUTHORITY, "transactions/#/" + URI_SEGMENT_TOGGLE_CRSTATUS, TRANSACTION_TOGGLE_CRSTATUS);
     URI_MATCHER.addURI(AUTHORITY, "transactions/#/" + URI_SEGMENT_UNDELETE, TRANSACTION_UNDELETE);
+    URI_MATCHER.addURI(AUTHORITY, "transactions/bulk", TRANSACTIONS_BULK);
+    URI_MATCHER.addURI(AUTHORITY, "transactions/bulk/" + URI_SEGMENT_UNDELETE, TRANSACTIONS_BULK_UNDELETE);
+    URI_MATCHER.addURI(AUTHORITY, "transactions/bulk/" + URI_SEGMENT_MOVE + "/#", TRANSACTIONS_BULK_MOVE);
     URI_MATCHER.addURI(AUTHORITY, "categories", CATEGORIES);
     URI_MATCHER.addURI(AUTHORITY, "categories/#", CATEGORY_ID);
     URI_MATCHER.addURI(AUTHORITY, "accounts", ACCOUNTS);
@@ -1491,6 +1846,7 @@ public class TransactionProvider extends ContentProvider {
     URI_MATCHER.addURI(AUTHORITY, "methods_transactions", MAPPED_METHODS);
     URI_MATCHER.addURI(AUTHORITY, "dual", DUAL);
     URI_MATCHER.addURI(AUTHORITY, "eventcache", EVENT_CACHE);
+    URI_MATCHER.addURI(AUTHORITY, "planinfocache", PLAN_INFO_CACHE);
     URI_MATCHER.addURI(AUTHORITY, "debug_schema", DEBUG_SCHEMA);
     URI_MATCHER.addURI(AUTHORITY, "stale_images", STALE_IMAGES);
     URI_MATCHER.addURI(AUTHORITY, "stale_images/#", STALE_IMAGES_ID);
@@ -1512,50 +1868,137 @@ public class TransactionProvider extends ContentProvider {
     return mOpenHelper;
   }
 
-  public Result backup(File backupDir) {
-    File currentDb = new File(mOpenHelper.getReadableDatabase().getPath());
-    mOpenHelper.close();
+  /**
+   * receives the statements {@link #query} issues, so that tests can check their query plans
+   */
+  @VisibleForTesting
+  public interface QueryListener {
+    void onQuery(String sql, String[] selectionArgs);
+  }
+
+  @VisibleForTesting
+  public void setQueryListener(QueryListener queryListener) {
+    this.queryListener = queryListener;
+  }
+
+  private Cursor rawQuery(SQLiteDatabase db, String sql, String[] selectionArgs) {
+    if (queryListener != null) {
+      queryListener.onQuery(sql, selectionArgs);
+    }
+    return db.rawQuery(sql, selectionArgs);
+  }
+
+  /**
+   * copies the shared preferences into backupDir, the database is written into the backup by
+   * {@link #backupDb(OutputStream, BackupUtils.ProgressListener)}
+   */
+  public Result backupPrefs(File backupDir) {
+    File backupPrefFile, sharedPrefFile;
+    backupPrefFile = new File(backupDir, BackupUtils.BACKUP_PREF_FILE_NAME);
+    // Samsung has special path on some devices
+    // http://stackoverflow.com/questions/5531289/copy-the-shared-preferences-xml-file-from-data-on-samsung-device-failed
+    final MyApplication application = MyApplication.getInstance();
+    String sharedPrefPath = "/shared_prefs/" + application.getPackageName() + "_preferences.xml";
+    sharedPrefFile = new File("/dbdata/databases/" + application.getPackageName() + sharedPrefPath);
+    if (!sharedPrefFile.exists()) {
+      sharedPrefFile = new File(getInternalAppDir().getPath() + sharedPrefPath);
+      Timber.d(sharedPrefFile.getPath());
+      if (!sharedPrefFile.exists()) {
+        final String message = "Unable to find shared preference file at " +
+            sharedPrefFile.getPath();
+        AcraHelper.report(new Exception(message));
+        return new Result(false, message);
+      }
+    }
+    if (FileCopyUtils.copy(sharedPrefFile, backupPrefFile)) {
+      return new Result(true);
+    }
+    return new Result(false, String.format(
+        "Error while copying %s to %s", sharedPrefFile.getPath(), backupPrefFile.getPath()));
+  }
+
+  /**
+   * writes the database file to out, while the provider keeps serving queries. A transaction keeps
+   * writers out, so that the file does not change while it is copied, after the write-ahead log
+   * has been copied back into it. Only if the log can not be checkpointed, we fall back to closing
+   * the database during the copy. Since writers wait for the copy, out should be a local file,
+   * that is compressed into the backup afterwards. Once the backup is complete,
+   * {@link #onBackupComplete()} clears the dirty flag.
+   */
+  public void backupDb(OutputStream out, @Nullable BackupUtils.ProgressListener listener)
+      throws IOException {
+    SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+    File currentDb = new File(db.getPath());
+    if (!currentDb.exists()) {
+      throw new FileNotFoundException("Could not find database at " + currentDb.getPath());
+    }
+    //writes started from here on keep the dirty flag, even if they make it into the copy
+    recordBackedUpDataVersion();
+    //most of the log is copied while writers can still proceed
+    TransactionDatabase.checkpoint(db, "PASSIVE");
+    boolean complete;
+    db.beginTransaction();
     try {
-      File backupPrefFile, sharedPrefFile;
-      Result result = backupDb(new File(backupDir, BackupUtils.BACKUP_DB_FILE_NAME), currentDb);
-      if (result.success) {
-        backupPrefFile = new File(backupDir, BackupUtils.BACKUP_PREF_FILE_NAME);
-        // Samsung has special path on some devices
-        // http://stackoverflow.com/questions/5531289/copy-the-shared-preferences-xml-file-from-data-on-samsung-device-failed
-        final MyApplication application = MyApplication.getInstance();
-        String sharedPrefPath = "/shared_prefs/" + application.getPackageName() + "_preferences.xml";
-        sharedPrefFile = new File("/dbdata/databases/" + application.getPackageName() + sharedPrefPath);
-        if (!sharedPrefFile.exists()) {
-          sharedPrefFile = new File(getInternalAppDir().getPath() + sharedPrefPath);
-          Timber.d(sharedPrefFile.getPath());
-          if (!sharedPrefFile.exists()) {
-            final String message = "Unable to find shared preference file at " +
-                sharedPrefFile.getPath();
-            AcraHelper.report(new Exception(message));
-            return new Result(false, message);
-          }
-        }
-        if (FileCopyUtils.copy(sharedPrefFile, backupPrefFile)) {
-          PrefKey.AUTO_BACKUP_DIRTY.putBoolean(false);
-          mDirty = false;
-          return result;
-        }
+      complete = TransactionDatabase.checkpointInTransaction(db, currentDb);
+      if (complete) {
+        copyDb(currentDb, out, listener);
       }
-      return result;
     } finally {
-      initOpenHelper();
+      //nothing has been written, the transaction is rolled back
+      db.endTransaction();
+    }
+    if (!complete) {
+      Timber.w("Write-ahead log could not be checkpointed, closing database for backup");
+      //the database file on its own must be complete, we do not backup the write-ahead log
+      TransactionDatabase.checkpoint(db, "FULL");
+      mOpenHelper.close();
+      try {
+        copyDb(currentDb, out, listener);
+      } finally {
+        initOpenHelper();
+      }
     }
   }
 
-  private Result backupDb(File backupDb, File currentDb) {
-    if (currentDb.exists()) {
-      if (FileCopyUtils.copy(currentDb, backupDb)) {
-        return new Result(true);
+  private synchronized void recordBackedUpDataVersion() {
+    backedUpDataVersion = dataVersion;
+  }
+
+  /**
+   * clears the dirty flag after the backup has been written successfully, unless a write has been
+   * started since the database was copied
+   */
+  public synchronized void onBackupComplete() {
+    if (backedUpDataVersion == dataVersion) {
+      PrefKey.AUTO_BACKUP_DIRTY.putBoolean(false);
+      mDirty = false;
+    }
+    backedUpDataVersion = -1;
+  }
+
+  private void copyDb(File currentDb, OutputStream out,
+                      @Nullable BackupUtils.ProgressListener listener) throws IOException {
+    long size = currentDb.length();
+    long written = 0;
+    int reportedPercent = -1;
+    byte[] buffer = new byte[BACKUP_BUFFER_SIZE];
+    InputStream in = new FileInputStream(currentDb);
+    try {
+      int count;
+      while ((count = in.read(buffer)) != -1) {
+        out.write(buffer, 0, count);
+        written += count;
+        if (listener != null) {
+          int percent = size > 0 ? (int) (written * 100 / size) : 100;
+          if (percent != reportedPercent) {
+            listener.onProgress(percent);
+            reportedPercent = percent;
+          }
+        }
       }
-      return new Result(false, String.format(
-          "Error while copying %s to %s", currentDb.getPath(), backupDb.getPath()));
+    } finally {
+      in.close();
     }
-    return new Result(false, "Could not find database at " + currentDb.getPath());
   }
 
   private File getInternalAppDir() {
@@ -1571,6 +2014,13 @@ public class TransactionProvider extends ContentProvider {
     boolean result = false;
     mOpenHelper.close();
     try {
+      //a stale write-ahead log would be applied to the restored database
+      for (String suffix : new String[]{"-wal", "-shm"}) {
+        File file = new File(dataDir, currentDb.getName() + suffix);
+        if (file.exists() && !file.delete()) {
+          Timber.w("Could not delete %s", file.getPath());
+        }
+      }
       result = FileCopyUtils.copy(backupFile, currentDb);
     } finally {
       initOpenHelper();
@@ -18,15 +18,28 @@
 
 package org.totschnig.myexpenses.provider.filter;
 
+import org.totschnig.myexpenses.provider.DbUtils;
 import org.totschnig.myexpenses.util.Utils;
 
 import android.os.Parcel;
 
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ROWID;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_TRANSACTIONS_FTS;
+
+/**
+ * matches words starting with the words of the search string through the full text index
+ * {@link org.totschnig.myexpenses.provider.DatabaseConstants#TABLE_TRANSACTIONS_FTS}, columnName
+ * must be one of its columns. If the search string does not contain any word, we fall back to a
+ * LIKE search.
+ */
 public abstract class TextCriteria extends Criteria {
   private String searchString;
   public TextCriteria(String title, String columnName, String searchString) {
-    super(columnName, WhereFilter.Operation.LIKE,
-        "%" + Utils.esacapeSqlLikeExpression(searchString) + "%");
+    this(title, columnName, searchString, DbUtils.ftsPrefixQuery(searchString));
+  }
+  private TextCriteria(String title, String columnName, String searchString, String ftsQuery) {
+    super(columnName, ftsQuery != null ? WhereFilter.Operation.MATCH : WhereFilter.Operation.LIKE,
+        ftsQuery != null ? ftsQuery : "%" + Utils.esacapeSqlLikeExpression(searchString) + "%");
     this.searchString = searchString;
     this.title = title;
   }
@@ -34,6 +47,15 @@ public abstract class TextCriteria extends Criteria {
    super(in);
    searchString = in.readString();
   }
+  @Override
+  public String getSelection() {
+    if (operation == WhereFilter.Operation.MATCH) {
+      return KEY_ROWID + " IN (SELECT docid FROM " + TABLE_TRANSACTIONS_FTS + " WHERE " + columnName
+          + " " + operation.getOp(1) + ")";
+    }
+    return super.getSelection();
+  }
+
   @Override
   public String prettyPrint() {
     return prettyPrintInternal(searchString);
@@ -151,7 +151,7 @@ public class WhereFilter {
   public enum Operation {
     NOPE(""), EQ("=?"), NEQ("!=?"), GT(">?"), GTE(">=?"), LT("<?"), LTE("<=?"), BTW(
         "BETWEEN ? AND ?"), ISNULL("is NULL"), LIKE("LIKE ? ESCAPE '" + LIKE_ESCAPE_CHAR + "'"),
-    IN(null);
+    IN(null), MATCH("MATCH ?");
 
     public final String op;
 
@@ -56,7 +56,22 @@ public class AutoBackupService extends WakefulIntentService {
   protected void doWakefulWork(Intent intent) {
     String action = intent.getAction();
     if (ACTION_AUTO_BACKUP.equals(action)) {
-      Result result = BackupUtils.doBackup();
+      final String notifTitle = Utils.concatResStrings(this, " ", R.string.app_name, R.string.contrib_feature_auto_backup_label);
+      final NotificationManager notificationManager =
+          (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+      final NotificationCompat.Builder progressBuilder =
+          new NotificationCompat.Builder(this)
+              .setSmallIcon(R.drawable.ic_stat_notification_sigma)
+              .setContentTitle(notifTitle)
+              .setOngoing(true);
+      Result result = BackupUtils.doBackup(new BackupUtils.ProgressListener() {
+        @Override
+        public void onProgress(int percent) {
+          notificationManager.notify(NOTIFICATION_AUTO_BACKUP,
+              progressBuilder.setProgress(100, percent, false).build());
+        }
+      });
+      notificationManager.cancel(NOTIFICATION_AUTO_BACKUP);
       if (result.success) {
         int remaining = ContribFeature.AUTO_BACKUP.recordUsage();
         if (remaining < 1) {
@@ -71,7 +86,6 @@ public class AutoBackupService extends WakefulIntentService {
           ContentResolver.requestSync(GenericAccountService.GetAccount(syncAccount), TransactionProvider.AUTHORITY, bundle);
         }
       } else {
-        String notifTitle = Utils.concatResStrings(this, " ", R.string.app_name, R.string.contrib_feature_auto_backup_label);
         AUTO_BACKUP.putBoolean(false);
         String content = result.print(this) + " " + getString(R.string.warning_auto_backup_deactivated);
         Intent preferenceIntent = new Intent(this, MyPreferenceActivity.class);
@@ -84,8 +98,7 @@ public class AutoBackupService extends WakefulIntentService {
                 .setStyle(new NotificationCompat.BigTextStyle().bigText(content));
         Notification notification = builder.build();
         notification.flags = Notification.FLAG_AUTO_CANCEL;
-        ((NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE)).notify(
-            NOTIFICATION_AUTO_BACKUP, notification);
+        notificationManager.notify(NOTIFICATION_AUTO_BACKUP, notification);
       }
     } else if (ACTION_SCHEDULE_AUTO_BACKUP.equals(action)) {
       DailyAutoBackupScheduler.updateAutoBackupAlarms(this);
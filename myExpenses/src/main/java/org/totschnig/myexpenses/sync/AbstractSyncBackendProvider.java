@@ -8,7 +8,6 @@ import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
 import com.annimon.stream.Optional;
-import com.annimon.stream.Stream;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 
@@ -31,6 +30,8 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.Writer;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.regex.Pattern;
@@ -75,31 +76,54 @@ abstract class AbstractSyncBackendProvider implements SyncBackendProvider {
   public void tearDown() {
   }
 
+  /**
+   * parses a change set without touching pictures, hence can be called concurrently. The result
+   * needs to be passed through {@link #mapPicturesDuringRead(ChangeSet)}
+   */
   ChangeSet getChangeSetFromInputStream(long sequenceNumber, InputStream inputStream)
       throws IOException {
     final BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream));
-    List<TransactionChange> changes = Utils.getChanges(gson, reader);
-    if (changes == null || changes.size() == 0) {
+    List<TransactionChange> changes = new ArrayList<>();
+    int[] count = {0};
+    try {
+      Utils.readChanges(gson, reader, transactionChange -> {
+        count[0]++;
+        if (transactionChange.isEmpty()) {
+          Timber.w("found empty transaction change in json");
+        } else {
+          changes.add(transactionChange);
+        }
+      });
+    } finally {
+      reader.close();
+    }
+    if (count[0] == 0) {
       return ChangeSet.failed;
     }
-    for (ListIterator<TransactionChange> iterator = changes.listIterator(); iterator.hasNext(); ) {
+    return ChangeSet.create(sequenceNumber, changes);
+  }
+
+  /**
+   * copies the pictures referenced by the changes into the local picture directory. Since
+   * picture file names are derived from the current time, change sets must be handled one after
+   * the other
+   */
+  ChangeSet mapPicturesDuringRead(ChangeSet changeSet) throws IOException {
+    if (changeSet.isFailed()) {
+      return changeSet;
+    }
+    for (ListIterator<TransactionChange> iterator = changeSet.changes.listIterator(); iterator.hasNext(); ) {
       TransactionChange transactionChange = iterator.next();
-      if (transactionChange.isEmpty()) {
-        Timber.w("found empty transaction change in json");
-        iterator.remove();
-      } else {
-        iterator.set(mapPictureDuringRead(transactionChange));
-        if (transactionChange.splitParts() != null) {
-          for (ListIterator<TransactionChange> jterator = transactionChange.splitParts().listIterator();
-               jterator.hasNext(); ) {
-            TransactionChange splitPart = jterator.next();
-            jterator.set(mapPictureDuringRead(splitPart));
-          }
+      iterator.set(mapPictureDuringRead(transactionChange));
+      if (transactionChange.splitParts() != null) {
+        for (ListIterator<TransactionChange> jterator = transactionChange.splitParts().listIterator();
+             jterator.hasNext(); ) {
+          TransactionChange splitPart = jterator.next();
+          jterator.set(mapPictureDuringRead(splitPart));
         }
       }
     }
-
-    return ChangeSet.create(sequenceNumber, changes);
+    return changeSet;
   }
 
   private TransactionChange mapPictureDuringRead(TransactionChange transactionChange) throws IOException {
@@ -136,8 +160,8 @@ abstract class AbstractSyncBackendProvider implements SyncBackendProvider {
         Long.parseLong(fileName.substring(1)) > sequenceNumber;
   }
 
-  protected Optional<ChangeSet> merge(Stream<ChangeSet> changeSetStream) {
-    return changeSetStream.reduce(ChangeSet::merge);
+  protected Optional<ChangeSet> merge(List<ChangeSet> changeSets) {
+    return changeSets.isEmpty() ? Optional.empty() : Optional.of(ChangeSet.merge(changeSets));
   }
 
   @NonNull
@@ -188,10 +212,23 @@ abstract class AbstractSyncBackendProvider implements SyncBackendProvider {
       }
       changeSet.set(i, mappedChange);
     }
-    saveFileContents("_" + nextSequence + ".json", gson.toJson(changeSet), MIMETYPE_JSON);
+    saveChangeSet(ChangeSet.create(nextSequence, changeSet));
     return nextSequence;
   }
 
+  void saveChangeSet(ChangeSet changeSet) throws IOException {
+    saveChanges("_" + changeSet.sequenceNumber + ".json", changeSet.changes);
+  }
+
+  void saveChanges(String fileName, List<TransactionChange> changes) throws IOException {
+    saveFileContents(fileName, writer -> Utils.writeChanges(gson, changes, writer), MIMETYPE_JSON);
+  }
+
+  @Override
+  public boolean compactChangeSets() throws IOException {
+    return false;
+  }
+
   protected abstract void saveUriToAccountDir(String fileName, Uri uri) throws IOException;
 
   String buildMetadata(Account account) {
@@ -200,7 +237,18 @@ abstract class AbstractSyncBackendProvider implements SyncBackendProvider {
 
   protected abstract long getLastSequence() throws IOException;
 
-  abstract void saveFileContents(String fileName, String fileContents, String mimeType) throws IOException;
+  void saveFileContents(String fileName, String fileContents, String mimeType) throws IOException {
+    saveFileContents(fileName, writer -> writer.write(fileContents), mimeType);
+  }
+
+  /**
+   * @param contentWriter is called with a writer that streams directly to the backend
+   */
+  abstract void saveFileContents(String fileName, ContentWriter contentWriter, String mimeType) throws IOException;
+
+  interface ContentWriter {
+    void writeTo(Writer writer) throws IOException;
+  }
 
   //from API 19 Long.compare
   int compareInt(long x, long y) {
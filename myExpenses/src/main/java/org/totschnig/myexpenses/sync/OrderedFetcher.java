@@ -0,0 +1,69 @@
+package org.totschnig.myexpenses.sync;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Loads a list of items on a bounded number of worker threads and hands the results on in the
+ * order of the items. Each result is passed on as soon as it and all its predecessors are loaded,
+ * so that loading of later items overlaps with the sequential processing of earlier ones.
+ */
+class OrderedFetcher<T, R> {
+  interface Loader<T, R> {
+    R load(T item) throws IOException;
+  }
+
+  interface Sink<R> {
+    /**
+     * @return false if no further results should be handed on
+     */
+    boolean accept(R result) throws IOException;
+  }
+
+  private final int parallelism;
+
+  OrderedFetcher(int parallelism) {
+    this.parallelism = parallelism;
+  }
+
+  /**
+   * @return false if the sink stopped the fetch before all items were handed on
+   */
+  boolean fetch(List<T> items, Loader<T, R> loader, Sink<R> sink) throws IOException {
+    if (items.isEmpty()) {
+      return true;
+    }
+    ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, items.size()));
+    try {
+      List<Future<R>> futures = new ArrayList<>(items.size());
+      for (T item : items) {
+        futures.add(executor.submit(() -> loader.load(item)));
+      }
+      for (Future<R> future : futures) {
+        R result;
+        try {
+          result = future.get();
+        } catch (ExecutionException e) {
+          Throwable cause = e.getCause();
+          throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException();
+        }
+        if (!sink.accept(result)) {
+          return false;
+        }
+      }
+      return true;
+    } finally {
+      //pending loads are of no use once we stop
+      executor.shutdownNow();
+    }
+  }
+}
@@ -25,6 +25,7 @@ import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.annotation.VisibleForTesting;
 import android.support.v4.util.Pair;
+import android.text.TextUtils;
 import android.util.SparseArray;
 
 import com.annimon.stream.Collectors;
@@ -42,6 +43,7 @@ import org.totschnig.myexpenses.model.PaymentMethod;
 import org.totschnig.myexpenses.model.SplitTransaction;
 import org.totschnig.myexpenses.model.Transaction;
 import org.totschnig.myexpenses.model.Transfer;
+import org.totschnig.myexpenses.preference.PrefKey;
 import org.totschnig.myexpenses.provider.DatabaseConstants;
 import org.totschnig.myexpenses.provider.TransactionProvider;
 import org.totschnig.myexpenses.service.SyncNotificationDismissHandler;
@@ -53,12 +55,16 @@ import org.totschnig.myexpenses.util.Utils;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 
 import hugo.weaving.DebugLog;
 import timber.log.Timber;
@@ -265,16 +271,10 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
               remoteChanges = changeSetSince.changes;
 
               List<TransactionChange> localChanges = new ArrayList<>();
-              long sequenceToTest = lastSyncedLocal + 1;
-              while (true) {
-                List<TransactionChange> nextChanges = getLocalChanges(provider, accountId, sequenceToTest);
-                if (nextChanges.size() > 0) {
-                  localChanges.addAll(Stream.of(nextChanges).filter(change -> !change.isEmpty()).toList());
-                  lastSyncedLocal = sequenceToTest;
-                  sequenceToTest++;
-                } else {
-                  break;
-                }
+              long lastLocalSequence = getLastLocalSequence(provider, accountId, lastSyncedLocal);
+              if (lastLocalSequence > lastSyncedLocal) {
+                localChanges = getLocalChanges(provider, accountId, lastSyncedLocal, lastLocalSequence);
+                lastSyncedLocal = lastLocalSequence;
               }
 
               if (localChanges.size() > 0 || remoteChanges.size() > 0) {
@@ -289,7 +289,10 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
                 remoteChanges = mergeResult.second;
 
                 if (remoteChanges.size() > 0) {
-                  remoteChanges = Stream.of(remoteChanges).filter(change -> !(change.isCreate() && uuidExists(change.uuid()))).toList();
+                  Set<String> existingUuids = findExistingUuids(provider, Stream.of(remoteChanges)
+                      .filter(TransactionChange::isCreate).map(TransactionChange::uuid).toList());
+                  remoteChanges = Stream.of(remoteChanges)
+                      .filter(change -> !(change.isCreate() && existingUuids.contains(change.uuid()))).toList();
                   writeRemoteChangesToDb(provider, remoteChanges, accountId);
                   accountManager.setUserData(account, lastRemoteSyncKey, String.valueOf(lastSyncedRemote));
                   successRemote2Local = remoteChanges.size();
@@ -312,6 +315,14 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
                 }
               }
               completedWithoutError = true;
+              if (PrefKey.SYNC_COMPACT_CHANGE_SETS.getBoolean(false)) {
+                try {
+                  backend.compactChangeSets();
+                } catch (IOException e) {
+                  //compaction is optional, the next sync will try again
+                  Timber.w(e);
+                }
+              }
             } catch (IOException e) {
               syncResult.stats.numIoExceptions++;
               notifyIoException(R.string.sync_io_exception_syncing, account);
@@ -385,27 +396,76 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
     return Utils.concatResStrings(getContext(), " ", R.string.app_name, R.string.synchronization);
   }
 
-  private List<TransactionChange> getLocalChanges(ContentProviderClient provider, long accountId,
-                                                  long sequenceNumber) throws RemoteException {
-    List<TransactionChange> result = new ArrayList<>();
-    Uri changesUri = buildChangesUri(sequenceNumber, accountId);
-    boolean hasLocalChanges = hasLocalChanges(provider, changesUri);
-    if (hasLocalChanges) {
+  /**
+   * @return the highest sequence number of local changes recorded after lastSyncedLocal, or
+   * lastSyncedLocal if there are none. If there are changes, the account's sequence is advanced, so
+   * that changes recorded from now on are not mixed with the ones we are going to sync
+   */
+  private long getLastLocalSequence(ContentProviderClient provider, long accountId, long lastSyncedLocal)
+      throws RemoteException {
+    long result = lastSyncedLocal;
+    Cursor c = provider.query(buildChangesUri(accountId),
+        new String[]{"max(" + KEY_SYNC_SEQUENCE_LOCAL + ")"}, KEY_SYNC_SEQUENCE_LOCAL + " > ?",
+        new String[]{String.valueOf(lastSyncedLocal)}, null);
+    if (c != null) {
+      if (c.moveToFirst() && !c.isNull(0)) {
+        result = c.getLong(0);
+      }
+      c.close();
+    }
+    if (result > lastSyncedLocal) {
       ContentValues currentSyncIncrease = new ContentValues(1);
-      long nextSequence = sequenceNumber + 1;
+      long nextSequence = result + 1;
       currentSyncIncrease.put(KEY_SYNC_SEQUENCE_LOCAL, nextSequence);
       //in case of failed syncs due to non-available backends, sequence number might already be higher than nextSequence
       //we must take care to not decrease it here
       provider.update(TransactionProvider.ACCOUNTS_URI, currentSyncIncrease, KEY_ROWID + " = ? AND " + KEY_SYNC_SEQUENCE_LOCAL + " < ?",
           new String[]{String.valueOf(accountId), String.valueOf(nextSequence)});
     }
-    if (hasLocalChanges) {
-      Cursor c = provider.query(changesUri, null, null, null, null);
+    return result;
+  }
+
+  /**
+   * loads all changes with a sequence number in the range (lastSyncedLocal, lastLocalSequence] in
+   * one query
+   */
+  private List<TransactionChange> getLocalChanges(ContentProviderClient provider, long accountId,
+                                                  long lastSyncedLocal, long lastLocalSequence)
+      throws RemoteException {
+    List<TransactionChange> result = new ArrayList<>();
+    Cursor c = provider.query(buildChangesUri(accountId), null,
+        KEY_SYNC_SEQUENCE_LOCAL + " > ? AND " + KEY_SYNC_SEQUENCE_LOCAL + " <= ?",
+        new String[]{String.valueOf(lastSyncedLocal), String.valueOf(lastLocalSequence)},
+        KEY_SYNC_SEQUENCE_LOCAL);
+    if (c != null) {
+      if (c.moveToFirst()) {
+        do {
+          TransactionChange transactionChange = TransactionChange.create(c);
+          if (!transactionChange.isEmpty()) {
+            result.add(transactionChange);
+          }
+        } while (c.moveToNext());
+      }
+      c.close();
+    }
+    return result;
+  }
+
+  /**
+   * @return the subset of uuids for which a transaction already exists in the database
+   */
+  private Set<String> findExistingUuids(ContentProviderClient provider, List<String> uuids)
+      throws RemoteException {
+    Set<String> result = new HashSet<>();
+    //stay below SQLite's limit of 999 host parameters
+    for (List<String> part : ListUtils.partition(uuids, 500)) {
+      Cursor c = provider.query(Transaction.CONTENT_URI, new String[]{KEY_UUID},
+          KEY_UUID + " IN (" + TextUtils.join(",", Collections.nCopies(part.size(), "?")) + ")",
+          part.toArray(new String[part.size()]), null);
       if (c != null) {
         if (c.moveToFirst()) {
           do {
-            TransactionChange transactionChange = TransactionChange.create(c);
-            result.add(transactionChange);
+            result.add(c.getString(0));
           } while (c.moveToNext());
         }
         c.close();
@@ -430,8 +490,9 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
     }
     //When a split transaction is changed, we do not necessarily have an entry for the parent, so we
     //create one here
+    Set<String> uuids = Stream.of(changeList).map(TransactionChange::uuid).collect(Collectors.toSet());
     Stream.of(splitsPerUuid.keySet()).forEach(uuid -> {
-      if (!Stream.of(changeList).anyMatch(change -> change.uuid().equals(uuid))) {
+      if (!uuids.contains(uuid)) {
         changeList.add(TransactionChange.builder().setType(TransactionChange.Type.updated).setTimeStamp(splitsPerUuid.get(uuid).get(0).timeStamp()).setUuid(uuid).build());
         splitsPerUuid.put(uuid, filterDeleted(
             splitsPerUuid.get(uuid), findDeletedUuids(Stream.of(splitsPerUuid.get(uuid)))));
@@ -463,8 +524,8 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
         TransactionProvider.DUAL_URI.buildUpon()
             .appendQueryParameter(TransactionProvider.QUERY_PARAMETER_SYNC_BEGIN, "1").build())
         .build());
-    Stream.of(remoteChanges).filter(change -> !(change.isCreate() && uuidExists(change.uuid())))
-        .forEach(change -> collectOperations(change, accountId, ops, -1));
+    //creates of existing transactions have already been filtered out
+    Stream.of(remoteChanges).forEach(change -> collectOperations(change, accountId, ops, -1));
     ops.add(ContentProviderOperation.newDelete(
         TransactionProvider.DUAL_URI.buildUpon()
             .appendQueryParameter(TransactionProvider.QUERY_PARAMETER_SYNC_END, "1").build())
@@ -478,10 +539,6 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
     }
   }
 
-  private boolean uuidExists(String uuid) {
-    return Transaction.countPerUuid(uuid) > 0;
-  }
-
   @VisibleForTesting
   public void collectOperations(@NonNull TransactionChange change, long accountId, ArrayList<ContentProviderOperation> ops, int parentOffset) {
     Uri uri = Transaction.CALLER_IS_SYNC_ADAPTER_URI;
@@ -665,7 +722,7 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
       List<TransactionChange> first, List<TransactionChange> second) {
 
     //filter out changes made obsolete by later delete
-    List<String> deletedUuids = findDeletedUuids(Stream.concat(Stream.of(first), Stream.of(second)));
+    Set<String> deletedUuids = findDeletedUuids(Stream.concat(Stream.of(first), Stream.of(second)));
 
     List<TransactionChange> firstResult = filterDeleted(first, deletedUuids);
     List<TransactionChange> secondResult = filterDeleted(second, deletedUuids);
@@ -686,13 +743,13 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
     return Pair.create(firstResult, secondResult);
   }
 
-  private List<String> findDeletedUuids(Stream<TransactionChange> stream) {
+  private Set<String> findDeletedUuids(Stream<TransactionChange> stream) {
     return stream.filter(TransactionChange::isDelete)
         .map(TransactionChange::uuid)
-        .collect(Collectors.toList());
+        .collect(Collectors.toSet());
   }
 
-  private List<TransactionChange> filterDeleted(List<TransactionChange> input, List<String> deletedUuids) {
+  private List<TransactionChange> filterDeleted(List<TransactionChange> input, Set<String> deletedUuids) {
     return Stream.of(input).filter(change ->
         change.isDelete() || !deletedUuids.contains(change.uuid()))
         .collect(Collectors.toList());
@@ -709,10 +766,49 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
     if (changeList.size() < 2) {
       throw new IllegalStateException("nothing to merge");
     }
-    return Stream.of(changeList).sortBy(TransactionChange::timeStamp).reduce(this::mergeUpdate).get();
+    return Stream.of(changeList).sortBy(TransactionChange::timeStamp).reduce(SyncAdapter::mergeUpdate).get();
   }
 
-  private TransactionChange mergeUpdate(TransactionChange initial, TransactionChange change) {
+  /**
+   * Reduces the changes read from a range of change files to the last state of each transaction.
+   * A transaction that ends up deleted is represented by its delete. Otherwise it is represented
+   * by its create, if the range holds it, followed by one update that carries the last value of
+   * each field written in the range. Devices that already hold the transaction skip the create
+   * and apply the update, hence the result can be read by devices that have read none, some or
+   * all of the range. Transactions keep the position of their first change.
+   */
+  static List<TransactionChange> collapseChanges(List<TransactionChange> changes) {
+    Map<String, TransactionChange[]> states = new LinkedHashMap<>();
+    for (TransactionChange change : changes) {
+      //delete, create and update of the transaction, in the order they are handed on
+      TransactionChange[] state = states.get(change.uuid());
+      if (state == null || change.isDelete()) {
+        state = new TransactionChange[3];
+        states.put(change.uuid(), state);
+      }
+      if (change.isDelete()) {
+        state[0] = change;
+      } else if (change.isCreate() && state[1] == null && state[2] == null) {
+        state[1] = change;
+      } else {
+        TransactionChange update = change.isCreate() ?
+            change.toBuilder().setType(TransactionChange.Type.updated).build() : change;
+        state[2] = state[2] == null ? update : mergeUpdate(state[2], update).toBuilder()
+            .setTimeStamp(update.timeStamp()).build();
+      }
+    }
+    List<TransactionChange> result = new ArrayList<>(states.size());
+    for (TransactionChange[] state : states.values()) {
+      for (TransactionChange change : state) {
+        if (change != null) {
+          result.add(change);
+        }
+      }
+    }
+    return result;
+  }
+
+  private static TransactionChange mergeUpdate(TransactionChange initial, TransactionChange change) {
     if (!(change.isCreateOrUpdate() && initial.isCreateOrUpdate())) {
       throw new IllegalStateException("Can only merge creates and updates");
     }
@@ -759,10 +855,9 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
     return builder.setCurrentTimeStamp().build();
   }
 
-  private Uri buildChangesUri(long current_sync, long accountId) {
+  private Uri buildChangesUri(long accountId) {
     return TransactionProvider.CHANGES_URI.buildUpon()
         .appendQueryParameter(DatabaseConstants.KEY_ACCOUNTID, String.valueOf(accountId))
-        .appendQueryParameter(KEY_SYNC_SEQUENCE_LOCAL, String.valueOf(current_sync))
         .build();
   }
 
@@ -782,20 +877,6 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
     return changesForUuid;
   }
 
-  private boolean hasLocalChanges(ContentProviderClient provider, Uri changesUri) throws RemoteException {
-    boolean result = false;
-    Cursor c = provider.query(changesUri,
-        new String[]{"count(*)"}, null, null, null);
-
-    if (c != null) {
-      if (c.moveToFirst()) {
-        result = c.getLong(0) > 0;
-      }
-      c.close();
-    }
-    return result;
-  }
-
   @VisibleForTesting
   public org.totschnig.myexpenses.model.Account getAccount() {
     return dbAccount.get();
@@ -10,7 +10,9 @@ import org.totschnig.myexpenses.sync.json.ChangeSet;
 import org.totschnig.myexpenses.sync.json.TransactionChange;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.List;
+import java.util.Set;
 
 public interface SyncBackendProvider {
 
@@ -27,6 +29,12 @@ public interface SyncBackendProvider {
 
   boolean unlock();
 
+  /**
+   * rolls old change sets into one snapshot, needs to be called while holding the lock
+   * @return true if change sets were compacted
+   */
+  boolean compactChangeSets() throws IOException;
+
   List<AccountMetaData> getRemoteAccountList() throws IOException;
 
   boolean setUp();
@@ -35,6 +43,16 @@ public interface SyncBackendProvider {
 
   void storeBackup(Uri uri) throws IOException;
 
+  /**
+   * @return the names of the pictures that have been uploaded together with backups by
+   * {@link #storeBackup(Uri)}
+   */
+  @NonNull
+  Set<String> getBackupPictures() throws IOException;
+
+  @NonNull
+  InputStream getInputStreamForBackupPicture(String blob) throws IOException;
+
   class SyncParseException extends Exception {
     SyncParseException(Exception e) {
       super(e);
@@ -1,9 +1,14 @@
 package org.totschnig.myexpenses.sync;
 
 import android.accounts.AccountManager;
+import android.content.ContentResolver;
 import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.res.AssetFileDescriptor;
 import android.net.Uri;
 import android.support.annotation.NonNull;
+import android.support.annotation.VisibleForTesting;
+import android.support.v4.provider.DocumentFile;
 import android.webkit.MimeTypeMap;
 
 import com.annimon.stream.Collectors;
@@ -14,31 +19,71 @@ import org.totschnig.myexpenses.MyApplication;
 import org.totschnig.myexpenses.model.Account;
 import org.totschnig.myexpenses.sync.json.AccountMetaData;
 import org.totschnig.myexpenses.sync.json.ChangeSet;
+import org.totschnig.myexpenses.sync.json.TransactionChange;
 import org.totschnig.myexpenses.sync.webdav.CertificateHelper;
 import org.totschnig.myexpenses.sync.webdav.HttpException;
 import org.totschnig.myexpenses.sync.webdav.InvalidCertificateException;
 import org.totschnig.myexpenses.sync.webdav.LockableDavResource;
 import org.totschnig.myexpenses.sync.webdav.WebDavClient;
+import org.totschnig.myexpenses.util.AppDirHelper;
+import org.totschnig.myexpenses.util.BackupPictureStore;
 
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import at.bitfire.dav4android.DavResource;
 import at.bitfire.dav4android.exception.DavException;
 import okhttp3.MediaType;
 import okhttp3.RequestBody;
-
-import static org.totschnig.myexpenses.util.FileCopyUtils.toByteArray;
+import okhttp3.ResponseBody;
+import okio.BufferedSink;
+import okio.Okio;
+import timber.log.Timber;
 
 public class WebDavBackendProvider extends AbstractSyncBackendProvider {
 
   public static final String KEY_WEB_DAV_CERTIFICATE = "webDavCertificate";
   public static final String KEY_WEB_DAV_FALLBACK_TO_CLASS1 = "fallbackToClass1";
+  private static final String MIMETYPE_OCTET_STREAM = "application/octet-stream";
   private final MediaType MIME_JSON = MediaType.parse(MIMETYPE_JSON + "; charset=utf-8");
   private static final String FALLBACK_LOCK_FILENAME = ".lock";
+  /**
+   * number of change files downloaded concurrently, sharing the connection pool of the client
+   */
+  private static final int FETCH_PARALLELISM = 4;
+  private static final String KEY_COLLECTION_ETAG = "collectionETag_";
+  private static final String KEY_LAST_SEQUENCE = "lastSequence_";
+  /**
+   * not every server changes the entity tag of a collection when members are added, hence we only
+   * rely on it after we have seen it change upon one of our own writes
+   */
+  private static final String KEY_ETAG_TRACKS_MEMBERS = "eTagTracksMembers_";
+  /**
+   * compaction starts once the account folder holds more change files than this
+   */
+  private static final int COMPACTION_THRESHOLD = 100;
+  /**
+   * the most recent change files are left alone by compaction, so that devices that are nearly up
+   * to date do not need to read the snapshot
+   */
+  private static final int COMPACTION_KEEP = 20;
+  /**
+   * a snapshot holds the collapsed changes of all change files up to the sequence in its name
+   */
+  private static final Pattern SNAPSHOT_PATTERN = Pattern.compile("snapshot_(\\d+)\\.json");
 
   private WebDavClient webDavClient;
   private boolean fallbackToClass1 = false;
@@ -46,6 +91,22 @@ public class WebDavBackendProvider extends AbstractSyncBackendProvider {
    * this holds the uuid of the db account which data is currently synced
    */
   private String accountUuid;
+  /**
+   * the highest sequence in the account folder, as far as it is known during the current sync.
+   * Since nobody else writes while we hold the lock, it saves listing the folder again when we
+   * write our own changes
+   */
+  private Long lastSequence;
+  /**
+   * the entity tag of the account folder, as seen by the current sync before it writes. With the
+   * fallback to class 1, it is read before our lock file is written, since that changes it
+   */
+  private String collectionETag;
+  /**
+   * the sequence up to which the current sync has read or written the folder. With the fallback to
+   * class 1, it is saved together with the entity tag only once our lock file has been removed
+   */
+  private Long cursorSequence;
 
   WebDavBackendProvider(Context context, android.accounts.Account account, AccountManager accountManager) throws SyncParseException {
     super(context);
@@ -70,9 +131,20 @@ public class WebDavBackendProvider extends AbstractSyncBackendProvider {
     }
   }
 
+  @VisibleForTesting
+  public WebDavBackendProvider(Context context, String url, boolean fallbackToClass1)
+      throws InvalidCertificateException {
+    super(context);
+    this.fallbackToClass1 = fallbackToClass1;
+    webDavClient = new WebDavClient(url, null, null, null);
+  }
+
   @Override
   public boolean withAccount(Account account) {
     accountUuid = account.uuid;
+    lastSequence = null;
+    collectionETag = null;
+    cursorSequence = null;
     try {
       webDavClient.mkCol(accountUuid);
       LockableDavResource metaData = webDavClient.getResource(accountUuid, ACCOUNT_METADATA_FILENAME);
@@ -88,6 +160,8 @@ public class WebDavBackendProvider extends AbstractSyncBackendProvider {
 
   @Override
   public boolean resetAccountData(String uuid) {
+    sharedPreferences.edit().remove(KEY_COLLECTION_ETAG + uuid).remove(KEY_LAST_SEQUENCE + uuid)
+        .remove(KEY_ETAG_TRACKS_MEMBERS + uuid).apply();
     try {
       for (DavResource davResource : webDavClient.getFolderMembers(uuid)) {
         davResource.delete(null);
@@ -127,6 +201,11 @@ public class WebDavBackendProvider extends AbstractSyncBackendProvider {
   @Override
   public boolean lock() {
     if (fallbackToClass1) {
+      try {
+        collectionETag = webDavClient.getCollectionETag(accountUuid);
+      } catch (IOException e) {
+        collectionETag = null;
+      }
       return super.lock();
     } else {
       return webDavClient.lock(accountUuid);
@@ -140,22 +219,244 @@ public class WebDavBackendProvider extends AbstractSyncBackendProvider {
   @NonNull
   @Override
   public ChangeSet getChangeSetSince(long sequenceNumber, Context context) throws IOException {
-    return merge(filterDavResources(sequenceNumber).map(this::getChangeSetFromDavResource))
-        .orElse(ChangeSet.empty(sequenceNumber));
+    //if the folder is unchanged since we last saw it at the sequence we are asked about, there is
+    //nothing new and we do not need to list it
+    String eTag;
+    if (fallbackToClass1) {
+      eTag = collectionETag;
+    } else {
+      eTag = webDavClient.getCollectionETag(accountUuid);
+      collectionETag = eTag;
+    }
+    if (eTag != null && sharedPreferences.getBoolean(KEY_ETAG_TRACKS_MEMBERS + accountUuid, false)
+        && eTag.equals(sharedPreferences.getString(KEY_COLLECTION_ETAG + accountUuid, null))
+        && sharedPreferences.getLong(KEY_LAST_SEQUENCE + accountUuid, -1) == sequenceNumber) {
+      lastSequence = sequenceNumber;
+      cursorSequence = sequenceNumber;
+      return ChangeSet.empty(sequenceNumber);
+    }
+    FolderListing listing = listFolder();
+    lastSequence = listing.getLastSequence();
+    List<DavResource> davResources = new ArrayList<>();
+    long readFrom = sequenceNumber;
+    //a device that has not yet seen all changes rolled into the snapshot reads the snapshot instead
+    if (listing.snapshot != null && sequenceNumber < listing.snapshotSequence) {
+      davResources.add(listing.snapshot);
+      readFrom = listing.snapshotSequence;
+    }
+    for (DavResource changeFile : listing.changeFiles) {
+      if (getSequenceFromFileName(changeFile.fileName()) > readFrom) {
+        davResources.add(changeFile);
+      }
+    }
+    //change files are downloaded and parsed concurrently, but handed on in sequence order
+    List<ChangeSet> changeSets = new ArrayList<>(davResources.size());
+    new OrderedFetcher<DavResource, ChangeSet>(FETCH_PARALLELISM).fetch(davResources,
+        this::getChangeSetFromDavResource,
+        changeSet -> {
+          ChangeSet mapped;
+          try {
+            mapped = mapPicturesDuringRead(changeSet);
+          } catch (IOException e) {
+            mapped = ChangeSet.failed;
+          }
+          changeSets.add(mapped);
+          return !mapped.isFailed();
+        });
+    ChangeSet result = merge(changeSets).orElse(ChangeSet.empty(sequenceNumber));
+    if (!result.isFailed()) {
+      cursorSequence = lastSequence;
+      if (!fallbackToClass1) {
+        saveRemoteCursor(eTag, lastSequence);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * remembers the state of the account folder after the sync has seen it up to the given sequence
+   */
+  private void saveRemoteCursor(String eTag, long sequence) {
+    SharedPreferences.Editor editor = sharedPreferences.edit();
+    if (eTag == null) {
+      editor.remove(KEY_COLLECTION_ETAG + accountUuid);
+    } else {
+      editor.putString(KEY_COLLECTION_ETAG + accountUuid, eTag);
+    }
+    editor.putLong(KEY_LAST_SEQUENCE + accountUuid, sequence).apply();
+  }
+
+  /**
+   * not every server changes the entity tag of a collection when members are added, hence we only
+   * rely on it after we have seen it change upon one of our own writes
+   */
+  private void saveETagTracksMembers(String eTagBefore, String eTagAfter) {
+    if (eTagBefore != null && eTagAfter != null) {
+      sharedPreferences.edit().putBoolean(KEY_ETAG_TRACKS_MEMBERS + accountUuid,
+          !eTagAfter.equals(eTagBefore)).apply();
+    }
+  }
+
+  @Override
+  public long writeChangeSet(List<TransactionChange> changeSet, Context context) throws IOException {
+    long sequence = super.writeChangeSet(changeSet, context);
+    lastSequence = sequence;
+    cursorSequence = sequence;
+    if (!fallbackToClass1) {
+      //we record the state of the folder after our own write, so that the next sync can skip listing it
+      String eTag = webDavClient.getCollectionETag(accountUuid);
+      saveETagTracksMembers(collectionETag, eTag);
+      collectionETag = eTag;
+      saveRemoteCursor(eTag, sequence);
+    }
+    return sequence;
+  }
+
+  /**
+   * Rolls all but the most recent change files, together with an earlier snapshot, into a new
+   * snapshot, in which the changes are collapsed to the last state of each transaction (see
+   * {@link SyncAdapter#collapseChanges(List)}). The snapshot is written under a name of its own,
+   * before the files it replaces are deleted, hence if compaction is interrupted, the folder stays
+   * readable, and the files left over are deleted the next time this is called. Devices that have not
+   * yet read all of the rolled files read the snapshot instead.
+   */
+  @Override
+  public boolean compactChangeSets() throws IOException {
+    FolderListing listing = listFolder();
+    List<DavResource> newChangeFiles = new ArrayList<>();
+    for (DavResource changeFile : listing.changeFiles) {
+      if (getSequenceFromFileName(changeFile.fileName()) > listing.snapshotSequence) {
+        newChangeFiles.add(changeFile);
+      }
+    }
+    if (newChangeFiles.size() <= COMPACTION_THRESHOLD) {
+      //removes what an interrupted compaction has left over
+      if (deleteRolledFiles(listing, listing.snapshotSequence, listing.snapshot)) {
+        saveRemoteCursorAfterCompaction();
+      }
+      return false;
+    }
+    List<DavResource> toBeRolled = new ArrayList<>();
+    if (listing.snapshot != null) {
+      toBeRolled.add(listing.snapshot);
+    }
+    toBeRolled.addAll(newChangeFiles.subList(0, newChangeFiles.size() - COMPACTION_KEEP));
+    List<ChangeSet> changeSets = new ArrayList<>(toBeRolled.size());
+    boolean completed = new OrderedFetcher<DavResource, ChangeSet>(FETCH_PARALLELISM).fetch(toBeRolled,
+        this::getChangeSetFromDavResource,
+        changeSet -> changeSets.add(changeSet) && !changeSet.isFailed());
+    if (!completed) {
+      return false;
+    }
+    ChangeSet merged = ChangeSet.merge(changeSets);
+    saveSnapshot(ChangeSet.create(merged.sequenceNumber, SyncAdapter.collapseChanges(merged.changes)));
+    deleteRolledFiles(listing, merged.sequenceNumber, null);
+    saveRemoteCursorAfterCompaction();
+    return true;
+  }
+
+  /**
+   * deletes the change files up to the given sequence and all snapshots but the one to keep
+   *
+   * @return true if any file has been deleted
+   */
+  private boolean deleteRolledFiles(FolderListing listing, long sequence, DavResource snapshotToKeep)
+      throws IOException {
+    boolean deleted = false;
+    for (DavResource davResource : listing.changeFiles) {
+      if (getSequenceFromFileName(davResource.fileName()) <= sequence) {
+        webDavClient.delete(accountUuid, davResource.fileName());
+        deleted = true;
+      }
+    }
+    for (DavResource snapshot : listing.snapshots) {
+      if (snapshot != snapshotToKeep) {
+        webDavClient.delete(accountUuid, snapshot.fileName());
+        deleted = true;
+      }
+    }
+    return deleted;
+  }
+
+  /**
+   * compaction does not change what the folder holds, hence the cursor moves on to its new state
+   */
+  private void saveRemoteCursorAfterCompaction() throws IOException {
+    if (!fallbackToClass1 && lastSequence != null) {
+      saveRemoteCursor(webDavClient.getCollectionETag(accountUuid), lastSequence);
+    }
+  }
+
+  private void saveSnapshot(ChangeSet snapshot) throws IOException {
+    saveChanges("snapshot_" + snapshot.sequenceNumber + ".json", snapshot.changes);
   }
 
   private ChangeSet getChangeSetFromDavResource(DavResource davResource) {
+    ResponseBody body = null;
     try {
-      return getChangeSetFromInputStream(getSequenceFromFileName(davResource.fileName()),
-          davResource.get(MIMETYPE_JSON).byteStream());
+      body = davResource.get(MIMETYPE_JSON);
+      return getChangeSetFromInputStream(getSequence(davResource.fileName()), body.byteStream());
     } catch (IOException | at.bitfire.dav4android.exception.HttpException | DavException e) {
       return ChangeSet.failed;
+    } finally {
+      //releases the connection also if parsing fails before the body has been read to its end
+      if (body != null) {
+        body.close();
+      }
+    }
+  }
+
+  /**
+   * @return the sequence of a change file or of a snapshot
+   */
+  private long getSequence(String fileName) {
+    Matcher matcher = SNAPSHOT_PATTERN.matcher(fileName);
+    return matcher.matches() ? Long.parseLong(matcher.group(1)) : getSequenceFromFileName(fileName);
+  }
+
+  /**
+   * the change files and snapshots of the account folder
+   */
+  private static class FolderListing {
+    /**
+     * sorted by sequence
+     */
+    final List<DavResource> changeFiles = new ArrayList<>();
+    /**
+     * all snapshots, the most recent one included
+     */
+    final List<DavResource> snapshots = new ArrayList<>();
+    DavResource snapshot;
+    long snapshotSequence = 0;
+    long lastChangeFileSequence = 0;
+
+    long getLastSequence() {
+      return Math.max(snapshotSequence, lastChangeFileSequence);
     }
   }
 
-  private Stream<DavResource> filterDavResources(long sequenceNumber) throws IOException {
-    return Stream.of(webDavClient.getFolderMembers(accountUuid))
-        .filter(davResource -> isNewerJsonFile(sequenceNumber, davResource.fileName()));
+  private FolderListing listFolder() throws IOException {
+    FolderListing listing = new FolderListing();
+    Set<DavResource> members = webDavClient.getFolderMembers(accountUuid);
+    listing.changeFiles.addAll(Stream.of(members)
+        .filter(davResource -> isNewerJsonFile(0, davResource.fileName()))
+        .sortBy(davResource -> getSequenceFromFileName(davResource.fileName()))
+        .collect(Collectors.toList()));
+    for (DavResource davResource : members) {
+      if (SNAPSHOT_PATTERN.matcher(davResource.fileName()).matches()) {
+        listing.snapshots.add(davResource);
+        long sequence = getSequence(davResource.fileName());
+        if (sequence > listing.snapshotSequence) {
+          listing.snapshot = davResource;
+          listing.snapshotSequence = sequence;
+        }
+      }
+    }
+    if (!listing.changeFiles.isEmpty()) {
+      listing.lastChangeFileSequence = getSequenceFromFileName(
+          listing.changeFiles.get(listing.changeFiles.size() - 1).fileName());
+    }
+    return listing;
   }
 
   @NonNull
@@ -180,51 +481,157 @@ public class WebDavBackendProvider extends AbstractSyncBackendProvider {
   }
 
   private void saveUriToFolder(String fileName, Uri uri, String folder) throws IOException {
-    InputStream in = MyApplication.getInstance().getContentResolver()
-        .openInputStream(uri);
-    if (in == null) {
+    final ContentResolver cr = MyApplication.getInstance().getContentResolver();
+    AssetFileDescriptor descriptor = cr.openAssetFileDescriptor(uri, "r");
+    if (descriptor == null) {
       throw new IOException("Could not read " + uri.toString());
     }
-    webDavClient.upload(folder, fileName, toByteArray(in),
-        MediaType.parse(MimeTypeMap.getSingleton().getMimeTypeFromExtension(
-            getFileExtension(fileName))));
+    final long length = descriptor.getLength();
+    descriptor.close();
+    String mimeType = MimeTypeMap.getSingleton().getMimeTypeFromExtension(getFileExtension(fileName));
+    final MediaType mediaType = MediaType.parse(mimeType != null ? mimeType : MIMETYPE_OCTET_STREAM);
+    //the body is read from the uri while it is sent, instead of being loaded into memory
+    webDavClient.upload(folder, fileName, new RequestBody() {
+      @Override
+      public MediaType contentType() {
+        return mediaType;
+      }
+
+      @Override
+      public long contentLength() {
+        return length == AssetFileDescriptor.UNKNOWN_LENGTH ? -1 : length;
+      }
+
+      @Override
+      public void writeTo(BufferedSink sink) throws IOException {
+        InputStream in = cr.openInputStream(uri);
+        if (in == null) {
+          throw new IOException("Could not read " + uri.toString());
+        }
+        try {
+          sink.writeAll(Okio.source(in));
+        } finally {
+          in.close();
+        }
+      }
+    });
   }
 
+  /**
+   * Pictures referenced by the manifest of the backup are uploaded into a folder next to the
+   * backups, unless they are stored there already. The archive itself is uploaded last, so that
+   * it never references a missing picture.
+   */
   @Override
   public void storeBackup(Uri uri) throws IOException {
+    Map<String, String> manifest;
+    InputStream in = MyApplication.getInstance().getContentResolver().openInputStream(uri);
+    if (in == null) {
+      throw new IOException("Could not read " + uri.toString());
+    }
+    try {
+      manifest = BackupPictureStore.readManifestFromArchive(in);
+    } finally {
+      in.close();
+    }
+    if (!manifest.isEmpty()) {
+      DocumentFile appDir = AppDirHelper.getAppDir(MyApplication.getInstance());
+      BackupPictureStore pictureStore = appDir == null ? null : BackupPictureStore.open(appDir);
+      if (pictureStore == null) {
+        throw new IOException("Could not open " + BackupPictureStore.FOLDER_NAME);
+      }
+      webDavClient.mkCol(BackupPictureStore.FOLDER_NAME);
+      Set<String> stored = getBackupPictures();
+      for (String blob : new HashSet<>(manifest.values())) {
+        if (!stored.contains(blob)) {
+          DocumentFile blobFile = pictureStore.getBlob(blob);
+          if (blobFile == null) {
+            throw new IOException("Could not find picture " + blob);
+          }
+          saveUriToFolder(blob, blobFile.getUri(), BackupPictureStore.FOLDER_NAME);
+        }
+      }
+    }
     webDavClient.mkCol(BACKUP_FOLDER_NAME);
     saveUriToFolder(uri.getLastPathSegment(), uri, BACKUP_FOLDER_NAME);
   }
 
+  @NonNull
+  @Override
+  public Set<String> getBackupPictures() throws IOException {
+    return Stream.of(webDavClient.getFolderMembers(BackupPictureStore.FOLDER_NAME))
+        .map(DavResource::fileName)
+        .collect(Collectors.toSet());
+  }
+
+  @NonNull
+  @Override
+  public InputStream getInputStreamForBackupPicture(String blob) throws IOException {
+    try {
+      return webDavClient.getResource(BackupPictureStore.FOLDER_NAME, blob).get("*/*").byteStream();
+    } catch (at.bitfire.dav4android.exception.HttpException | DavException e) {
+      throw new IOException(e);
+    }
+  }
+
   @Override
   protected long getLastSequence() throws IOException {
-    return filterDavResources(0)
-        .map(davResource -> getSequenceFromFileName(davResource.fileName()))
-        .max(this::compareInt)
-        .orElse(0L);
+    if (lastSequence != null) {
+      return lastSequence;
+    }
+    return listFolder().getLastSequence();
   }
 
   @Override
-  void saveFileContents(String fileName, String fileContents, String mimeType) throws IOException {
+  void saveFileContents(String fileName, ContentWriter contentWriter, String mimeType) throws IOException {
+    final MediaType mediaType = MediaType.parse(mimeType + "; charset=utf-8");
+    //the body is spooled to a file first, since some servers do not accept chunked uploads, which a
+    //body of unknown length would be sent as, and large change sets should not be held in memory
+    File spool = File.createTempFile("upload", null, MyApplication.getInstance().getCacheDir());
     try {
-      webDavClient.upload(accountUuid, fileName, fileContents,
-          MediaType.parse(mimeType + "; charset=utf-8"));
+      Writer writer = new OutputStreamWriter(new FileOutputStream(spool), "UTF-8");
+      try {
+        contentWriter.writeTo(writer);
+      } finally {
+        writer.close();
+      }
+      webDavClient.upload(accountUuid, fileName, RequestBody.create(mediaType, spool));
     } catch (HttpException e) {
       throw e.getCause() instanceof IOException ? ((IOException) e.getCause()) : new IOException(e);
+    } finally {
+      //noinspection ResultOfMethodCallIgnored
+      spool.delete();
     }
   }
 
   @Override
   public boolean unlock() {
-    if (fallbackToClass1) {
-      try {
-        getLockFile().delete(null);
+    try {
+      if (fallbackToClass1) {
+        try {
+          getLockFile().delete(null);
+        } catch (IOException | at.bitfire.dav4android.exception.HttpException e) {
+          return false;
+        }
+        if (cursorSequence != null) {
+          //writing and removing our lock file changes the entity tag of a server that tracks members
+          try {
+            String eTag = webDavClient.getCollectionETag(accountUuid);
+            saveETagTracksMembers(collectionETag, eTag);
+            saveRemoteCursor(eTag, cursorSequence);
+          } catch (IOException e) {
+            Timber.w(e);
+          }
+        }
         return true;
-      } catch (IOException | at.bitfire.dav4android.exception.HttpException e) {
-        return false;
+      } else {
+        return webDavClient.unlock(accountUuid);
       }
-    } else {
-      return webDavClient.unlock(accountUuid);
+    } finally {
+      //once we give up the lock, others may write
+      lastSequence = null;
+      collectionETag = null;
+      cursorSequence = null;
     }
   }
 
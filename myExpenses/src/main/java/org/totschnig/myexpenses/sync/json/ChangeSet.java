@@ -28,14 +28,25 @@ public class ChangeSet {
     return create(sequenceNumber, new ArrayList<>());
   }
 
-  public static ChangeSet merge(ChangeSet changeset1, ChangeSet changeset2) {
-    if (changeset1.isFailed() || changeset2.isFailed()) {
-      return failed;
+  /**
+   * concatenates the changes of all change sets in a single pass
+   * @param changeSets must not be empty
+   * @return {@link #failed} if any of the change sets failed
+   */
+  public static ChangeSet merge(List<ChangeSet> changeSets) {
+    int size = 0;
+    long max = FAILED;
+    for (ChangeSet changeSet : changeSets) {
+      if (changeSet.isFailed()) {
+        return failed;
+      }
+      size += changeSet.changes.size();
+      max = Math.max(max, changeSet.sequenceNumber);
+    }
+    List<TransactionChange> changes = new ArrayList<>(size);
+    for (ChangeSet changeSet : changeSets) {
+      changes.addAll(changeSet.changes);
     }
-    List<TransactionChange> changes = new ArrayList<>();
-    changes.addAll(changeset1.changes);
-    changes.addAll(changeset2.changes);
-    long max = Math.max(changeset1.sequenceNumber, changeset2.sequenceNumber);
     return new ChangeSet(max, changes);
   }
 }
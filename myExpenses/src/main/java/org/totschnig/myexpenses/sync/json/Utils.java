@@ -1,16 +1,77 @@
 package org.totschnig.myexpenses.sync.json;
 
+import com.annimon.stream.function.Consumer;
 import com.google.gson.Gson;
-import com.google.gson.reflect.TypeToken;
+import com.google.gson.JsonIOException;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import com.google.gson.stream.MalformedJsonException;
 
+import java.io.EOFException;
+import java.io.IOException;
 import java.io.Reader;
-import java.lang.reflect.Type;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.List;
 
 public class Utils {
+  /**
+   * @return null if the reader does not provide any content
+   */
   public static List<TransactionChange> getChanges(Gson gson, Reader reader) {
-    Type listType = new TypeToken<ArrayList<TransactionChange>>(){}.getType();
-    return gson.fromJson(reader, listType);
+    List<TransactionChange> result = new ArrayList<>();
+    return readChanges(gson, reader, result::add) ? result : null;
+  }
+
+  /**
+   * reads a JSON array of changes, handing on one change at a time, without binding the whole
+   * document
+   * @return false if the reader does not provide any content
+   */
+  public static boolean readChanges(Gson gson, Reader reader, Consumer<TransactionChange> consumer) {
+    TypeAdapter<TransactionChange> adapter = gson.getAdapter(TransactionChange.class);
+    JsonReader jsonReader = new JsonReader(reader);
+    jsonReader.setLenient(true);
+    try {
+      try {
+        if (jsonReader.peek() == JsonToken.NULL) {
+          return false;
+        }
+      } catch (EOFException e) {
+        return false;
+      }
+      jsonReader.beginArray();
+      while (jsonReader.hasNext()) {
+        consumer.accept(adapter.read(jsonReader));
+      }
+      jsonReader.endArray();
+      return true;
+    } catch (MalformedJsonException | IllegalStateException e) {
+      throw new JsonSyntaxException(e);
+    } catch (IOException e) {
+      throw new JsonIOException(e);
+    }
+  }
+
+  /**
+   * writes changes as JSON array, one change at a time. The output is identical to
+   * {@link Gson#toJson(Object)}
+   */
+  public static void writeChanges(Gson gson, List<TransactionChange> changes, Writer writer)
+      throws IOException {
+    TypeAdapter<TransactionChange> adapter = gson.getAdapter(TransactionChange.class);
+    JsonWriter jsonWriter = new JsonWriter(writer);
+    jsonWriter.setSerializeNulls(false);
+    jsonWriter.setHtmlSafe(true);
+    jsonWriter.setLenient(true);
+    jsonWriter.beginArray();
+    for (TransactionChange change : changes) {
+      adapter.write(jsonWriter, change);
+    }
+    jsonWriter.endArray();
+    jsonWriter.flush();
   }
 }
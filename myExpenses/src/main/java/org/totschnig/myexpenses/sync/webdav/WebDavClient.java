@@ -40,6 +40,7 @@ import at.bitfire.dav4android.UrlUtils;
 import at.bitfire.dav4android.XmlUtils;
 import at.bitfire.dav4android.exception.DavException;
 import at.bitfire.dav4android.property.DisplayName;
+import at.bitfire.dav4android.property.GetETag;
 import at.bitfire.dav4android.property.ResourceType;
 import dagger.internal.Preconditions;
 import okhttp3.HttpUrl;
@@ -100,18 +101,20 @@ public class WebDavClient {
   }
 
   public void upload(String folderName, String fileName, String fileContent, MediaType mediaType) throws HttpException {
-    try {
-      new LockableDavResource(httpClient, buildResourceUri(folderName, fileName))
-          .put(RequestBody.create(mediaType, fileContent), buildIfHeader(folderName));
-    } catch (IOException | at.bitfire.dav4android.exception.HttpException e) {
-      throw new HttpException(e);
-    }
+    upload(folderName, fileName, RequestBody.create(mediaType, fileContent));
   }
 
   public void upload(String folderName, String fileName, byte[] fileContent, MediaType mediaType) throws HttpException {
+    upload(folderName, fileName, RequestBody.create(mediaType, fileContent));
+  }
+
+  /**
+   * @param body may be a streaming body, which is written while the request is executed
+   */
+  public void upload(String folderName, String fileName, RequestBody body) throws HttpException {
     try {
       new LockableDavResource(httpClient, buildResourceUri(folderName, fileName))
-          .put(RequestBody.create(mediaType, fileContent), buildIfHeader(folderName));
+          .put(body, buildIfHeader(folderName));
     } catch (IOException | at.bitfire.dav4android.exception.HttpException e) {
       throw new HttpException(e);
     }
@@ -151,6 +154,44 @@ public class WebDavClient {
     return folder.members;
   }
 
+  /**
+   * @return the entity tag of the collection as reported by a PROPFIND of depth 0, or null if the
+   * server does not provide one
+   */
+  @Nullable
+  public String getCollectionETag(String folderName) throws IOException {
+    DavResource folder = new DavResource(httpClient, buildCollectionUri(folderName));
+    try {
+      folder.propfind(0, GetETag.NAME);
+    } catch (DavException | at.bitfire.dav4android.exception.HttpException e) {
+      throw new IOException(e);
+    }
+    GetETag eTag = (GetETag) folder.properties.get(GetETag.NAME);
+    return eTag == null ? null : eTag.eTag;
+  }
+
+  public void delete(String folderName, String fileName) throws HttpException {
+    Request.Builder builder = new Request.Builder()
+        .url(buildResourceUri(folderName, fileName))
+        .delete();
+    String ifHeader = buildIfHeader(folderName);
+    if (ifHeader != null) {
+      builder.header("If", ifHeader);
+    }
+    Request request = builder.build();
+    Response response = null;
+    try {
+      response = httpClient.newCall(request).execute();
+      if (!response.isSuccessful()) {
+        throw new HttpException(response);
+      }
+    } catch (IOException e) {
+      throw e instanceof HttpException ? (HttpException) e : new HttpException(request, e);
+    } finally {
+      cleanUp(response);
+    }
+  }
+
   public LockableDavResource getResource(String folderName, String resourceName) {
     return new LockableDavResource(httpClient, buildResourceUri(folderName, resourceName));
   }
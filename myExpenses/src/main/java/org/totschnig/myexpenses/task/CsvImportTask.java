@@ -16,10 +16,18 @@
 
 package org.totschnig.myexpenses.task;
 
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.RemoteException;
 import android.text.TextUtils;
 
+import org.apache.commons.csv.CSVFormat;
 import org.apache.commons.csv.CSVRecord;
 import org.totschnig.myexpenses.MyApplication;
 import org.totschnig.myexpenses.R;
@@ -38,37 +46,79 @@ import org.totschnig.myexpenses.model.SplitTransaction;
 import org.totschnig.myexpenses.model.Transaction;
 import org.totschnig.myexpenses.model.Transfer;
 import org.totschnig.myexpenses.provider.DatabaseConstants;
+import org.totschnig.myexpenses.provider.DbUtils;
+import org.totschnig.myexpenses.provider.TransactionProvider;
 import org.totschnig.myexpenses.util.Result;
 import org.totschnig.myexpenses.util.SparseBooleanArrayParcelable;
 import org.totschnig.myexpenses.util.Utils;
 
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.math.BigDecimal;
 import java.util.ArrayList;
 import java.util.Currency;
 import java.util.HashMap;
 import java.util.Map;
 
+import timber.log.Timber;
+
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_LABEL;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_PARENTID;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_PAYEE_NAME;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ROWID;
+
+/**
+ * reads the file record by record and writes the transactions in chunks, each chunk is applied
+ * as one batch. Payees, categories, methods and transfer accounts are resolved through maps that
+ * are loaded from the database before the import starts
+ */
 public class CsvImportTask extends AsyncTask<Void, Integer, Result> {
+  /**
+   * optional argument, number of operations that are applied in one transaction
+   */
+  public static final String KEY_CHUNK_SIZE = "chunkSize";
+  private static final int DEFAULT_CHUNK_SIZE = 500;
   private final TaskExecutionFragment taskExecutionFragment;
   private QifDateFormat dateFormat;
-  ArrayList<CSVRecord> data;
+  private Uri fileUri;
+  private char delimiter;
+  private String encoding;
   int[] column2FieldMap;
   SparseBooleanArrayParcelable discardedRows;
   private long accountId;
   private Currency mCurrency;
   private AccountType mAccountType;
+  private int chunkSize;
   private final Map<String, Long> payeeToId = new HashMap<>();
   private final Map<String, Long> categoryToId = new HashMap<>();
+  private final Map<String, Long> methodToId = new HashMap<>();
+  private final Map<String, Long> accountToId = new HashMap<>();
+
+  private final ArrayList<ContentProviderOperation> chunk = new ArrayList<>();
+  /**
+   * number of transactions (without split parts) in the current chunk
+   */
+  private int transactionsInChunk = 0;
+  /**
+   * position of the insert operation of the most recent split parent in the current chunk
+   */
+  private int splitParentOffset = -1;
+  private int totalImported = 0, totalFailed = 0;
 
   public CsvImportTask(TaskExecutionFragment taskExecutionFragment, Bundle b) {
     this.taskExecutionFragment = taskExecutionFragment;
     this.dateFormat = (QifDateFormat) b.getSerializable(TaskExecutionFragment.KEY_DATE_FORMAT);
-    this.data = (ArrayList<CSVRecord>) b.getSerializable(CsvImportDataFragment.KEY_DATASET);
+    this.fileUri = b.getParcelable(TaskExecutionFragment.KEY_FILE_PATH);
+    this.delimiter = b.getChar(TaskExecutionFragment.KEY_DELIMITER);
+    this.encoding = b.getString(TaskExecutionFragment.KEY_ENCODING);
     this.column2FieldMap = (int[]) b.getSerializable(CsvImportDataFragment.KEY_FIELD_TO_COLUMN);
     this.discardedRows = b.getParcelable(CsvImportDataFragment.KEY_DISCARDED_ROWS);
     this.accountId = b.getLong(DatabaseConstants.KEY_ACCOUNTID);
     this.mCurrency = Currency.getInstance(b.getString(DatabaseConstants.KEY_CURRENCY));
     this.mAccountType = (AccountType) b.getSerializable(DatabaseConstants.KEY_TYPE);
+    this.chunkSize = b.getInt(KEY_CHUNK_SIZE, DEFAULT_CHUNK_SIZE);
   }
 
   @Override
@@ -88,12 +138,21 @@ public class CsvImportTask extends AsyncTask<Void, Integer, Result> {
 
   @Override
   protected Result doInBackground(Void... params) {
-    int totalImported = 0, totalDiscarded = 0, totalFailed = 0;
+    int totalDiscarded = 0;
+    MyApplication application = MyApplication.getInstance();
+    InputStream inputStream;
+    try {
+      inputStream = application.getContentResolver().openInputStream(fileUri);
+    } catch (FileNotFoundException e) {
+      return new Result(false, application.getString(R.string.parse_error_file_not_found, fileUri));
+    } catch (Exception e) {
+      return new Result(false, application.getString(R.string.parse_error_other_exception, e.getMessage()));
+    }
     Account a;
     if (accountId == 0) {
       a = new Account();
       a.currency = mCurrency;
-      a.label = MyApplication.getInstance().getString(R.string.pref_import_title, "CSV");
+      a.label = application.getString(R.string.pref_import_title, "CSV");
       a.type = mAccountType;
       a.save();
       accountId = a.getId();
@@ -113,21 +172,31 @@ public class CsvImportTask extends AsyncTask<Void, Integer, Result> {
     int columnIndexNumber = findColumnIndex(R.string.reference_number);
     int columnIndexSplit = findColumnIndex(R.string.split_transaction);
 
+    loadLookupMaps(application.getContentResolver());
+    String transferCategory = application.getString(R.string.transfer);
+
     boolean isSplitParent = false, isSplitPart = false;
     Transaction t;
-    Long splitParent = null;
-    for (int i = 0; i < data.size(); i++) {
-      long transferAccountId = -1;
-      if (discardedRows.get(i, false)) {
-        totalDiscarded++;
-      } else {
-        CSVRecord record = data.get(i);
+    DbUtils.beginBulkOperation();
+    try {
+      int i = 0;
+      for (CSVRecord record : CSVFormat.DEFAULT.withDelimiter(delimiter)
+          .parse(new InputStreamReader(inputStream, encoding))) {
+        long transferAccountId = -1;
+        if (discardedRows.get(i++, false)) {
+          totalDiscarded++;
+          continue;
+        }
         BigDecimal amount;
         String categoryInfo = null;
         if (columnIndexSplit != -1) {
           isSplitPart = saveGetFromRecord(record, columnIndexSplit).equals(SplitTransaction.CSV_PART_INDICATOR);
           isSplitParent = saveGetFromRecord(record, columnIndexSplit).equals(SplitTransaction.CSV_INDICATOR);
         }
+        //split parts are kept in the same chunk as their parent
+        if (!isSplitPart && chunk.size() >= chunkSize) {
+          applyChunk();
+        }
         try {
           if (columnIndexAmount != -1) {
             amount = QifUtils.parseMoney(saveGetFromRecord(record, columnIndexAmount), mCurrency);
@@ -141,6 +210,7 @@ public class CsvImportTask extends AsyncTask<Void, Integer, Result> {
             amount = income.subtract(expense);
           }
         } catch (IllegalArgumentException e) {
+          applyChunk();
           return new Result(false, "Amounts in data exceed storage limit");
         }
         Money m = new Money(a.currency, amount);
@@ -151,12 +221,12 @@ public class CsvImportTask extends AsyncTask<Void, Integer, Result> {
             String subCategory = columnIndexSubcategory != -1 ?
                 saveGetFromRecord(record, columnIndexSubcategory)
                 : "";
-            if (category.equals(MyApplication.getInstance().getString(R.string.transfer)) &&
+            if (category.equals(transferCategory) &&
                 !subCategory.equals("") &&
                 QifUtils.isTransferCategory(subCategory)) {
-              transferAccountId = Account.findAny(subCategory.substring(1, subCategory.length() - 1));
+              transferAccountId = findAccount(subCategory.substring(1, subCategory.length() - 1));
             } else if (QifUtils.isTransferCategory(category)) {
-              transferAccountId = Account.findAny(category.substring(1, category.length() - 1));
+              transferAccountId = findAccount(category.substring(1, category.length() - 1));
             }
             if (transferAccountId == -1) {
               categoryInfo = category;
@@ -169,10 +239,10 @@ public class CsvImportTask extends AsyncTask<Void, Integer, Result> {
 
         if (isSplitPart) {
           if (transferAccountId != -1) {
-            t = SplitPartTransfer.getNewInstance(accountId, m.getAmountMinor(), splitParent);
-            t.transfer_account = transferAccountId;
+            t = new SplitPartTransfer(a, m.getAmountMinor(), null,
+                Account.getInstanceFromDb(transferAccountId));
           } else {
-            t = new SplitPartCategory(accountId, m.getAmountMinor(), splitParent);
+            t = new SplitPartCategory(a, m.getAmountMinor(), null);
           }
         } else {
           if (isSplitParent) {
@@ -199,7 +269,6 @@ public class CsvImportTask extends AsyncTask<Void, Integer, Result> {
           if (!payee.equals("")) {
             long id = Payee.extractPayeeId(payee, payeeToId);
             if (id != -1) {
-              payeeToId.put(payee, id);
               t.payeeId = id;
             }
           }
@@ -212,14 +281,8 @@ public class CsvImportTask extends AsyncTask<Void, Integer, Result> {
         if (columnIndexMethod != -1) {
           String method = saveGetFromRecord(record, columnIndexMethod);
           if (!method.equals("")) {
-            for (PaymentMethod.PreDefined preDefined : PaymentMethod.PreDefined.values()) {
-              if (preDefined.getLocalizedLabel().equals(method)) {
-                method = preDefined.name();
-                break;
-              }
-            }
-            long methodId = PaymentMethod.find(method);
-            if (methodId != -1) {
+            Long methodId = methodToId.get(method);
+            if (methodId != null) {
               t.methodId = methodId;
             }
           }
@@ -232,20 +295,26 @@ public class CsvImportTask extends AsyncTask<Void, Integer, Result> {
         if (columnIndexNumber != -1) {
           t.referenceNumber = saveGetFromRecord(record, columnIndexNumber);
         }
-        if (t.save() != null) {
-          if (isSplitParent) {
-            splitParent = t.getId();
-          }
-          if (!isSplitPart) {
-            totalImported++;
-          }
-        } else {
-          totalFailed++;
+        int offset = chunk.size();
+        chunk.addAll(t.buildSaveOperations(offset, isSplitPart ? splitParentOffset : -1, false));
+        if (isSplitParent) {
+          splitParentOffset = offset;
         }
-        if (totalImported % 10 == 0) {
-          publishProgress(totalImported);
+        if (!isSplitPart) {
+          transactionsInChunk++;
         }
       }
+      applyChunk();
+    } catch (IOException | IllegalStateException e) {
+      //the record iterator wraps IOExceptions into IllegalStateException
+      return new Result(false, application.getString(R.string.parse_error_other_exception, e.getMessage()));
+    } finally {
+      DbUtils.endBulkOperation();
+      try {
+        inputStream.close();
+      } catch (IOException e) {
+        Timber.e(e);
+      }
     }
     return new Result(true,
         0,
@@ -255,6 +324,88 @@ public class CsvImportTask extends AsyncTask<Void, Integer, Result> {
         a.label);
   }
 
+  private void applyChunk() {
+    if (chunk.isEmpty()) {
+      return;
+    }
+    try {
+      MyApplication.getInstance().getContentResolver().applyBatch(TransactionProvider.AUTHORITY, chunk);
+      totalImported += transactionsInChunk;
+    } catch (RemoteException | OperationApplicationException | SQLException e) {
+      Timber.e(e);
+      totalFailed += transactionsInChunk;
+    }
+    chunk.clear();
+    transactionsInChunk = 0;
+    splitParentOffset = -1;
+    publishProgress(totalImported);
+  }
+
+  /**
+   * one query per table instead of one per record. Values not found in the maps are still looked
+   * up (and created) through the model classes
+   */
+  private void loadLookupMaps(ContentResolver cr) {
+    Cursor c = cr.query(TransactionProvider.PAYEES_URI, new String[]{KEY_ROWID, KEY_PAYEE_NAME},
+        null, null, null);
+    if (c != null) {
+      while (c.moveToNext()) {
+        payeeToId.put(c.getString(1), c.getLong(0));
+      }
+      c.close();
+    }
+    c = cr.query(TransactionProvider.CATEGORIES_URI, new String[]{KEY_ROWID, KEY_LABEL, KEY_PARENTID},
+        null, null, null);
+    if (c != null) {
+      Map<Long, String> mainCategories = new HashMap<>();
+      while (c.moveToNext()) {
+        if (c.isNull(2)) {
+          mainCategories.put(c.getLong(0), c.getString(1));
+          categoryToId.put(c.getString(1), c.getLong(0));
+        }
+      }
+      c.moveToPosition(-1);
+      while (c.moveToNext()) {
+        if (!c.isNull(2)) {
+          String parent = mainCategories.get(c.getLong(2));
+          if (parent != null) {
+            categoryToId.put(parent + CategoryInfo.SEPARATOR + c.getString(1), c.getLong(0));
+          }
+        }
+      }
+      c.close();
+    }
+    c = cr.query(TransactionProvider.METHODS_URI, new String[]{KEY_ROWID, KEY_LABEL}, null, null, null);
+    if (c != null) {
+      while (c.moveToNext()) {
+        methodToId.put(c.getString(1), c.getLong(0));
+      }
+      c.close();
+    }
+    //localized labels of predefined methods take precedence
+    for (PaymentMethod.PreDefined preDefined : PaymentMethod.PreDefined.values()) {
+      Long id = methodToId.get(preDefined.name());
+      if (id != null) {
+        methodToId.put(preDefined.getLocalizedLabel(), id);
+      }
+    }
+    c = cr.query(TransactionProvider.ACCOUNTS_BASE_URI, new String[]{KEY_ROWID, KEY_LABEL},
+        null, null, null);
+    if (c != null) {
+      while (c.moveToNext()) {
+        if (!accountToId.containsKey(c.getString(1))) {
+          accountToId.put(c.getString(1), c.getLong(0));
+        }
+      }
+      c.close();
+    }
+  }
+
+  private long findAccount(String label) {
+    Long id = accountToId.get(label);
+    return id == null ? -1 : id;
+  }
+
   private int findColumnIndex(int field) {
     return Utils.indexOf(column2FieldMap, field);
   }
@@ -262,4 +413,4 @@ public class CsvImportTask extends AsyncTask<Void, Integer, Result> {
   private String saveGetFromRecord(CSVRecord record, int index) {
     return record.size() > index ? record.get(index).trim() : "";
   }
-}
\ No newline at end of file
+}
@@ -24,7 +24,7 @@ import org.apache.commons.csv.CSVFormat;
 import org.apache.commons.csv.CSVRecord;
 import org.totschnig.myexpenses.MyApplication;
 import org.totschnig.myexpenses.R;
-import org.totschnig.myexpenses.export.qif.QifDateFormat;
+import org.totschnig.myexpenses.util.Result;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
@@ -32,7 +32,13 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
 
-public class CsvParseTask extends AsyncTask<Void, String, ArrayList<CSVRecord>> {
+/**
+ * reads the file once, keeping only the first {@link #PREVIEW_SIZE} records for display. The result
+ * holds these records and the total number of records in its extras.
+ * {@link CsvImportTask} reads the file again for the import itself
+ */
+public class CsvParseTask extends AsyncTask<Void, String, Result> {
+  public static final int PREVIEW_SIZE = 100;
   private final TaskExecutionFragment taskExecutionFragment;
   private char delimiter;
   private String encoding;
@@ -47,7 +53,7 @@ public class CsvParseTask extends AsyncTask<Void, String, ArrayList<CSVRecord>>
   }
 
   @Override
-  protected void onPostExecute(ArrayList<CSVRecord> result) {
+  protected void onPostExecute(Result result) {
     if (this.taskExecutionFragment.mCallbacks != null) {
       this.taskExecutionFragment.mCallbacks.onPostExecute(
           TaskExecutionFragment.TASK_CSV_PARSE, result);
@@ -64,7 +70,7 @@ public class CsvParseTask extends AsyncTask<Void, String, ArrayList<CSVRecord>>
   }
 
   @Override
-  protected ArrayList<CSVRecord> doInBackground(Void... params) {
+  protected Result doInBackground(Void... params) {
     InputStream inputStream;
     try {
       inputStream = MyApplication.getInstance().getContentResolver().openInputStream(fileUri);
@@ -78,9 +84,18 @@ public class CsvParseTask extends AsyncTask<Void, String, ArrayList<CSVRecord>>
       return null;
     }
     try {
-      return (ArrayList<CSVRecord>) CSVFormat.DEFAULT.withDelimiter(delimiter)
-          .parse(new InputStreamReader(inputStream,encoding)).getRecords();
-    } catch (IOException e) {
+      ArrayList<CSVRecord> preview = new ArrayList<>();
+      int recordCount = 0;
+      for (CSVRecord record : CSVFormat.DEFAULT.withDelimiter(delimiter)
+          .parse(new InputStreamReader(inputStream, encoding))) {
+        if (recordCount < PREVIEW_SIZE) {
+          preview.add(record);
+        }
+        recordCount++;
+      }
+      return new Result(true, 0, preview, recordCount);
+    } catch (IOException | IllegalStateException e) {
+      //the record iterator wraps IOExceptions into IllegalStateException
       publishProgress(MyApplication.getInstance()
           .getString(R.string.parse_error_other_exception,e.getMessage()));
       return null;
@@ -4,6 +4,8 @@ import android.database.Cursor;
 import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Bundle;
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
 import android.support.v4.provider.DocumentFile;
 
 import org.totschnig.myexpenses.MyApplication;
@@ -15,18 +17,33 @@ import org.totschnig.myexpenses.model.ExportFormat;
 import org.totschnig.myexpenses.preference.PrefKey;
 import org.totschnig.myexpenses.provider.DatabaseConstants;
 import org.totschnig.myexpenses.provider.DbUtils;
+import org.totschnig.myexpenses.provider.TransactionDatabase;
 import org.totschnig.myexpenses.provider.TransactionProvider;
 import org.totschnig.myexpenses.provider.filter.WhereFilter;
 import org.totschnig.myexpenses.util.AppDirHelper;
 import org.totschnig.myexpenses.util.FileUtils;
 import org.totschnig.myexpenses.util.Result;
 import org.totschnig.myexpenses.util.Utils;
+import org.totschnig.myexpenses.util.ZipUtils;
 
+import java.io.File;
 import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipOutputStream;
+
+import timber.log.Timber;
 
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_CURRENCY;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ROWID;
@@ -37,6 +54,13 @@ public class ExportTask extends AsyncTask<Void, String, ArrayList<Uri>> {
   public static final String KEY_DELETE_P = "deleteP";
   public static final String KEY_EXPORT_HANDLE_DELETED = "export_handle_deleted";
   public static final String KEY_FILE_NAME = "file_name";
+  public static final String KEY_EXPORT_ZIP = "export_zip";
+  /**
+   * upper bound for the number of accounts exported concurrently
+   */
+  private static final int MAX_EXPORT_THREADS =
+      Math.min(4, Runtime.getRuntime().availableProcessors());
+  private static final int WORKER_TERMINATION_TIMEOUT_SECONDS = 30;
   private final TaskExecutionFragment taskExecutionFragment;
   //we store the label of the account as progress
   private String progress ="";
@@ -52,6 +76,7 @@ public class ExportTask extends AsyncTask<Void, String, ArrayList<Uri>> {
   private int handleDelete;
   private WhereFilter filter;
   private String fileName;
+  private boolean zipP;
 
   /**
    *
@@ -68,6 +93,7 @@ public class ExportTask extends AsyncTask<Void, String, ArrayList<Uri>> {
     currency = extras.getString(KEY_CURRENCY);
     fileName = extras.getString(KEY_FILE_NAME);
     handleDelete = extras.getInt(KEY_EXPORT_HANDLE_DELETED);
+    zipP = extras.getBoolean(KEY_EXPORT_ZIP);
     if (deleteP && notYetExportedP)
       throw new IllegalStateException(
           "Deleting exported transactions is only allowed when all transactions are exported");
@@ -116,7 +142,7 @@ public class ExportTask extends AsyncTask<Void, String, ArrayList<Uri>> {
   @Override
   protected ArrayList<Uri> doInBackground(Void... ignored) {
     Long[] accountIds;
-    MyApplication application = MyApplication.getInstance();
+    final MyApplication application = MyApplication.getInstance();
     if (accountId > 0L) {
         accountIds = new Long[] {accountId};
     } else {
@@ -133,51 +159,46 @@ public class ExportTask extends AsyncTask<Void, String, ArrayList<Uri>> {
         c.close();
       }
     }
-    Account account;
     DocumentFile destDir;
-    DocumentFile appDir = AppDirHelper.getAppDir(application);
+    final DocumentFile appDir = AppDirHelper.getAppDir(application);
     if (appDir == null) {
       publishProgress(application.getString(R.string.external_storage_unavailable));
       return(null);
     }
-    if (accountIds.length > 1) {
+    boolean zipP = this.zipP && accountIds.length > 1;
+    DocumentFile zipFile = null;
+    if (zipP) {
+      //files are written to the cache and moved into the archive once they are complete
+      destDir = AppDirHelper.newDirectory(DocumentFile.fromFile(AppDirHelper.getCacheDir()), fileName);
+      zipFile = AppDirHelper.newFile(appDir, fileName, "application/zip", true);
+      if (zipFile == null) {
+        publishProgress(application.getString(R.string.io_error_unable_to_create_file,
+            fileName, FileUtils.getPath(application, appDir.getUri())));
+        return(null);
+      }
+    } else if (accountIds.length > 1) {
       destDir = AppDirHelper.newDirectory(appDir, fileName);
     } else {
       destDir = appDir;
     }
-    ArrayList<Account> successfullyExported = new ArrayList<>();
+    final ArrayList<Account> accounts = new ArrayList<>();
     for (Long id : accountIds) {
-      account = Account.getInstanceFromDb(id);
-      if (account == null) continue;
-      publishProgress(account.label + " ...");
-      try {
-        String fileNameForAccount = accountIds.length > 1 ?
-            Utils.escapeForFileName(account.label) + "-" + new SimpleDateFormat("yyyMMdd-HHmmss", Locale.US)
-                .format(new Date()) :
-            fileName;
-        Result result = new Exporter(account,filter, destDir, fileNameForAccount, format,
-            notYetExportedP, dateFormat, decimalSeparator, encoding).export();
-        String progressMsg;
-        if (result.success) {
-          progressMsg = application.getString(result.getMessage(),
-              FileUtils.getPath(application, (Uri) result.extra[0]));
-        } else {
-          progressMsg = application.getString(result.getMessage(),result.extra);
-        }
-        publishProgress("... " + progressMsg);
-        if (result.success) {
-          if (PrefKey.PERFORM_SHARE.getBoolean(false)) {
-            addResult((Uri) result.extra[0]);
-          }
-          successfullyExported.add(account);
-        }
-      } catch (IOException e) {
-        publishProgress("... " + application.getString(
-            R.string.export_sdcard_failure,
-            appDir.getName(),
-            e.getMessage()));
+      Account account = Account.getInstanceFromDb(id);
+      if (account != null) {
+        accounts.add(account);
       }
     }
+    List<Account> successfullyExported = exportAccounts(accounts, destDir, zipFile,
+        getThreadCount(accounts.size()));
+    if (zipP) {
+      destDir.delete();
+    }
+    if (successfullyExported == null) {
+      return getResult();
+    }
+    if (zipP && !successfullyExported.isEmpty() && PrefKey.PERFORM_SHARE.getBoolean(false)) {
+      addResult(zipFile.getUri());
+    }
     for (Account a : successfullyExported) {
       if (deleteP) {
         a.reset(filter,handleDelete, fileName);
@@ -188,6 +209,154 @@ public class ExportTask extends AsyncTask<Void, String, ArrayList<Uri>> {
     }
     return getResult();
   }
+
+  /**
+   * With write-ahead logging, the provider's queries are served from a pool of read connections,
+   * so that each worker reads through a connection of its own. Without it, the framework gives the
+   * provider a single connection, on which the workers' queries would be serialized, while their
+   * threads compete for it, hence accounts are then exported one after the other.
+   */
+  private static int getThreadCount(int accountCount) {
+    int threads = TransactionDatabase.isWriteAheadLoggingConfigured() ? MAX_EXPORT_THREADS : 1;
+    return Math.max(1, Math.min(accountCount, threads));
+  }
+
+  /**
+   * exports each account on one of threadCount workers
+   *
+   * @param destDir directory the export files are written to
+   * @param zipFile if not null, export files are moved from destDir into this archive once they are
+   *                complete. It is deleted if no account has been exported
+   * @return the accounts that have been exported successfully, or null if the export was aborted
+   */
+  @VisibleForTesting
+  @Nullable
+  public List<Account> exportAccounts(List<Account> accounts, DocumentFile destDir,
+                                      @Nullable DocumentFile zipFile, int threadCount) {
+    final MyApplication application = MyApplication.getInstance();
+    long start = System.currentTimeMillis();
+    ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+    final AtomicInteger completed = new AtomicInteger();
+    ArrayList<Future<Result>> futures = new ArrayList<>(accounts.size());
+    //workers create their files concurrently, hence names are made unique up front
+    HashSet<String> fileNames = new HashSet<>();
+    for (final Account account : accounts) {
+      String base = accounts.size() > 1 ?
+          Utils.escapeForFileName(account.label) + "-" + new SimpleDateFormat("yyyMMdd-HHmmss", Locale.US)
+              .format(new Date()) :
+          fileName;
+      String candidate = base;
+      for (int postfix = 1; !fileNames.add(candidate); postfix++) {
+        candidate = base + "_" + postfix;
+      }
+      final String fileNameForAccount = candidate;
+      final DocumentFile finalDestDir = destDir;
+      futures.add(executor.submit(new Callable<Result>() {
+        @Override
+        public Result call() throws Exception {
+          Result result;
+          try {
+            result = new Exporter(account, filter, finalDestDir, fileNameForAccount, format,
+                notYetExportedP, dateFormat, decimalSeparator, encoding).export();
+          } finally {
+            completed.incrementAndGet();
+          }
+          return result;
+        }
+      }));
+    }
+    executor.shutdown();
+    String failureTarget = (zipFile != null ? zipFile : destDir).getName();
+    ArrayList<Account> successfullyExported = new ArrayList<>();
+    ZipOutputStream zip = null;
+    try {
+      if (zipFile != null) {
+        zip = new ZipOutputStream(application.getContentResolver().openOutputStream(zipFile.getUri()));
+      }
+      //results are collected in the order of the accounts, so that the archive has a stable layout
+      for (int i = 0; i < accounts.size(); i++) {
+        Account account = accounts.get(i);
+        String progressMsg;
+        try {
+          Result result = futures.get(i).get();
+          if (result.success) {
+            Uri exportUri = (Uri) result.extra[0];
+            if (zip != null) {
+              File exportFile = new File(exportUri.getPath());
+              ZipUtils.addFileToZip("", exportFile, zip);
+              //noinspection ResultOfMethodCallIgnored
+              exportFile.delete();
+              progressMsg = application.getString(R.string.export_sdcard_success,
+                  FileUtils.getPath(application, zipFile.getUri()));
+            } else {
+              progressMsg = application.getString(result.getMessage(),
+                  FileUtils.getPath(application, exportUri));
+              if (PrefKey.PERFORM_SHARE.getBoolean(false)) {
+                addResult(exportUri);
+              }
+            }
+            successfullyExported.add(account);
+          } else {
+            progressMsg = application.getString(result.getMessage(), result.extra);
+          }
+        } catch (ExecutionException | IOException e) {
+          Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+          progressMsg = application.getString(
+              R.string.export_sdcard_failure,
+              failureTarget,
+              cause.getMessage());
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return null;
+        }
+        publishProgress(String.format(Locale.getDefault(), "%s ... %s (%d/%d)",
+            account.label, progressMsg, completed.get(), accounts.size()));
+      }
+    } catch (IOException e) {
+      publishProgress("... " + application.getString(
+          R.string.export_sdcard_failure,
+          failureTarget,
+          e.getMessage()));
+      return null;
+    } finally {
+      //workers may still be writing into destDir, which the caller deletes afterwards
+      stopWorkers(executor);
+      if (zip != null) {
+        try {
+          zip.close();
+        } catch (IOException e) {
+          Timber.e(e);
+        }
+      }
+      if (zipFile != null && successfullyExported.isEmpty()) {
+        zipFile.delete();
+      }
+      Timber.i("Exported %d of %d accounts with %d threads in %d ms", successfullyExported.size(),
+          accounts.size(), threadCount, System.currentTimeMillis() - start);
+    }
+    return successfullyExported;
+  }
+
+  private static void stopWorkers(ExecutorService executor) {
+    if (executor.isTerminated()) {
+      return;
+    }
+    executor.shutdownNow();
+    //the interrupt that made us abort would end the wait immediately
+    boolean interrupted = Thread.interrupted();
+    try {
+      if (!executor.awaitTermination(WORKER_TERMINATION_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+        Timber.w("Export workers did not terminate");
+      }
+    } catch (InterruptedException e) {
+      interrupted = true;
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
   public ArrayList<Uri> getResult() {
     return result;
   }
@@ -21,6 +21,7 @@ import com.android.calendar.CalendarContractCompat;
 import com.annimon.stream.Collectors;
 import com.annimon.stream.Stream;
 
+import org.apache.commons.lang3.ArrayUtils;
 import org.totschnig.myexpenses.MyApplication;
 import org.totschnig.myexpenses.R;
 import org.totschnig.myexpenses.model.Account;
@@ -187,67 +188,50 @@ public class GenericTask<T> extends AsyncTask<T, Void, Object> {
       }
       case TaskExecutionFragment.TASK_DELETE_TRANSACTION:
         try {
-          for (long id : (Long[]) ids) {
-            Transaction.delete(id, (boolean) mExtra);
-          }
+          return new Result(true, 0,
+              Transaction.delete(ArrayUtils.toPrimitive((Long[]) ids), (boolean) mExtra));
         } catch (SQLiteConstraintException e) {
           AcraHelper.reportWithDbSchema(e);
           return Result.FAILURE;
         }
-        return Result.SUCCESS;
       case TaskExecutionFragment.TASK_UNDELETE_TRANSACTION:
         try {
-          for (long id : (Long[]) ids) {
-            Transaction.undelete(id);
-          }
+          return new Result(true, 0, Transaction.undelete(ArrayUtils.toPrimitive((Long[]) ids)));
         } catch (SQLiteConstraintException e) {
           AcraHelper.reportWithDbSchema(e);
           return Result.FAILURE;
         }
-        return Result.SUCCESS;
       case TaskExecutionFragment.TASK_DELETE_ACCOUNT:
         Long anId = (Long) ids[0];
         return deleteAccount(anId) ? new Result(true, 0, anId) : Result.FAILURE;
       case TaskExecutionFragment.TASK_DELETE_PAYMENT_METHODS:
         try {
-          for (long id : (Long[]) ids) {
-            PaymentMethod.delete(id);
-          }
-        } catch (SQLiteConstraintException e) {
+          return new Result(true, 0, PaymentMethod.delete(ArrayUtils.toPrimitive((Long[]) ids)));
+        } catch (SQLiteConstraintException | RemoteException | OperationApplicationException e) {
           AcraHelper.reportWithDbSchema(e);
           return Result.FAILURE;
         }
-        return Result.SUCCESS;
       case TaskExecutionFragment.TASK_DELETE_PAYEES:
         try {
-          for (long id : (Long[]) ids) {
-            Payee.delete(id);
-          }
+          return new Result(true, 0, Payee.delete(ArrayUtils.toPrimitive((Long[]) ids)));
         } catch (SQLiteConstraintException e) {
           AcraHelper.reportWithDbSchema(e);
           return Result.FAILURE;
         }
-        return Result.SUCCESS;
       case TaskExecutionFragment.TASK_DELETE_CATEGORY:
         try {
-          for (long id : (Long[]) ids) {
-            Category.delete(id);
-          }
+          return new Result(true, 0, Category.delete(ArrayUtils.toPrimitive((Long[]) ids)));
         } catch (SQLiteConstraintException e) {
           AcraHelper.reportWithDbSchema(e);
           return Result.FAILURE;
         }
-        return Result.SUCCESS;
       case TaskExecutionFragment.TASK_DELETE_TEMPLATES:
         try {
-          for (long id : (Long[]) ids) {
-            Template.delete(id);
-          }
-        } catch (SQLiteConstraintException e) {
+          return new Result(true, 0, Template.delete(ArrayUtils.toPrimitive((Long[]) ids)));
+        } catch (SQLiteConstraintException | RemoteException | OperationApplicationException e) {
           AcraHelper.reportWithDbSchema(e);
           return Result.FAILURE;
         }
-        return Result.SUCCESS;
       case TaskExecutionFragment.TASK_TOGGLE_CRSTATUS:
         cr.update(
             TransactionProvider.TRANSACTIONS_URI
@@ -268,8 +252,7 @@ public class GenericTask<T> extends AsyncTask<T, Void, Object> {
             null, null, null);
         return null;
       case TaskExecutionFragment.TASK_MOVE:
-        Transaction.move((Long) ids[0], (Long) mExtra);
-        return null;
+        return new Result(true, 0, Transaction.move(ArrayUtils.toPrimitive((Long[]) ids), (Long) mExtra));
       case TaskExecutionFragment.TASK_MOVE_CATEGORY:
         for (long id : (Long[]) ids) {
           if (Category.move(id, (Long) mExtra))
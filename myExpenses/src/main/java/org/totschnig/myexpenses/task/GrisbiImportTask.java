@@ -11,6 +11,7 @@ import org.totschnig.myexpenses.MyApplication;
 import org.totschnig.myexpenses.R;
 import org.totschnig.myexpenses.activity.ProtectionDelegate;
 import org.totschnig.myexpenses.dialog.ProgressDialogFragment;
+import org.totschnig.myexpenses.provider.DbUtils;
 import org.totschnig.myexpenses.util.CategoryTree;
 import org.totschnig.myexpenses.util.Result;
 import org.totschnig.myexpenses.util.Utils;
@@ -183,19 +184,24 @@ public class GrisbiImportTask extends AsyncTask<Void, Integer, Result> {
     publishProgress(0);
 
     int totalImportedCat,totalImportedParty;
-    if (withCategoriesP) {
-      totalImportedCat = Utils.importCats(catTree, this);
-    } else {
-      totalImportedCat = -1;
-    }
-    if (withPartiesP) {
-      setTitle(MyApplication.getInstance().getString(R.string.grisbi_import_parties_loading, sourceStr));
-      phaseChangedP = true;
-      setMax(partiesList.size());
-      publishProgress(0);
-      totalImportedParty = Utils.importParties(partiesList, this);
-    } else {
-      totalImportedParty = -1;
+    DbUtils.beginBulkOperation();
+    try {
+      if (withCategoriesP) {
+        totalImportedCat = Utils.importCats(catTree, this);
+      } else {
+        totalImportedCat = -1;
+      }
+      if (withPartiesP) {
+        setTitle(MyApplication.getInstance().getString(R.string.grisbi_import_parties_loading, sourceStr));
+        phaseChangedP = true;
+        setMax(partiesList.size());
+        publishProgress(0);
+        totalImportedParty = Utils.importParties(partiesList, this);
+      } else {
+        totalImportedParty = -1;
+      }
+    } finally {
+      DbUtils.endBulkOperation();
     }
     return new Result(true,
         0,
@@ -16,9 +16,13 @@
 
 package org.totschnig.myexpenses.task;
 
+import android.content.ContentProviderOperation;
+import android.content.OperationApplicationException;
+import android.database.SQLException;
 import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.RemoteException;
 import android.text.TextUtils;
 
 import org.totschnig.myexpenses.MyApplication;
@@ -30,13 +34,15 @@ import org.totschnig.myexpenses.export.qif.QifCategory;
 import org.totschnig.myexpenses.export.qif.QifDateFormat;
 import org.totschnig.myexpenses.export.qif.QifParser;
 import org.totschnig.myexpenses.export.qif.QifTransaction;
-import org.totschnig.myexpenses.export.qif.QifUtils;
+import org.totschnig.myexpenses.export.qif.QifTransferReducer;
+import org.totschnig.myexpenses.export.qif.QifTransferResolver;
 import org.totschnig.myexpenses.model.Account;
 import org.totschnig.myexpenses.model.ContribFeature;
 import org.totschnig.myexpenses.model.Payee;
-import org.totschnig.myexpenses.model.SplitTransaction;
 import org.totschnig.myexpenses.model.Transaction;
 import org.totschnig.myexpenses.provider.DatabaseConstants;
+import org.totschnig.myexpenses.provider.DbUtils;
+import org.totschnig.myexpenses.provider.TransactionProvider;
 import org.totschnig.myexpenses.util.AcraHelper;
 import org.totschnig.myexpenses.util.FileUtils;
 
@@ -45,9 +51,10 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.util.ArrayList;
 import java.util.Currency;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -55,7 +62,19 @@ import java.util.concurrent.TimeUnit;
 
 import timber.log.Timber;
 
+/**
+ * When importing into new accounts, the file is imported while it is parsed: payees and categories
+ * are inserted as they are found, and transactions are written in chunks, each chunk applied as one
+ * batch, so that only transactions with transfers waiting for their counterpart are kept in
+ * memory. When importing into an existing account, the file is parsed completely first, since it
+ * must not contain more than one account.
+ */
 public class QifImportTask extends AsyncTask<Void, String, Void> {
+  /**
+   * optional argument, number of operations that are applied in one transaction
+   */
+  public static final String KEY_CHUNK_SIZE = "chunkSize";
+  private static final int DEFAULT_CHUNK_SIZE = 500;
   private final TaskExecutionFragment taskExecutionFragment;
   private QifDateFormat dateFormat;
   private String encoding;
@@ -64,6 +83,17 @@ public class QifImportTask extends AsyncTask<Void, String, Void> {
   private final Map<String, Long> payeeToId = new HashMap<>();
   private final Map<String, Long> categoryToId = new HashMap<>();
   private final Map<String, QifAccount> accountTitleToAccount = new HashMap<>();
+  private int chunkSize;
+  private final ArrayList<ContentProviderOperation> chunk = new ArrayList<>();
+  /**
+   * account of each transaction (without split parts) in the current chunk
+   */
+  private final List<QifAccount> accountsInChunk = new ArrayList<>();
+  private final Map<QifAccount, Integer> importedTransactions = new HashMap<>();
+  private final Map<QifAccount, Integer> failedTransactions = new HashMap<>();
+  private int nrOfAccounts = -1;
+  private int importedAccounts = 0;
+  private boolean accountLimitReached = false;
   Uri fileUri;
   /**
    * should we handle parties/categories?
@@ -82,6 +112,7 @@ public class QifImportTask extends AsyncTask<Void, String, Void> {
     this.withTransactionsP = b.getBoolean(TaskExecutionFragment.KEY_WITH_TRANSACTIONS);
     this.mCurrency = Currency.getInstance(b.getString(DatabaseConstants.KEY_CURRENCY));
     this.encoding = b.getString(TaskExecutionFragment.KEY_ENCODING);
+    this.chunkSize = b.getInt(KEY_CHUNK_SIZE, DEFAULT_CHUNK_SIZE);
   }
 
   @Override
@@ -122,18 +153,24 @@ public class QifImportTask extends AsyncTask<Void, String, Void> {
           .getString(R.string.parse_error_other_exception, e.getMessage()));
       return null;
     }
-    parser = new QifParser(r, dateFormat, mCurrency);
     try {
+      if (accountId == 0 || !withTransactionsP) {
+        importStreaming(r);
+        Timber.i("QIF Import: Streaming import done in %d s",
+            TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis() - t0));
+        return null;
+      }
+      parser = new QifParser(r, dateFormat, mCurrency);
       parser.parse();
       long t1 = System.currentTimeMillis();
       Timber.i("QIF Import: Parsing done in %d s", TimeUnit.MILLISECONDS.toSeconds(t1 - t0));
-      publishProgress(MyApplication.getInstance()
-          .getString(
-              R.string.qif_parse_result,
-              String.valueOf(parser.accounts.size()),
-              String.valueOf(parser.categories.size()),
-              String.valueOf(parser.payees.size())));
-      doImport(parser);
+      publishParseResult(parser.accounts.size(), parser.categories.size(), parser.payees.size());
+      DbUtils.beginBulkOperation();
+      try {
+        doImport(parser);
+      } finally {
+        DbUtils.endBulkOperation();
+      }
       return (null);
     } catch (IOException e) {
       publishProgress(MyApplication.getInstance()
@@ -176,13 +213,12 @@ public class QifImportTask extends AsyncTask<Void, String, Void> {
     return encoding;
   }*/
 
+  /**
+   * imports into the existing account {@link #accountId}
+   */
   private void doImport(QifParser parser) {
     if (withPartiesP) {
-      int totalParties = insertPayees(parser.payees);
-      publishProgress(totalParties == 0 ?
-          MyApplication.getInstance().getString(R.string.import_parties_none) :
-          MyApplication.getInstance().getString(R.string.import_parties_success,
-              String.valueOf(totalParties)));
+      publishPartiesResult(insertPayees(parser.payees));
     }
     /*
      * insertProjects(parser.classes); long t2 = System.currentTimeMillis();
@@ -191,235 +227,325 @@ public class QifImportTask extends AsyncTask<Void, String, Void> {
      */
     if (withCategoriesP) {
       insertCategories(parser.categories);
-      publishProgress(totalCategories == 0 ?
-          MyApplication.getInstance().getString(R.string.import_categories_none) :
-          MyApplication.getInstance().getString(R.string.import_categories_success,
-              String.valueOf(totalCategories)));
+      publishCategoriesResult();
     }
-    if (withTransactionsP) {
-      if (accountId == 0) {
-        int importedAccounts = insertAccounts(parser.accounts);
-        publishProgress(importedAccounts == 0 ?
-            MyApplication.getInstance().getString(R.string.import_accounts_none) :
-            MyApplication.getInstance().getString(R.string.import_accounts_success,
-                String.valueOf(importedAccounts)));
-      } else {
-        if (parser.accounts.size() > 1) {
-          publishProgress(
-              MyApplication.getInstance()
-                  .getString(R.string.qif_parse_failure_found_multiple_accounts)
-                  + " "
-                  + MyApplication.getInstance()
-                  .getString(R.string.qif_parse_failure_found_multiple_accounts_cannot_merge));
-          return;
+    if (parser.accounts.size() > 1) {
+      publishProgress(
+          MyApplication.getInstance()
+              .getString(R.string.qif_parse_failure_found_multiple_accounts)
+              + " "
+              + MyApplication.getInstance()
+              .getString(R.string.qif_parse_failure_found_multiple_accounts_cannot_merge));
+      return;
+    }
+    if (parser.accounts.isEmpty()) {
+      return;
+    }
+    Account dbAccount = Account.getInstanceFromDb(accountId);
+    parser.accounts.get(0).dbAccount = dbAccount;
+    if (dbAccount == null) {
+      AcraHelper.report(new Exception(
+          "Exception during QIF import. Did not get instance from DB for id " + accountId));
+    }
+    insertTransactions(parser.accounts);
+  }
+
+  /**
+   * imports into new accounts, or only payees and categories, while the file is parsed
+   */
+  private void importStreaming(QifBufferedReader r) throws IOException {
+    final Set<String> payees = new HashSet<>();
+    final Set<String> categories = new HashSet<>();
+    final int[] insertedPayees = {0};
+    final QifTransferResolver resolver = new QifTransferResolver(new QifTransferResolver.Sink() {
+      @Override
+      public void onResolved(QifAccount account, QifTransaction transaction) {
+        addToChunk(account, transaction);
+      }
+
+      @Override
+      public boolean accepts(QifAccount account) {
+        return account.dbAccount != null;
+      }
+    });
+    QifParser parser = new QifParser(r, dateFormat, mCurrency, new QifParser.Listener() {
+      @Override
+      public void onCategory(QifCategory category) {
+        if (categories.add(category.getName()) && withCategoriesP) {
+          totalCategories += category.insert(categoryToId, true);
+        }
+      }
+
+      @Override
+      public void onAccount(QifAccount account) {
+        if (withTransactionsP) {
+          requireAccount(account);
+        }
+      }
+
+      @Override
+      public void onTransaction(QifAccount account, QifTransaction transaction) {
+        if (!TextUtils.isEmpty(transaction.payee) && payees.add(transaction.payee)
+            && withPartiesP && insertPayee(transaction.payee)) {
+          insertedPayees[0]++;
         }
-        if (parser.accounts.isEmpty()) {
-          return;
+        addCategories(transaction);
+        if (withTransactionsP) {
+          requireAccount(account);
+          resolver.offer(account, transaction);
         }
-        Account dbAccount = Account.getInstanceFromDb(accountId);
-        parser.accounts.get(0).dbAccount = dbAccount;
-        if (dbAccount == null) {
-          AcraHelper.report(new Exception(
-              "Exception during QIF import. Did not get instance from DB for id " + accountId));
+      }
+
+      @Override
+      public void onAccountEnd(QifAccount account) {
+        if (withTransactionsP) {
+          requireAccount(account);
+          resolver.endAccount(account);
+          applyChunk();
+        }
+      }
+
+      private void addCategories(QifTransaction transaction) {
+        if (transaction.isSplit()) {
+          for (QifTransaction split : transaction.splits) {
+            addCategories(split);
+          }
+        } else if (!TextUtils.isEmpty(transaction.category)) {
+          onCategory(new QifCategory(transaction.category, false));
         }
       }
-      insertTransactions(parser.accounts);
+    });
+    DbUtils.beginBulkOperation();
+    try {
+      parser.parse();
+      resolver.finish();
+      applyChunk();
+    } finally {
+      DbUtils.endBulkOperation();
+    }
+    publishParseResult(parser.accounts.size(), categories.size(), payees.size());
+    if (withPartiesP) {
+      publishPartiesResult(insertedPayees[0]);
+    }
+    if (withCategoriesP) {
+      publishCategoriesResult();
+    }
+    if (withTransactionsP) {
+      publishProgress(importedAccounts == 0 ?
+          MyApplication.getInstance().getString(R.string.import_accounts_none) :
+          MyApplication.getInstance().getString(R.string.import_accounts_success,
+              String.valueOf(importedAccounts)));
+      publishTransactionsResult(parser.accounts);
     }
   }
 
+  private void publishParseResult(int accounts, int categories, int payees) {
+    publishProgress(MyApplication.getInstance()
+        .getString(
+            R.string.qif_parse_result,
+            String.valueOf(accounts),
+            String.valueOf(categories),
+            String.valueOf(payees)));
+  }
+
+  private void publishPartiesResult(int totalParties) {
+    publishProgress(totalParties == 0 ?
+        MyApplication.getInstance().getString(R.string.import_parties_none) :
+        MyApplication.getInstance().getString(R.string.import_parties_success,
+            String.valueOf(totalParties)));
+  }
+
+  private void publishCategoriesResult() {
+    publishProgress(totalCategories == 0 ?
+        MyApplication.getInstance().getString(R.string.import_categories_none) :
+        MyApplication.getInstance().getString(R.string.import_categories_success,
+            String.valueOf(totalCategories)));
+  }
+
   private int insertPayees(Set<String> payees) {
     int count = 0;
     for (String payee : payees) {
-      Long id = payeeToId.get(payee);
-      if (id == null) {
-        id = Payee.find(payee);
-        if (id == -1) {
-          id = Payee.maybeWrite(payee);
-          if (id != -1)
-            count++;
-        }
-        if (id != -1) {
-          payeeToId.put(payee, id);
-        }
+      if (insertPayee(payee)) {
+        count++;
       }
     }
     return count;
   }
 
+  /**
+   * @return true if the payee has been written to the database
+   */
+  private boolean insertPayee(String payee) {
+    boolean inserted = false;
+    Long id = payeeToId.get(payee);
+    if (id == null) {
+      id = Payee.find(payee);
+      if (id == -1) {
+        id = Payee.maybeWrite(payee);
+        inserted = id != -1;
+      }
+      if (id != -1) {
+        payeeToId.put(payee, id);
+      }
+    }
+    return inserted;
+  }
+
   private void insertCategories(Set<QifCategory> categories) {
     for (QifCategory category : categories) {
       totalCategories += category.insert(categoryToId, true);
     }
   }
 
-  private int insertAccounts(List<QifAccount> accounts) {
-    int nrOfAccounts = Account.count(null, null);
+  /**
+   * inserts the account, unless it has been inserted already for the current block
+   */
+  private void requireAccount(QifAccount account) {
+    if (accountTitleToAccount.get(account.memo) != account && !accountLimitReached) {
+      insertAccount(account);
+    }
+  }
 
-    int importCount = 0;
-    for (QifAccount account : accounts) {
-      if (!ContribFeature.ACCOUNTS_UNLIMITED.hasAccess()
-          && nrOfAccounts + importCount > 5) {
+  /**
+   * looks up the account by its name, or creates it
+   *
+   * @return false if the limit of accounts is reached
+   */
+  private boolean insertAccount(QifAccount account) {
+    if (nrOfAccounts == -1) {
+      nrOfAccounts = Account.count(null, null);
+    }
+    if (!ContribFeature.ACCOUNTS_UNLIMITED.hasAccess()
+        && nrOfAccounts + importedAccounts > 5) {
+      if (!accountLimitReached) {
+        accountLimitReached = true;
         publishProgress(
             MyApplication.getInstance()
                 .getString(R.string.qif_parse_failure_found_multiple_accounts) + " " +
                 ContribFeature.ACCOUNTS_UNLIMITED.buildUsageLimitString(MyApplication.getInstance()) +
                 ContribFeature.ACCOUNTS_UNLIMITED.buildRemoveLimitation(
                     MyApplication.getInstance(), false));
-        break;
       }
-      long dbAccountId = TextUtils.isEmpty(account.memo) ? -1 : Account.findAny(account.memo);
-      if (dbAccountId != -1) {
-        Account dbAccount = Account.getInstanceFromDb(dbAccountId);
-        account.dbAccount = dbAccount;
-        if (dbAccount == null) {
-          AcraHelper.report(new Exception(
-              "Exception during QIF import. Did not get instance from DB for id " + dbAccountId));
-        }
-      } else {
-        Account a = account.toAccount(mCurrency);
-        if (TextUtils.isEmpty(a.label)) {
-          String displayName = DialogUtils.getDisplayName(fileUri);
-          if (FileUtils.getExtension(displayName).equalsIgnoreCase(".qif")) {
-            displayName = displayName.substring(0, displayName.lastIndexOf('.'));
-          }
-          displayName = displayName.replace('-', ' ').replace('_', ' ');
-          a.label = displayName;
+      return false;
+    }
+    long dbAccountId = TextUtils.isEmpty(account.memo) ? -1 : Account.findAny(account.memo);
+    if (dbAccountId != -1) {
+      Account dbAccount = Account.getInstanceFromDb(dbAccountId);
+      account.dbAccount = dbAccount;
+      if (dbAccount == null) {
+        AcraHelper.report(new Exception(
+            "Exception during QIF import. Did not get instance from DB for id " + dbAccountId));
+      }
+    } else {
+      Account a = account.toAccount(mCurrency);
+      if (TextUtils.isEmpty(a.label)) {
+        String displayName = DialogUtils.getDisplayName(fileUri);
+        if (FileUtils.getExtension(displayName).equalsIgnoreCase(".qif")) {
+          displayName = displayName.substring(0, displayName.lastIndexOf('.'));
         }
-        if (a.save() != null)
-          importCount++;
-        account.dbAccount = a;
+        displayName = displayName.replace('-', ' ').replace('_', ' ');
+        a.label = displayName;
       }
-      accountTitleToAccount.put(account.memo, account);
+      if (a.save() != null)
+        importedAccounts++;
+      account.dbAccount = a;
     }
-    return importCount;
+    accountTitleToAccount.put(account.memo, account);
+    return true;
   }
 
   private void insertTransactions(List<QifAccount> accounts) {
     long t0 = System.currentTimeMillis();
-    reduceTransfers(accounts);
+    QifTransferReducer.reduceTransfers(accounts, accountTitleToAccount);
     long t1 = System.currentTimeMillis();
     Timber.i("QIF Import: Reducing transfers done in %d s", TimeUnit.MILLISECONDS.toSeconds(t1 - t0));
-    convertUnknownTransfers(accounts);
+    QifTransferReducer.convertUnknownTransfers(accounts);
     long t2 = System.currentTimeMillis();
     Timber.i("QIF Import: Converting transfers done in %d s", TimeUnit.MILLISECONDS.toSeconds(t2 - t1));
-    int count = accounts.size();
-    for (int i = 0; i < count; i++) {
-      long t3 = System.currentTimeMillis();
-      QifAccount account = accounts.get(i);
-      Account a = account.dbAccount;
-      if (a != null) {
-        int countTransactions = insertTransactions(a, account.transactions);
-        publishProgress(countTransactions == 0 ?
-            MyApplication.getInstance().getString(R.string.import_transactions_none, a.label) :
-            MyApplication.getInstance().getString(R.string.import_transactions_success, countTransactions, a.label));
-      } else {
-        publishProgress("Unable to import into QIF account " + account.memo + ". No matching database account found");
+    for (QifAccount account : accounts) {
+      for (QifTransaction transaction : account.transactions) {
+        if (!transaction.isCounterpart) {
+          addToChunk(account, transaction);
+        }
       }
       // this might help GC
       account.transactions.clear();
-      long t4 = System.currentTimeMillis();
-      Timber.i("QIF Import: Inserting transactions for account %d/%d done in %d s",
-          i, count, TimeUnit.MILLISECONDS.toSeconds(t4 - t3));
     }
+    applyChunk();
+    Timber.i("QIF Import: Inserting transactions done in %d s",
+        TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis() - t2));
+    publishTransactionsResult(accounts);
   }
 
-  private void reduceTransfers(List<QifAccount> accounts) {
-    for (QifAccount fromAccount : accounts) {
-      List<QifTransaction> transactions = fromAccount.transactions;
-      reduceTransfers(fromAccount, transactions);
-    }
-  }
-
-  private void reduceTransfers(QifAccount fromAccount,
-                               List<QifTransaction> transactions) {
-    for (QifTransaction fromTransaction : transactions) {
-      if (fromTransaction.isTransfer() && fromTransaction.amount.signum() == -1) {
-        boolean found = false;
-        if (!fromTransaction.toAccount.equals(fromAccount.memo)) {
-          QifAccount toAccount = accountTitleToAccount
-              .get(fromTransaction.toAccount);
-          if (toAccount != null) {
-            Iterator<QifTransaction> iterator = toAccount.transactions
-                .iterator();
-            while (iterator.hasNext()) {
-              QifTransaction toTransaction = iterator.next();
-              if (QifUtils.twoSidesOfTheSameTransfer(fromAccount, fromTransaction,
-                  toAccount, toTransaction)) {
-                iterator.remove();
-                found = true;
-                break;
-              }
-            }
-          }
-        }
-        if (!found) {
-          convertIntoRegularTransaction(fromTransaction);
+  private void publishTransactionsResult(List<QifAccount> accounts) {
+    for (QifAccount account : accounts) {
+      Account a = account.dbAccount;
+      if (a != null) {
+        Integer countTransactions = importedTransactions.get(account);
+        publishProgress(countTransactions == null ?
+            MyApplication.getInstance().getString(R.string.import_transactions_none, a.label) :
+            MyApplication.getInstance().getString(R.string.import_transactions_success, countTransactions, a.label));
+        Integer countFailed = failedTransactions.get(account);
+        if (countFailed != null) {
+          publishProgress(MyApplication.getInstance().getString(
+              R.string.import_transactions_failed, countFailed, a.label));
         }
-      }
-      if (fromTransaction.splits != null) {
-        reduceTransfers(fromAccount, fromTransaction.splits);
+      } else {
+        publishProgress("Unable to import into QIF account " + account.memo + ". No matching database account found");
       }
     }
   }
 
-  private void convertUnknownTransfers(List<QifAccount> accounts) {
-    for (QifAccount fromAccount : accounts) {
-      List<QifTransaction> transactions = fromAccount.transactions;
-      convertUnknownTransfers(fromAccount, transactions);
+  /**
+   * adds the operations for inserting the transaction together with its split parts to the current
+   * chunk, which is applied first if it is full
+   */
+  private void addToChunk(QifAccount account, QifTransaction transaction) {
+    Account a = account.dbAccount;
+    if (a == null) {
+      return;
     }
-  }
-
-  private void convertUnknownTransfers(QifAccount fromAccount,
-                                       List<QifTransaction> transactions) {
-    for (QifTransaction transaction : transactions) {
-      if (transaction.isTransfer() && transaction.amount.signum() >= 0) {
-        convertIntoRegularTransaction(transaction);
-      }
-      if (transaction.splits != null) {
-        convertUnknownTransfers(fromAccount, transaction.splits);
-      }
+    if (chunk.size() >= chunkSize) {
+      applyChunk();
     }
-  }
-
-  private String prependMemo(String prefix, QifTransaction fromTransaction) {
-    if (TextUtils.isEmpty(fromTransaction.memo)) {
-      return prefix;
+    int offset = chunk.size();
+    Transaction t = transaction.toTransaction(a);
+    t.payeeId = findPayee(transaction.payee);
+    // t.projectId = findProject(transaction.categoryClass);
+    findToAccount(transaction, t);
+    if (transaction.splits != null) {
+      chunk.addAll(t.buildSaveOperations(offset, -1, false));
+      for (QifTransaction split : transaction.splits) {
+        Transaction s = split.toTransaction(a);
+        findToAccount(split, s);
+        findCategory(split, s);
+        chunk.addAll(s.buildSaveOperations(chunk.size(), offset, false));
+      }
     } else {
-      return prefix + " | " + fromTransaction.memo;
+      findCategory(transaction, t);
+      chunk.addAll(t.buildSaveOperations(offset, -1, false));
     }
+    accountsInChunk.add(account);
   }
 
-  private void convertIntoRegularTransaction(QifTransaction fromTransaction) {
-    fromTransaction.memo = prependMemo(
-        "Transfer: " + fromTransaction.toAccount, fromTransaction);
-    fromTransaction.toAccount = null;
-  }
-
-  private int insertTransactions(Account a, List<QifTransaction> transactions) {
-    int count = 0;
-    for (QifTransaction transaction : transactions) {
-      Transaction t = transaction.toTransaction(a);
-      t.payeeId = findPayee(transaction.payee);
-      // t.projectId = findProject(transaction.categoryClass);
-      findToAccount(transaction, t);
-
-      if (transaction.splits != null) {
-        ((SplitTransaction) t).persistForEdit();
-        for (QifTransaction split : transaction.splits) {
-          Transaction s = split.toTransaction(a);
-          s.parentId = t.getId();
-          s.status = org.totschnig.myexpenses.provider.DatabaseConstants.STATUS_UNCOMMITTED;
-          findToAccount(split, s);
-          findCategory(split, s);
-          s.save();
-        }
-      } else {
-        findCategory(transaction, t);
-      }
-      if (t.save() != null)
-        count++;
+  private void applyChunk() {
+    if (chunk.isEmpty()) {
+      return;
     }
-    return count;
+    Map<QifAccount, Integer> counts;
+    try {
+      MyApplication.getInstance().getContentResolver().applyBatch(TransactionProvider.AUTHORITY, chunk);
+      counts = importedTransactions;
+    } catch (RemoteException | OperationApplicationException | SQLException e) {
+      Timber.e(e);
+      counts = failedTransactions;
+    }
+    for (QifAccount account : accountsInChunk) {
+      Integer count = counts.get(account);
+      counts.put(account, count == null ? 1 : count + 1);
+    }
+    chunk.clear();
+    accountsInChunk.clear();
   }
 
   private void findToAccount(QifTransaction transaction, Transaction t) {
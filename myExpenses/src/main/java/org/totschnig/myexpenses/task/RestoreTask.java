@@ -13,6 +13,7 @@ import android.os.AsyncTask;
 import android.os.Bundle;
 import android.support.annotation.Nullable;
 import android.support.v4.content.FileProvider;
+import android.support.v4.provider.DocumentFile;
 
 import com.android.calendar.CalendarContractCompat.Calendars;
 import com.annimon.stream.Collectors;
@@ -29,8 +30,11 @@ import org.totschnig.myexpenses.provider.TransactionDatabase;
 import org.totschnig.myexpenses.provider.TransactionProvider;
 import org.totschnig.myexpenses.sync.GenericAccountService;
 import org.totschnig.myexpenses.sync.SyncAdapter;
+import org.totschnig.myexpenses.sync.SyncBackendProvider;
+import org.totschnig.myexpenses.sync.SyncBackendProviderFactory;
 import org.totschnig.myexpenses.util.AcraHelper;
 import org.totschnig.myexpenses.util.AppDirHelper;
+import org.totschnig.myexpenses.util.BackupPictureStore;
 import org.totschnig.myexpenses.util.BackupUtils;
 import org.totschnig.myexpenses.util.FileCopyUtils;
 import org.totschnig.myexpenses.util.PictureDirHelper;
@@ -38,12 +42,17 @@ import org.totschnig.myexpenses.util.Result;
 import org.totschnig.myexpenses.util.ZipUtils;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 
 import timber.log.Timber;
 
@@ -291,6 +300,8 @@ public class RestoreTask extends AsyncTask<Void, Result, Result> {
       Timber.i("now emptying event cache");
       cr.delete(
           TransactionProvider.EVENT_CACHE_URI, null, null);
+      cr.delete(
+          TransactionProvider.PLAN_INFO_CACHE_URI, null, null);
 
       //now handling pictures
       //1.stale uris in the backup can be ignored1
@@ -302,8 +313,33 @@ public class RestoreTask extends AsyncTask<Void, Result, Result> {
       registerAsStale(false);
       registerAsStale(true);
 
-      //3. move pictures home and update uri
+      //3. move pictures home and update uri, they are either included in legacy archives, or
+      //resolved from the picture store through the manifest
       File backupPictureDir = new File(workingDir, ZipUtils.PICTURES);
+      File manifestFile = new File(workingDir, BackupUtils.BACKUP_PICTURES_MANIFEST_FILE_NAME);
+      Map<String, String> pictureManifest = new HashMap<>();
+      BackupPictureStore pictureStore = null;
+      if (manifestFile.exists()) {
+        try {
+          InputStream manifestIn = new FileInputStream(manifestFile);
+          try {
+            pictureManifest = BackupPictureStore.readManifest(manifestIn);
+          } finally {
+            manifestIn.close();
+          }
+        } catch (IOException e) {
+          AcraHelper.report(e);
+        }
+        manifestFile.delete();
+        DocumentFile appDir = AppDirHelper.getAppDir(application);
+        if (appDir != null && !pictureManifest.isEmpty()) {
+          pictureStore = BackupPictureStore.open(appDir);
+          if (pictureStore != null) {
+            fetchMissingPictures(pictureStore, pictureManifest.values());
+          }
+        }
+      }
+      int missingPictures = 0;
       Cursor c = cr.query(TransactionProvider.TRANSACTIONS_URI,
           new String[]{DatabaseConstants.KEY_ROWID, DatabaseConstants.KEY_PICTURE_URI},
           DatabaseConstants.KEY_PICTURE_URI + " IS NOT NULL", null, null);
@@ -316,21 +352,21 @@ public class RestoreTask extends AsyncTask<Void, Result, Result> {
           Uri fromBackup = Uri.parse(c.getString(1));
           String fileName = fromBackup.getLastPathSegment();
           File backupImage = new File(backupPictureDir, fileName);
+          DocumentFile blob = pictureStore == null ? null :
+              pictureStore.getBlob(pictureManifest.get(fileName));
           Uri restored = null;
-          if (backupImage.exists()) {
+          if (backupImage.exists() || blob != null) {
             File restoredImage = PictureDirHelper.getOutputMediaFile(
                 fileName.substring(0, fileName.lastIndexOf('.')), false, application.isProtected());
-            if (restoredImage == null || !FileCopyUtils.copy(backupImage, restoredImage)) {
-              Timber.e("Could not restore file %s from backup", fromBackup.toString());
-            } else {
+            if (restoredImage != null && restorePicture(backupImage, blob, restoredImage)) {
               restored = AppDirHelper.getContentUriForFile(restoredImage);
             }
-          } else {
-            Timber.e("Could not restore file %s from backup", fromBackup.toString());
           }
           if (restored != null) {
             uriValues.put(DatabaseConstants.KEY_PICTURE_URI, restored.toString());
           } else {
+            Timber.w("Could not restore file %s from backup", fromBackup.toString());
+            missingPictures++;
             uriValues.putNull(DatabaseConstants.KEY_PICTURE_URI);
           }
           cr.update(
@@ -341,6 +377,9 @@ public class RestoreTask extends AsyncTask<Void, Result, Result> {
         } while (c.moveToNext());
       }
       c.close();
+      if (missingPictures > 0) {
+        publishProgress(new Result(false, R.string.restore_pictures_missing, missingPictures));
+      }
       Result restoreSyncStateResult = restoreSyncState();
       if (restoreSyncStateResult != null) {
         publishProgress(restoreSyncStateResult);
@@ -351,6 +390,48 @@ public class RestoreTask extends AsyncTask<Void, Result, Result> {
     }
   }
 
+  /**
+   * pictures are not included in the archive. If the archive has been copied to another device,
+   * they are fetched from the sync backends the backup might have been uploaded to, their content
+   * is checked against their name
+   */
+  private void fetchMissingPictures(BackupPictureStore pictureStore, Collection<String> blobs) {
+    MyApplication application = MyApplication.getInstance();
+    Set<String> missing = new HashSet<>(blobs);
+    for (android.accounts.Account account : GenericAccountService.getAccountsAsArray(application)) {
+      SyncBackendProvider backend;
+      try {
+        backend = SyncBackendProviderFactory.get(application, account).getOrThrow();
+      } catch (Throwable throwable) {
+        Timber.w(throwable);
+        continue;
+      }
+      if (backend.setUp()) {
+        try {
+          missing = pictureStore.fetchMissingBlobs(missing, backend);
+        } finally {
+          backend.tearDown();
+        }
+      }
+      if (missing.isEmpty()) {
+        break;
+      }
+    }
+  }
+
+  private boolean restorePicture(File backupImage, @Nullable DocumentFile blob, File restoredImage) {
+    if (backupImage.exists()) {
+      return FileCopyUtils.copy(backupImage, restoredImage);
+    }
+    try {
+      FileCopyUtils.copy(blob.getUri(), Uri.fromFile(restoredImage));
+      return true;
+    } catch (IOException e) {
+      Timber.e(e);
+      return false;
+    }
+  }
+
   @Nullable
   private Result restoreSyncState() {
     Result result = null;
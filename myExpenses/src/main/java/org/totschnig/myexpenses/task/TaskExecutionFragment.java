@@ -22,7 +22,6 @@ import android.net.Uri;
 import android.os.Bundle;
 import android.support.v4.app.Fragment;
 
-import org.apache.commons.csv.CSVRecord;
 import org.totschnig.myexpenses.export.qif.QifDateFormat;
 import org.totschnig.myexpenses.fragment.CsvImportDataFragment;
 import org.totschnig.myexpenses.model.AccountType;
@@ -31,7 +30,6 @@ import org.totschnig.myexpenses.util.SparseBooleanArrayParcelable;
 import org.totschnig.myexpenses.util.Utils;
 
 import java.io.Serializable;
-import java.util.ArrayList;
 
 import timber.log.Timber;
 
@@ -197,7 +195,7 @@ public class TaskExecutionFragment<T> extends Fragment {
   }
 
   public static TaskExecutionFragment newInstanceCSVImport(
-      ArrayList<CSVRecord> data,
+      Uri mUri, char delimiter, String encoding,
       int[] fieldToColumnMap,
       SparseBooleanArrayParcelable discardedRows,
       QifDateFormat qifDateFormat,
@@ -205,7 +203,9 @@ public class TaskExecutionFragment<T> extends Fragment {
     TaskExecutionFragment f = new TaskExecutionFragment();
     Bundle bundle = new Bundle();
     bundle.putInt(KEY_TASKID, TASK_CSV_IMPORT);
-    bundle.putSerializable(CsvImportDataFragment.KEY_DATASET, data);
+    bundle.putParcelable(KEY_FILE_PATH, mUri);
+    bundle.putChar(KEY_DELIMITER, delimiter);
+    bundle.putString(KEY_ENCODING, encoding);
     bundle.putSerializable(CsvImportDataFragment.KEY_FIELD_TO_COLUMN, fieldToColumnMap);
     bundle.putParcelable(CsvImportDataFragment.KEY_DISCARDED_ROWS, discardedRows);
     bundle.putLong(DatabaseConstants.KEY_ACCOUNTID, accountId);
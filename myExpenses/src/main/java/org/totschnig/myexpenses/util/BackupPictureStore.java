@@ -0,0 +1,305 @@
+package org.totschnig.myexpenses.util;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.Uri;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
+import android.support.v4.provider.DocumentFile;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.reflect.TypeToken;
+
+import org.totschnig.myexpenses.MyApplication;
+import org.totschnig.myexpenses.sync.SyncBackendProvider;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import timber.log.Timber;
+
+/**
+ * Pictures attached to transactions are not stored in each backup archive, but once in a folder
+ * next to the backups, named by the SHA-256 hash of their content. The archive carries a manifest
+ * which maps the file name of each picture to its blob.
+ */
+public class BackupPictureStore {
+  public static final String FOLDER_NAME = "BACKUP_PICTURES";
+  private static final String BLOB_MIME_TYPE = "application/octet-stream";
+  private static final String PARTIAL_SUFFIX = ".partial";
+  /**
+   * maps the uri of pictures we have stored already to their size, modification time and hash, so
+   * that daily backups do not need to read each picture again
+   */
+  private static final String HASH_CACHE_NAME = "backup_picture_hashes";
+  private static final Gson gson = new Gson();
+
+  private final DocumentFile folder;
+  private final Map<String, DocumentFile> blobs = new HashMap<>();
+  private final SharedPreferences hashCache;
+
+  private BackupPictureStore(DocumentFile folder) {
+    this.folder = folder;
+    for (DocumentFile blob : folder.listFiles()) {
+      blobs.put(blob.getName(), blob);
+    }
+    hashCache = MyApplication.getInstance().getSharedPreferences(HASH_CACHE_NAME,
+        Context.MODE_PRIVATE);
+  }
+
+  /**
+   * @return the store in appDir, which is created if it does not exist yet, or null if it can not
+   * be created
+   */
+  @Nullable
+  public static BackupPictureStore open(@NonNull DocumentFile appDir) {
+    DocumentFile folder = appDir.findFile(FOLDER_NAME);
+    if (folder == null) {
+      folder = appDir.createDirectory(FOLDER_NAME);
+    }
+    return folder != null && folder.isDirectory() ? new BackupPictureStore(folder) : null;
+  }
+
+  /**
+   * copies the picture into the store, unless a blob with the same content exists already
+   *
+   * @return the name of the blob, or null if the picture does not exist
+   */
+  @Nullable
+  public String store(@NonNull Uri pictureUri) throws IOException {
+    File file = getFileForUri(pictureUri);
+    String cacheKey = pictureUri.toString();
+    String signature = null;
+    if (file != null) {
+      if (!file.exists()) {
+        return null;
+      }
+      signature = file.length() + ":" + file.lastModified() + ":";
+      String cached = hashCache.getString(cacheKey, null);
+      if (cached != null && cached.startsWith(signature)) {
+        String blob = cached.substring(signature.length());
+        if (blobs.containsKey(blob)) {
+          return blob;
+        }
+      }
+    }
+    ContentResolver cr = MyApplication.getInstance().getContentResolver();
+    String blob;
+    InputStream in;
+    try {
+      in = file != null ? new FileInputStream(file) : cr.openInputStream(pictureUri);
+    } catch (FileNotFoundException e) {
+      return null;
+    }
+    if (in == null) {
+      return null;
+    }
+    try {
+      blob = hash(in);
+    } finally {
+      in.close();
+    }
+    if (!blobs.containsKey(blob)) {
+      in = file != null ? new FileInputStream(file) : cr.openInputStream(pictureUri);
+      if (in == null) {
+        throw new IOException("Could not read " + pictureUri);
+      }
+      try {
+        writeBlob(blob, in);
+      } finally {
+        in.close();
+      }
+    }
+    if (signature != null) {
+      hashCache.edit().putString(cacheKey, signature + blob).apply();
+    }
+    return blob;
+  }
+
+  /**
+   * copies the blobs that are missing from the store from backend, which the backup has been
+   * uploaded to
+   *
+   * @return the blobs that are not available from the backend either
+   */
+  @NonNull
+  public Set<String> fetchMissingBlobs(@NonNull Collection<String> blobs,
+                                       @NonNull SyncBackendProvider backend) {
+    Set<String> missing = new HashSet<>();
+    for (String blob : blobs) {
+      if (!this.blobs.containsKey(blob)) {
+        missing.add(blob);
+      }
+    }
+    if (missing.isEmpty()) {
+      return missing;
+    }
+    Set<String> available;
+    try {
+      available = backend.getBackupPictures();
+    } catch (IOException e) {
+      Timber.w(e);
+      return missing;
+    }
+    for (Iterator<String> iterator = missing.iterator(); iterator.hasNext(); ) {
+      String blob = iterator.next();
+      if (available.contains(blob)) {
+        try {
+          InputStream in = backend.getInputStreamForBackupPicture(blob);
+          try {
+            writeBlob(blob, in);
+          } finally {
+            in.close();
+          }
+          iterator.remove();
+        } catch (IOException e) {
+          Timber.w(e);
+        }
+      }
+    }
+    return missing;
+  }
+
+  /**
+   * the blob is first written under a temporary name, so that an interrupted backup does not
+   * leave an incomplete blob that would be taken for the picture by later backups. It is only
+   * renamed, if its content matches its name
+   */
+  private void writeBlob(String blob, InputStream in) throws IOException {
+    String partialName = blob + PARTIAL_SUFFIX;
+    DocumentFile stale = folder.findFile(partialName);
+    if (stale != null) {
+      stale.delete();
+    }
+    DocumentFile partial = folder.createFile(BLOB_MIME_TYPE, partialName);
+    if (partial == null) {
+      throw new IOException("Could not create " + partialName + " in " + folder.getUri());
+    }
+    OutputStream out = MyApplication.getInstance().getContentResolver()
+        .openOutputStream(partial.getUri());
+    if (out == null) {
+      partial.delete();
+      throw new IOException("Could not write " + partial.getUri());
+    }
+    DigestInputStream digestIn = new DigestInputStream(in, newDigest());
+    try {
+      FileCopyUtils.copy(digestIn, out);
+    } finally {
+      out.close();
+    }
+    if (!blob.equals(toHex(digestIn.getMessageDigest().digest()))) {
+      partial.delete();
+      throw new IOException("Content of " + blob + " does not match its name");
+    }
+    if (!partial.renameTo(blob)) {
+      partial.delete();
+      throw new IOException("Could not rename " + partial.getUri());
+    }
+    blobs.put(blob, partial);
+  }
+
+  @Nullable
+  public DocumentFile getBlob(@Nullable String blob) {
+    return blob != null ? blobs.get(blob) : null;
+  }
+
+  @Nullable
+  private static File getFileForUri(Uri pictureUri) {
+    if ("file".equals(pictureUri.getScheme())) {
+      return new File(pictureUri.getPath());
+    }
+    try {
+      return PictureDirHelper.getFileForUri(pictureUri);
+    } catch (IllegalArgumentException e) {
+      //pictures from other providers are read through the content resolver
+      return null;
+    }
+  }
+
+  @VisibleForTesting
+  static String hash(InputStream in) throws IOException {
+    MessageDigest digest = newDigest();
+    byte[] buffer = new byte[8192];
+    int count;
+    while ((count = in.read(buffer)) != -1) {
+      digest.update(buffer, 0, count);
+    }
+    return toHex(digest.digest());
+  }
+
+  private static MessageDigest newDigest() throws IOException {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IOException(e);
+    }
+  }
+
+  private static String toHex(byte[] digest) {
+    StringBuilder result = new StringBuilder(64);
+    for (byte b : digest) {
+      result.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+    }
+    return result.toString();
+  }
+
+  /**
+   * @param manifest maps the file name of each picture to its blob
+   */
+  public static void writeManifest(Map<String, String> manifest, OutputStream out)
+      throws IOException {
+    Writer writer = new OutputStreamWriter(out, "UTF-8");
+    gson.toJson(manifest, writer);
+    writer.flush();
+  }
+
+  @NonNull
+  public static Map<String, String> readManifest(InputStream in) throws IOException {
+    Reader reader = new InputStreamReader(in, "UTF-8");
+    Map<String, String> result;
+    try {
+      result = gson.fromJson(reader, new TypeToken<Map<String, String>>() {}.getType());
+    } catch (JsonParseException e) {
+      throw new IOException(e);
+    }
+    return result == null ? new HashMap<String, String>() : result;
+  }
+
+  /**
+   * @return the manifest of the backup archive, or an empty map if it has been created with
+   * pictures included into the archive
+   */
+  @NonNull
+  public static Map<String, String> readManifestFromArchive(InputStream archive) throws IOException {
+    ZipInputStream zin = new ZipInputStream(archive);
+    ZipEntry entry;
+    while ((entry = zin.getNextEntry()) != null) {
+      if (entry.getName().equals(BackupUtils.BACKUP_PICTURES_MANIFEST_FILE_NAME)) {
+        return readManifest(zin);
+      }
+    }
+    return new HashMap<>();
+  }
+}
@@ -1,6 +1,7 @@
 package org.totschnig.myexpenses.util;
 
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.support.v4.provider.DocumentFile;
 
 import org.totschnig.myexpenses.MyApplication;
@@ -13,9 +14,22 @@ import java.io.IOException;
 public class BackupUtils {
   public static final String BACKUP_DB_FILE_NAME = "BACKUP";
   public static final String BACKUP_PREF_FILE_NAME = "BACKUP_PREF";
+  public static final String BACKUP_PICTURES_MANIFEST_FILE_NAME = "PICTURES_MANIFEST";
+
+  public interface ProgressListener {
+    /**
+     * @param percent share of the database that has been written into the backup
+     */
+    void onProgress(int percent);
+  }
 
   @NonNull
   public static Result doBackup() {
+    return doBackup(null);
+  }
+
+  @NonNull
+  public static Result doBackup(@Nullable ProgressListener listener) {
     MyApplication application = MyApplication.getInstance();
     if (!AppDirHelper.isExternalStorageAvailable()) {
       return new Result(false, R.string.external_storage_unavailable);
@@ -28,6 +42,11 @@ public class BackupUtils {
       return new Result(false, R.string.app_dir_not_accessible,
           FileUtils.getPath(application, appDir.getUri()));
     }
+    BackupPictureStore pictureStore = BackupPictureStore.open(appDir);
+    if (pictureStore == null) {
+      return new Result(false, R.string.app_dir_not_accessible,
+          FileUtils.getPath(application, appDir.getUri()));
+    }
     DocumentFile backupFile = requireBackupFile(appDir);
     if (backupFile == null) {
       return new Result(false, R.string.io_error_backupdir_null);
@@ -41,28 +60,31 @@ public class BackupUtils {
     Result result = DbUtils.backup(cacheDir);
     String failureMessage = application.getString(R.string.backup_failure,
         FileUtils.getPath(application, backupFile.getUri()));
-    if (result.success) {
-      try {
+    try {
+      if (result.success) {
         ZipUtils.zipBackup(
             cacheDir,
-            backupFile);
+            pictureStore,
+            backupFile,
+            listener);
+        DbUtils.onBackupComplete();
         return new Result(
             true,
             R.string.backup_success,
             backupFile.getUri());
-      } catch (IOException e) {
-        AcraHelper.report(e);
-        return new Result(
-            false,
-            failureMessage + " " + e.getMessage());
-      } finally {
-        getBackupDbFile(cacheDir).delete();
-        getBackupPrefFile(cacheDir).delete();
       }
+      return new Result(
+          false,
+          failureMessage + " " + result.print(application));
+    } catch (IOException e) {
+      AcraHelper.report(e);
+      return new Result(
+          false,
+          failureMessage + " " + e.getMessage());
+    } finally {
+      getBackupDbFile(cacheDir).delete();
+      getBackupPrefFile(cacheDir).delete();
     }
-    return new Result(
-        false,
-        failureMessage + " " + result.print(application));
   }
 
   public static DocumentFile requireBackupFile(@NonNull DocumentFile appDir) {
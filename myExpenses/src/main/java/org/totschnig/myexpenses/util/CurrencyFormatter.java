@@ -14,8 +14,8 @@ import java.text.NumberFormat;
 import java.util.Currency;
 import java.util.HashMap;
 import java.util.Map;
-
-import hugo.weaving.DebugLog;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class CurrencyFormatter {
 
@@ -28,15 +28,46 @@ public class CurrencyFormatter {
   private CurrencyFormatter() {
   }
 
-  private Map<String, NumberFormat> numberFormats = new HashMap<>();
+  /**
+   * fully configured formats, which are never used for formatting themselves, since NumberFormat is
+   * not thread-safe, but cloned into {@link #threadFormats}
+   */
+  private final ConcurrentHashMap<String, NumberFormat> numberFormats = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, Integer> fractionDigits = new ConcurrentHashMap<>();
+  /**
+   * incremented on invalidation, so that each thread discards its clones
+   */
+  private final AtomicInteger generation = new AtomicInteger();
+  private final ThreadLocal<ThreadFormats> threadFormats = new ThreadLocal<ThreadFormats>() {
+    @Override
+    protected ThreadFormats initialValue() {
+      return new ThreadFormats();
+    }
+  };
+
+  private static class ThreadFormats {
+    int generation;
+    final Map<String, NumberFormat> formats = new HashMap<>();
+  }
+
+  /**
+   * amounts with up to 15 significant digits survive the conversion to double
+   */
+  private static final long MAX_FAST_PATH_AMOUNT = 999999999999999L;
+  private static final int MAX_FAST_PATH_FRACTION_DIGITS = 3;
+  private static final double[] POWERS_OF_TEN = {1, 10, 100, 1000};
 
   public void invalidate(String currency) {
     numberFormats.remove(currency);
+    fractionDigits.remove(currency);
+    generation.incrementAndGet();
     notifyUris();
   }
 
   public void invalidateAll() {
     numberFormats.clear();
+    fractionDigits.clear();
+    generation.incrementAndGet();
     notifyUris();
   }
 
@@ -62,29 +93,68 @@ public class CurrencyFormatter {
     return NumberFormat.getCurrencyInstance();
   }
 
+  /**
+   * @return a format for exclusive use by the calling thread
+   */
   private NumberFormat getNumberFormat(Currency currency) {
+    ThreadFormats local = threadFormats.get();
+    int current = generation.get();
+    if (local.generation != current) {
+      local.formats.clear();
+      local.generation = current;
+    }
+    String currencyCode = currency.getCurrencyCode();
+    NumberFormat numberFormat = local.formats.get(currencyCode);
+    if (numberFormat == null) {
+      numberFormat = (NumberFormat) getPrototype(currency).clone();
+      local.formats.put(currencyCode, numberFormat);
+    }
+    return numberFormat;
+  }
+
+  private NumberFormat getPrototype(Currency currency) {
     NumberFormat numberFormat = numberFormats.get(currency.getCurrencyCode());
     if (numberFormat == null) {
-      numberFormat = initNumberFormat();
-      int fractionDigits = Money.getFractionDigits(currency);
-      numberFormat.setCurrency(currency);
-      if (fractionDigits <= 3) {
-        numberFormat.setMinimumFractionDigits(fractionDigits);
-        numberFormat.setMaximumFractionDigits(fractionDigits);
-      } else {
-        numberFormat.setMaximumFractionDigits(fractionDigits);
+      numberFormat = configure(initNumberFormat(), currency, getFractionDigits(currency),
+          Money.getCustomSymbol(currency));
+      NumberFormat concurrent = numberFormats.putIfAbsent(currency.getCurrencyCode(), numberFormat);
+      if (concurrent != null) {
+        numberFormat = concurrent;
       }
-      String currencySymbol = Money.getCustomSymbol(currency);
-      if (currencySymbol != null) {
-        DecimalFormatSymbols decimalFormatSymbols = ((DecimalFormat) numberFormat).getDecimalFormatSymbols();
-        decimalFormatSymbols.setCurrencySymbol(currencySymbol);
-        ((DecimalFormat) numberFormat).setDecimalFormatSymbols(decimalFormatSymbols);
-      }
-      numberFormats.put(currency.getCurrencyCode(), numberFormat);
+    }
+    return numberFormat;
+  }
+
+  static NumberFormat configure(NumberFormat numberFormat, Currency currency, int fractionDigits,
+                                String currencySymbol) {
+    numberFormat.setCurrency(currency);
+    if (fractionDigits <= MAX_FAST_PATH_FRACTION_DIGITS) {
+      numberFormat.setMinimumFractionDigits(fractionDigits);
+      numberFormat.setMaximumFractionDigits(fractionDigits);
+    } else {
+      numberFormat.setMaximumFractionDigits(fractionDigits);
+    }
+    if (currencySymbol != null) {
+      DecimalFormatSymbols decimalFormatSymbols = ((DecimalFormat) numberFormat).getDecimalFormatSymbols();
+      decimalFormatSymbols.setCurrencySymbol(currencySymbol);
+      ((DecimalFormat) numberFormat).setDecimalFormatSymbols(decimalFormatSymbols);
     }
     return numberFormat;
   }
 
+  /**
+   * {@link Money#getFractionDigits(Currency)} reads from preferences, we cache the result together
+   * with the number format
+   */
+  private int getFractionDigits(Currency currency) {
+    Integer result = fractionDigits.get(currency.getCurrencyCode());
+    if (result == null) {
+      result = Money.getFractionDigits(currency);
+      fractionDigits.put(currency.getCurrencyCode(), result);
+    }
+    return result;
+  }
+
   /**
    * formats an amount with a currency
    *
@@ -92,12 +162,9 @@ public class CurrencyFormatter {
    * @return formated string
    */
   public String formatCurrency(Money money) {
-    BigDecimal amount = money.getAmountMajor();
-    Currency currency = money.getCurrency();
-    return formatCurrency(amount, currency);
+    return convAmount(money.getAmountMinor().longValue(), money.getCurrency());
   }
 
-  @DebugLog
   public String formatCurrency(BigDecimal amount, Currency currency) {
     return getNumberFormat(currency).format(amount);
   }
@@ -111,9 +178,9 @@ public class CurrencyFormatter {
    * @return formated string
    */
   public String convAmount(String text, Currency currency) {
-    Long amount;
+    long amount;
     try {
-      amount = Long.valueOf(text);
+      amount = Long.parseLong(text);
     } catch (NumberFormatException e) {
       amount = 0L;
     }
@@ -129,6 +196,31 @@ public class CurrencyFormatter {
    * @return formated string
    */
   public String convAmount(Long amount, Currency currency) {
-    return formatCurrency(new Money(currency, amount));
+    return convAmount(amount.longValue(), currency);
+  }
+
+  /**
+   * formats an amount given in minor units without going through {@link Money}, for use in list
+   * adapters
+   *
+   * @param amountMinor
+   * @param currency
+   * @return formated string
+   */
+  public String convAmount(long amountMinor, Currency currency) {
+    return formatAmountMinor(getNumberFormat(currency), amountMinor, getFractionDigits(currency));
+  }
+
+  /**
+   * For up to three fraction digits, the amount is formatted as double: the quotient is the double
+   * nearest to the decimal value, and the format prints it back exactly, since its maximum fraction
+   * digits are set to fractionDigits. Other amounts are formatted via {@link BigDecimal}.
+   */
+  static String formatAmountMinor(NumberFormat numberFormat, long amountMinor, int fractionDigits) {
+    if (fractionDigits <= MAX_FAST_PATH_FRACTION_DIGITS &&
+        amountMinor >= -MAX_FAST_PATH_AMOUNT && amountMinor <= MAX_FAST_PATH_AMOUNT) {
+      return numberFormat.format(amountMinor / POWERS_OF_TEN[fractionDigits]);
+    }
+    return numberFormat.format(BigDecimal.valueOf(amountMinor, fractionDigits));
   }
 }
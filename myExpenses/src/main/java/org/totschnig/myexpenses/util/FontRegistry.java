@@ -0,0 +1,338 @@
+package org.totschnig.myexpenses.util;
+
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
+
+import com.itextpdf.text.DocumentException;
+import com.itextpdf.text.Font;
+import com.itextpdf.text.pdf.BaseFont;
+
+import org.totschnig.myexpenses.MyApplication;
+import org.totschnig.myexpenses.util.LazyFontSelector.FontType;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+import timber.log.Timber;
+
+/**
+ * Holds the fonts used for printing PDFs for the lifetime of the process. Fonts are loaded the first
+ * time they are needed. For each code point, the first font that has a glyph for it is looked up
+ * once, and remembered in a coverage map, which is persisted, so that fonts do not need to be probed
+ * again in the next process. The persisted map is only used as long as the same font files, with
+ * the same modification time and size, are found.
+ */
+public class FontRegistry {
+  /**
+   * code point is not covered by any of the fonts
+   */
+  static final int NOT_COVERED = -1;
+  /**
+   * line breaks are rendered with any font
+   */
+  static final int LINE_BREAK = -2;
+  private static final short UNPROBED = -3;
+  private static final int COVERAGE_VERSION = 1;
+  private static final String COVERAGE_FILE_NAME = "font_coverage";
+  private static final File SYSTEM_FONTS = new File("/system/fonts");
+  private static FontRegistry instance;
+
+  private final File[] files;
+  @Nullable
+  private final File coverageFile;
+  private final BaseFont[] baseFonts;
+  private final Font[][] fonts;
+  private final short[] bmpCoverage = new short[Character.MIN_SUPPLEMENTARY_CODE_POINT];
+  private final Map<Integer, Short> supplementaryCoverage = new HashMap<>();
+  private boolean coverageChanged = false;
+
+  /**
+   * @return the registry of the fonts found in /system/fonts, or null if none are found
+   */
+  @Nullable
+  public static synchronized FontRegistry getInstance() {
+    if (instance == null) {
+      File[] files = listFonts(SYSTEM_FONTS);
+      if (files.length == 0) {
+        return null;
+      }
+      instance = new FontRegistry(files,
+          new File(MyApplication.getInstance().getCacheDir(), COVERAGE_FILE_NAME));
+    }
+    return instance;
+  }
+
+  /**
+   * @param files        fonts in the order in which they are probed
+   * @param coverageFile where the coverage map is persisted, or null if it should not be persisted
+   */
+  @VisibleForTesting
+  FontRegistry(File[] files, @Nullable File coverageFile) {
+    this.files = files;
+    this.coverageFile = coverageFile;
+    baseFonts = new BaseFont[files.length];
+    fonts = new Font[FontType.values().length][files.length];
+    Arrays.fill(bmpCoverage, UNPROBED);
+    if (coverageFile != null) {
+      readCoverage(coverageFile);
+    }
+  }
+
+  /**
+   * @return the TTF files in dir, the Default Font first
+   */
+  static File[] listFonts(File dir) {
+    File[] files = dir.listFiles(new FilenameFilter() {
+
+      @Override
+      public boolean accept(File dir, String filename) {
+        return filename.endsWith("ttf") //NotoSans*-Regular.otf files found not to work:
+                                        //BaseFont.charExists finds chars that are not visible in PDF
+            && !filename.contains("ColorEmoji");//NotoColorEmoji.ttf and SamsungColorEmoji.ttf
+                                                //are known not to work
+
+      }
+    });
+    if (files == null) {
+      return new File[0];
+    }
+    Arrays.sort(files, new Comparator<File>() {
+      public int compare(File f1, File f2) {
+        String n1 = f1.getName();
+        String n2 = f2.getName();
+        if (n1.equals("DroidSans.ttf")) {
+          return -1;
+        } else if (n2.equals("DroidSans.ttf")) {
+          return 1;
+        }
+        if (n1.startsWith("Droid")) {
+          if (n2.startsWith("Droid")) {
+            return n1.compareTo(n2);
+          } else {
+            return -1;
+          }
+        } else if (n2.startsWith("Droid")) {
+          return 1;
+        }
+        return n1.compareTo(n2);
+      }
+    });
+    return files;
+  }
+
+  /**
+   * finds the run of characters starting at start, that are rendered with the same font
+   *
+   * @param font receives the index of the font, {@link #NOT_COVERED} or {@link #LINE_BREAK}
+   * @return the end of the run
+   */
+  synchronized int nextRun(char[] text, int start, int[] font) throws DocumentException, IOException {
+    int codePoint = Character.codePointAt(text, start);
+    int runFont = route(codePoint);
+    int end = start + Character.charCount(codePoint);
+    while (end < text.length) {
+      codePoint = Character.codePointAt(text, end);
+      if (route(codePoint) != runFont) {
+        break;
+      }
+      end += Character.charCount(codePoint);
+    }
+    font[0] = runFont;
+    return end;
+  }
+
+  private int route(int codePoint) throws DocumentException, IOException {
+    if (codePoint == '\n' || codePoint == '\r') {
+      return LINE_BREAK;
+    }
+    return fontIndex(codePoint);
+  }
+
+  /**
+   * @return the index of the first font that has a glyph for codePoint, or {@link #NOT_COVERED}
+   */
+  synchronized int fontIndex(int codePoint) throws DocumentException, IOException {
+    short index = getCoverage(codePoint);
+    if (index == UNPROBED) {
+      index = (short) probe(codePoint);
+      if (codePoint < Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+        bmpCoverage[codePoint] = index;
+      } else {
+        supplementaryCoverage.put(codePoint, index);
+      }
+      coverageChanged = true;
+    }
+    return index;
+  }
+
+  private short getCoverage(int codePoint) {
+    if (codePoint < Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+      return bmpCoverage[codePoint];
+    }
+    Short index = supplementaryCoverage.get(codePoint);
+    return index == null ? UNPROBED : index;
+  }
+
+  private int probe(int codePoint) throws DocumentException, IOException {
+    for (int f = 0; f < files.length; ++f) {
+      if (Character.getType(codePoint) == Character.FORMAT
+          || getBaseFont(f).charExists(codePoint)) {
+        return f;
+      }
+    }
+    return NOT_COVERED;
+  }
+
+  @VisibleForTesting
+  synchronized boolean isProbed(int codePoint) {
+    return getCoverage(codePoint) != UNPROBED;
+  }
+
+  @VisibleForTesting
+  synchronized int getLoadedFontCount() {
+    int count = 0;
+    for (BaseFont baseFont : baseFonts) {
+      if (baseFont != null) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  synchronized Font getFont(FontType type, int index) throws DocumentException, IOException {
+    Font f = fonts[type.ordinal()][index];
+    if (f == null) {
+      f = new Font(getBaseFont(index), type.size, type.style, type.color);
+      fonts[type.ordinal()][index] = f;
+    }
+    return f;
+  }
+
+  private BaseFont getBaseFont(int index) throws DocumentException, IOException {
+    BaseFont bf = baseFonts[index];
+    if (bf == null) {
+      String file = files[index].getAbsolutePath();
+      Timber.i("now loading font file %s", file);
+      bf = BaseFont.createFont(file, BaseFont.IDENTITY_H, BaseFont.EMBEDDED);
+      baseFonts[index] = bf;
+    }
+    return bf;
+  }
+
+  /**
+   * persists the coverage map, if code points have been probed since it was read
+   */
+  public synchronized void saveCoverage() {
+    if (coverageFile == null || !coverageChanged) {
+      return;
+    }
+    File tmpFile = new File(coverageFile.getPath() + ".tmp");
+    try {
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+          new FileOutputStream(tmpFile)));
+      try {
+        writeKey(out);
+        int size = supplementaryCoverage.size();
+        for (short index : bmpCoverage) {
+          if (index != UNPROBED) {
+            size++;
+          }
+        }
+        out.writeInt(size);
+        for (int codePoint = 0; codePoint < bmpCoverage.length; codePoint++) {
+          if (bmpCoverage[codePoint] != UNPROBED) {
+            out.writeInt(codePoint);
+            out.writeShort(bmpCoverage[codePoint]);
+          }
+        }
+        for (Map.Entry<Integer, Short> entry : supplementaryCoverage.entrySet()) {
+          out.writeInt(entry.getKey());
+          out.writeShort(entry.getValue());
+        }
+      } finally {
+        out.close();
+      }
+      if (tmpFile.renameTo(coverageFile)) {
+        coverageChanged = false;
+      } else {
+        Timber.w("Unable to rename %s", tmpFile);
+      }
+    } catch (IOException e) {
+      Timber.w(e, "Unable to save font coverage");
+    }
+  }
+
+  private void readCoverage(File coverageFile) {
+    try {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(
+          new FileInputStream(coverageFile)));
+      try {
+        if (!readKey(in)) {
+          Timber.i("Fonts have changed, font coverage is probed again");
+          coverageChanged = true;
+          return;
+        }
+        int size = in.readInt();
+        for (int i = 0; i < size; i++) {
+          int codePoint = in.readInt();
+          short index = in.readShort();
+          if (index >= files.length || index < NOT_COVERED) {
+            throw new IOException("Invalid font index " + index);
+          }
+          if (codePoint < Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+            bmpCoverage[codePoint] = index;
+          } else {
+            supplementaryCoverage.put(codePoint, index);
+          }
+        }
+      } finally {
+        in.close();
+      }
+    } catch (FileNotFoundException e) {
+      //nothing persisted yet
+    } catch (IOException | RuntimeException e) {
+      Timber.w(e, "Unable to read font coverage");
+      Arrays.fill(bmpCoverage, UNPROBED);
+      supplementaryCoverage.clear();
+      coverageChanged = true;
+    }
+  }
+
+  /**
+   * the coverage map is only valid for the same fonts in the same order
+   */
+  private void writeKey(DataOutputStream out) throws IOException {
+    out.writeInt(COVERAGE_VERSION);
+    out.writeInt(files.length);
+    for (File file : files) {
+      out.writeUTF(file.getAbsolutePath());
+      out.writeLong(file.lastModified());
+      out.writeLong(file.length());
+    }
+  }
+
+  private boolean readKey(DataInputStream in) throws IOException {
+    if (in.readInt() != COVERAGE_VERSION || in.readInt() != files.length) {
+      return false;
+    }
+    for (File file : files) {
+      if (!in.readUTF().equals(file.getAbsolutePath()) || in.readLong() != file.lastModified()
+          || in.readLong() != file.length()) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -2,6 +2,8 @@ package org.totschnig.myexpenses.util;
 
 import android.annotation.SuppressLint;
 import android.os.Build;
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
 import android.text.TextUtils;
 import android.view.View;
 
@@ -17,11 +19,7 @@ import com.itextpdf.text.pdf.PdfWriter;
 import org.totschnig.myexpenses.MyApplication;
 import org.totschnig.myexpenses.util.LazyFontSelector.FontType;
 
-import java.io.File;
-import java.io.FilenameFilter;
 import java.io.IOException;
-import java.util.Arrays;
-import java.util.Comparator;
 import java.util.Locale;
 import java.util.regex.Pattern;
 
@@ -30,64 +28,31 @@ public class PdfHelper {
   private static final Pattern HAS_ANY_RTL_RE =
              Pattern.compile(".*[\\p{InArabic}\\p{InHebrew}].*");
   
+  @Nullable
+  private FontRegistry registry;
   private LazyFontSelector lfs;
   private Font fNormal, fTitle, fHeader, fBold, fItalic, fUnderline, fIncome,
       fExpense;
 
   private boolean useSystemFonts = true;
 
-  private boolean layoutDirectionFromLocaleIsRTL;
+  private final boolean layoutDirectionFromLocaleIsRTL;
 
-  @SuppressLint("NewApi")
   public PdfHelper() {
-    final Locale l = Locale.getDefault();
-    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1) {
-    layoutDirectionFromLocaleIsRTL = TextUtils.getLayoutDirectionFromLocale(l)
-        == View.LAYOUT_DIRECTION_RTL;
-    } else {
-      final int directionality = Character.getDirectionality(l.getDisplayName().charAt(0));
-      layoutDirectionFromLocaleIsRTL =  directionality == Character.DIRECTIONALITY_RIGHT_TO_LEFT ||
-             directionality == Character.DIRECTIONALITY_RIGHT_TO_LEFT_ARABIC;
-    }
-    if (MyApplication.getInstance().getMemoryClass()>=32) {
-      //we want the Default Font to be used first
-      try {
-        File dir = new File("/system/fonts");
-        File[] files = dir.listFiles(new FilenameFilter() {
-
-          @Override
-          public boolean accept(File dir, String filename) {
-            return filename.endsWith("ttf") //NotoSans*-Regular.otf files found not to work:
-                                            //BaseFont.charExists finds chars that are not visible in PDF
-                && !filename.contains("ColorEmoji");//NotoColorEmoji.ttf and SamsungColorEmoji.ttf
-                                                    //are known not to work
+    this(MyApplication.getInstance().getMemoryClass() >= 32 ? FontRegistry.getInstance() : null,
+        isLayoutDirectionFromLocaleRTL());
+  }
 
-          }
-        });
-        Arrays.sort(files, new Comparator<File>() {
-          public int compare(File f1, File f2) {
-            String n1 = f1.getName();
-            String n2 = f2.getName();
-            if (n1.equals("DroidSans.ttf")) {
-              return -1;
-            } else if (n2.equals("DroidSans.ttf")) {
-              return 1;
-            }
-            if (n1.startsWith("Droid")) {
-              if (n2.startsWith("Droid")) {
-                return n1.compareTo(n2);
-              } else {
-                return -1;
-              }
-            } else if (n2.startsWith("Droid")) {
-              return 1;
-            }
-            return n1.compareTo(n2);
-          }
-        });
-        lfs = new LazyFontSelector(files);
-        return;
-      } catch (Exception e) {}
+  /**
+   * @param registry fonts to use, if null the built-in Times Roman is used
+   */
+  @VisibleForTesting
+  PdfHelper(@Nullable FontRegistry registry, boolean layoutDirectionFromLocaleIsRTL) {
+    this.layoutDirectionFromLocaleIsRTL = layoutDirectionFromLocaleIsRTL;
+    if (registry != null) {
+      this.registry = registry;
+      lfs = new LazyFontSelector(registry);
+      return;
     }
     useSystemFonts = false;
     fNormal = new Font(Font.FontFamily.TIMES_ROMAN, 12, Font.NORMAL);
@@ -103,6 +68,28 @@ public class PdfHelper {
         BaseColor.RED);
   }
 
+  @SuppressLint("NewApi")
+  private static boolean isLayoutDirectionFromLocaleRTL() {
+    final Locale l = Locale.getDefault();
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1) {
+      return TextUtils.getLayoutDirectionFromLocale(l) == View.LAYOUT_DIRECTION_RTL;
+    } else {
+      final int directionality = Character.getDirectionality(l.getDisplayName().charAt(0));
+      return directionality == Character.DIRECTIONALITY_RIGHT_TO_LEFT ||
+             directionality == Character.DIRECTIONALITY_RIGHT_TO_LEFT_ARABIC;
+    }
+  }
+
+  /**
+   * persists what has been learned about the fonts while printing, should be called once the
+   * document is complete
+   */
+  public void finish() {
+    if (registry != null) {
+      registry.saveCoverage();
+    }
+  }
+
   public PdfPCell printToCell(String text, FontType font) throws DocumentException, IOException {
     PdfPCell cell = new PdfPCell(print(text,font));
     if (hasAnyRtl(text)) {
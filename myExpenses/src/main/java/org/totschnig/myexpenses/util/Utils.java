@@ -211,7 +211,7 @@ public class Utils {
         sortOrder = "abs(" + KEY_AMOUNT + ") DESC, " + sortOrder;
         break;
       case ProtectedFragmentActivity.SORT_ORDER_NEXT_INSTANCE:
-        sortOrder = null; //handled by PlanInfoCursorWrapper
+        sortOrder = null; //handled by TransactionProvider
         //default is textColumn
     }
     return sortOrder;
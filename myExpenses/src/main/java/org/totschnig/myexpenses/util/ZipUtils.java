@@ -3,18 +3,21 @@ package org.totschnig.myexpenses.util;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Environment;
+import android.support.annotation.Nullable;
 import android.support.v4.provider.DocumentFile;
 
 import org.totschnig.myexpenses.MyApplication;
 import org.totschnig.myexpenses.provider.DatabaseConstants;
+import org.totschnig.myexpenses.provider.DbUtils;
 import org.totschnig.myexpenses.provider.TransactionProvider;
 
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 import java.util.zip.ZipOutputStream;
@@ -25,19 +28,27 @@ import timber.log.Timber;
 public class ZipUtils {
 
 
+  /**
+   * folder of pictures in archives created before pictures were moved to {@link BackupPictureStore}
+   */
   public static final String PICTURES = Environment.DIRECTORY_PICTURES;
 
   private ZipUtils() {
   }
 
   /**
-   * convenience method that allows to store the pictures into the backup
-   * without copying them first
+   * compresses the database and the preferences, which have been copied into cacheDir by
+   * {@link DbUtils#backup(File)}, into the backup. Pictures are stored into pictureStore, the
+   * backup only carries the manifest that references them
    * @param cacheDir
+   * @param pictureStore
    * @param destZipFile
+   * @param listener informed about the progress of writing the database
    * @throws Exception
    */
-  public static void zipBackup(File cacheDir, DocumentFile destZipFile) throws IOException {
+  public static void zipBackup(File cacheDir, BackupPictureStore pictureStore,
+                               DocumentFile destZipFile,
+                               @Nullable BackupUtils.ProgressListener listener) throws IOException {
     /*
      * create the output stream to zip file result
      */
@@ -45,8 +56,9 @@ public class ZipUtils {
     /*
      * add the folder to the zip
      */
-    addFileToZip("", BackupUtils.getBackupDbFile(cacheDir), zip);
+    addFileToZip("", BackupUtils.getBackupDbFile(cacheDir), zip, listener);
     addFileToZip("", BackupUtils.getBackupPrefFile(cacheDir), zip);
+    Map<String, String> manifest = new HashMap<>();
     Cursor c= MyApplication.getInstance().getContentResolver()
         .query(TransactionProvider.TRANSACTIONS_URI.buildUpon().appendQueryParameter(
                 TransactionProvider.QUERY_PARAMETER_DISTINCT,"1").build(),
@@ -54,35 +66,22 @@ public class ZipUtils {
             DatabaseConstants.KEY_PICTURE_URI + " IS NOT NULL",
             null,null);
     if (c!=null) {
-      if (c.moveToFirst()) {
-        try {
-          do {
-            Uri imageFileUri = Uri.parse(c.getString(0));
-            if (imageFileUri.getScheme().equals("file")) {
-              File imageFile = new File(imageFileUri.getPath());
-              if (imageFile.exists()) {
-                addFileToZip(PICTURES, imageFile, zip);
-              }
-            } else {
-              InputStream in;
-              try {
-                in = MyApplication.getInstance().getContentResolver().openInputStream(imageFileUri);
-                addInputStreamToZip(PICTURES + "/" + imageFileUri.getLastPathSegment(),
-                    in,
-                    zip);
-                in.close();
-              } catch (FileNotFoundException e) {
-                e.printStackTrace();
-              }
-            }
-          } while (c.moveToNext());
-        } catch (IOException e) {
-          c.close();
-          throw e;
+      try {
+        while (c.moveToNext()) {
+          Uri imageFileUri = Uri.parse(c.getString(0));
+          String blob = pictureStore.store(imageFileUri);
+          if (blob != null) {
+            manifest.put(imageFileUri.getLastPathSegment(), blob);
+          } else {
+            Timber.w("Picture %s not found", imageFileUri);
+          }
         }
+      } finally {
+        c.close();
       }
-      c.close();
     }
+    zip.putNextEntry(new ZipEntry(BackupUtils.BACKUP_PICTURES_MANIFEST_FILE_NAME));
+    BackupPictureStore.writeManifest(manifest, zip);
     /*
      * close the zip objects
      */
@@ -115,29 +114,46 @@ public class ZipUtils {
   /*
    * recursively add files to the zip files
    */
-  private static void addFileToZip(String path, File srcFile,
+  public static void addFileToZip(String path, File srcFile,
       ZipOutputStream zip) throws IOException {
+    addFileToZip(path, srcFile, zip, null);
+  }
+
+  private static void addFileToZip(String path, File srcFile, ZipOutputStream zip,
+                                   @Nullable BackupUtils.ProgressListener listener) throws IOException {
 
     FileInputStream in = new FileInputStream(srcFile);
     String filePath = path + (path.equals("") ? "" : "/") + srcFile.getName();
-    addInputStreamToZip(filePath,in,zip);
+    addInputStreamToZip(filePath, in, srcFile.length(), zip, listener);
     in.close();
   }
 
-  private static void addInputStreamToZip(String path, InputStream in,
-                                   ZipOutputStream zip) throws IOException {
+  private static void addInputStreamToZip(String path, InputStream in, long size,
+                                          ZipOutputStream zip,
+                                          @Nullable BackupUtils.ProgressListener listener)
+      throws IOException {
 
     /*
      * write the file to the output
      */
-    byte[] buf = new byte[1024];
+    byte[] buf = new byte[8192];
     int len;
+    long written = 0;
+    int reportedPercent = -1;
     zip.putNextEntry(new ZipEntry(path));
     while ((len = in.read(buf)) > 0) {
       /*
        * Write the Result
        */
       zip.write(buf, 0, len);
+      written += len;
+      if (listener != null) {
+        int percent = size > 0 ? (int) (written * 100 / size) : 100;
+        if (percent != reportedPercent) {
+          listener.onProgress(percent);
+          reportedPercent = percent;
+        }
+      }
     }
     in.close();
   }
@@ -0,0 +1,327 @@
+package org.totschnig.myexpenses.export.qif;
+
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class QifTransferReducerTest {
+  private static final int NUMBER_OF_ACCOUNTS = 16;
+  private static final int NUMBER_OF_TRANSACTIONS = 200000;
+  private static final long DAY = TimeUnit.DAYS.toMillis(1);
+  private static final long BASE_DATE = 1262304000000L;
+  /**
+   * amounts with different scales, which are not treated as the same amount
+   */
+  private static final String[] AMOUNTS = {"5", "5.00", "12.50", "100", "0.99", "250.75", "1000"};
+
+  @Test
+  public void shouldPairTransfersAndSkipCounterpart() {
+    QifAccount konto1 = account("Konto 1");
+    QifAccount konto2 = account("Konto 2");
+    Date now = new Date(BASE_DATE);
+    QifTransaction outgoing = transaction(1, "Konto 2", now, "-5");
+    QifTransaction incoming = transaction(2, "Konto 1", new Date(BASE_DATE), "5");
+    QifTransaction unmatched = transaction(3, "Konto 1", now, "6");
+    konto1.transactions.add(outgoing);
+    konto2.transactions.add(incoming);
+    konto2.transactions.add(unmatched);
+    List<QifAccount> accounts = new ArrayList<>();
+    accounts.add(konto1);
+    accounts.add(konto2);
+
+    QifTransferReducer.reduceTransfers(accounts, index(accounts));
+    QifTransferReducer.convertUnknownTransfers(accounts);
+
+    assertEquals("Konto 2", outgoing.toAccount);
+    assertFalse(outgoing.isCounterpart);
+    assertTrue(incoming.isCounterpart);
+    assertFalse(unmatched.isCounterpart);
+    assertNull(unmatched.toAccount);
+    assertEquals("Transfer: Konto 1", unmatched.memo);
+  }
+
+  @Test
+  public void shouldNotPairTransfersWithAccountBeyondLimit() {
+    List<QifAccount> expected = accountsWithTransfersToSkippedAccount();
+    List<QifAccount> actual = accountsWithTransfersToSkippedAccount();
+
+    //the account that is not imported is missing from the index
+    Map<String, QifAccount> index = index(expected);
+    index.remove("Konto 2");
+    QifTransferReducer.reduceTransfers(expected, index);
+    QifTransferReducer.convertUnknownTransfers(expected);
+    assertConvertedTransfersOfFirstAccount(expected.get(0).transactions);
+
+    final List<QifTransaction> resolved = new ArrayList<>();
+    QifTransferResolver resolver = new QifTransferResolver(new QifTransferResolver.Sink() {
+      @Override
+      public void onResolved(QifAccount account, QifTransaction transaction) {
+        assertEquals("Konto 1", account.memo);
+        resolved.add(transaction);
+      }
+
+      @Override
+      public boolean accepts(QifAccount account) {
+        return !account.memo.equals("Konto 2");
+      }
+    });
+    for (QifAccount account : actual) {
+      for (QifTransaction transaction : account.transactions) {
+        resolver.offer(account, transaction);
+      }
+      resolver.endAccount(account);
+    }
+    resolver.finish();
+    assertConvertedTransfersOfFirstAccount(resolved);
+  }
+
+  /**
+   * transfers in both directions between the first account and the second one, which is not
+   * imported
+   */
+  private static List<QifAccount> accountsWithTransfersToSkippedAccount() {
+    QifAccount konto1 = account("Konto 1");
+    QifAccount konto2 = account("Konto 2");
+    Date now = new Date(BASE_DATE);
+    konto1.transactions.add(transaction(1, "Konto 2", now, "-5"));
+    konto1.transactions.add(transaction(2, "Konto 2", now, "7"));
+    konto2.transactions.add(transaction(3, "Konto 1", now, "5"));
+    konto2.transactions.add(transaction(4, "Konto 1", now, "-7"));
+    List<QifAccount> accounts = new ArrayList<>();
+    accounts.add(konto1);
+    accounts.add(konto2);
+    return accounts;
+  }
+
+  private static void assertConvertedTransfersOfFirstAccount(List<QifTransaction> transactions) {
+    assertEquals(2, transactions.size());
+    for (QifTransaction transaction : transactions) {
+      assertFalse(transaction.isCounterpart);
+      assertNull(transaction.toAccount);
+      assertEquals("Transfer: Konto 2", transaction.memo);
+    }
+  }
+
+  @Test
+  public void shouldMatchFormerAlgorithmForLargeImport() {
+    List<QifAccount> expected = generateAccounts(new Random(23));
+    List<QifAccount> actual = generateAccounts(new Random(23));
+
+    reduceTransfersByScan(expected, index(expected));
+    QifTransferReducer.reduceTransfers(actual, index(actual));
+
+    assertEquals(describe(expected, false), describe(actual, true));
+  }
+
+  @Test
+  public void resolverShouldPairLikeReducer() {
+    List<QifAccount> expected = generateAccounts(new Random(24));
+    List<QifAccount> actual = generateAccounts(new Random(24));
+
+    QifTransferReducer.reduceTransfers(expected, index(expected));
+    QifTransferReducer.convertUnknownTransfers(expected);
+    final Map<String, SortedMap<Long, String>> resolved = new LinkedHashMap<>();
+    QifTransferResolver resolver = new QifTransferResolver(new QifTransferResolver.Sink() {
+      @Override
+      public void onResolved(QifAccount account, QifTransaction transaction) {
+        assertNull(resolved.get(account.memo).put(transaction.id, describe(transaction)));
+      }
+
+      @Override
+      public boolean accepts(QifAccount account) {
+        return true;
+      }
+    });
+    for (QifAccount account : actual) {
+      resolved.put(account.memo, new TreeMap<Long, String>());
+    }
+    for (QifAccount account : actual) {
+      for (QifTransaction transaction : account.transactions) {
+        resolver.offer(account, transaction);
+      }
+      resolver.endAccount(account);
+    }
+    resolver.finish();
+
+    for (QifAccount account : expected) {
+      SortedMap<Long, String> transactions = new TreeMap<>();
+      for (QifTransaction transaction : account.transactions) {
+        if (!transaction.isCounterpart) {
+          transactions.put(transaction.id, describe(transaction));
+        }
+      }
+      assertEquals(account.memo, transactions, resolved.get(account.memo));
+    }
+  }
+
+  /**
+   * accounts with regular transactions, transfers and their counterparts in random order, transfers
+   * without counterpart, duplicate transfers, transfers to unknown accounts or to the account itself,
+   * and transfers in splits
+   */
+  private static List<QifAccount> generateAccounts(Random random) {
+    List<QifAccount> accounts = new ArrayList<>();
+    for (int i = 0; i < NUMBER_OF_ACCOUNTS; i++) {
+      accounts.add(account("Account " + i));
+    }
+    long id = 0;
+    while (id < NUMBER_OF_TRANSACTIONS) {
+      QifAccount from = accounts.get(random.nextInt(NUMBER_OF_ACCOUNTS));
+      QifAccount to = accounts.get(random.nextInt(NUMBER_OF_ACCOUNTS));
+      Date date = new Date(BASE_DATE + random.nextInt(3 * 365) * DAY);
+      String amount = AMOUNTS[random.nextInt(AMOUNTS.length)];
+      int kind = random.nextInt(10);
+      if (kind < 3) {
+        add(random, from, transaction(id++, null, date, "-" + amount));
+      } else if (kind < 7) {
+        add(random, from, transaction(id++, to.memo, date, "-" + amount));
+        if (random.nextInt(10) > 0) {
+          //counterpart might have a different scale
+          String counterpartAmount = random.nextInt(20) > 0 ? amount :
+              AMOUNTS[random.nextInt(AMOUNTS.length)];
+          add(random, to, transaction(id++, from.memo, new Date(date.getTime()), counterpartAmount));
+        }
+      } else if (kind == 7) {
+        QifTransaction incoming = transaction(id++, from.memo, date, amount);
+        if (random.nextBoolean()) {
+          //splits are left alone once their transaction has been paired
+          incoming.splits = new ArrayList<>();
+          incoming.splits.add(transaction(id++, from.memo, date, "-" + amount));
+        }
+        add(random, to, incoming);
+      } else if (kind == 8) {
+        QifTransaction split = transaction(id++, null, date, "-" + amount);
+        split.splits = new ArrayList<>();
+        split.splits.add(transaction(id++, null, date, "-" + amount));
+        split.splits.add(transaction(id++, to.memo, date, "-" + amount));
+        add(random, from, split);
+        add(random, to, transaction(id++, from.memo, new Date(date.getTime()), amount));
+      } else {
+        String target = random.nextBoolean() ? "Unknown" : from.memo;
+        add(random, from, transaction(id++, target, date, "-" + amount));
+      }
+    }
+    return accounts;
+  }
+
+  private static void add(Random random, QifAccount account, QifTransaction transaction) {
+    List<QifTransaction> transactions = account.transactions;
+    transactions.add(random.nextInt(transactions.size() + 1), transaction);
+  }
+
+  private static QifAccount account(String memo) {
+    QifAccount account = new QifAccount();
+    account.memo = memo;
+    return account;
+  }
+
+  private static QifTransaction transaction(long id, String toAccount, Date date, String amount) {
+    QifTransaction transaction = new QifTransaction();
+    transaction.id = id;
+    transaction.toAccount = toAccount;
+    transaction.date = date;
+    transaction.amount = new BigDecimal(amount);
+    return transaction;
+  }
+
+  private static Map<String, QifAccount> index(List<QifAccount> accounts) {
+    Map<String, QifAccount> result = new HashMap<>();
+    for (QifAccount account : accounts) {
+      result.put(account.memo, account);
+    }
+    return result;
+  }
+
+  /**
+   * @param skipCounterparts if true, transactions marked as counterpart are left out, as the former
+   *                         algorithm removed them from the list
+   */
+  private static String describe(List<QifAccount> accounts, boolean skipCounterparts) {
+    StringBuilder result = new StringBuilder();
+    for (QifAccount account : accounts) {
+      result.append(account.memo).append('\n');
+      describe(result, account.transactions, skipCounterparts, "");
+    }
+    return result.toString();
+  }
+
+  private static String describe(QifTransaction transaction) {
+    StringBuilder result = new StringBuilder();
+    describe(result, Collections.singletonList(transaction), false, "");
+    return result.toString();
+  }
+
+  private static void describe(StringBuilder result, List<QifTransaction> transactions,
+                               boolean skipCounterparts, String indent) {
+    for (QifTransaction transaction : transactions) {
+      if (skipCounterparts && transaction.isCounterpart) {
+        continue;
+      }
+      result.append(indent).append(transaction.id).append(' ').append(transaction.toAccount)
+          .append(' ').append(transaction.memo).append('\n');
+      if (transaction.splits != null) {
+        describe(result, transaction.splits, skipCounterparts, indent + "  ");
+      }
+    }
+  }
+
+  /**
+   * the pairing formerly done by QifImportTask, which scanned the receiving account for each
+   * transfer, and removed the counterpart from it
+   */
+  private static void reduceTransfersByScan(List<QifAccount> accounts,
+                                            Map<String, QifAccount> accountTitleToAccount) {
+    for (QifAccount fromAccount : accounts) {
+      reduceTransfersByScan(fromAccount, fromAccount.transactions, accountTitleToAccount);
+    }
+  }
+
+  private static void reduceTransfersByScan(QifAccount fromAccount,
+                                            List<QifTransaction> transactions,
+                                            Map<String, QifAccount> accountTitleToAccount) {
+    for (QifTransaction fromTransaction : transactions) {
+      if (fromTransaction.isTransfer() && fromTransaction.amount.signum() == -1) {
+        boolean found = false;
+        if (!fromTransaction.toAccount.equals(fromAccount.memo)) {
+          QifAccount toAccount = accountTitleToAccount.get(fromTransaction.toAccount);
+          if (toAccount != null) {
+            Iterator<QifTransaction> iterator = toAccount.transactions.iterator();
+            while (iterator.hasNext()) {
+              QifTransaction toTransaction = iterator.next();
+              if (QifUtils.twoSidesOfTheSameTransfer(fromAccount, fromTransaction,
+                  toAccount, toTransaction)) {
+                iterator.remove();
+                found = true;
+                break;
+              }
+            }
+          }
+        }
+        if (!found) {
+          fromTransaction.memo = "Transfer: " + fromTransaction.toAccount;
+          fromTransaction.toAccount = null;
+        }
+      }
+      if (fromTransaction.splits != null) {
+        reduceTransfersByScan(fromAccount, fromTransaction.splits, accountTitleToAccount);
+      }
+    }
+  }
+}
@@ -0,0 +1,109 @@
+package org.totschnig.myexpenses.export.qif;
+
+import org.junit.Test;
+
+import java.util.Calendar;
+import java.util.Date;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+
+public class QifUtilParseDateTest {
+  private static final Pattern DATE_DELIMITER_PATTERN = Pattern.compile("/|'|\\.|-");
+  private static final String[] DELIMITERS = {"/", "'", ".", "-", "' ", " / "};
+
+  @Test
+  public void shouldParseUsDate() {
+    assertEquals(date(2001, 6, 21), QifUtils.parseDate("6/21' 1", QifDateFormat.US));
+    assertEquals(date(2001, 9, 18), QifUtils.parseDate("9/18'2001", QifDateFormat.US));
+    assertEquals(date(2005, 3, 26), QifUtils.parseDate("03-26-2005", QifDateFormat.US));
+  }
+
+  @Test
+  public void shouldParseEuAndYmdDate() {
+    assertEquals(date(1994, 1, 20), QifUtils.parseDate("20.1.94", QifDateFormat.EU));
+    assertEquals(date(2007, 2, 15), QifUtils.parseDate("15/2/07", QifDateFormat.EU));
+    assertEquals(date(2016, 12, 31), QifUtils.parseDate("2016-12-31", QifDateFormat.YMD));
+  }
+
+  @Test
+  public void shouldMatchFormerImplementation() {
+    Random random = new Random(24);
+    QifDateFormat[] formats = QifDateFormat.values();
+    for (int i = 0; i < 10000; i++) {
+      StringBuilder sDate = new StringBuilder();
+      int chunks = 1 + random.nextInt(4);
+      for (int j = 0; j < chunks; j++) {
+        if (j > 0) {
+          sDate.append(DELIMITERS[random.nextInt(DELIMITERS.length)]);
+        }
+        int kind = random.nextInt(20);
+        if (kind == 0) {
+          sDate.append("x");
+        } else if (kind == 1) {
+          //empty chunk
+        } else {
+          sDate.append(random.nextInt(kind < 10 ? 32 : 2100));
+        }
+      }
+      if (random.nextInt(20) == 0) {
+        sDate.append(DELIMITERS[random.nextInt(DELIMITERS.length)]);
+      }
+      QifDateFormat format = formats[random.nextInt(formats.length)];
+      assertEquals(sDate + " " + format, parseDateWithCalendar(sDate.toString(), format),
+          QifUtils.parseDate(sDate.toString(), format));
+    }
+  }
+
+  private static Date date(int year, int month, int day) {
+    Calendar cal = Calendar.getInstance();
+    cal.clear();
+    cal.set(year, month - 1, day);
+    return cal.getTime();
+  }
+
+  /**
+   * the implementation formerly used by {@link QifUtils#parseDate(String, QifDateFormat)}
+   */
+  private static Date parseDateWithCalendar(String sDate, QifDateFormat format) {
+    Calendar cal = Calendar.getInstance();
+    int month = cal.get(Calendar.MONTH) + 1;
+    int day = cal.get(Calendar.DAY_OF_MONTH);
+    int year = cal.get(Calendar.YEAR);
+
+    String[] chunks = DATE_DELIMITER_PATTERN.split(sDate);
+
+    try {
+      switch (format) {
+        case US:
+          month = Integer.parseInt(chunks[0].trim());
+          day = Integer.parseInt(chunks[1].trim());
+          year = Integer.parseInt(chunks[2].trim());
+          break;
+        case EU:
+          day = Integer.parseInt(chunks[0].trim());
+          month = Integer.parseInt(chunks[1].trim());
+          year = Integer.parseInt(chunks[2].trim());
+          break;
+        case YMD:
+          year = Integer.parseInt(chunks[0].trim());
+          month = Integer.parseInt(chunks[1].trim());
+          day = Integer.parseInt(chunks[2].trim());
+          break;
+      }
+    } catch (NumberFormatException | ArrayIndexOutOfBoundsException ignored) {
+    }
+
+    if (year < 100) {
+      if (year < 29) {
+        year += 2000;
+      } else {
+        year += 1900;
+      }
+    }
+    cal.set(year, month - 1, day, 0, 0, 0);
+    cal.set(Calendar.MILLISECOND, 0);
+    return cal.getTime();
+  }
+}
@@ -0,0 +1,17 @@
+package org.totschnig.myexpenses.provider;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+public class DbUtilsTest extends TestCase {
+
+  public void testFtsPrefixQuery() throws Exception {
+    Assert.assertEquals("super*", DbUtils.ftsPrefixQuery("Super"));
+    Assert.assertEquals("super* market*", DbUtils.ftsPrefixQuery("  Super-Market "));
+    Assert.assertEquals("o* neill*", DbUtils.ftsPrefixQuery("O'Neill"));
+    Assert.assertEquals("café*", DbUtils.ftsPrefixQuery("café"));
+    Assert.assertEquals("a1* 2b*", DbUtils.ftsPrefixQuery("a1 \"2b\""));
+    Assert.assertNull(DbUtils.ftsPrefixQuery(""));
+    Assert.assertNull(DbUtils.ftsPrefixQuery(" *-% "));
+  }
+}
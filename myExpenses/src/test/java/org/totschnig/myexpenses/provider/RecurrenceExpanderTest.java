@@ -0,0 +1,126 @@
+package org.totschnig.myexpenses.provider;
+
+import com.android.calendarcommon2.EventRecurrence;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+import hirondelle.date4j.DateTime;
+
+import static org.junit.Assert.assertEquals;
+
+public class RecurrenceExpanderTest {
+  private static final int[] FREQUENCIES = {RecurrenceExpander.NO_RECURRENCE, EventRecurrence.DAILY,
+      EventRecurrence.WEEKLY, EventRecurrence.MONTHLY, EventRecurrence.YEARLY};
+  private static final String[] TIME_ZONES = {"UTC", "Europe/Vienna", "America/Sao_Paulo",
+      "Australia/Lord_Howe", "Pacific/Kiritimati"};
+  private static final long DAY = TimeUnit.DAYS.toMillis(1);
+  private static final int ITERATIONS = 2000;
+
+  @Test
+  public void expandShouldMatchDayScanForRandomPlans() {
+    Random random = new Random(20);
+    for (int i = 0; i < ITERATIONS; i++) {
+      TimeZone timeZone = TimeZone.getTimeZone(TIME_ZONES[random.nextInt(TIME_ZONES.length)]);
+      int freq = FREQUENCIES[random.nextInt(FREQUENCIES.length)];
+      //between 2000 and 2040
+      long dtstart = 946684800000L + (long) (random.nextDouble() * 40 * 365 * DAY);
+      //window starts up to two years before or after dtstart, and spans up to three years
+      long start = dtstart + (long) ((random.nextDouble() * 4 - 2) * 365 * DAY);
+      long end = start + (long) (random.nextDouble() * 3 * 365 * DAY);
+      assertExpansion(dtstart, freq, start, end, timeZone);
+    }
+  }
+
+  @Test
+  public void expandShouldMatchDayScanAtEndOfMonth() {
+    TimeZone timeZone = TimeZone.getTimeZone("Europe/Vienna");
+    long windowStart = DateTime.forDateOnly(2015, 1, 1).getMilliseconds(timeZone);
+    long windowEnd = DateTime.forDateOnly(2021, 1, 1).getMilliseconds(timeZone);
+    int[][] days = {{1, 31}, {1, 30}, {1, 29}, {2, 29}, {2, 28}, {3, 31}, {12, 31}};
+    for (int year : new int[]{2014, 2016, 2017}) {
+      for (int[] monthAndDay : days) {
+        if (monthAndDay[1] > DateTime.forDateOnly(year, monthAndDay[0], 1).getNumDaysInMonth()) {
+          continue;
+        }
+        long dtstart = new DateTime(year, monthAndDay[0], monthAndDay[1], 12, 30, 0, 0)
+            .getMilliseconds(timeZone);
+        for (int freq : FREQUENCIES) {
+          assertExpansion(dtstart, freq, windowStart, windowEnd, timeZone);
+          assertExpansion(dtstart, freq, dtstart, windowEnd, timeZone);
+          assertExpansion(dtstart, freq, dtstart - DAY / 2, dtstart + DAY / 2, timeZone);
+        }
+      }
+    }
+  }
+
+  private void assertExpansion(long dtstart, int freq, long start, long end, TimeZone timeZone) {
+    String message = String.format(Locale.ROOT, "dtstart %d, freq %d, window %d - %d, %s",
+        dtstart, freq, start, end, timeZone.getID());
+    assertEquals(message, expandByDayScan(dtstart, freq, start, end, timeZone),
+        RecurrenceExpander.expand(dtstart, freq, start, end, timeZone));
+  }
+
+  /**
+   * the day by day iteration formerly done by {@link CalendarProviderProxy}
+   */
+  private static List<DateTime> expandByDayScan(long dtstart, int freq, long start, long end,
+                                                TimeZone timeZone) {
+    List<DateTime> result = new ArrayList<>();
+    if (dtstart > end) {
+      return result;
+    }
+    DateTime last = DateTime.forInstant(end, timeZone);
+    for (DateTime dayToCheck = DateTime.forInstant(Math.max(start, dtstart), timeZone);
+         dayToCheck.lteq(last); ) {
+      if (isInstanceOfPlan(dayToCheck, dtstart, freq, timeZone)) {
+        result.add(dayToCheck);
+        if (freq == RecurrenceExpander.NO_RECURRENCE) {
+          break;
+        } else {
+          switch (freq) {
+            case EventRecurrence.DAILY:
+              dayToCheck = dayToCheck.plusDays(1);
+              break;
+            case EventRecurrence.WEEKLY:
+              dayToCheck = dayToCheck.plusDays(7);
+              break;
+            case EventRecurrence.MONTHLY:
+              dayToCheck = dayToCheck.plus(0, 1, 0, 0, 0, 0, 0, DateTime.DayOverflow.LastDay);
+              break;
+            case EventRecurrence.YEARLY:
+              dayToCheck = dayToCheck.plus(1, 0, 0, 0, 0, 0, 0, DateTime.DayOverflow.LastDay);
+          }
+        }
+      } else {
+        dayToCheck = dayToCheck.plusDays(1);
+      }
+    }
+    return result;
+  }
+
+  private static boolean isInstanceOfPlan(DateTime dayToCheck, long dtstart, int freq,
+                                          TimeZone timeZone) {
+    DateTime startDate = DateTime.forInstant(dtstart, timeZone);
+    switch (freq) {
+      case RecurrenceExpander.NO_RECURRENCE:
+        return dayToCheck.isSameDayAs(startDate);
+      case EventRecurrence.DAILY:
+        return true;
+      case EventRecurrence.WEEKLY:
+        return dayToCheck.getWeekDay().equals(startDate.getWeekDay());
+      case EventRecurrence.MONTHLY:
+        return dayToCheck.getDay().equals(startDate.getDay());
+      case EventRecurrence.YEARLY:
+        return dayToCheck.getDay().equals(startDate.getDay()) &&
+            dayToCheck.getMonth().equals(startDate.getMonth());
+    }
+    throw new IllegalStateException("Unhandled event recurrence frequency " + freq);
+  }
+}
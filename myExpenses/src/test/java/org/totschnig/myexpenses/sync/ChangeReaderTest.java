@@ -9,7 +9,10 @@ import org.totschnig.myexpenses.sync.json.AdapterFactory;
 import org.totschnig.myexpenses.sync.json.TransactionChange;
 import org.totschnig.myexpenses.sync.json.Utils;
 
+import java.io.IOException;
 import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Locale;
 
@@ -41,4 +44,39 @@ public class ChangeReaderTest {
     assertEquals(1, result.size());
     assertEquals(expected, result.get(0));
   }
+
+  @Test
+  public void shouldReturnNullForEmptyInput() {
+    assertNull(Utils.getChanges(gson, new StringReader("")));
+    assertNull(Utils.getChanges(gson, new StringReader("null")));
+  }
+
+  @Test
+  public void streamedOutputShouldBeIdenticalToGson() throws IOException {
+    List<TransactionChange> changes = buildChanges(100);
+    StringWriter writer = new StringWriter();
+    Utils.writeChanges(gson, changes, writer);
+    assertEquals(gson.toJson(changes), writer.toString());
+  }
+
+  @Test
+  public void shouldReadBackWrittenChanges() throws IOException {
+    List<TransactionChange> changes = buildChanges(100);
+    StringWriter writer = new StringWriter();
+    Utils.writeChanges(gson, changes, writer);
+    List<TransactionChange> result = new ArrayList<>();
+    assertTrue(Utils.readChanges(gson, new StringReader(writer.toString()), result::add));
+    assertEquals(changes, result);
+  }
+
+  private List<TransactionChange> buildChanges(int count) {
+    List<TransactionChange> changes = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      changes.add(TransactionChange.builder().setType(TransactionChange.Type.created)
+          .setUuid("uuid-" + i).setTimeStamp(1475560175L + i).setDate(1475559751L + i)
+          .setAmount(-100L * i).setComment(i % 2 == 0 ? "Comment <" + i + ">" : null)
+          .setCrStatus("UNRECONCILED").build());
+    }
+    return changes;
+  }
 }
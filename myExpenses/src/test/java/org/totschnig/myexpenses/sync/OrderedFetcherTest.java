@@ -0,0 +1,185 @@
+package org.totschnig.myexpenses.sync;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.totschnig.myexpenses.sync.json.AdapterFactory;
+import org.totschnig.myexpenses.sync.json.ChangeSet;
+import org.totschnig.myexpenses.sync.json.TransactionChange;
+import org.totschnig.myexpenses.sync.json.Utils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * fetches change files from a local stand-in for a WebDAV server, which serves each file with a
+ * fixed latency
+ */
+public class OrderedFetcherTest {
+  private static final int NUMBER_OF_FILES = 40;
+  private static final int CHANGES_PER_FILE = 25;
+  private static final long LATENCY_MILLIS = 50;
+  private static final long FAILING_SEQUENCE = 7;
+
+  private MockWebServer server;
+  private OkHttpClient client;
+  private Gson gson;
+  private final AtomicInteger inFlight = new AtomicInteger();
+  private final AtomicInteger maxInFlight = new AtomicInteger();
+  /**
+   * if set, requests are held back until as many requests as the latch counts are being served
+   */
+  private volatile CountDownLatch allInFlight;
+
+  @Before
+  public void setup() throws IOException {
+    gson = new GsonBuilder()
+        .registerTypeAdapterFactory(AdapterFactory.create())
+        .create();
+    client = new OkHttpClient();
+    server = new MockWebServer();
+    server.setDispatcher(new Dispatcher() {
+      @Override
+      public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+        String path = request.getPath();
+        long sequence = Long.parseLong(path.substring(path.lastIndexOf('_') + 1, path.lastIndexOf('.')));
+        if (request.getMethod().equals("GET") && path.endsWith("_" + FAILING_SEQUENCE + ".json")
+            && path.startsWith("/failing/")) {
+          return new MockResponse().setResponseCode(404);
+        }
+        int current = inFlight.incrementAndGet();
+        try {
+          int max;
+          while (current > (max = maxInFlight.get()) && !maxInFlight.compareAndSet(max, current)) {
+            //retry
+          }
+          CountDownLatch latch = allInFlight;
+          if (latch != null) {
+            latch.countDown();
+            if (!latch.await(5, TimeUnit.SECONDS)) {
+              return new MockResponse().setResponseCode(503);
+            }
+          }
+        } finally {
+          inFlight.decrementAndGet();
+        }
+        return new MockResponse()
+            .setHeader("Content-Type", "application/json")
+            .setBodyDelay(LATENCY_MILLIS, TimeUnit.MILLISECONDS)
+            .setBody(buildChangeFile(sequence));
+      }
+    });
+    server.start();
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    server.shutdown();
+  }
+
+  @Test
+  public void shouldHandOnChangeSetsInSequenceOrder() throws IOException {
+    List<ChangeSet> changeSets = new ArrayList<>();
+    boolean completed = new OrderedFetcher<Long, ChangeSet>(4).fetch(sequences(),
+        sequence -> download("account", sequence), changeSets::add);
+    assertTrue(completed);
+    assertEquals(NUMBER_OF_FILES, changeSets.size());
+    ChangeSet merged = ChangeSet.merge(changeSets);
+    assertEquals(NUMBER_OF_FILES, merged.sequenceNumber);
+    assertEquals(NUMBER_OF_FILES * CHANGES_PER_FILE, merged.changes.size());
+    for (int i = 0; i < merged.changes.size(); i++) {
+      assertEquals(String.format(Locale.ROOT, "%d-%d", i / CHANGES_PER_FILE + 1, i % CHANGES_PER_FILE),
+          merged.changes.get(i).uuid());
+    }
+  }
+
+  @Test
+  public void shouldStopAtFailedChangeSet() throws IOException {
+    List<ChangeSet> changeSets = new ArrayList<>();
+    boolean completed = new OrderedFetcher<Long, ChangeSet>(4).fetch(sequences(),
+        sequence -> download("failing", sequence),
+        changeSet -> {
+          changeSets.add(changeSet);
+          return !changeSet.isFailed();
+        });
+    assertFalse(completed);
+    assertEquals(FAILING_SEQUENCE, changeSets.size());
+    assertTrue(ChangeSet.merge(changeSets).isFailed());
+  }
+
+  @Test
+  public void shouldFetchAsManyFilesConcurrentlyAsAllowed() throws IOException {
+    //fails with a 503 unless the fetcher has four requests outstanding at the same time
+    allInFlight = new CountDownLatch(4);
+    List<ChangeSet> changeSets = new ArrayList<>();
+    assertTrue(new OrderedFetcher<Long, ChangeSet>(4).fetch(sequences(),
+        sequence -> download("account", sequence), changeSet -> changeSets.add(changeSet) && !changeSet.isFailed()));
+    assertEquals(NUMBER_OF_FILES, changeSets.size());
+    assertEquals(4, maxInFlight.get());
+  }
+
+  @Test
+  public void sequentialFetchShouldHaveOneRequestInFlight() throws IOException {
+    List<ChangeSet> changeSets = new ArrayList<>();
+    assertTrue(new OrderedFetcher<Long, ChangeSet>(1).fetch(sequences(),
+        sequence -> download("account", sequence), changeSets::add));
+    assertEquals(NUMBER_OF_FILES, changeSets.size());
+    assertEquals(1, maxInFlight.get());
+  }
+
+  private List<Long> sequences() {
+    List<Long> result = new ArrayList<>(NUMBER_OF_FILES);
+    for (long i = 1; i <= NUMBER_OF_FILES; i++) {
+      result.add(i);
+    }
+    return result;
+  }
+
+  private ChangeSet download(String folder, long sequence) throws IOException {
+    HttpUrl url = server.url("/" + folder + "/_" + sequence + ".json");
+    Response response = client.newCall(new Request.Builder().url(url).build()).execute();
+    try {
+      if (!response.isSuccessful()) {
+        return ChangeSet.failed;
+      }
+      List<TransactionChange> changes = Utils.getChanges(gson, response.body().charStream());
+      return ChangeSet.create(sequence, changes);
+    } finally {
+      response.close();
+    }
+  }
+
+  private static String buildChangeFile(long sequence) {
+    StringBuilder sb = new StringBuilder("[");
+    for (int i = 0; i < CHANGES_PER_FILE; i++) {
+      if (i > 0) {
+        sb.append(",");
+      }
+      sb.append(String.format(Locale.ROOT,
+          "{\"type\":\"created\",\"uuid\":\"%d-%d\",\"timeStamp\":%d,\"date\":%d,\"amount\":%d,\"crStatus\":\"UNRECONCILED\"}",
+          sequence, i, 1475560175 + i, 1475559751, -100 * (i + 1)));
+    }
+    return sb.append("]").toString();
+  }
+}
@@ -0,0 +1,64 @@
+package org.totschnig.myexpenses.sync;
+
+import org.junit.Test;
+import org.totschnig.myexpenses.sync.json.TransactionChange;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SyncAdapterCollapseChangesTest extends SyncAdapterBaseTest {
+
+  @Test
+  public void shouldKeepCreateAndMergeUpdates() {
+    List<TransactionChange> changes = new ArrayList<>();
+    changes.add(buildCreated().setUuid("one").setAmount(100L).setComment("first").build());
+    changes.add(buildUpdated().setUuid("one").setAmount(200L).build());
+    changes.add(buildUpdated().setUuid("one").setAmount(300L).build());
+    List<TransactionChange> result = SyncAdapter.collapseChanges(changes);
+    assertEquals(2, result.size());
+    assertTrue(result.get(0).isCreate());
+    assertEquals(Long.valueOf(100L), result.get(0).amount());
+    assertTrue(result.get(1).isUpdate());
+    assertEquals(Long.valueOf(300L), result.get(1).amount());
+  }
+
+  @Test
+  public void shouldTurnRepeatedCreateIntoUpdate() {
+    List<TransactionChange> changes = new ArrayList<>();
+    changes.add(buildCreated().setUuid("one").setAmount(100L).build());
+    changes.add(buildCreated().setUuid("one").setAmount(200L).build());
+    List<TransactionChange> result = SyncAdapter.collapseChanges(changes);
+    assertEquals(2, result.size());
+    assertTrue(result.get(1).isUpdate());
+    assertEquals(Long.valueOf(200L), result.get(1).amount());
+  }
+
+  @Test
+  public void deleteShouldSupersedeEarlierChanges() {
+    List<TransactionChange> changes = new ArrayList<>();
+    changes.add(buildCreated().setUuid("one").build());
+    changes.add(buildUpdated().setUuid("one").setAmount(200L).build());
+    changes.add(buildDeleted().setUuid("one").build());
+    List<TransactionChange> result = SyncAdapter.collapseChanges(changes);
+    assertEquals(1, result.size());
+    assertTrue(result.get(0).isDelete());
+  }
+
+  @Test
+  public void shouldKeepOrderOfFirstChange() {
+    List<TransactionChange> changes = new ArrayList<>();
+    changes.add(buildCreated().setUuid("one").build());
+    changes.add(buildCreated().setUuid("two").build());
+    changes.add(buildUpdated().setUuid("one").setAmount(200L).build());
+    changes.add(buildUpdated().setUuid("two").setAmount(300L).build());
+    List<TransactionChange> result = SyncAdapter.collapseChanges(changes);
+    assertEquals(4, result.size());
+    assertEquals("one", result.get(0).uuid());
+    assertEquals("one", result.get(1).uuid());
+    assertEquals("two", result.get(2).uuid());
+    assertEquals("two", result.get(3).uuid());
+  }
+}
@@ -69,4 +69,38 @@ public class SyncAdapterMergeChangeSetsTest extends SyncAdapterBaseTest {
     Pair<List<TransactionChange>, List<TransactionChange>> result = syncAdapter.mergeChangeSets(first, second);
     assertEquals(1, result.first.size());
   }
+
+  @Test
+  public void largeChangeSetsShouldBeMergedPerTransaction() {
+    int count = 25000;
+    List<TransactionChange> first = new ArrayList<>();
+    List<TransactionChange> second = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      String uuid = "uuid" + i;
+      if (i % 10 == 0) {
+        first.add(buildUpdated().setUuid(uuid).setAmount((long) i).build());
+        second.add(buildDeleted().setUuid(uuid).build());
+      } else if (i % 10 == 1) {
+        first.add(buildUpdated().setUuid(uuid).setAmount((long) i).build());
+        second.add(buildUpdated().setUuid(uuid).setComment("Comment " + i).build());
+      } else {
+        first.add(buildCreated().setUuid(uuid).setAmount((long) i).build());
+        second.add(buildCreated().setUuid("remote" + i).setAmount((long) i).build());
+      }
+    }
+    Pair<List<TransactionChange>, List<TransactionChange>> result = syncAdapter.mergeChangeSets(first, second);
+    assertEquals(count - count / 10, result.first.size());
+    assertEquals(count, result.second.size());
+    for (int i = 0; i < result.first.size(); i++) {
+      //transactions deleted on the other side are left out, the order of the others is kept
+      int expected = i + i / 9 + 1;
+      TransactionChange change = result.first.get(i);
+      assertEquals("uuid" + expected, change.uuid());
+      assertEquals(Long.valueOf(expected), change.amount());
+      if (expected % 10 == 1) {
+        assertEquals("Comment " + expected, change.comment());
+        assertEquals(change, result.second.get(expected));
+      }
+    }
+  }
 }
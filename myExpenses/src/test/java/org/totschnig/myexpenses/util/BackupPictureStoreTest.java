@@ -0,0 +1,53 @@
+package org.totschnig.myexpenses.util;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BackupPictureStoreTest {
+
+  @Test
+  public void hashShouldBeHexEncodedSha256() throws IOException {
+    assertEquals("ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad",
+        BackupPictureStore.hash(new ByteArrayInputStream("abc".getBytes("UTF-8"))));
+  }
+
+  @Test
+  public void manifestShouldBeReadFromArchive() throws IOException {
+    Map<String, String> manifest = new HashMap<>();
+    manifest.put("picture1.jpg", "ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad");
+    manifest.put("picture2.jpg", "ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad");
+    ByteArrayOutputStream archive = new ByteArrayOutputStream();
+    ZipOutputStream zip = new ZipOutputStream(archive);
+    zip.putNextEntry(new ZipEntry("BACKUP"));
+    zip.write(new byte[]{1, 2, 3});
+    zip.closeEntry();
+    zip.putNextEntry(new ZipEntry(BackupUtils.BACKUP_PICTURES_MANIFEST_FILE_NAME));
+    BackupPictureStore.writeManifest(manifest, zip);
+    zip.closeEntry();
+    zip.close();
+    assertEquals(manifest, BackupPictureStore.readManifestFromArchive(
+        new ByteArrayInputStream(archive.toByteArray())));
+  }
+
+  @Test
+  public void archiveWithoutManifestShouldYieldEmptyManifest() throws IOException {
+    ByteArrayOutputStream archive = new ByteArrayOutputStream();
+    ZipOutputStream zip = new ZipOutputStream(archive);
+    zip.putNextEntry(new ZipEntry("BACKUP"));
+    zip.write(new byte[]{1, 2, 3});
+    zip.closeEntry();
+    zip.close();
+    assertTrue(BackupPictureStore.readManifestFromArchive(
+        new ByteArrayInputStream(archive.toByteArray())).isEmpty());
+  }
+}
@@ -1,13 +1,81 @@
 package org.totschnig.myexpenses.util;
 
-import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.totschnig.myexpenses.model.Money;
 
-//TODO postponed until Money is refactored to not depende on Android context, or migrated to JSR 354
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.text.NumberFormat;
+import java.util.Currency;
+import java.util.Locale;
+
+import junitparams.JUnitParamsRunner;
+import junitparams.Parameters;
+
+import static org.junit.Assert.assertEquals;
+
+//formatting through the singleton is postponed until Money is refactored to not depend on Android
+//context, or migrated to JSR 354, we test the formatting of amounts
+@RunWith(JUnitParamsRunner.class)
 public class CurrencyFormatterTest {
-  private CurrencyFormatter currencyFormatter;
+  private static final long[] AMOUNTS = {0, 1, -1, 5, 99, 100, 101, -12345, 100500, 123456789,
+      -999999999999999L, 999999999999999L, 1000000000000000L, Long.MAX_VALUE, Long.MIN_VALUE};
+
+  @Test
+  @Parameters({"USD, 2", "JPY, 0", "BHD, 3", "XXX, 8", "EUR, 4"})
+  public void formatAmountMinorShouldMatchBigDecimalPath(String currencyCode, int fractionDigits) {
+    Currency currency = Currency.getInstance(currencyCode);
+    NumberFormat numberFormat = buildFormat(currency, fractionDigits);
+    for (long amount : AMOUNTS) {
+      assertEquals(legacyFormat(numberFormat, amount, fractionDigits),
+          CurrencyFormatter.formatAmountMinor(numberFormat, amount, fractionDigits));
+    }
+    for (long amount = -100000; amount <= 100000; amount += 7) {
+      assertEquals(legacyFormat(numberFormat, amount, fractionDigits),
+          CurrencyFormatter.formatAmountMinor(numberFormat, amount, fractionDigits));
+    }
+  }
+
+  @Test
+  public void formatAmountMinorShouldMatchBigDecimalPathForSpreadAmounts() {
+    NumberFormat numberFormat = buildFormat(Currency.getInstance("USD"), 2);
+    for (long i = 0; i < 200000; i++) {
+      long amount = i * 7919L - 500000L;
+      assertEquals(legacyFormat(numberFormat, amount, 2),
+          CurrencyFormatter.formatAmountMinor(numberFormat, amount, 2));
+    }
+  }
+
+  @Test
+  public void amountMajorShouldBeExact() {
+    Currency currency = Currency.getInstance("XXX");
+    for (long amount : AMOUNTS) {
+      BigDecimal expected = new BigDecimal(amount).divide(
+          new BigDecimal(Math.pow(10, Money.DEFAULTFRACTIONDIGITS)), Money.DEFAULTFRACTIONDIGITS, RoundingMode.DOWN);
+      assertEquals(expected, new Money(currency, amount).getAmountMajor());
+    }
+  }
+
+  @Test
+  public void amountMinorShouldSurviveRoundTrip() {
+    Currency currency = Currency.getInstance("EUR");
+    for (long amount = -10000; amount <= 10000; amount += 3) {
+      Money money = new Money(currency, amount);
+      assertEquals(amount, new Money(currency, money.getAmountMajor()).getAmountMinor().longValue());
+    }
+  }
+
+  static NumberFormat buildFormat(Currency currency, int fractionDigits) {
+    return CurrencyFormatter.configure(NumberFormat.getCurrencyInstance(Locale.US), currency,
+        fractionDigits, null);
+  }
 
-  @Before
-  public void setUp() {
-    currencyFormatter = CurrencyFormatter.instance();
+  /**
+   * the computation formerly done by {@link Money#getAmountMajor()}
+   */
+  static String legacyFormat(NumberFormat numberFormat, long amount, int fractionDigits) {
+    return numberFormat.format(new BigDecimal(amount).divide(
+        new BigDecimal(Math.pow(10, fractionDigits)), fractionDigits, RoundingMode.DOWN));
   }
 }
@@ -0,0 +1,303 @@
+package org.totschnig.myexpenses.util;
+
+import com.itextpdf.text.Chunk;
+import com.itextpdf.text.DocumentException;
+import com.itextpdf.text.Font;
+import com.itextpdf.text.Phrase;
+import com.itextpdf.text.Utilities;
+import com.itextpdf.text.pdf.BaseFont;
+import com.itextpdf.text.pdf.PdfPCell;
+import com.itextpdf.text.pdf.PdfWriter;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.totschnig.myexpenses.util.LazyFontSelector.FontType;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+public class FontRegistryTest {
+  /**
+   * payees and comments in different scripts, some of them not covered by any font
+   */
+  static final String[] MULTILINGUAL = {
+      "Supermarkt Müller", "Café de Flore", "Boulangerie Émile", "Łódź Kantor",
+      "Ταβέρνα Οδυσσέας", "Продукты у дома", "Київстар", "მარკეტი",
+      "مطعم الشام", "קפה הפוך", "नमस्ते भोजनालय", "ร้านอาหาร", "東京ラーメン",
+      "北京烤鸭店", "서울 식당", "Rent\nApril", "Zero​width", "Pizza 🍕 night",
+      "Ａｍａｚｏｎ", "½ price ∑ €100"
+  };
+  private static final File SYSTEM_FONTS = new File("/system/fonts");
+  private static final File SHARED_FONTS = new File("/usr/share/fonts");
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void shouldRouteLikeFormerSelector() throws DocumentException, IOException {
+    File[] files = findFonts();
+    assumeTrue(files.length > 0);
+    LazyFontSelector selector = new LazyFontSelector(new FontRegistry(files, null));
+    LegacyFontSelector legacy = new LegacyFontSelector(files);
+    for (FontType type : FontType.values()) {
+      for (String text : MULTILINGUAL) {
+        assertEquals(text, describe(legacy.process(text, type)),
+            describe(selector.process(text, type)));
+      }
+    }
+  }
+
+  @Test
+  public void coverageShouldBeReadWithoutLoadingFonts() throws DocumentException, IOException {
+    File[] files = copyFonts();
+    assumeTrue(files.length > 0);
+    File coverageFile = new File(folder.getRoot(), "font_coverage");
+    FontRegistry registry = new FontRegistry(files, coverageFile);
+    List<String> expected = new ArrayList<>();
+    for (String text : MULTILINGUAL) {
+      expected.add(describe(new LazyFontSelector(registry).process(text, FontType.NORMAL)));
+    }
+    registry.saveCoverage();
+
+    FontRegistry restored = new FontRegistry(files, coverageFile);
+    for (String text : MULTILINGUAL) {
+      for (int i = 0; i < text.length(); i = text.offsetByCodePoints(i, 1)) {
+        int codePoint = text.codePointAt(i);
+        if (codePoint != '\n') {
+          assertTrue(text, restored.isProbed(codePoint));
+          assertEquals(text, registry.fontIndex(codePoint), restored.fontIndex(codePoint));
+        }
+      }
+    }
+    assertEquals(0, restored.getLoadedFontCount());
+    List<String> actual = new ArrayList<>();
+    for (String text : MULTILINGUAL) {
+      actual.add(describe(new LazyFontSelector(restored).process(text, FontType.NORMAL)));
+    }
+    assertEquals(expected, actual);
+  }
+
+  @Test
+  public void coverageShouldBeDiscardedIfFontsChange() throws DocumentException, IOException {
+    File[] files = copyFonts();
+    assumeTrue(files.length > 0);
+    File coverageFile = new File(folder.getRoot(), "font_coverage");
+    FontRegistry registry = new FontRegistry(files, coverageFile);
+    registry.fontIndex('a');
+    registry.saveCoverage();
+    assertTrue(new FontRegistry(files, coverageFile).isProbed('a'));
+
+    assertTrue(files[0].setLastModified(files[0].lastModified() - 60000));
+    assertFalse(new FontRegistry(files, coverageFile).isProbed('a'));
+    assertFalse(new FontRegistry(Arrays.copyOf(files, files.length - 1), coverageFile)
+        .isProbed('a'));
+  }
+
+  @Test
+  public void printedCellsShouldMatchFormerSelector() throws DocumentException, IOException {
+    File[] files = findFonts();
+    assumeTrue(files.length > 0);
+    File coverageFile = new File(folder.getRoot(), "font_coverage");
+    List<String> texts = new ArrayList<>(Arrays.asList(MULTILINGUAL));
+    for (int i = 1; i < MULTILINGUAL.length; i++) {
+      texts.add(MULTILINGUAL[i - 1] + " " + MULTILINGUAL[i]);
+    }
+    //the first document probes the fonts, the second one is printed from the persisted coverage
+    PdfHelper first = new PdfHelper(new FontRegistry(files, coverageFile), false);
+    assertCellsMatchFormerSelector(first, texts, files);
+    first.finish();
+    assertCellsMatchFormerSelector(new PdfHelper(new FontRegistry(files, coverageFile), false),
+        texts, files);
+  }
+
+  private static void assertCellsMatchFormerSelector(PdfHelper helper, List<String> texts,
+                                                     File[] files)
+      throws DocumentException, IOException {
+    LegacyFontSelector legacy = new LegacyFontSelector(files);
+    for (FontType type : FontType.values()) {
+      for (String text : texts) {
+        PdfPCell cell = helper.printToCell(text, type);
+        assertEquals(text, describe(legacy.process(text, type)), describe(cell.getPhrase()));
+        assertEquals(text, PdfHelper.hasAnyRtl(text) ? PdfWriter.RUN_DIRECTION_RTL :
+            PdfWriter.RUN_DIRECTION_NO_BIDI, cell.getRunDirection());
+      }
+    }
+  }
+
+  /**
+   * @return the fonts installed on the machine running the test
+   */
+  static File[] findFonts() {
+    if (SYSTEM_FONTS.isDirectory()) {
+      return FontRegistry.listFonts(SYSTEM_FONTS);
+    }
+    List<File> result = new ArrayList<>();
+    collectFonts(SHARED_FONTS, result);
+    File[] files = result.toArray(new File[result.size()]);
+    Arrays.sort(files);
+    return files;
+  }
+
+  private static void collectFonts(File dir, List<File> result) {
+    File[] files = dir.listFiles();
+    if (files == null) {
+      return;
+    }
+    for (File file : files) {
+      if (file.isDirectory()) {
+        collectFonts(file, result);
+      } else if (file.getName().endsWith(".ttf")) {
+        result.add(file);
+      }
+    }
+  }
+
+  private File[] copyFonts() throws IOException {
+    File[] fonts = findFonts();
+    File[] copies = new File[Math.min(fonts.length, 3)];
+    for (int i = 0; i < copies.length; i++) {
+      copies[i] = new File(folder.getRoot(), fonts[i].getName());
+      InputStream in = new FileInputStream(fonts[i]);
+      OutputStream out = new FileOutputStream(copies[i]);
+      try {
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+          out.write(buffer, 0, read);
+        }
+      } finally {
+        in.close();
+        out.close();
+      }
+    }
+    return copies;
+  }
+
+  static String describe(Phrase phrase) {
+    StringBuilder result = new StringBuilder();
+    for (Chunk chunk : phrase.getChunks()) {
+      Font font = chunk.getFont();
+      result.append(chunk.getContent()).append('|')
+          .append(font.getBaseFont().getPostscriptFontName()).append('|')
+          .append(font.getSize()).append('|').append(font.getStyle()).append('|')
+          .append(font.getColor()).append('\n');
+    }
+    return result.toString();
+  }
+
+  /**
+   * the selection formerly done by {@link LazyFontSelector}, which probed the fonts for each
+   * character
+   */
+  static class LegacyFontSelector {
+    private final File[] files;
+    private final List<BaseFont> baseFonts = new ArrayList<>();
+    private final Map<FontType, Map<Integer, Font>> fonts = new HashMap<>();
+    private Font currentFont = null;
+    private FontType type;
+
+    LegacyFontSelector(File[] files) {
+      this.files = files;
+    }
+
+    Phrase process(String text, FontType type) throws DocumentException, IOException {
+      char cc[] = text.toCharArray();
+      int len = cc.length;
+      StringBuffer sb = new StringBuffer();
+      Phrase ret = new Phrase();
+      currentFont = null;
+      this.type = type;
+      for (int k = 0; k < len; ++k) {
+        Chunk newChunk = processChar(cc, k, sb);
+        if (newChunk != null) {
+          ret.add(newChunk);
+        }
+      }
+      if (sb.length() > 0) {
+        Chunk ck = new Chunk(sb.toString(), currentFont != null ? currentFont
+            : getFont(0));
+        ret.add(ck);
+      }
+      return ret;
+    }
+
+    private Chunk processChar(char[] cc, int k, StringBuffer sb) throws DocumentException, IOException {
+      Chunk newChunk = null;
+      char c = cc[k];
+      if (c == '\n' || c == '\r') {
+        sb.append(c);
+      } else {
+        Font font;
+        if (Utilities.isSurrogatePair(cc, k)) {
+          int u = Utilities.convertToUtf32(cc, k);
+          for (int f = 0; f < files.length; ++f) {
+            font = getFont(f);
+            if (font.getBaseFont().charExists(u)
+                || Character.getType(u) == Character.FORMAT) {
+              if (currentFont != font) {
+                if (sb.length() > 0 && currentFont != null) {
+                  newChunk = new Chunk(sb.toString(), currentFont);
+                  sb.setLength(0);
+                }
+                currentFont = font;
+              }
+              sb.append(c);
+              sb.append(cc[++k]);
+              break;
+            }
+          }
+        } else {
+          for (int f = 0; f < files.length; ++f) {
+            font = getFont(f);
+            if (font.getBaseFont().charExists(c)
+                || Character.getType(c) == Character.FORMAT) {
+              if (currentFont != font) {
+                if (sb.length() > 0 && currentFont != null) {
+                  newChunk = new Chunk(sb.toString(), currentFont);
+                  sb.setLength(0);
+                }
+                currentFont = font;
+              }
+              sb.append(c);
+              break;
+            }
+          }
+        }
+      }
+      return newChunk;
+    }
+
+    private Font getFont(int index) throws DocumentException, IOException {
+      Map<Integer, Font> byIndex = fonts.get(type);
+      if (byIndex == null) {
+        byIndex = new HashMap<>();
+        fonts.put(type, byIndex);
+      }
+      Font f = byIndex.get(index);
+      if (f == null) {
+        if (baseFonts.size() < index + 1) {
+          baseFonts.add(BaseFont.createFont(files[index].getAbsolutePath(), BaseFont.IDENTITY_H,
+              BaseFont.EMBEDDED));
+        }
+        f = new Font(baseFonts.get(index), type.size, type.style, type.color);
+        byIndex.put(index, f);
+      }
+      return f;
+    }
+  }
+}
@@ -0,0 +1,162 @@
+package org.totschnig.myexpenses.util;
+
+import com.itextpdf.text.DocumentException;
+import com.itextpdf.text.Phrase;
+import com.itextpdf.text.Rectangle;
+import com.itextpdf.text.pdf.PdfPCell;
+import com.itextpdf.text.pdf.PdfWriter;
+
+import org.junit.Ignore;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.totschnig.myexpenses.util.FontRegistryTest.LegacyFontSelector;
+import org.totschnig.myexpenses.util.LazyFontSelector.FontType;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Compares printing the cells of an account with 5,000 multilingual transactions through
+ * {@link PdfHelper#printToCell}, with the per character probing formerly done by
+ * {@link LazyFontSelector}, which started from scratch for each printed document. Like JMH, each
+ * path is warmed up before it is measured over several iterations, and the best iteration is
+ * reported. The first document printed in a new process is measured separately, once with and once
+ * without a persisted coverage map. Timings depend on the machine, hence the benchmark is not part
+ * of the unit tests and only reports its results when run manually. That the printed cells are
+ * the same is verified by {@link FontRegistryTest}.
+ */
+public class PdfHelperBenchmark {
+  private static final int WARMUP_ITERATIONS = 2;
+  private static final int MEASUREMENT_ITERATIONS = 5;
+  private static final int ROWS = 5000;
+  private static final String[] CATEGORIES = {
+      "Food", "Lebensmittel", "Транспорт", "Λογαριασμοί", "住居", "مواصلات", "Santé"
+  };
+
+  private interface Path {
+    PdfPCell printToCell(String text, FontType type) throws DocumentException, IOException;
+  }
+
+  private interface PathFactory {
+    /**
+     * @return a path for printing one document
+     */
+    Path newDocument();
+  }
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  /**
+   * prevents the JIT from discarding the printed cells
+   */
+  private int blackHole;
+
+  @Ignore("benchmark, run manually")
+  @Test
+  public void printCells() throws DocumentException, IOException {
+    final File[] files = FontRegistryTest.findFonts();
+    assumeTrue(files.length > 0);
+    String[][] rows = generateRows(new Random(25));
+    File coverageFile = new File(folder.getRoot(), "font_coverage");
+
+    FontRegistry probing = new FontRegistry(files, coverageFile);
+    long firstWithoutCoverage = run(rows, newHelper(probing));
+    probing.saveCoverage();
+    final FontRegistry registry = new FontRegistry(files, coverageFile);
+    long firstWithCoverage = run(rows, newHelper(registry));
+    long legacy = measure(rows, new PathFactory() {
+      @Override
+      public Path newDocument() {
+        final LegacyFontSelector selector = new LegacyFontSelector(files.clone());
+        return new Path() {
+          @Override
+          public PdfPCell printToCell(String text, FontType type) throws DocumentException, IOException {
+            return legacyPrintToCell(selector.process(text, type), text);
+          }
+        };
+      }
+    });
+    long fast = measure(rows, new PathFactory() {
+      @Override
+      public Path newDocument() {
+        return newHelper(registry);
+      }
+    });
+    System.out.println(String.format(Locale.ROOT,
+        "Printing %d rows with %d fonts: probing each character %d ms, registry %d ms, " +
+            "first document without coverage map %d ms, with coverage map %d ms",
+        ROWS, files.length, legacy, fast, firstWithoutCoverage, firstWithCoverage));
+  }
+
+  private static Path newHelper(FontRegistry registry) {
+    final PdfHelper helper = new PdfHelper(registry, false);
+    return new Path() {
+      @Override
+      public PdfPCell printToCell(String text, FontType type) throws DocumentException, IOException {
+        return helper.printToCell(text, type);
+      }
+    };
+  }
+
+  private static PdfPCell legacyPrintToCell(Phrase phrase, String text) {
+    PdfPCell cell = new PdfPCell(phrase);
+    if (PdfHelper.hasAnyRtl(text)) {
+      cell.setRunDirection(PdfWriter.RUN_DIRECTION_RTL);
+    }
+    cell.setBorder(Rectangle.NO_BORDER);
+    return cell;
+  }
+
+  /**
+   * date, category, payee, amount and comment of each row, as printed by
+   * {@link org.totschnig.myexpenses.export.pdf.PdfPrinter}
+   */
+  private static String[][] generateRows(Random random) {
+    String[] texts = FontRegistryTest.MULTILINGUAL;
+    String[][] rows = new String[ROWS][];
+    for (int i = 0; i < ROWS; i++) {
+      rows[i] = new String[]{
+          String.format(Locale.ROOT, "%02d.%02d.2017", 1 + random.nextInt(28), 1 + random.nextInt(12)),
+          CATEGORIES[random.nextInt(CATEGORIES.length)],
+          texts[random.nextInt(texts.length)],
+          String.format(Locale.ROOT, "%.2f €", (random.nextInt(200000) - 100000) / 100.0),
+          random.nextInt(3) == 0 ? texts[random.nextInt(texts.length)] + " " +
+              texts[random.nextInt(texts.length)] : ""
+      };
+    }
+    return rows;
+  }
+
+  private long measure(String[][] rows, PathFactory factory) throws DocumentException, IOException {
+    for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+      run(rows, factory.newDocument());
+    }
+    long best = Long.MAX_VALUE;
+    for (int i = 0; i < MEASUREMENT_ITERATIONS; i++) {
+      best = Math.min(best, run(rows, factory.newDocument()));
+    }
+    return best;
+  }
+
+  private long run(String[][] rows, Path path) throws DocumentException, IOException {
+    long start = System.nanoTime();
+    for (String[] row : rows) {
+      blackHole += path.printToCell(row[0], FontType.NORMAL).getPhrase().size();
+      blackHole += path.printToCell(row[1], FontType.NORMAL).getPhrase().size();
+      blackHole += path.printToCell(row[2], FontType.UNDERLINE).getPhrase().size();
+      blackHole += path.printToCell(row[3], row[3].startsWith("-") ? FontType.EXPENSE : FontType.INCOME)
+          .getPhrase().size();
+      if (!row[4].isEmpty()) {
+        blackHole += path.printToCell(row[4], FontType.ITALIC).getPhrase().size();
+      }
+    }
+    return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+  }
+}